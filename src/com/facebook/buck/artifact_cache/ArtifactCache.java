@@ -36,6 +36,26 @@ public interface ArtifactCache extends AutoCloseable {
    */
   CacheResult fetch(RuleKey ruleKey, LazyPath output);
 
+  /**
+   * Fetch several cached artifacts at once, saving each to the path it is mapped to.  This has the
+   * same effect as calling {@link #fetch(RuleKey, LazyPath)} for each rule key, but lets caches
+   * that have to make a round trip per lookup batch them up.
+   *
+   * @param outputs the rule keys to fetch, each mapped to the path to store its artifact to.
+   * @return the result of the fetch for each of the rule keys in {@code outputs}.
+   */
+  ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, LazyPath> outputs);
+
+  /**
+   * Check which of the given rule keys this cache has artifacts for, without fetching them.
+   * Results are advisory: a later fetch of a rule key reported as present may still miss.
+   *
+   * @param ruleKeys keys to look up.
+   * @return for each rule key, a {@link CacheResultType#HIT} with no metadata if the cache has an
+   *     artifact for it, otherwise a {@link CacheResultType#MISS} or {@link CacheResultType#ERROR}.
+   */
+  ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys);
+
   /**
    * Store the artifact at path specified by output to cache, such that it can later be fetched
    * using ruleKey as the lookup key.  If any internal errors occur, fail silently and continue
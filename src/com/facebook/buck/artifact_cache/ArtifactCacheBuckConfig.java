@@ -47,6 +47,9 @@ public class ArtifactCacheBuckConfig {
   private static final String CACHE_SECTION_NAME = "cache";
 
   private static final String DEFAULT_DIR_CACHE_MODE = CacheReadMode.readwrite.name();
+  private static final String DIR_CACHE_LAYOUT_FIELD_NAME = "dir_layout";
+  private static final DirCacheLayout DEFAULT_DIR_CACHE_LAYOUT = DirCacheLayout.RULE_KEY;
+  private static final String DIR_CACHE_INDEX_FIELD_NAME = "dir_index";
 
   // Names of the fields in a [cache*] section that describe a single HTTP cache.
   private static final String HTTP_URL_FIELD_NAME = "http_url";
@@ -108,6 +111,11 @@ public class ArtifactCacheBuckConfig {
     CLIENT_SLB,
   }
 
+  public enum DirCacheLayout {
+    RULE_KEY,
+    CONTENT_ADDRESSED,
+  }
+
   private final BuckConfig buckConfig;
   private final SlbBuckConfig slbConfig;
 
@@ -188,7 +196,12 @@ public class ArtifactCacheBuckConfig {
     if (!getServingLocalCacheEnabled()) {
       return Optional.absent();
     }
-    return Optional.of(getDirCache().withCacheReadMode(getServedLocalCacheReadMode()));
+    // The served cache lives in the same process as the build's own dir cache, and the index can
+    // only be held by one of them at a time.
+    return Optional.of(
+        getDirCache()
+            .withCacheReadMode(getServedLocalCacheReadMode())
+            .withIndexEnabled(false));
   }
 
   public DirCacheEntry getDirCache() {
@@ -196,6 +209,8 @@ public class ArtifactCacheBuckConfig {
         .setCacheDir(getCacheDir())
         .setCacheReadMode(getDirCacheReadMode())
         .setMaxSizeBytes(getCacheDirMaxSizeBytes())
+        .setLayout(getDirCacheLayout())
+        .setIndexEnabled(isDirCacheIndexEnabled())
         .build();
   }
 
@@ -266,6 +281,15 @@ public class ArtifactCacheBuckConfig {
     return getCacheReadMode(CACHE_SECTION_NAME, "dir_mode", DEFAULT_DIR_CACHE_MODE);
   }
 
+  private DirCacheLayout getDirCacheLayout() {
+    return buckConfig.getEnum(CACHE_SECTION_NAME, DIR_CACHE_LAYOUT_FIELD_NAME, DirCacheLayout.class)
+        .or(DEFAULT_DIR_CACHE_LAYOUT);
+  }
+
+  private boolean isDirCacheIndexEnabled() {
+    return buckConfig.getBooleanValue(CACHE_SECTION_NAME, DIR_CACHE_INDEX_FIELD_NAME, false);
+  }
+
   private Path getCacheDir() {
     String cacheDir = buckConfig.getLocalCacheDirectory();
     Path pathToCacheDir = buckConfig.resolvePathThatMayBeOutsideTheProjectFilesystem(
@@ -393,6 +417,16 @@ public class ArtifactCacheBuckConfig {
     public abstract Path getCacheDir();
     public abstract Optional<Long> getMaxSizeBytes();
     public abstract CacheReadMode getCacheReadMode();
+
+    @Value.Default
+    public DirCacheLayout getLayout() {
+      return DEFAULT_DIR_CACHE_LAYOUT;
+    }
+
+    @Value.Default
+    public boolean isIndexEnabled() {
+      return false;
+    }
   }
 
   @Value.Immutable
@@ -184,12 +184,31 @@ public class ArtifactCaches {
       ProjectFilesystem projectFilesystem) {
     Path cacheDir = dirCacheConfig.getCacheDir();
     try {
-      DirArtifactCache dirArtifactCache =  new DirArtifactCache(
-          "dir",
-          projectFilesystem,
-          cacheDir,
-          dirCacheConfig.getCacheReadMode().isDoStore(),
-          dirCacheConfig.getMaxSizeBytes());
+      ArtifactCache dirArtifactCache;
+      switch (dirCacheConfig.getLayout()) {
+        case CONTENT_ADDRESSED:
+          dirArtifactCache = new ContentAddressedArtifactCache(
+              "dir",
+              projectFilesystem,
+              cacheDir,
+              dirCacheConfig.getCacheReadMode().isDoStore(),
+              dirCacheConfig.getMaxSizeBytes());
+          break;
+
+        case RULE_KEY:
+          dirArtifactCache = new DirArtifactCache(
+              "dir",
+              projectFilesystem,
+              cacheDir,
+              dirCacheConfig.getCacheReadMode().isDoStore(),
+              dirCacheConfig.getMaxSizeBytes(),
+              dirCacheConfig.isIndexEnabled());
+          break;
+
+        default:
+          throw new IllegalArgumentException("Unknown dir cache layout: " +
+              dirCacheConfig.getLayout());
+      }
 
       if (!buckEventBus.isPresent()) {
         return dirArtifactCache;
@@ -0,0 +1,841 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.io.BorrowablePath;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A local {@link ArtifactCache} which stores artifacts as content-addressed blobs.
+ * <p>
+ * Every stored artifact is split into fixed-size chunks, each of which is written once to
+ * {@code blobs/<xx>/<sha1>}.  Identical outputs stored under different rule keys (and identical
+ * chunks of otherwise different outputs) therefore only occupy disk space once.  A single index
+ * file maps each rule key to a small manifest: the artifact metadata and the ordered list of blobs
+ * that make up the artifact.
+ * <p>
+ * The index is a journal of records, held in memory in least-recently-used order.  Stores,
+ * removals, fetch hits and the blobs about to be written are all appended to it, so that several
+ * processes can share a cache directory: each one holds a lock on {@code index.lock} while it
+ * appends, and first replays whatever the others have appended since it last looked.  When the
+ * cache grows past its maximum size, entries are evicted from the cold end of the index and blobs
+ * no longer referenced by any manifest are deleted, so trimming the cache does not require
+ * walking the cache directory.  Blobs which were written but never made it into a manifest, for
+ * instance because a process died while storing an artifact, are known from their journal records
+ * and deleted whenever the journal is compacted.  The journal is compacted once most of it is
+ * made up of superseded records.
+ */
+public class ContentAddressedArtifactCache implements ArtifactCache {
+
+  private static final Logger LOG = Logger.get(ContentAddressedArtifactCache.class);
+
+  @VisibleForTesting
+  static final int DEFAULT_BLOB_SIZE_BYTES = 1024 * 1024;
+  // How much of the max size to leave if we decide to evict entries.
+  private static final float MAX_BYTES_TRIM_RATIO = 2 / 3f;
+  private static final String TMP_EXTENSION = ".tmp";
+  private static final int INDEX_MAGIC = 0xb0c4ca5e;
+  private static final int INDEX_VERSION = 2;
+  // The magic, the version, and a generation which changes whenever the index is compacted.
+  private static final int INDEX_HEADER_SIZE = 16;
+  private static final byte RECORD_STORE = 1;
+  private static final byte RECORD_REMOVE = 2;
+  private static final byte RECORD_TOUCH = 3;
+  @VisibleForTesting
+  static final byte RECORD_BLOB = 4;
+
+  private final String name;
+  private final ProjectFilesystem filesystem;
+  private final Path cacheDir;
+  private final Optional<Long> maxCacheSizeBytes;
+  private final boolean doStore;
+  private final int blobSizeBytes;
+
+  @GuardedBy("this")
+  private final LinkedHashMap<RuleKey, Manifest> index;
+  @GuardedBy("this")
+  private final Map<HashCode, BlobEntry> blobs;
+  @GuardedBy("this")
+  private long totalBlobBytes;
+  /** Blobs which have journal records of being written, but which no manifest references. */
+  @GuardedBy("this")
+  private final Set<HashCode> unindexedBlobs;
+  /** Entries fetched since the journal was last appended to. */
+  @GuardedBy("this")
+  private final Set<RuleKey> pendingTouches;
+  /** The generation of the index file that {@link #index} was read from. */
+  @GuardedBy("this")
+  private long indexGeneration;
+  /** How far into the index file has been replayed into {@link #index}. */
+  @GuardedBy("this")
+  private long indexPosition;
+  /** The number of records in the index file, superseded ones included. */
+  @GuardedBy("this")
+  private int recordCount;
+  @GuardedBy("this")
+  @Nullable
+  private FileChannel lockChannel;
+
+  public ContentAddressedArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      boolean doStore,
+      Optional<Long> maxCacheSizeBytes)
+      throws IOException {
+    this(name, filesystem, cacheDir, doStore, maxCacheSizeBytes, DEFAULT_BLOB_SIZE_BYTES);
+  }
+
+  @VisibleForTesting
+  ContentAddressedArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      boolean doStore,
+      Optional<Long> maxCacheSizeBytes,
+      int blobSizeBytes)
+      throws IOException {
+    Preconditions.checkArgument(blobSizeBytes > 0);
+    this.name = name;
+    this.filesystem = filesystem;
+    this.cacheDir = cacheDir;
+    this.maxCacheSizeBytes = maxCacheSizeBytes;
+    this.doStore = doStore;
+    this.blobSizeBytes = blobSizeBytes;
+    this.index = new LinkedHashMap<>(16, 0.75f, /* accessOrder */ true);
+    this.blobs = new HashMap<>();
+    this.totalBlobBytes = 0L;
+    this.unindexedBlobs = new HashSet<>();
+    this.pendingTouches = new LinkedHashSet<>();
+    filesystem.mkdirs(cacheDir);
+    loadIndex();
+  }
+
+  @Override
+  public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
+    Optional<Manifest> manifest = lookup(ruleKey);
+    if (!manifest.isPresent()) {
+      LOG.debug("Artifact fetch(%s, %s) cache miss", ruleKey, output);
+      return CacheResult.miss();
+    }
+
+    CacheResult result;
+    try {
+      try (OutputStream out = filesystem.newFileOutputStream(output.get())) {
+        for (HashCode blob : manifest.get().getBlobs()) {
+          try (InputStream in = filesystem.newFileInputStream(getPathForBlob(blob))) {
+            ByteStreams.copy(in, out);
+          }
+        }
+      }
+      result = CacheResult.hit(name, manifest.get().getMetadata(), manifest.get().getSize());
+    } catch (NoSuchFileException e) {
+      // A blob was removed from underneath the index, so the entry can no longer be served.
+      LOG.debug("Artifact fetch(%s, %s) found dangling index entry", ruleKey, output);
+      remove(ruleKey);
+      result = CacheResult.miss();
+    } catch (IOException e) {
+      LOG.warn(
+          e,
+          "Artifact fetch(%s, %s) error",
+          ruleKey,
+          output);
+      result = CacheResult.error(name, String.format("%s: %s", e.getClass(), e.getMessage()));
+    }
+
+    LOG.debug(
+        "Artifact fetch(%s, %s) cache %s",
+        ruleKey,
+        output,
+        (result.getType().isSuccess() ? "hit" : "miss"));
+    return result;
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, LazyPath> outputs) {
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, LazyPath> entry : outputs.entrySet()) {
+      results.put(entry.getKey(), fetch(entry.getKey(), entry.getValue()));
+    }
+    return results.build();
+  }
+
+  @Override
+  public synchronized ImmutableMap<RuleKey, CacheResult> multiContains(
+      ImmutableSet<RuleKey> ruleKeys) {
+    // Only fetches count as uses, so this deliberately leaves the LRU order alone.
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (RuleKey ruleKey : ruleKeys) {
+      results.put(
+          ruleKey,
+          index.containsKey(ruleKey) ? CacheResult.hit(name) : CacheResult.miss());
+    }
+    return results.build();
+  }
+
+  @Override
+  public ListenableFuture<Void> store(
+      ImmutableSet<RuleKey> ruleKeys,
+      ImmutableMap<String, String> metadata,
+      BorrowablePath output) {
+
+    if (!doStore) {
+      return Futures.immediateFuture(null);
+    }
+
+    Map<HashCode, Path> newBlobs = new HashMap<>();
+    try {
+      long size = filesystem.getFileSize(output.getPath());
+      ImmutableList<HashCode> artifactBlobs = writeBlobs(output.getPath(), newBlobs);
+      addToIndex(ruleKeys, new Manifest(metadata, artifactBlobs, size), newBlobs);
+    } catch (IOException e) {
+      LOG.warn(
+          e,
+          "Artifact store(%s, %s) error",
+          ruleKeys,
+          output);
+    } finally {
+      for (Path tmp : newBlobs.values()) {
+        deleteQuietly(tmp);
+      }
+    }
+
+    return Futures.immediateFuture(null);
+  }
+
+  /**
+   * @return whether this cache was configured to store artifacts.
+   */
+  @Override
+  public boolean isStoreSupported() {
+    return doStore;
+  }
+
+  @Override
+  public synchronized void close() {
+    try {
+      if (!pendingTouches.isEmpty() || !unindexedBlobs.isEmpty() || isMostlySuperseded()) {
+        FileLock lock = lockIndex();
+        try {
+          appendRecords(new ByteArrayOutputStream(), 0);
+          if (!unindexedBlobs.isEmpty() || isMostlySuperseded()) {
+            writeCompactedIndex();
+          }
+        } finally {
+          lock.release();
+        }
+      }
+    } catch (IOException e) {
+      LOG.error(e, "Failed to write artifact cache index");
+    } finally {
+      closeLockChannel();
+    }
+  }
+
+  @VisibleForTesting
+  synchronized long getTotalBlobBytes() {
+    return totalBlobBytes;
+  }
+
+  @VisibleForTesting
+  synchronized int getBlobCount() {
+    return blobs.size();
+  }
+
+  @VisibleForTesting
+  Path getPathForBlob(HashCode blob) {
+    String hash = blob.toString();
+    return cacheDir.resolve("blobs").resolve(hash.substring(0, 2)).resolve(hash);
+  }
+
+  @VisibleForTesting
+  Path getPathToIndex() {
+    return cacheDir.resolve("index");
+  }
+
+  private Path getPreparedTempFolder() throws IOException {
+    Path tmp = cacheDir.resolve("tmp");
+    if (!filesystem.exists(tmp)) {
+      filesystem.mkdirs(tmp);
+    }
+    return tmp;
+  }
+
+  /**
+   * Splits the file at {@code path} into blobs, and writes each blob which isn't already in the
+   * cache to a temporary file, which {@link #addToIndex} moves into place.
+   *
+   * @param newBlobs filled in with the temporary file of each blob that was written.
+   */
+  private ImmutableList<HashCode> writeBlobs(Path path, Map<HashCode, Path> newBlobs)
+      throws IOException {
+    ImmutableList.Builder<HashCode> artifactBlobs = ImmutableList.builder();
+    byte[] buffer = new byte[blobSizeBytes];
+    try (InputStream in = filesystem.newFileInputStream(path)) {
+      while (true) {
+        int length = ByteStreams.read(in, buffer, 0, buffer.length);
+        if (length == 0) {
+          break;
+        }
+        HashCode blob = Hashing.sha1().hashBytes(buffer, 0, length);
+        if (!newBlobs.containsKey(blob) && !filesystem.exists(getPathForBlob(blob))) {
+          Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "blob", TMP_EXTENSION);
+          newBlobs.put(blob, tmp);
+          try (OutputStream out = filesystem.newFileOutputStream(tmp)) {
+            out.write(buffer, 0, length);
+          }
+        }
+        artifactBlobs.add(blob);
+        if (length < buffer.length) {
+          break;
+        }
+      }
+    }
+    return artifactBlobs.build();
+  }
+
+  private synchronized Optional<Manifest> lookup(RuleKey ruleKey) {
+    Manifest manifest = index.get(ruleKey);
+    if (manifest != null) {
+      // The access reordered the index, which the journal is told about next time it's appended
+      // to.
+      pendingTouches.add(ruleKey);
+    }
+    return Optional.fromNullable(manifest);
+  }
+
+  private synchronized void addToIndex(
+      ImmutableSet<RuleKey> ruleKeys,
+      Manifest manifest,
+      Map<HashCode, Path> newBlobs) throws IOException {
+    FileLock lock = lockIndex();
+    try {
+      // Blobs which are not referenced by any manifest may have been deleted by another process
+      // between checking for them and getting here, so make sure they are still around.
+      for (HashCode blob : manifest.getBlobs()) {
+        if (!newBlobs.containsKey(blob) &&
+            !blobs.containsKey(blob) &&
+            !filesystem.exists(getPathForBlob(blob))) {
+          throw new NoSuchFileException(getPathForBlob(blob).toString());
+        }
+      }
+
+      // Journal the blobs before they appear, so that they can be found and deleted should we die
+      // before the manifest referencing them is journaled.
+      ByteArrayOutputStream records = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(records);
+      for (HashCode blob : newBlobs.keySet()) {
+        out.writeByte(RECORD_BLOB);
+        writeBlob(out, blob);
+        unindexedBlobs.add(blob);
+      }
+      appendRecords(records, newBlobs.size());
+      for (Map.Entry<HashCode, Path> newBlob : newBlobs.entrySet()) {
+        Path blobPath = getPathForBlob(newBlob.getKey());
+        filesystem.mkdirs(blobPath.getParent());
+        filesystem.move(newBlob.getValue(), blobPath, StandardCopyOption.REPLACE_EXISTING);
+      }
+
+      records = new ByteArrayOutputStream();
+      out = new DataOutputStream(records);
+      List<HashCode> unreferenced = new ArrayList<>();
+      for (RuleKey ruleKey : ruleKeys) {
+        unreferenced.addAll(putEntry(ruleKey, manifest));
+        out.writeByte(RECORD_STORE);
+        out.writeUTF(ruleKey.toString());
+        manifest.writeTo(out);
+      }
+      int evicted = 0;
+      if (maxCacheSizeBytes.isPresent() && totalBlobBytes > maxCacheSizeBytes.get()) {
+        evicted = evict(
+            (long) (maxCacheSizeBytes.get() * MAX_BYTES_TRIM_RATIO),
+            out,
+            unreferenced);
+      }
+      appendRecords(records, ruleKeys.size() + evicted);
+      deleteBlobs(unreferenced);
+
+      if (isMostlySuperseded()) {
+        writeCompactedIndex();
+      }
+    } finally {
+      lock.release();
+    }
+  }
+
+  private synchronized void remove(RuleKey ruleKey) {
+    try {
+      FileLock lock = lockIndex();
+      try {
+        if (!index.containsKey(ruleKey)) {
+          return;
+        }
+        ImmutableList<HashCode> unreferenced = releaseBlobs(index.remove(ruleKey));
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        out.writeByte(RECORD_REMOVE);
+        out.writeUTF(ruleKey.toString());
+        appendRecords(records, 1);
+        deleteBlobs(unreferenced);
+      } finally {
+        lock.release();
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to record removal of %s from artifact cache index", ruleKey);
+    }
+  }
+
+  /**
+   * Evicts the least recently used entries until the blobs still referenced fit in
+   * {@code targetSizeBytes}, writing a record of each eviction to {@code out} and adding the
+   * blobs which are no longer referenced to {@code unreferenced}.
+   *
+   * @return the number of entries evicted.
+   */
+  @GuardedBy("this")
+  private int evict(long targetSizeBytes, DataOutputStream out, List<HashCode> unreferenced)
+      throws IOException {
+    int evicted = 0;
+    Iterator<Map.Entry<RuleKey, Manifest>> iterator = index.entrySet().iterator();
+    while (totalBlobBytes > targetSizeBytes && iterator.hasNext()) {
+      Map.Entry<RuleKey, Manifest> entry = iterator.next();
+      iterator.remove();
+      pendingTouches.remove(entry.getKey());
+      unreferenced.addAll(releaseBlobs(entry.getValue()));
+      out.writeByte(RECORD_REMOVE);
+      out.writeUTF(entry.getKey().toString());
+      evicted++;
+    }
+    return evicted;
+  }
+
+  @GuardedBy("this")
+  private void deleteBlobs(Iterable<HashCode> unreferenced) {
+    for (HashCode blob : unreferenced) {
+      deleteQuietly(getPathForBlob(blob));
+    }
+  }
+
+  private void deleteQuietly(Path path) {
+    try {
+      filesystem.deleteFileAtPathIfExists(path);
+    } catch (IOException e) {
+      // Eat any IOExceptions while attempting to clean up the cache directory.
+      LOG.debug(e, "Failed to delete %s", path);
+    }
+  }
+
+  /**
+   * @return the blobs that were only referenced by the manifest {@code manifest} replaced.
+   */
+  @GuardedBy("this")
+  private ImmutableList<HashCode> putEntry(RuleKey ruleKey, Manifest manifest) {
+    // Retain the new blobs before releasing the old ones so that blobs shared by both manifests
+    // are never considered unreferenced.
+    for (HashCode blob : manifest.getBlobs()) {
+      BlobEntry blobEntry = blobs.get(blob);
+      if (blobEntry == null) {
+        blobEntry = new BlobEntry(manifest.getBlobSize(blob, blobSizeBytes));
+        blobs.put(blob, blobEntry);
+        totalBlobBytes += blobEntry.size;
+        unindexedBlobs.remove(blob);
+      }
+      blobEntry.refCount++;
+    }
+    Manifest previous = index.put(ruleKey, manifest);
+    if (previous != null) {
+      return releaseBlobs(previous);
+    }
+    return ImmutableList.of();
+  }
+
+  /**
+   * Drops the references {@code manifest} holds on its blobs.
+   *
+   * @return the blobs that are no longer referenced by any manifest.
+   */
+  @GuardedBy("this")
+  private ImmutableList<HashCode> releaseBlobs(Manifest manifest) {
+    ImmutableList.Builder<HashCode> unreferenced = ImmutableList.builder();
+    for (HashCode blob : manifest.getBlobs()) {
+      BlobEntry blobEntry = Preconditions.checkNotNull(blobs.get(blob));
+      if (--blobEntry.refCount == 0) {
+        blobs.remove(blob);
+        totalBlobBytes -= blobEntry.size;
+        unreferenced.add(blob);
+      }
+    }
+    return unreferenced.build();
+  }
+
+  @GuardedBy("this")
+  private boolean isMostlySuperseded() {
+    return recordCount > 2 * index.size();
+  }
+
+  private synchronized void loadIndex() throws IOException {
+    FileLock lock = lockIndex();
+    lock.release();
+  }
+
+  /**
+   * Takes the lock that every process using this cache directory holds while it changes the
+   * index, and brings {@link #index} up to date with whatever other processes have journaled.
+   */
+  @GuardedBy("this")
+  private FileLock lockIndex() throws IOException {
+    if (lockChannel == null) {
+      lockChannel = FileChannel.open(
+          filesystem.resolve(cacheDir.resolve("index.lock")),
+          StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE);
+    }
+    FileLock lock = lockChannel.lock();
+    try {
+      catchUp();
+    } catch (IOException | RuntimeException e) {
+      lock.release();
+      throw e;
+    }
+    return lock;
+  }
+
+  @GuardedBy("this")
+  private void closeLockChannel() {
+    if (lockChannel == null) {
+      return;
+    }
+    try {
+      lockChannel.close();
+    } catch (IOException e) {
+      LOG.debug(e, "Failed to close artifact cache index lock");
+    }
+    lockChannel = null;
+  }
+
+  /**
+   * Replays the records appended to the index since it was last read.  Must be called with the
+   * index locked.
+   */
+  @GuardedBy("this")
+  private void catchUp() throws IOException {
+    Path indexPath = filesystem.resolve(getPathToIndex());
+    byte[] journal;
+    try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+      long size = channel.size();
+      ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+      if (size < INDEX_HEADER_SIZE ||
+          channel.read(header, 0) < INDEX_HEADER_SIZE ||
+          header.getInt(0) != INDEX_MAGIC ||
+          header.getInt(4) != INDEX_VERSION) {
+        LOG.warn("Ignoring artifact cache index %s with unknown format", getPathToIndex());
+        resetIndex();
+        writeCompactedIndex();
+        return;
+      }
+      long generation = header.getLong(8);
+      if (generation != indexGeneration ||
+          indexPosition < INDEX_HEADER_SIZE ||
+          size < indexPosition) {
+        // Another process compacted the index, so start again from its compacted records.
+        resetIndex();
+        indexGeneration = generation;
+        indexPosition = INDEX_HEADER_SIZE;
+      }
+      if (size == indexPosition) {
+        return;
+      }
+      if (size - indexPosition > Integer.MAX_VALUE) {
+        throw new IOException("Artifact cache index " + indexPath + " is too large");
+      }
+      ByteBuffer buffer = ByteBuffer.allocate((int) (size - indexPosition));
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, indexPosition + buffer.position()) < 0) {
+          throw new EOFException();
+        }
+      }
+      journal = buffer.array();
+    } catch (NoSuchFileException e) {
+      resetIndex();
+      writeCompactedIndex();
+      return;
+    }
+
+    int replayed = replay(journal);
+    indexPosition += replayed;
+    if (replayed < journal.length) {
+      // A process died in the middle of appending a record.  Everything before it is still
+      // valid, and no one else can be appending while we hold the lock, so drop the rest.
+      LOG.warn("Artifact cache index %s is truncated or corrupt, recovering", getPathToIndex());
+      writeCompactedIndex();
+    }
+  }
+
+  /**
+   * @return the number of bytes of {@code journal} that were made up of whole, valid records.
+   */
+  @GuardedBy("this")
+  private int replay(byte[] journal) {
+    ByteArrayInputStream bytes = new ByteArrayInputStream(journal);
+    DataInputStream in = new DataInputStream(bytes);
+    int replayed = 0;
+    try {
+      while (bytes.available() > 0) {
+        byte recordType = in.readByte();
+        if (recordType == RECORD_BLOB) {
+          HashCode blob = readBlob(in);
+          if (!blobs.containsKey(blob)) {
+            unindexedBlobs.add(blob);
+          }
+        } else {
+          RuleKey ruleKey = new RuleKey(in.readUTF());
+          // Blobs released here were deleted by whoever journaled the record releasing them.
+          if (recordType == RECORD_STORE) {
+            putEntry(ruleKey, Manifest.readFrom(in));
+          } else if (recordType == RECORD_REMOVE) {
+            Manifest manifest = index.remove(ruleKey);
+            if (manifest != null) {
+              releaseBlobs(manifest);
+            }
+          } else if (recordType == RECORD_TOUCH) {
+            index.get(ruleKey);
+          } else {
+            throw new IOException("Unknown record type " + recordType);
+          }
+        }
+        recordCount++;
+        replayed = journal.length - bytes.available();
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.debug(e, "Stopped replaying artifact cache index at offset %d", replayed);
+    }
+    return replayed;
+  }
+
+  @GuardedBy("this")
+  private void resetIndex() {
+    index.clear();
+    blobs.clear();
+    unindexedBlobs.clear();
+    totalBlobBytes = 0;
+    recordCount = 0;
+  }
+
+  /**
+   * Appends {@code records}, which hold {@code count} records, to the index, along with the
+   * touches of any entries fetched since the last append.  Must be called with the index locked.
+   */
+  @GuardedBy("this")
+  private void appendRecords(ByteArrayOutputStream records, int count) throws IOException {
+    DataOutputStream out = new DataOutputStream(records);
+    for (RuleKey ruleKey : pendingTouches) {
+      if (index.containsKey(ruleKey)) {
+        out.writeByte(RECORD_TOUCH);
+        out.writeUTF(ruleKey.toString());
+        count++;
+      }
+    }
+    pendingTouches.clear();
+    if (count == 0) {
+      return;
+    }
+
+    // Write everything at once, so that a reader never sees only some of the records.
+    ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+    try (FileChannel channel =
+             FileChannel.open(filesystem.resolve(getPathToIndex()), StandardOpenOption.WRITE)) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, indexPosition + buffer.position());
+      }
+    }
+    indexPosition += buffer.limit();
+    recordCount += count;
+  }
+
+  /**
+   * Replaces the index with one holding only the current entries, and deletes the blobs of stores
+   * that never completed.  Must be called with the index locked.
+   */
+  @GuardedBy("this")
+  private void writeCompactedIndex() throws IOException {
+    deleteBlobs(unindexedBlobs);
+    unindexedBlobs.clear();
+
+    long generation = new Random().nextLong();
+    Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "index", TMP_EXTENSION);
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+               new BufferedOutputStream(filesystem.newFileOutputStream(tmp)))) {
+        out.writeInt(INDEX_MAGIC);
+        out.writeInt(INDEX_VERSION);
+        out.writeLong(generation);
+        // Iteration order is least recently used first, so replaying the records restores it.
+        for (Map.Entry<RuleKey, Manifest> entry : index.entrySet()) {
+          out.writeByte(RECORD_STORE);
+          out.writeUTF(entry.getKey().toString());
+          entry.getValue().writeTo(out);
+        }
+      }
+      long size = filesystem.getFileSize(tmp);
+      filesystem.move(tmp, getPathToIndex(), StandardCopyOption.REPLACE_EXISTING);
+      indexGeneration = generation;
+      indexPosition = size;
+      recordCount = index.size();
+    } finally {
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+  }
+
+  private static void writeBlob(DataOutputStream out, HashCode blob) throws IOException {
+    byte[] bytes = blob.asBytes();
+    out.writeByte(bytes.length);
+    out.write(bytes);
+  }
+
+  private static HashCode readBlob(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readUnsignedByte()];
+    in.readFully(bytes);
+    return HashCode.fromBytes(bytes);
+  }
+
+  /**
+   * The index entry for a single rule key.
+   */
+  private static class Manifest {
+    private final ImmutableMap<String, String> metadata;
+    private final ImmutableList<HashCode> blobs;
+    private final long size;
+
+    public Manifest(
+        ImmutableMap<String, String> metadata,
+        ImmutableList<HashCode> blobs,
+        long size) {
+      this.metadata = metadata;
+      this.blobs = blobs;
+      this.size = size;
+    }
+
+    public ImmutableMap<String, String> getMetadata() {
+      return metadata;
+    }
+
+    public ImmutableList<HashCode> getBlobs() {
+      return blobs;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * Only the last blob of an artifact can be shorter than the blob size.
+     */
+    public long getBlobSize(HashCode blob, int blobSizeBytes) {
+      if (blob.equals(blobs.get(blobs.size() - 1))) {
+        return size - (long) blobSizeBytes * (blobs.size() - 1);
+      }
+      return blobSizeBytes;
+    }
+
+    public void writeTo(DataOutputStream out) throws IOException {
+      out.writeInt(metadata.size());
+      for (Map.Entry<String, String> ent : metadata.entrySet()) {
+        out.writeUTF(ent.getKey());
+        byte[] val = ent.getValue().getBytes(Charsets.UTF_8);
+        out.writeInt(val.length);
+        out.write(val);
+      }
+      out.writeLong(size);
+      out.writeInt(blobs.size());
+      for (HashCode blob : blobs) {
+        writeBlob(out, blob);
+      }
+    }
+
+    public static Manifest readFrom(DataInputStream in) throws IOException {
+      ImmutableMap.Builder<String, String> metadata = ImmutableMap.builder();
+      int metadataSize = in.readInt();
+      for (int i = 0; i < metadataSize; i++) {
+        String key = in.readUTF();
+        byte[] val = new byte[in.readInt()];
+        in.readFully(val);
+        metadata.put(key, new String(val, Charsets.UTF_8));
+      }
+      long size = in.readLong();
+      ImmutableList.Builder<HashCode> blobs = ImmutableList.builder();
+      int blobCount = in.readInt();
+      for (int i = 0; i < blobCount; i++) {
+        blobs.add(readBlob(in));
+      }
+      return new Manifest(metadata.build(), blobs.build(), size);
+    }
+  }
+
+  private static class BlobEntry {
+    private final long size;
+    private int refCount;
+
+    public BlobEntry(long size) {
+      this.size = size;
+    }
+  }
+}
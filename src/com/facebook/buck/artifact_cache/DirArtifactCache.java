@@ -59,12 +59,16 @@ public class DirArtifactCache implements ArtifactCache {
   // How much of the max size to leave if we decide to delete old files.
   private static final float MAX_BYTES_TRIM_RATIO = 2 / 3f;
   private static final String TMP_EXTENSION = ".tmp";
+  private static final String METADATA_EXTENSION = ".metadata";
 
   private final String name;
   private final ProjectFilesystem filesystem;
   private final Path cacheDir;
   private final Optional<Long> maxCacheSizeBytes;
   private final boolean doStore;
+  private final Optional<DirArtifactCacheIndex> index;
+  // Whether another process has the index open, and should hear about what we store and delete.
+  private final boolean appendToIndexLog;
   private long bytesSinceLastDeleteOldFiles;
 
   public DirArtifactCache(
@@ -74,6 +78,22 @@ public class DirArtifactCache implements ArtifactCache {
       boolean doStore,
       Optional<Long> maxCacheSizeBytes)
       throws IOException {
+    this(name, filesystem, cacheDir, doStore, maxCacheSizeBytes, /* useIndex */ false);
+  }
+
+  /**
+   * @param useIndex whether to look up rule keys in a {@link DirArtifactCacheIndex} rather than by
+   *     probing the per-artifact metadata files.  If the index is in use by another process, this
+   *     falls back to probing the files, and appends what it stores to the index's log instead.
+   */
+  public DirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      boolean doStore,
+      Optional<Long> maxCacheSizeBytes,
+      boolean useIndex)
+      throws IOException {
     this.name = name;
     this.filesystem = filesystem;
     this.cacheDir = cacheDir;
@@ -81,32 +101,48 @@ public class DirArtifactCache implements ArtifactCache {
     this.doStore = doStore;
     this.bytesSinceLastDeleteOldFiles = 0L;
     filesystem.mkdirs(cacheDir);
+    this.index = useIndex ? openIndex() : Optional.<DirArtifactCacheIndex>absent();
+    this.appendToIndexLog = useIndex && !index.isPresent();
+  }
+
+  private Optional<DirArtifactCacheIndex> openIndex() throws IOException {
+    DirArtifactCacheIndex index;
+    try {
+      index = DirArtifactCacheIndex.open(filesystem.resolve(getPathToIndexFolder()));
+    } catch (IOException e) {
+      LOG.warn(e, "Unable to open index for %s, looking up artifacts without it", cacheDir);
+      return Optional.absent();
+    }
+
+    if (index.wasCreated()) {
+      // Pick up everything stored before the index existed, so that it can be treated as the
+      // authoritative list of what is in the cache from now on.
+      for (File file : getAllFilesInCache()) {
+        String fileName = file.getName();
+        if (!fileName.endsWith(METADATA_EXTENSION)) {
+          continue;
+        }
+        Optional<RuleKey> ruleKey =
+            parseRuleKey(fileName.substring(0, fileName.length() - METADATA_EXTENSION.length()));
+        if (ruleKey.isPresent()) {
+          index.put(ruleKey.get(), readMetadataFile(ruleKey.get()));
+        }
+      }
+    }
+    return Optional.of(index);
   }
 
   @Override
   public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
     CacheResult result;
     try {
-      // First, build up the metadata from the metadata file.
-      ImmutableMap.Builder<String, String> metadata = ImmutableMap.builder();
-      try (DataInputStream in =
-               new DataInputStream(
-                   filesystem.newFileInputStream(
-                       getPathForRuleKey(ruleKey, Optional.of(".metadata"))))) {
-        int sz = in.readInt();
-        for (int i = 0; i < sz; i++) {
-          String key = in.readUTF();
-          int valSize = in.readInt();
-          byte[] val = new byte[valSize];
-          ByteStreams.readFully(in, val);
-          metadata.put(key, new String(val, Charsets.UTF_8));
-        }
-      }
+      // First, look up the metadata, either in the index or in the metadata file.
+      ImmutableMap<String, String> metadata = lookUpMetadata(ruleKey);
 
       // Now copy the artifact out.
       filesystem.copyFile(getPathForRuleKey(ruleKey, Optional.<String>absent()), output.get());
 
-      result = CacheResult.hit(name, metadata.build(), filesystem.getFileSize(output.get()));
+      result = CacheResult.hit(name, metadata, filesystem.getFileSize(output.get()));
     } catch (NoSuchFileException e) {
       result = CacheResult.miss();
     } catch (IOException e) {
@@ -126,6 +162,39 @@ public class DirArtifactCache implements ArtifactCache {
     return result;
   }
 
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, LazyPath> outputs) {
+    // Lookups are local, so there is nothing to gain from batching them.
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, LazyPath> entry : outputs.entrySet()) {
+      results.put(entry.getKey(), fetch(entry.getKey(), entry.getValue()));
+    }
+    return results.build();
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys) {
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (RuleKey ruleKey : ruleKeys) {
+      boolean contains;
+      try {
+        contains = index.isPresent() ?
+            index.get().get(ruleKey).isPresent() :
+            filesystem.exists(getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION)));
+      } catch (IOException e) {
+        LOG.warn(e, "Artifact contains(%s) error", ruleKey);
+        results.put(
+            ruleKey,
+            CacheResult.error(name, String.format("%s: %s", e.getClass(), e.getMessage())));
+        continue;
+      }
+      contains = contains &&
+          filesystem.exists(getPathForRuleKey(ruleKey, Optional.<String>absent()));
+      results.put(ruleKey, contains ? CacheResult.hit(name) : CacheResult.miss());
+    }
+    return results.build();
+  }
+
   @Override
   public ListenableFuture<Void> store(
       ImmutableSet<RuleKey> ruleKeys,
@@ -140,9 +209,12 @@ public class DirArtifactCache implements ArtifactCache {
       Optional<Path> borrowedAndStoredArtifactPath = Optional.absent();
       for (RuleKey ruleKey : ruleKeys) {
         Path artifactPath = getPathForRuleKey(ruleKey, Optional.<String>absent());
-        Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(".metadata"));
+        Path metadataPath = getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION));
 
         if (filesystem.exists(artifactPath) && filesystem.exists(metadataPath)) {
+          if (index.isPresent() && !index.get().get(ruleKey).isPresent()) {
+            addToIndex(ruleKey, readMetadataFile(ruleKey));
+          }
           continue;
         }
 
@@ -180,6 +252,8 @@ public class DirArtifactCache implements ArtifactCache {
         } finally {
           filesystem.deleteFileAtPathIfExists(tmp);
         }
+
+        addToIndex(ruleKey, metadata);
       }
 
     } catch (IOException e) {
@@ -204,6 +278,75 @@ public class DirArtifactCache implements ArtifactCache {
     return cacheDir.resolve("tmp");
   }
 
+  @VisibleForTesting
+  Path getPathToIndexFolder() {
+    return cacheDir.resolve("metadata_index");
+  }
+
+  /**
+   * Looks up the metadata of {@code ruleKey} in the index if we have it open, or in its metadata
+   * file otherwise.
+   *
+   * @throws NoSuchFileException if the cache has no entry for {@code ruleKey}.
+   */
+  private ImmutableMap<String, String> lookUpMetadata(RuleKey ruleKey) throws IOException {
+    if (!index.isPresent()) {
+      return readMetadataFile(ruleKey);
+    }
+    Optional<ImmutableMap<String, String>> metadata = index.get().get(ruleKey);
+    if (!metadata.isPresent()) {
+      throw new NoSuchFileException(
+          getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION)).toString());
+    }
+    return metadata.get();
+  }
+
+  private void addToIndex(RuleKey ruleKey, ImmutableMap<String, String> metadata)
+      throws IOException {
+    if (index.isPresent()) {
+      index.get().put(ruleKey, metadata);
+    } else if (appendToIndexLog) {
+      DirArtifactCacheIndex.appendPut(
+          filesystem.resolve(getPathToIndexFolder()),
+          ruleKey,
+          metadata);
+    }
+  }
+
+  private void removeFromIndex(RuleKey ruleKey) throws IOException {
+    if (index.isPresent()) {
+      index.get().remove(ruleKey);
+    } else if (appendToIndexLog) {
+      DirArtifactCacheIndex.appendRemove(filesystem.resolve(getPathToIndexFolder()), ruleKey);
+    }
+  }
+
+  private ImmutableMap<String, String> readMetadataFile(RuleKey ruleKey) throws IOException {
+    ImmutableMap.Builder<String, String> metadata = ImmutableMap.builder();
+    try (DataInputStream in =
+             new DataInputStream(
+                 filesystem.newFileInputStream(
+                     getPathForRuleKey(ruleKey, Optional.of(METADATA_EXTENSION))))) {
+      int sz = in.readInt();
+      for (int i = 0; i < sz; i++) {
+        String key = in.readUTF();
+        int valSize = in.readInt();
+        byte[] val = new byte[valSize];
+        ByteStreams.readFully(in, val);
+        metadata.put(key, new String(val, Charsets.UTF_8));
+      }
+    }
+    return metadata.build();
+  }
+
+  private static Optional<RuleKey> parseRuleKey(String fileName) {
+    try {
+      return Optional.of(new RuleKey(fileName));
+    } catch (IllegalArgumentException e) {
+      return Optional.absent();
+    }
+  }
+
   private Path getPreparedTempFolder() throws IOException {
     Path tmp = getPathToTempFolder();
     if (!filesystem.exists(tmp)) {
@@ -264,6 +407,13 @@ public class DirArtifactCache implements ArtifactCache {
     if (bytesSinceLastDeleteOldFiles > 0) {
       deleteOldFiles();
     }
+    if (index.isPresent()) {
+      try {
+        index.get().close();
+      } catch (IOException e) {
+        LOG.error(e, "Failed to close index for %s", cacheDir);
+      }
+    }
   }
 
   /**
@@ -278,6 +428,17 @@ public class DirArtifactCache implements ArtifactCache {
       for (File fileAccessedEntry : findFilesToDelete()) {
         try {
           Files.deleteIfExists(fileAccessedEntry.toPath());
+          if (index.isPresent() || appendToIndexLog) {
+            // Either half of an entry going missing means it can no longer be fetched.
+            String fileName = fileAccessedEntry.getName();
+            if (fileName.endsWith(METADATA_EXTENSION)) {
+              fileName = fileName.substring(0, fileName.length() - METADATA_EXTENSION.length());
+            }
+            Optional<RuleKey> ruleKey = parseRuleKey(fileName);
+            if (ruleKey.isPresent()) {
+              removeFromIndex(ruleKey.get());
+            }
+          }
         } catch (IOException e) {
           // Eat any IOExceptions while attempting to clean up the cache directory.  If the file is
           // now in use, we no longer want to delete it.
@@ -301,8 +462,10 @@ public class DirArtifactCache implements ArtifactCache {
           @Override
           public FileVisitResult preVisitDirectory(
               Path dir, BasicFileAttributes attrs) throws IOException {
-            // do not work with files in temp folder as they will be moved later
-            if (dir.equals(getPathToTempFolder())) {
+            // do not work with files in temp folder as they will be moved later, and leave the
+            // index alone as it is maintained separately.
+            if (dir.equals(filesystem.resolve(getPathToTempFolder())) ||
+                dir.equals(filesystem.resolve(getPathToIndexFolder()))) {
               return FileVisitResult.SKIP_SUBTREE;
             }
             return super.preVisitDirectory(dir, attrs);
@@ -0,0 +1,799 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent index of the entries of a {@link DirArtifactCache}, which answers whether a rule
+ * key is in the cache, and with what metadata, without touching the per-artifact files.
+ * <p>
+ * The index consists of two files:
+ * <ul>
+ *   <li>an append-only log of checksummed records, each of which either adds a rule key with its
+ *       metadata or removes one.</li>
+ *   <li>a memory-mapped open addressing hash table from rule key fingerprints to the offset of the
+ *       latest record for that rule key in the log.</li>
+ * </ul>
+ * The table header records how much of the log it covers.  When the index is opened, any records
+ * beyond that point are verified and applied, and the log is truncated at the first record that
+ * was only partially written.  If the table is missing or does not match the log, it is rebuilt
+ * from the log.
+ * <p>
+ * The index holds an exclusive lock on its table, so only one process at a time can use it.  Other
+ * processes sharing the cache directory append the entries they store and delete to the log with
+ * {@link #appendPut} and {@link #appendRemove}, and the process with the index open replays them
+ * before reporting a miss, so that the index remains the authority on what is in the cache.  All
+ * writes to the log happen while holding a lock on a separate lock file.
+ */
+class DirArtifactCacheIndex implements AutoCloseable {
+
+  private static final Logger LOG = Logger.get(DirArtifactCacheIndex.class);
+
+  private static final String LOG_FILE_NAME = "log";
+  private static final String TABLE_FILE_NAME = "table";
+  private static final String LOCK_FILE_NAME = "log.lock";
+
+  private static final int LOG_MAGIC = 0xd1ca10c0;
+  private static final int TABLE_MAGIC = 0xd1ca7ab1;
+  private static final int VERSION = 1;
+
+  // Log header: magic, version, generation.
+  private static final int LOG_HEADER_SIZE = 16;
+  // Record header: payload length, payload CRC32.
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+  private static final byte RECORD_PUT = 1;
+  private static final byte RECORD_REMOVE = 2;
+
+  // Table header: magic, version, capacity, live entries, used slots, unused, log generation,
+  // committed log length, dead log bytes.
+  private static final int TABLE_HEADER_SIZE = 48;
+  private static final int CAPACITY_OFFSET = 8;
+  private static final int SIZE_OFFSET = 12;
+  private static final int USED_SLOTS_OFFSET = 16;
+  private static final int GENERATION_OFFSET = 24;
+  private static final int COMMITTED_LOG_LENGTH_OFFSET = 32;
+  private static final int DEAD_BYTES_OFFSET = 40;
+  // Slot: rule key fingerprint, log offset of the record plus one.
+  private static final int SLOT_SIZE = 16;
+  private static final long EMPTY = 0;
+  private static final long TOMBSTONE = -1;
+
+  @VisibleForTesting
+  static final int INITIAL_CAPACITY = 1024;
+  private static final float MAX_LOAD_FACTOR = 0.5f;
+  private static final long MIN_DEAD_BYTES_TO_COMPACT = 1024 * 1024;
+
+  // File locks are held on behalf of the whole JVM, so writers within it take turns on this first.
+  private static final ReentrantLock LOG_LOCK = new ReentrantLock();
+
+  private final Path indexDir;
+  private final boolean created;
+  private final FileChannel tableChannel;
+  private final FileLock lock;
+  private final FileChannel lockChannel;
+  private FileChannel logChannel;
+  private MappedByteBuffer table;
+  private int capacity;
+  private long generation;
+
+  private DirArtifactCacheIndex(
+      Path indexDir,
+      boolean created,
+      FileChannel tableChannel,
+      FileLock lock,
+      FileChannel lockChannel,
+      FileChannel logChannel) {
+    this.indexDir = indexDir;
+    this.created = created;
+    this.tableChannel = tableChannel;
+    this.lock = lock;
+    this.lockChannel = lockChannel;
+    this.logChannel = logChannel;
+  }
+
+  /**
+   * Opens the index stored in {@code indexDir}, creating it if needed.
+   *
+   * @param indexDir absolute path of the directory holding the index files.
+   * @throws IOException if the index cannot be opened, including when another process is using it.
+   */
+  public static DirArtifactCacheIndex open(Path indexDir) throws IOException {
+    Files.createDirectories(indexDir);
+    FileChannel tableChannel = FileChannel.open(
+        indexDir.resolve(TABLE_FILE_NAME),
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    FileLock lock = null;
+    FileChannel lockChannel = null;
+    FileChannel logChannel = null;
+    try {
+      try {
+        lock = tableChannel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        lock = null;
+      }
+      if (lock == null) {
+        throw new IOException(String.format("Index %s is in use", indexDir));
+      }
+      lockChannel = FileChannel.open(
+          indexDir.resolve(LOCK_FILE_NAME),
+          StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE);
+      Path logPath = indexDir.resolve(LOG_FILE_NAME);
+      boolean created = !Files.exists(logPath);
+      logChannel = FileChannel.open(
+          logPath,
+          StandardOpenOption.CREATE,
+          StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+      DirArtifactCacheIndex index =
+          new DirArtifactCacheIndex(indexDir, created, tableChannel, lock, lockChannel, logChannel);
+      FileLock logLock = index.lockLog();
+      try {
+        index.recover();
+      } finally {
+        unlockLog(logLock);
+      }
+      return index;
+    } catch (IOException | RuntimeException e) {
+      if (logChannel != null) {
+        logChannel.close();
+      }
+      if (lockChannel != null) {
+        lockChannel.close();
+      }
+      if (lock != null) {
+        lock.release();
+      }
+      tableChannel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return whether the index did not exist before it was opened, in which case the caller may
+   *     want to populate it from the cache directory.
+   */
+  public boolean wasCreated() {
+    return created;
+  }
+
+  /**
+   * @return the metadata stored for {@code ruleKey}, or absent if the rule key is not in the index.
+   */
+  public synchronized Optional<ImmutableMap<String, String>> get(RuleKey ruleKey)
+      throws IOException {
+    Optional<ImmutableMap<String, String>> metadata = lookUp(ruleKey);
+    if (!metadata.isPresent() &&
+        logChannel.size() > table.getLong(COMMITTED_LOG_LENGTH_OFFSET)) {
+      // Another process appended to the log, possibly storing this rule key.
+      unlockLog(lockLog());
+      metadata = lookUp(ruleKey);
+    }
+    return metadata;
+  }
+
+  public synchronized void put(RuleKey ruleKey, ImmutableMap<String, String> metadata)
+      throws IOException {
+    FileLock logLock = lockLog();
+    try {
+      long offset = writeRecord(logChannel, putPayload(ruleKey, metadata));
+      applyPut(ruleKey, offset);
+      setCommittedLogLength(logChannel.size());
+    } finally {
+      unlockLog(logLock);
+    }
+  }
+
+  public synchronized void remove(RuleKey ruleKey) throws IOException {
+    FileLock logLock = lockLog();
+    try {
+      if (findSlot(ruleKey) < 0) {
+        return;
+      }
+      long offset = writeRecord(logChannel, removePayload(ruleKey));
+      applyRemove(ruleKey);
+      // Nothing ever needs to read a remove record again.
+      addDeadBytes(logChannel.size() - offset);
+      setCommittedLogLength(logChannel.size());
+    } finally {
+      unlockLog(logLock);
+    }
+  }
+
+  /**
+   * Records that {@code ruleKey} was stored with {@code metadata} in the log of the index in
+   * {@code indexDir}, for the process which has the index open.  Does nothing if there is no
+   * index.
+   */
+  public static void appendPut(
+      Path indexDir,
+      RuleKey ruleKey,
+      ImmutableMap<String, String> metadata) throws IOException {
+    appendToLog(indexDir, putPayload(ruleKey, metadata));
+  }
+
+  /**
+   * Records that {@code ruleKey} was deleted in the log of the index in {@code indexDir}, for the
+   * process which has the index open.  Does nothing if there is no index.
+   */
+  public static void appendRemove(Path indexDir, RuleKey ruleKey) throws IOException {
+    appendToLog(indexDir, removePayload(ruleKey));
+  }
+
+  private static void appendToLog(Path indexDir, byte[] payload) throws IOException {
+    LOG_LOCK.lock();
+    try (FileChannel lockChannel = FileChannel.open(
+             indexDir.resolve(LOCK_FILE_NAME),
+             StandardOpenOption.WRITE);
+         FileLock logLock = lockChannel.lock();
+         FileChannel logChannel = FileChannel.open(
+             indexDir.resolve(LOG_FILE_NAME),
+             StandardOpenOption.WRITE)) {
+      if (logChannel.size() >= LOG_HEADER_SIZE) {
+        writeRecord(logChannel, payload);
+      }
+    } catch (NoSuchFileException e) {
+      // There is no index to keep up to date.
+    } finally {
+      LOG_LOCK.unlock();
+    }
+  }
+
+  private Optional<ImmutableMap<String, String>> lookUp(RuleKey ruleKey) throws IOException {
+    long fingerprint = fingerprint(ruleKey);
+    for (int probe = 0; probe < capacity; probe++) {
+      int slot = slotFor(fingerprint, probe);
+      long offset = getSlotOffset(slot);
+      if (offset == EMPTY) {
+        break;
+      }
+      if (offset != TOMBSTONE && getSlotFingerprint(slot) == fingerprint) {
+        Record record = readRecord(offset - 1);
+        if (record.ruleKey.equals(ruleKey)) {
+          return Optional.of(record.metadata);
+        }
+      }
+    }
+    return Optional.absent();
+  }
+
+  @VisibleForTesting
+  synchronized int size() {
+    return table.getInt(SIZE_OFFSET);
+  }
+
+  @VisibleForTesting
+  synchronized int getCapacity() {
+    return capacity;
+  }
+
+  @VisibleForTesting
+  synchronized long getLogLength() throws IOException {
+    return logChannel.size();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      long deadBytes = table.getLong(DEAD_BYTES_OFFSET);
+      if (deadBytes >= MIN_DEAD_BYTES_TO_COMPACT && deadBytes * 2 > logChannel.size()) {
+        compact();
+      }
+      table.force();
+      logChannel.force(/* metaData */ false);
+    } finally {
+      logChannel.close();
+      lockChannel.close();
+      lock.release();
+      tableChannel.close();
+    }
+  }
+
+  /**
+   * Rewrites the log so that it only contains the latest record for each rule key in the index.
+   */
+  @VisibleForTesting
+  synchronized void compact() throws IOException {
+    FileLock logLock = lockLog();
+    try {
+      compactLog();
+    } finally {
+      unlockLog(logLock);
+    }
+  }
+
+  private void compactLog() throws IOException {
+    Path logPath = indexDir.resolve(LOG_FILE_NAME);
+    Path tmpPath = indexDir.resolve(LOG_FILE_NAME + ".tmp");
+    long newGeneration = generation + 1;
+    long[] newOffsets = new long[capacity];
+    try (FileChannel tmp = FileChannel.open(
+        tmpPath,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.WRITE)) {
+      writeLogHeader(tmp, newGeneration);
+      for (int slot = 0; slot < capacity; slot++) {
+        long offset = getSlotOffset(slot);
+        if (offset == EMPTY || offset == TOMBSTONE) {
+          continue;
+        }
+        ByteBuffer record =
+            ByteBuffer.allocate(RECORD_HEADER_SIZE + readRecordLength(offset - 1));
+        readFully(logChannel, record, offset - 1);
+        record.flip();
+        newOffsets[slot] = tmp.position() + 1;
+        while (record.hasRemaining()) {
+          tmp.write(record);
+        }
+      }
+      tmp.force(/* metaData */ false);
+    }
+
+    // Once the new log is in place, the table no longer matches it until the new generation and
+    // offsets have been written.  A crash in between is detected by the generation mismatch and
+    // handled by rebuilding the table from the new log.
+    Files.move(tmpPath, logPath, StandardCopyOption.REPLACE_EXISTING);
+    logChannel.close();
+    logChannel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    for (int slot = 0; slot < capacity; slot++) {
+      long offset = getSlotOffset(slot);
+      if (offset != EMPTY && offset != TOMBSTONE) {
+        setSlotOffset(slot, newOffsets[slot]);
+      }
+    }
+    generation = newGeneration;
+    table.putLong(GENERATION_OFFSET, generation);
+    table.putLong(DEAD_BYTES_OFFSET, 0);
+    setCommittedLogLength(logChannel.size());
+  }
+
+  /**
+   * Takes the lock which all writers to the log hold, and applies the records other processes
+   * appended since we last looked.
+   */
+  private FileLock lockLog() throws IOException {
+    LOG_LOCK.lock();
+    FileLock logLock = null;
+    try {
+      logLock = lockChannel.lock();
+      if (table != null) {
+        catchUp();
+      }
+      return logLock;
+    } catch (IOException | RuntimeException e) {
+      if (logLock != null) {
+        logLock.release();
+      }
+      LOG_LOCK.unlock();
+      throw e;
+    }
+  }
+
+  private static void unlockLog(FileLock logLock) throws IOException {
+    try {
+      logLock.release();
+    } finally {
+      LOG_LOCK.unlock();
+    }
+  }
+
+  private void catchUp() throws IOException {
+    long committedLogLength = table.getLong(COMMITTED_LOG_LENGTH_OFFSET);
+    if (logChannel.size() == committedLogLength) {
+      return;
+    }
+    long validLength = replayLog(committedLogLength);
+    if (validLength < logChannel.size()) {
+      // Everyone appends while holding the lock we hold, so this can only be left behind by a
+      // writer which died part way through.
+      LOG.warn(
+          "Discarding %d bytes of partially written records from artifact cache index %s",
+          logChannel.size() - validLength,
+          indexDir);
+      logChannel.truncate(validLength);
+    }
+    setCommittedLogLength(validLength);
+  }
+
+  private void recover() throws IOException {
+    if (logChannel.size() < LOG_HEADER_SIZE) {
+      // Either a brand new index, or one which crashed before writing anything useful.
+      logChannel.truncate(0);
+      generation = 0;
+      writeLogHeader(logChannel, generation);
+      tableChannel.truncate(0);
+      resetTable(INITIAL_CAPACITY);
+      setCommittedLogLength(logChannel.size());
+      return;
+    }
+
+    ByteBuffer logHeader = ByteBuffer.allocate(LOG_HEADER_SIZE);
+    readFully(logChannel, logHeader, 0);
+    if (logHeader.getInt(0) != LOG_MAGIC || logHeader.getInt(4) != VERSION) {
+      throw new IOException(String.format("Index %s has an unknown format", indexDir));
+    }
+    generation = logHeader.getLong(8);
+
+    long start;
+    if (isTableUsable()) {
+      start = table.getLong(COMMITTED_LOG_LENGTH_OFFSET);
+    } else {
+      LOG.info("Rebuilding artifact cache index table in %s", indexDir);
+      tableChannel.truncate(0);
+      resetTable(INITIAL_CAPACITY);
+      start = LOG_HEADER_SIZE;
+    }
+
+    long validLength = replayLog(start);
+    if (validLength < logChannel.size()) {
+      LOG.warn(
+          "Discarding %d bytes of partially written records from artifact cache index %s",
+          logChannel.size() - validLength,
+          indexDir);
+      logChannel.truncate(validLength);
+    }
+    setCommittedLogLength(validLength);
+  }
+
+  private boolean isTableUsable() throws IOException {
+    long tableSize = tableChannel.size();
+    if (tableSize < TABLE_HEADER_SIZE) {
+      return false;
+    }
+    // Validate the header before mapping the table: if it turns out to be unusable, the file has
+    // to be truncated, which is not safe to do while it is mapped.
+    ByteBuffer header = ByteBuffer.allocate(TABLE_HEADER_SIZE);
+    readFully(tableChannel, header, 0);
+    int tableCapacity = header.getInt(CAPACITY_OFFSET);
+    long committedLogLength = header.getLong(COMMITTED_LOG_LENGTH_OFFSET);
+    if (header.getInt(0) != TABLE_MAGIC ||
+        header.getInt(4) != VERSION ||
+        tableCapacity <= 0 ||
+        Integer.bitCount(tableCapacity) != 1 ||
+        tableSize != TABLE_HEADER_SIZE + (long) tableCapacity * SLOT_SIZE ||
+        header.getLong(GENERATION_OFFSET) != generation ||
+        committedLogLength < LOG_HEADER_SIZE ||
+        committedLogLength > logChannel.size()) {
+      return false;
+    }
+    capacity = tableCapacity;
+    table = tableChannel.map(FileChannel.MapMode.READ_WRITE, 0, tableSize);
+    return true;
+  }
+
+  /**
+   * Applies every intact record from {@code start} onwards to the table.
+   *
+   * @return the length of the log up to the first torn or corrupt record.
+   */
+  private long replayLog(long start) throws IOException {
+    long logSize = logChannel.size();
+    long offset = start;
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+    CRC32 crc = new CRC32();
+    while (offset + RECORD_HEADER_SIZE <= logSize) {
+      header.clear();
+      readFully(logChannel, header, offset);
+      int length = header.getInt(0);
+      int checksum = header.getInt(4);
+      if (length <= 0 || length > MAX_RECORD_SIZE ||
+          offset + RECORD_HEADER_SIZE + length > logSize) {
+        break;
+      }
+      ByteBuffer payload = ByteBuffer.allocate(length);
+      readFully(logChannel, payload, offset + RECORD_HEADER_SIZE);
+      crc.reset();
+      crc.update(payload.array(), 0, length);
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      ByteArrayDataInput in = ByteStreams.newDataInput(payload.array());
+      byte type = in.readByte();
+      RuleKey ruleKey = new RuleKey(in.readUTF());
+      if (type == RECORD_PUT) {
+        applyPut(ruleKey, offset);
+      } else if (type == RECORD_REMOVE) {
+        applyRemove(ruleKey);
+        addDeadBytes(RECORD_HEADER_SIZE + length);
+      } else {
+        break;
+      }
+      offset += RECORD_HEADER_SIZE + length;
+    }
+    return offset;
+  }
+
+  private void applyPut(RuleKey ruleKey, long recordOffset) throws IOException {
+    int slot = findSlot(ruleKey);
+    if (slot >= 0) {
+      addDeadBytes(RECORD_HEADER_SIZE + readRecordLength(getSlotOffset(slot) - 1));
+      setSlotOffset(slot, recordOffset + 1);
+      return;
+    }
+
+    long fingerprint = fingerprint(ruleKey);
+    for (int probe = 0; probe < capacity; probe++) {
+      slot = slotFor(fingerprint, probe);
+      long offset = getSlotOffset(slot);
+      if (offset == EMPTY || offset == TOMBSTONE) {
+        if (offset == EMPTY) {
+          table.putInt(USED_SLOTS_OFFSET, table.getInt(USED_SLOTS_OFFSET) + 1);
+        }
+        table.putLong(slotPosition(slot), fingerprint);
+        setSlotOffset(slot, recordOffset + 1);
+        table.putInt(SIZE_OFFSET, table.getInt(SIZE_OFFSET) + 1);
+        break;
+      }
+    }
+
+    if (table.getInt(USED_SLOTS_OFFSET) > capacity * MAX_LOAD_FACTOR) {
+      // Only grow if the table is actually full of live entries, otherwise clearing out the
+      // tombstones is enough.
+      int newCapacity = table.getInt(SIZE_OFFSET) > capacity * MAX_LOAD_FACTOR / 2 ?
+          capacity * 2 :
+          capacity;
+      resize(newCapacity);
+    }
+  }
+
+  private void applyRemove(RuleKey ruleKey) throws IOException {
+    int slot = findSlot(ruleKey);
+    if (slot < 0) {
+      return;
+    }
+    addDeadBytes(RECORD_HEADER_SIZE + readRecordLength(getSlotOffset(slot) - 1));
+    setSlotOffset(slot, TOMBSTONE);
+    table.putInt(SIZE_OFFSET, table.getInt(SIZE_OFFSET) - 1);
+  }
+
+  /**
+   * @return the slot holding {@code ruleKey}, or -1 if it is not in the table.
+   */
+  private int findSlot(RuleKey ruleKey) throws IOException {
+    long fingerprint = fingerprint(ruleKey);
+    for (int probe = 0; probe < capacity; probe++) {
+      int slot = slotFor(fingerprint, probe);
+      long offset = getSlotOffset(slot);
+      if (offset == EMPTY) {
+        break;
+      }
+      if (offset != TOMBSTONE &&
+          getSlotFingerprint(slot) == fingerprint &&
+          readRecordRuleKey(offset - 1).equals(ruleKey)) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private void resize(int newCapacity) throws IOException {
+    long[] fingerprints = new long[capacity];
+    long[] offsets = new long[capacity];
+    int oldCapacity = capacity;
+    for (int slot = 0; slot < oldCapacity; slot++) {
+      fingerprints[slot] = getSlotFingerprint(slot);
+      offsets[slot] = getSlotOffset(slot);
+    }
+    long committedLogLength = table.getLong(COMMITTED_LOG_LENGTH_OFFSET);
+    long deadBytes = table.getLong(DEAD_BYTES_OFFSET);
+
+    resetTable(newCapacity);
+    int size = 0;
+    for (int i = 0; i < oldCapacity; i++) {
+      if (offsets[i] == EMPTY || offsets[i] == TOMBSTONE) {
+        continue;
+      }
+      for (int probe = 0; probe < capacity; probe++) {
+        int slot = slotFor(fingerprints[i], probe);
+        if (getSlotOffset(slot) == EMPTY) {
+          table.putLong(slotPosition(slot), fingerprints[i]);
+          setSlotOffset(slot, offsets[i]);
+          size++;
+          break;
+        }
+      }
+    }
+    table.putInt(SIZE_OFFSET, size);
+    table.putInt(USED_SLOTS_OFFSET, size);
+    table.putLong(COMMITTED_LOG_LENGTH_OFFSET, committedLogLength);
+    table.putLong(DEAD_BYTES_OFFSET, deadBytes);
+  }
+
+  private void resetTable(int newCapacity) throws IOException {
+    long tableSize = TABLE_HEADER_SIZE + (long) newCapacity * SLOT_SIZE;
+    // Mapping beyond the end of the file extends it.  The file is never shrunk while mapped, as
+    // touching a mapping past the end of its file crashes the JVM.
+    table = tableChannel.map(FileChannel.MapMode.READ_WRITE, 0, tableSize);
+    for (int position = 0; position < tableSize; position += 8) {
+      table.putLong(position, 0L);
+    }
+    capacity = newCapacity;
+    table.putInt(0, TABLE_MAGIC);
+    table.putInt(4, VERSION);
+    table.putInt(CAPACITY_OFFSET, capacity);
+    table.putLong(GENERATION_OFFSET, generation);
+    table.putLong(COMMITTED_LOG_LENGTH_OFFSET, LOG_HEADER_SIZE);
+  }
+
+  private static byte[] putPayload(RuleKey ruleKey, ImmutableMap<String, String> metadata) {
+    ByteArrayDataOutput payload = ByteStreams.newDataOutput();
+    payload.writeByte(RECORD_PUT);
+    payload.writeUTF(ruleKey.toString());
+    payload.writeInt(metadata.size());
+    for (Map.Entry<String, String> ent : metadata.entrySet()) {
+      payload.writeUTF(ent.getKey());
+      byte[] val = ent.getValue().getBytes(Charsets.UTF_8);
+      payload.writeInt(val.length);
+      payload.write(val);
+    }
+    return payload.toByteArray();
+  }
+
+  private static byte[] removePayload(RuleKey ruleKey) {
+    ByteArrayDataOutput payload = ByteStreams.newDataOutput();
+    payload.writeByte(RECORD_REMOVE);
+    payload.writeUTF(ruleKey.toString());
+    return payload.toByteArray();
+  }
+
+  /**
+   * Appends a record holding {@code payload} to the log.  Must be called with the log locked.
+   *
+   * @return the offset of the record.
+   */
+  private static long writeRecord(FileChannel logChannel, byte[] payload) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+    record.putInt(payload.length);
+    record.putInt((int) crc.getValue());
+    record.put(payload);
+    record.flip();
+    long offset = logChannel.size();
+    long position = offset;
+    while (record.hasRemaining()) {
+      position += logChannel.write(record, position);
+    }
+    return offset;
+  }
+
+  private Record readRecord(long offset) throws IOException {
+    ByteBuffer payload = ByteBuffer.allocate(readRecordLength(offset));
+    readFully(logChannel, payload, offset + RECORD_HEADER_SIZE);
+    ByteArrayDataInput in = ByteStreams.newDataInput(payload.array());
+    in.readByte();
+    RuleKey ruleKey = new RuleKey(in.readUTF());
+    ImmutableMap.Builder<String, String> metadata = ImmutableMap.builder();
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      String key = in.readUTF();
+      byte[] val = new byte[in.readInt()];
+      in.readFully(val);
+      metadata.put(key, new String(val, Charsets.UTF_8));
+    }
+    return new Record(ruleKey, metadata.build());
+  }
+
+  private RuleKey readRecordRuleKey(long offset) throws IOException {
+    ByteBuffer payload = ByteBuffer.allocate(readRecordLength(offset));
+    readFully(logChannel, payload, offset + RECORD_HEADER_SIZE);
+    ByteArrayDataInput in = ByteStreams.newDataInput(payload.array());
+    in.readByte();
+    return new RuleKey(in.readUTF());
+  }
+
+  private int readRecordLength(long offset) throws IOException {
+    ByteBuffer length = ByteBuffer.allocate(4);
+    readFully(logChannel, length, offset);
+    return length.getInt(0);
+  }
+
+  private static void writeLogHeader(FileChannel channel, long generation) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+    header.putInt(LOG_MAGIC);
+    header.putInt(VERSION);
+    header.putLong(generation);
+    header.flip();
+    long position = 0;
+    while (header.hasRemaining()) {
+      position += channel.write(header, position);
+    }
+    channel.position(position);
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new IOException("Unexpected end of artifact cache index log");
+      }
+      position += read;
+    }
+  }
+
+  private void setCommittedLogLength(long length) {
+    table.putLong(COMMITTED_LOG_LENGTH_OFFSET, length);
+  }
+
+  private void addDeadBytes(long bytes) {
+    table.putLong(DEAD_BYTES_OFFSET, table.getLong(DEAD_BYTES_OFFSET) + bytes);
+  }
+
+  private static long fingerprint(RuleKey ruleKey) {
+    return ruleKey.getHashCode().padToLong();
+  }
+
+  private int slotFor(long fingerprint, int probe) {
+    int hash = (int) (fingerprint ^ (fingerprint >>> 32));
+    return (hash + probe) & (capacity - 1);
+  }
+
+  private static int slotPosition(int slot) {
+    return TABLE_HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  private long getSlotFingerprint(int slot) {
+    return table.getLong(slotPosition(slot));
+  }
+
+  private long getSlotOffset(int slot) {
+    return table.getLong(slotPosition(slot) + 8);
+  }
+
+  private void setSlotOffset(int slot, long offset) {
+    table.putLong(slotPosition(slot) + 8, offset);
+  }
+
+  private static class Record {
+    private final RuleKey ruleKey;
+    private final ImmutableMap<String, String> metadata;
+
+    public Record(RuleKey ruleKey, ImmutableMap<String, String> metadata) {
+      this.ruleKey = ruleKey;
+      this.metadata = metadata;
+    }
+  }
+}
@@ -48,8 +48,11 @@ import java.net.HttpURLConnection;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.util.regex.Matcher;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
 
 import okio.BufferedSink;
 
@@ -74,6 +77,7 @@ public class HttpArtifactCache implements ArtifactCache {
   private final Optional<Long> maxStoreSize;
 
   private final Set<String> seenErrors = Sets.newConcurrentHashSet();
+  private final AtomicBoolean multiKeyRequestsSupported = new AtomicBoolean(true);
 
   public HttpArtifactCache(
       String name,
@@ -128,50 +132,60 @@ public class HttpArtifactCache implements ArtifactCache {
           return CacheResult.error(name, msg);
         }
 
-        // Setup a temporary file, which sits next to the destination, to write to and
-        // make sure all parent dirs exist.
-        Path file = output.get();
-        projectFilesystem.createParentDirs(file);
-        Path temp = projectFilesystem.createTempFile(
-            file.getParent(),
-            file.getFileName().toString(),
-            ".tmp");
-
-        FetchResponseReadResult fetchedData;
-        try (OutputStream tempFileOutputStream = projectFilesystem.newFileOutputStream(temp)) {
-          fetchedData = HttpArtifactCacheBinaryProtocol.readFetchResponse(
-              input,
-              tempFileOutputStream);
-        }
-
-        eventBuilder.setResponseSizeBytes(fetchedData.getResponseSizeBytes());
-        eventBuilder.setArtifactContentHash(fetchedData.getArtifactOnlyHashCode().toString());
+        return readFetchResponse(response.requestUrl(), ruleKey, output, input, eventBuilder);
+      }
+    }
+  }
 
-        // Verify that we were one of the rule keys that stored this artifact.
-        if (!fetchedData.getRuleKeys().contains(ruleKey)) {
-          String msg = "incorrect key name";
-          reportFailure("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
-          eventBuilder.setErrorMessage(msg);
-          return CacheResult.error(name, msg);
-        }
+  private CacheResult readFetchResponse(
+      String requestUrl,
+      RuleKey ruleKey,
+      LazyPath output,
+      DataInputStream input,
+      Finished.Builder eventBuilder) throws IOException {
+
+    // Setup a temporary file, which sits next to the destination, to write to and
+    // make sure all parent dirs exist.
+    Path file = output.get();
+    projectFilesystem.createParentDirs(file);
+    Path temp = projectFilesystem.createTempFile(
+        file.getParent(),
+        file.getFileName().toString(),
+        ".tmp");
+
+    FetchResponseReadResult fetchedData;
+    try (OutputStream tempFileOutputStream = projectFilesystem.newFileOutputStream(temp)) {
+      fetchedData = HttpArtifactCacheBinaryProtocol.readFetchResponse(
+          input,
+          tempFileOutputStream);
+    }
 
-        // Now form the checksum on the file we got and compare it to the checksum form the
-        // the HTTP header.  If it's incorrect, log this and return a miss.
-        if (!fetchedData.getExpectedHashCode().equals(fetchedData.getActualHashCode())) {
-          String msg = "artifact had invalid checksum";
-          reportFailure("fetch(%s, %s): %s", response.requestUrl(), ruleKey, msg);
-          projectFilesystem.deleteFileAtPath(temp);
-          eventBuilder.setErrorMessage(msg);
-          return CacheResult.error(name, msg);
-        }
+    eventBuilder.setResponseSizeBytes(fetchedData.getResponseSizeBytes());
+    eventBuilder.setArtifactContentHash(fetchedData.getArtifactOnlyHashCode().toString());
 
-        // Finally, move the temp file into it's final place.
-        projectFilesystem.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    // Verify that we were one of the rule keys that stored this artifact.
+    if (!fetchedData.getRuleKeys().contains(ruleKey)) {
+      String msg = "incorrect key name";
+      reportFailure("fetch(%s, %s): %s", requestUrl, ruleKey, msg);
+      eventBuilder.setErrorMessage(msg);
+      return CacheResult.error(name, msg);
+    }
 
-        LOGGER.info("fetch(%s, %s): cache hit", response.requestUrl(), ruleKey);
-        return CacheResult.hit(name, fetchedData.getMetadata(), fetchedData.getResponseSizeBytes());
-      }
+    // Now form the checksum on the file we got and compare it to the checksum form the
+    // the HTTP header.  If it's incorrect, log this and return a miss.
+    if (!fetchedData.getExpectedHashCode().equals(fetchedData.getActualHashCode())) {
+      String msg = "artifact had invalid checksum";
+      reportFailure("fetch(%s, %s): %s", requestUrl, ruleKey, msg);
+      projectFilesystem.deleteFileAtPath(temp);
+      eventBuilder.setErrorMessage(msg);
+      return CacheResult.error(name, msg);
     }
+
+    // Finally, move the temp file into it's final place.
+    projectFilesystem.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+
+    LOGGER.info("fetch(%s, %s): cache hit", requestUrl, ruleKey);
+    return CacheResult.hit(name, fetchedData.getMetadata(), fetchedData.getResponseSizeBytes());
   }
 
   @Override
@@ -200,6 +214,197 @@ public class HttpArtifactCache implements ArtifactCache {
     }
   }
 
+  /**
+   * Fetches all the rule keys in a single request to the multi-fetch endpoint.  If the server does
+   * not have that endpoint, this falls back to fetching each rule key separately from then on.
+   */
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, LazyPath> outputs) {
+    if (outputs.size() > 1 && multiKeyRequestsSupported.get()) {
+      Optional<ImmutableMap<RuleKey, CacheResult>> results = multiFetchInOneRequest(outputs);
+      if (results.isPresent()) {
+        return results.get();
+      }
+    }
+
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, LazyPath> entry : outputs.entrySet()) {
+      results.put(entry.getKey(), fetch(entry.getKey(), entry.getValue()));
+    }
+    return results.build();
+  }
+
+  private Optional<ImmutableMap<RuleKey, CacheResult>> multiFetchInOneRequest(
+      ImmutableMap<RuleKey, LazyPath> outputs) {
+
+    Map<RuleKey, Finished.Builder> eventBuilders = new LinkedHashMap<>();
+    Map<RuleKey, CacheResult> results = new LinkedHashMap<>();
+    try {
+      Request.Builder requestBuilder =
+          new Request.Builder()
+              .post(
+                  RequestBody.create(
+                      OCTET_STREAM,
+                      HttpArtifactCacheBinaryProtocol.createMultiKeyRequest(outputs.keySet())));
+      try (HttpResponse response = fetchCall("/artifacts/multifetch", requestBuilder);
+           DataInputStream input =
+               new DataInputStream(new FullyReadOnCloseInputStream(response.getBody()))) {
+
+        if (response.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+          LOGGER.info(
+              "multiFetch(%s): not supported by server, fetching separately",
+              response.requestUrl());
+          multiKeyRequestsSupported.set(false);
+          return Optional.absent();
+        }
+        // Events are only started once we know the rule keys won't be fetched separately instead,
+        // which would post events of their own.
+        startFetchEvents(outputs.keySet(), eventBuilders);
+
+        if (response.code() != HttpURLConnection.HTTP_OK) {
+          String msg = String.format("unexpected response: %d", response.code());
+          reportFailure("multiFetch(%s, %s): %s", response.requestUrl(), outputs.keySet(), msg);
+          for (Map.Entry<RuleKey, Finished.Builder> entry : eventBuilders.entrySet()) {
+            CacheResult cacheResult = CacheResult.error(name, msg);
+            results.put(entry.getKey(), cacheResult);
+            buckEventBus.post(
+                entry.getValue()
+                    .setFetchResult(cacheResult)
+                    .setErrorMessage(msg)
+                    .build());
+          }
+          return Optional.of(ImmutableMap.copyOf(results));
+        }
+
+        HttpArtifactCacheBinaryProtocol.readMultiKeyResponseHeader(input, outputs.size());
+        for (Map.Entry<RuleKey, LazyPath> entry : outputs.entrySet()) {
+          RuleKey ruleKey = entry.getKey();
+          Finished.Builder eventBuilder = eventBuilders.get(ruleKey);
+          CacheResult cacheResult;
+          Optional<DataInputStream> fetchResponse =
+              HttpArtifactCacheBinaryProtocol.readMultiFetchResponseEntry(input);
+          if (!fetchResponse.isPresent()) {
+            LOGGER.info("multiFetch(%s, %s): cache miss", response.requestUrl(), ruleKey);
+            cacheResult = CacheResult.miss();
+          } else {
+            try (DataInputStream entryInput = fetchResponse.get()) {
+              cacheResult = readFetchResponse(
+                  response.requestUrl(),
+                  ruleKey,
+                  entry.getValue(),
+                  entryInput,
+                  eventBuilder);
+            }
+          }
+          results.put(ruleKey, cacheResult);
+          buckEventBus.post(eventBuilder.setFetchResult(cacheResult).build());
+        }
+      }
+    } catch (IOException e) {
+      // Anything we did not get to before the failure is reported as an error.
+      String msg = String.format("%s: %s", e.getClass().getName(), e.getMessage());
+      reportFailure(e, "multiFetch(%s): %s", outputs.keySet(), msg);
+      startFetchEvents(outputs.keySet(), eventBuilders);
+      for (Map.Entry<RuleKey, Finished.Builder> entry : eventBuilders.entrySet()) {
+        if (results.containsKey(entry.getKey())) {
+          continue;
+        }
+        CacheResult cacheResult = CacheResult.error(name, msg);
+        results.put(entry.getKey(), cacheResult);
+        buckEventBus.post(
+            entry.getValue()
+                .setFetchResult(cacheResult)
+                .setErrorMessage(msg)
+                .build());
+      }
+    }
+    return Optional.of(ImmutableMap.copyOf(results));
+  }
+
+  /**
+   * Posts a started event per rule key, unless that has already been done, so that each artifact
+   * of a multi-fetch is accounted for as if it had been fetched separately.
+   */
+  private void startFetchEvents(
+      ImmutableSet<RuleKey> ruleKeys,
+      Map<RuleKey, Finished.Builder> eventBuilders) {
+    if (!eventBuilders.isEmpty()) {
+      return;
+    }
+    for (RuleKey ruleKey : ruleKeys) {
+      Started startedEvent =
+          HttpArtifactCacheEvent.newFetchStartedEvent(ImmutableSet.<RuleKey>of());
+      buckEventBus.post(startedEvent);
+      eventBuilders.put(
+          ruleKey,
+          HttpArtifactCacheEvent.newFinishedEventBuilder(startedEvent)
+              .setRuleKeys(Lists.newArrayList(ruleKey)));
+    }
+  }
+
+  /**
+   * Checks all the rule keys in a single request to the multi-contains endpoint.  If the server
+   * does not have that endpoint, nothing can be checked without fetching, so every rule key is
+   * reported as a miss.
+   */
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys) {
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    if (ruleKeys.isEmpty()) {
+      return results.build();
+    }
+    if (!multiKeyRequestsSupported.get()) {
+      for (RuleKey ruleKey : ruleKeys) {
+        results.put(ruleKey, CacheResult.miss());
+      }
+      return results.build();
+    }
+
+    try {
+      Request.Builder requestBuilder =
+          new Request.Builder()
+              .post(
+                  RequestBody.create(
+                      OCTET_STREAM,
+                      HttpArtifactCacheBinaryProtocol.createMultiKeyRequest(ruleKeys)));
+      try (HttpResponse response = fetchCall("/artifacts/multicontains", requestBuilder);
+           DataInputStream input =
+               new DataInputStream(new FullyReadOnCloseInputStream(response.getBody()))) {
+
+        if (response.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+          LOGGER.info("multiContains(%s): not supported by server", response.requestUrl());
+          multiKeyRequestsSupported.set(false);
+          for (RuleKey ruleKey : ruleKeys) {
+            results.put(ruleKey, CacheResult.miss());
+          }
+          return results.build();
+        }
+
+        if (response.code() != HttpURLConnection.HTTP_OK) {
+          throw new IOException(String.format("unexpected response: %d", response.code()));
+        }
+
+        HttpArtifactCacheBinaryProtocol.readMultiKeyResponseHeader(input, ruleKeys.size());
+        for (RuleKey ruleKey : ruleKeys) {
+          results.put(
+              ruleKey,
+              HttpArtifactCacheBinaryProtocol.readMultiKeyResponseEntry(input) ?
+                  CacheResult.hit(name) :
+                  CacheResult.miss());
+        }
+        return results.build();
+      }
+    } catch (IOException e) {
+      String msg = String.format("%s: %s", e.getClass().getName(), e.getMessage());
+      reportFailure(e, "multiContains(%s): %s", ruleKeys, msg);
+      results = ImmutableMap.builder();
+      for (RuleKey ruleKey : ruleKeys) {
+        results.put(ruleKey, CacheResult.error(name, msg));
+      }
+      return results.build();
+    }
+  }
+
   protected HttpResponse storeCall(Request.Builder requestBuilder) throws IOException {
     return storeClient.makeRequest("/artifacts/key", requestBuilder);
   }
@@ -22,6 +22,8 @@ import com.facebook.buck.util.hash.HasherOutputStream;
 import com.facebook.buck.util.immutables.BuckStyleImmutable;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
@@ -37,6 +39,8 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -44,12 +48,21 @@ import java.util.Map;
 
 /**
  * Implements the binary protocol used by Buck to talk to the cache server.
+ * <p>
+ * Multi-key requests consist of the number of rule keys followed by each rule key.  Responses to
+ * them start with the number of entries, followed by an entry per requested rule key, in request
+ * order.  Each entry is a single hit-or-miss byte.  For multi-fetch hits this is followed by the
+ * length of a fetch response and then the fetch response itself.
  */
 public class HttpArtifactCacheBinaryProtocol {
 
   private static final HashFunction HASH_FUNCTION = Hashing.crc32();
   // 64MB should be enough for everyone.
   private static final long MAX_METADATA_HEADER_SIZE = 64 * 1024 * 1024;
+  // More rule keys than any single build would ask for at once.
+  private static final int MAX_MULTI_KEY_COUNT = 1024 * 1024;
+  private static final byte MULTI_KEY_MISS = 0;
+  private static final byte MULTI_KEY_HIT = 1;
 
   private HttpArtifactCacheBinaryProtocol() {
     // Utility class, don't instantiate.
@@ -67,6 +80,95 @@ public class HttpArtifactCacheBinaryProtocol {
     return result.build();
   }
 
+  /**
+   * @return the body of a multi-fetch or multi-contains request for the given rule keys.
+   */
+  public static byte[] createMultiKeyRequest(ImmutableSet<RuleKey> ruleKeys) throws IOException {
+    return createKeysHeader(ruleKeys);
+  }
+
+  public static ImmutableSet<RuleKey> readMultiKeyRequest(DataInputStream input)
+      throws IOException {
+    int ruleKeysCount = readMultiKeyCount(input);
+    ImmutableSet.Builder<RuleKey> ruleKeys = ImmutableSet.builder();
+    for (int i = 0; i < ruleKeysCount; i++) {
+      ruleKeys.add(new RuleKey(input.readUTF()));
+    }
+    return ruleKeys.build();
+  }
+
+  /**
+   * Reads the start of a multi-fetch or multi-contains response, checking that it has an entry for
+   * each of the {@code expectedCount} rule keys that were requested.
+   */
+  public static void readMultiKeyResponseHeader(DataInputStream input, int expectedCount)
+      throws IOException {
+    int count = readMultiKeyCount(input);
+    if (count != expectedCount) {
+      throw new IOException(
+          String.format("Expected %d entries in response but got %d.", expectedCount, count));
+    }
+  }
+
+  /**
+   * Reads the next entry of a multi-fetch response.
+   *
+   * @return absent for a miss, otherwise a stream over the fetch response for the entry, to be
+   *     read with {@link #readFetchResponse(DataInputStream, OutputStream)}.  It must be closed
+   *     before reading the next entry, but closing it leaves {@code input} open.
+   */
+  public static Optional<DataInputStream> readMultiFetchResponseEntry(DataInputStream input)
+      throws IOException {
+    if (!readMultiKeyResponseEntry(input)) {
+      return Optional.absent();
+    }
+    long length = input.readLong();
+    if (length < 0) {
+      throw new IOException(String.format("Invalid fetch response length %d.", length));
+    }
+    return Optional.of(new DataInputStream(new EntryInputStream(input, length)));
+  }
+
+  /**
+   * Reads the next entry of a multi-contains response.
+   *
+   * @return whether the cache has the rule key of the entry.
+   */
+  public static boolean readMultiKeyResponseEntry(DataInputStream input) throws IOException {
+    byte marker = input.readByte();
+    switch (marker) {
+      case MULTI_KEY_MISS:
+        return false;
+      case MULTI_KEY_HIT:
+        return true;
+      default:
+        throw new IOException(String.format("Invalid response entry marker %d.", marker));
+    }
+  }
+
+  /**
+   * @return the body of a multi-contains response with an entry for each of {@code contains}.
+   */
+  public static byte[] createMultiContainsResponse(ImmutableList<Boolean> contains)
+      throws IOException {
+    try (ByteArrayOutputStream out = new ByteArrayOutputStream();
+         DataOutputStream data = new DataOutputStream(out)) {
+      data.writeInt(contains.size());
+      for (boolean entry : contains) {
+        data.writeByte(entry ? MULTI_KEY_HIT : MULTI_KEY_MISS);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  private static int readMultiKeyCount(DataInputStream input) throws IOException {
+    int count = input.readInt();
+    if (count < 0 || count > MAX_MULTI_KEY_COUNT) {
+      throw new IOException(String.format("Invalid rule key count %d.", count));
+    }
+    return count;
+  }
+
   public static StoreResponseReadResult readStoreRequest(
       DataInputStream input,
       OutputStream payloadSink) throws IOException {
@@ -272,13 +374,121 @@ public class HttpArtifactCacheBinaryProtocol {
 
     public void write(OutputStream responseSink) throws IOException {
       try (DataOutputStream dataOutputStream = new DataOutputStream(responseSink)) {
-        dataOutputStream.writeInt(rawMetadata.length);
-        dataOutputStream.write(rawMetadata);
-        ByteStreams.copy(payloadSource.openStream(), responseSink);
+        writeTo(dataOutputStream);
+      }
+    }
+
+    private void writeTo(DataOutputStream dataOutputStream) throws IOException {
+      dataOutputStream.writeInt(rawMetadata.length);
+      dataOutputStream.write(rawMetadata);
+      try (InputStream payload = payloadSource.openStream()) {
+        ByteStreams.copy(payload, dataOutputStream);
       }
     }
   }
 
+  /**
+   * The response to a multi-fetch request, with an entry for each requested rule key holding
+   * either its {@link FetchResponse} or nothing for a miss.
+   */
+  public static class MultiFetchResponse {
+    private final ImmutableList<Optional<FetchResponse>> entries;
+    private final long contentLength;
+
+    public MultiFetchResponse(ImmutableList<Optional<FetchResponse>> entries) {
+      this.entries = entries;
+      long contentLength = Integer.SIZE / Byte.SIZE;
+      for (Optional<FetchResponse> entry : entries) {
+        contentLength += 1;
+        if (entry.isPresent()) {
+          contentLength += Long.SIZE / Byte.SIZE + entry.get().getContentLength();
+        }
+      }
+      this.contentLength = contentLength;
+    }
+
+    public long getContentLength() {
+      return contentLength;
+    }
+
+    public void write(OutputStream responseSink) throws IOException {
+      try (DataOutputStream dataOutputStream = new DataOutputStream(responseSink)) {
+        dataOutputStream.writeInt(entries.size());
+        for (Optional<FetchResponse> entry : entries) {
+          if (!entry.isPresent()) {
+            dataOutputStream.writeByte(MULTI_KEY_MISS);
+            continue;
+          }
+          dataOutputStream.writeByte(MULTI_KEY_HIT);
+          dataOutputStream.writeLong(entry.get().getContentLength());
+          entry.get().writeTo(dataOutputStream);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads a single entry of a multi-fetch response, skipping whatever is left of the entry on close
+   * rather than closing the underlying stream.
+   */
+  private static class EntryInputStream extends FilterInputStream {
+    private long remaining;
+
+    public EntryInputStream(InputStream in, long length) {
+      super(in);
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining == 0) {
+        return -1;
+      }
+      int result = in.read();
+      if (result < 0) {
+        throw new EOFException();
+      }
+      remaining--;
+      return result;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining == 0) {
+        return -1;
+      }
+      int result = in.read(b, off, (int) Math.min(len, remaining));
+      if (result < 0) {
+        throw new EOFException();
+      }
+      remaining -= result;
+      return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      ByteStreams.skipFully(in, remaining);
+      remaining = 0;
+    }
+  }
+
   abstract static class MetadataAndPayloadReadResult {
     public abstract ImmutableSet<RuleKey> getRuleKeys();
     public abstract HashCode getExpectedHashCode();
@@ -24,6 +24,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.Map;
+
 /**
  * Decorator for wrapping a {@link ArtifactCache} to log a {@link ArtifactCacheEvent} for the start
  * and finish of each event.
@@ -55,6 +57,29 @@ public class LoggingArtifactCacheDecorator implements ArtifactCache {
     return fetchResult;
   }
 
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, LazyPath> outputs) {
+    ImmutableMap.Builder<RuleKey, ArtifactCacheEvent.Started> started = ImmutableMap.builder();
+    for (RuleKey ruleKey : outputs.keySet()) {
+      ArtifactCacheEvent.Started event =
+          eventFactory.newFetchStartedEvent(ImmutableSet.of(ruleKey));
+      eventBus.post(event);
+      started.put(ruleKey, event);
+    }
+    ImmutableMap<RuleKey, CacheResult> fetchResults = delegate.multiFetch(outputs);
+    for (Map.Entry<RuleKey, ArtifactCacheEvent.Started> entry : started.build().entrySet()) {
+      eventBus.post(eventFactory.newFetchFinishedEvent(
+              entry.getValue(),
+              fetchResults.get(entry.getKey())));
+    }
+    return fetchResults;
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys) {
+    return delegate.multiContains(ruleKeys);
+  }
+
   @Override
   public ListenableFuture<Void> store(
       ImmutableSet<RuleKey> ruleKeys,
@@ -30,7 +30,9 @@ import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * MultiArtifactCache encapsulates a set of ArtifactCache instances such that fetch() succeeds if
@@ -70,26 +72,103 @@ public class MultiArtifactCache implements ArtifactCache {
       if (cacheResult.getType().isSuccess()) {
         // Success; terminate search for a cached artifact, and propagate artifact to caches
         // earlier in the search order so that subsequent searches terminate earlier.
-        for (ArtifactCache priorArtifactCache : artifactCaches) {
-          if (priorArtifactCache.equals(artifactCache)) {
-            break;
-          }
-          // since cache fetch finished, it should be fine to get the path
-          BorrowablePath outputPath;
-          // allow borrowing the path if no other caches are expected to use it
-          if (priorArtifactCache.equals(artifactCaches.get(artifactCaches.size() - 1))) {
-            outputPath = BorrowablePath.borrowablePath(output.getUnchecked());
-          } else {
-            outputPath = BorrowablePath.notBorrowablePath(output.getUnchecked());
-          }
-          priorArtifactCache.store(ImmutableSet.of(ruleKey), cacheResult.getMetadata(), outputPath);
-        }
+        storeInPriorCaches(artifactCache, ruleKey, cacheResult, output);
         return cacheResult;
       }
     }
     return cacheResult;
   }
 
+  /**
+   * Fetch the artifacts matching the given rule keys, asking each of the encapsulated
+   * ArtifactCaches in turn for the ones that none of the caches before it had, so that each cache
+   * sees at most one batch.
+   */
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, LazyPath> outputs) {
+    Map<RuleKey, CacheResult> results = new LinkedHashMap<>();
+    for (RuleKey ruleKey : outputs.keySet()) {
+      results.put(ruleKey, CacheResult.miss());
+    }
+
+    ImmutableMap<RuleKey, LazyPath> remaining = outputs;
+    for (ArtifactCache artifactCache : artifactCaches) {
+      if (remaining.isEmpty()) {
+        break;
+      }
+      ImmutableMap<RuleKey, CacheResult> cacheResults = artifactCache.multiFetch(remaining);
+      ImmutableMap.Builder<RuleKey, LazyPath> stillRemaining = ImmutableMap.builder();
+      for (Map.Entry<RuleKey, LazyPath> entry : remaining.entrySet()) {
+        CacheResult cacheResult = cacheResults.get(entry.getKey());
+        if (cacheResult == null) {
+          cacheResult = CacheResult.miss();
+        }
+        results.put(entry.getKey(), cacheResult);
+        if (cacheResult.getType().isSuccess()) {
+          storeInPriorCaches(artifactCache, entry.getKey(), cacheResult, entry.getValue());
+        } else {
+          stillRemaining.put(entry);
+        }
+      }
+      remaining = stillRemaining.build();
+    }
+    return ImmutableMap.copyOf(results);
+  }
+
+  /**
+   * Reports a rule key as present if any of the encapsulated ArtifactCaches has it, only asking
+   * each cache about the rule keys that none of the caches before it had.
+   */
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys) {
+    Map<RuleKey, CacheResult> results = new LinkedHashMap<>();
+    for (RuleKey ruleKey : ruleKeys) {
+      results.put(ruleKey, CacheResult.miss());
+    }
+
+    ImmutableSet<RuleKey> remaining = ruleKeys;
+    for (ArtifactCache artifactCache : artifactCaches) {
+      if (remaining.isEmpty()) {
+        break;
+      }
+      ImmutableMap<RuleKey, CacheResult> cacheResults = artifactCache.multiContains(remaining);
+      ImmutableSet.Builder<RuleKey> stillRemaining = ImmutableSet.builder();
+      for (RuleKey ruleKey : remaining) {
+        CacheResult cacheResult = cacheResults.get(ruleKey);
+        if (cacheResult == null) {
+          cacheResult = CacheResult.miss();
+        }
+        results.put(ruleKey, cacheResult);
+        if (!cacheResult.getType().isSuccess()) {
+          stillRemaining.add(ruleKey);
+        }
+      }
+      remaining = stillRemaining.build();
+    }
+    return ImmutableMap.copyOf(results);
+  }
+
+  private void storeInPriorCaches(
+      ArtifactCache artifactCache,
+      RuleKey ruleKey,
+      CacheResult cacheResult,
+      LazyPath output) {
+    for (ArtifactCache priorArtifactCache : artifactCaches) {
+      if (priorArtifactCache.equals(artifactCache)) {
+        break;
+      }
+      // since cache fetch finished, it should be fine to get the path
+      BorrowablePath outputPath;
+      // allow borrowing the path if no other caches are expected to use it
+      if (priorArtifactCache.equals(artifactCaches.get(artifactCaches.size() - 1))) {
+        outputPath = BorrowablePath.borrowablePath(output.getUnchecked());
+      } else {
+        outputPath = BorrowablePath.notBorrowablePath(output.getUnchecked());
+      }
+      priorArtifactCache.store(ImmutableSet.of(ruleKey), cacheResult.getMetadata(), outputPath);
+    }
+  }
+
   /**
    * Store the artifact to all encapsulated ArtifactCaches.
    */
@@ -24,6 +24,8 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.Map;
+
 public class NoopArtifactCache implements ArtifactCache {
 
   @Override
@@ -32,6 +34,24 @@ public class NoopArtifactCache implements ArtifactCache {
     return CacheResult.miss();
   }
 
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, LazyPath> outputs) {
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, LazyPath> entry : outputs.entrySet()) {
+      results.put(entry.getKey(), fetch(entry.getKey(), entry.getValue()));
+    }
+    return results.build();
+  }
+
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys) {
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (RuleKey ruleKey : ruleKeys) {
+      results.put(ruleKey, CacheResult.miss());
+    }
+    return results.build();
+  }
+
   @Override
   public ListenableFuture<Void> store(
       ImmutableSet<RuleKey> ruleKeys,
@@ -40,6 +40,8 @@ import com.google.common.util.concurrent.ListeningExecutorService;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * The {@link DirArtifactCache} and {@link HttpArtifactCache} caches use a straightforward
@@ -128,13 +130,84 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache {
   @Override
   public CacheResult fetch(RuleKey ruleKey, LazyPath output) {
     CacheResult fetchResult = delegate.fetch(ruleKey, output);
-    if (!fetchResult.getType().isSuccess() ||
-        !fetchResult.getMetadata().containsKey(METADATA_KEY)) {
+    if (!isFirstLevelHit(fetchResult)) {
       return fetchResult;
     }
     CacheResult outputFileFetchResult = delegate.fetch(
         new RuleKey(fetchResult.getMetadata().get(METADATA_KEY)),
         output);
+    return combineResults(fetchResult, outputFileFetchResult);
+  }
+
+  /**
+   * Fetches the first level entries for all the rule keys in one batch, then the contents of all
+   * the two level hits in a second batch.
+   */
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, LazyPath> outputs) {
+    ImmutableMap<RuleKey, CacheResult> fetchResults = delegate.multiFetch(outputs);
+
+    // Several rule keys may share the same contents, but each needs a copy in its own output, so
+    // all but the first are fetched separately.
+    Map<RuleKey, RuleKey> contentKeys = new LinkedHashMap<>();
+    Map<RuleKey, RuleKey> contentOwners = new LinkedHashMap<>();
+    ImmutableMap.Builder<RuleKey, LazyPath> contentOutputs = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, LazyPath> entry : outputs.entrySet()) {
+      CacheResult fetchResult = fetchResults.get(entry.getKey());
+      if (fetchResult != null && isFirstLevelHit(fetchResult)) {
+        RuleKey contentKey = new RuleKey(fetchResult.getMetadata().get(METADATA_KEY));
+        contentKeys.put(entry.getKey(), contentKey);
+        if (!contentOwners.containsKey(contentKey)) {
+          contentOwners.put(contentKey, entry.getKey());
+          contentOutputs.put(contentKey, entry.getValue());
+        }
+      }
+    }
+    ImmutableMap<RuleKey, CacheResult> contentFetchResults =
+        contentOwners.isEmpty() ?
+            ImmutableMap.<RuleKey, CacheResult>of() :
+            delegate.multiFetch(contentOutputs.build());
+
+    ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, LazyPath> entry : outputs.entrySet()) {
+      CacheResult fetchResult = fetchResults.get(entry.getKey());
+      if (fetchResult == null) {
+        fetchResult = CacheResult.miss();
+      }
+      RuleKey contentKey = contentKeys.get(entry.getKey());
+      if (contentKey == null) {
+        results.put(entry.getKey(), fetchResult);
+        continue;
+      }
+      CacheResult outputFileFetchResult;
+      if (contentOwners.get(contentKey).equals(entry.getKey())) {
+        outputFileFetchResult = contentFetchResults.get(contentKey);
+        if (outputFileFetchResult == null) {
+          outputFileFetchResult = CacheResult.miss();
+        }
+      } else {
+        outputFileFetchResult = delegate.fetch(contentKey, entry.getValue());
+      }
+      results.put(entry.getKey(), combineResults(fetchResult, outputFileFetchResult));
+    }
+    return results.build();
+  }
+
+  /**
+   * Only checks for the first level entries, so a rule key may be reported as present even though
+   * its contents have since gone missing.
+   */
+  @Override
+  public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys) {
+    return delegate.multiContains(ruleKeys);
+  }
+
+  private static boolean isFirstLevelHit(CacheResult fetchResult) {
+    return fetchResult.getType().isSuccess() &&
+        fetchResult.getMetadata().containsKey(METADATA_KEY);
+  }
+
+  private CacheResult combineResults(CacheResult fetchResult, CacheResult outputFileFetchResult) {
     if (!outputFileFetchResult.getType().isSuccess()) {
       secondLevelCacheMisses.inc();
       return outputFileFetchResult;
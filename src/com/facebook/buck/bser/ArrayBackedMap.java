@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.bser;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * An immutable map from strings, kept as an array of keys and an array of values. Unlike
+ * {@link com.google.common.collect.ImmutableMap}, values may be null, as they often are in the
+ * objects BSER encodes.
+ */
+final class ArrayBackedMap extends AbstractMap<String, Object> {
+
+  private final String[] keys;
+  private final Object[] values;
+  private final boolean sorted;
+
+  private ArrayBackedMap(String[] keys, Object[] values, boolean sorted) {
+    this.keys = keys;
+    this.values = values;
+    this.sorted = sorted;
+  }
+
+  /**
+   * Creates a map of the first {@code size} keys and values, which it takes ownership of.
+   *
+   * @param sorted whether to sort the entries by key, rather than keeping them in the given order.
+   */
+  static ArrayBackedMap of(String[] keys, Object[] values, int size, boolean sorted) {
+    String[] mapKeys = size == keys.length ? keys : Arrays.copyOf(keys, size);
+    Object[] mapValues = size == values.length ? values : Arrays.copyOf(values, size);
+    if (sorted) {
+      // Objects are small, so an insertion sort of both arrays is as good as anything.
+      for (int i = 1; i < size; i++) {
+        String key = mapKeys[i];
+        Object value = mapValues[i];
+        int j = i - 1;
+        while (j >= 0 && mapKeys[j].compareTo(key) > 0) {
+          mapKeys[j + 1] = mapKeys[j];
+          mapValues[j + 1] = mapValues[j];
+          j--;
+        }
+        mapKeys[j + 1] = key;
+        mapValues[j + 1] = value;
+      }
+    }
+    return new ArrayBackedMap(mapKeys, mapValues, sorted);
+  }
+
+  private int indexOf(@Nullable Object key) {
+    if (!(key instanceof String)) {
+      return -1;
+    }
+    if (sorted) {
+      int index = Arrays.binarySearch(keys, key);
+      return index < 0 ? -1 : index;
+    }
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i].equals(key)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public int size() {
+    return keys.length;
+  }
+
+  @Override
+  public boolean containsKey(@Nullable Object key) {
+    return indexOf(key) >= 0;
+  }
+
+  @Override
+  @Nullable
+  public Object get(@Nullable Object key) {
+    int index = indexOf(key);
+    return index < 0 ? null : values[index];
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    return new AbstractSet<Map.Entry<String, Object>>() {
+      @Override
+      public int size() {
+        return keys.length;
+      }
+
+      @Override
+      public Iterator<Map.Entry<String, Object>> iterator() {
+        return new Iterator<Map.Entry<String, Object>>() {
+          private int index = 0;
+
+          @Override
+          public boolean hasNext() {
+            return index < keys.length;
+          }
+
+          @Override
+          public Map.Entry<String, Object> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            Map.Entry<String, Object> entry =
+                new SimpleImmutableEntry<>(keys[index], values[index]);
+            index++;
+            return entry;
+          }
+
+          @Override
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+}
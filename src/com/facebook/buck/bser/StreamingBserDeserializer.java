@@ -0,0 +1,434 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.bser;
+
+import static com.facebook.buck.bser.BserConstants.BSER_ARRAY;
+import static com.facebook.buck.bser.BserConstants.BSER_FALSE;
+import static com.facebook.buck.bser.BserConstants.BSER_INT8;
+import static com.facebook.buck.bser.BserConstants.BSER_INT16;
+import static com.facebook.buck.bser.BserConstants.BSER_INT32;
+import static com.facebook.buck.bser.BserConstants.BSER_INT64;
+import static com.facebook.buck.bser.BserConstants.BSER_NULL;
+import static com.facebook.buck.bser.BserConstants.BSER_OBJECT;
+import static com.facebook.buck.bser.BserConstants.BSER_REAL;
+import static com.facebook.buck.bser.BserConstants.BSER_SKIP;
+import static com.facebook.buck.bser.BserConstants.BSER_STRING;
+import static com.facebook.buck.bser.BserConstants.BSER_TEMPLATE;
+import static com.facebook.buck.bser.BserConstants.BSER_TRUE;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Decoder for the BSER binary JSON format which, unlike {@link BserDeserializer}, decodes values
+ * as their bytes arrive instead of reading each whole message into memory first.
+ * <p>
+ * Values are decoded straight into compact immutable collections: objects become maps backed by
+ * arrays of keys and values, and arrays become lists. Objects and lists may contain nulls.
+ * Strings are interned, and recently seen strings are recognized by their bytes so that they
+ * aren't decoded again. This suits messages with many repeated strings, like the attribute names,
+ * rule types and deps of the rules in a build file.
+ * <p>
+ * Instances keep state between messages and must not be used from multiple threads at once.
+ */
+public class StreamingBserDeserializer {
+
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+  // Direct-mapped cache of recently decoded strings, keyed by their encoded bytes.
+  private static final int STRING_CACHE_SIZE = 4096;
+  private static final int MAX_CACHED_STRING_LENGTH = 256;
+
+  // Shared by every deserializer, so that equal strings decoded by different ones are shared too.
+  private static final Interner<String> STRING_INTERNER = Interners.newWeakInterner();
+
+  private final BserDeserializer.KeyOrdering keyOrdering;
+  private final CharsetDecoder utf8Decoder;
+  private final byte[][] cachedStringBytes;
+  private final String[] cachedStrings;
+
+  private byte[] buffer;
+  private ByteBuffer byteBuffer;
+  private int position;
+  private int limit;
+
+  /**
+   * The bytes of the current message which haven't been read from the stream yet. Nothing past
+   * the end of the message is ever read, as the next one may not have been written yet.
+   */
+  private long messageBytesRemaining;
+
+  /**
+   * @see BserDeserializer#BserDeserializer(BserDeserializer.KeyOrdering)
+   */
+  public StreamingBserDeserializer(BserDeserializer.KeyOrdering keyOrdering) {
+    this.keyOrdering = keyOrdering;
+    this.utf8Decoder = StandardCharsets.UTF_8
+        .newDecoder()
+        .onMalformedInput(CodingErrorAction.REPORT)
+        .onUnmappableCharacter(CodingErrorAction.REPORT);
+    this.cachedStringBytes = new byte[STRING_CACHE_SIZE][];
+    this.cachedStrings = new String[STRING_CACHE_SIZE];
+    setBuffer(new byte[INITIAL_BUFFER_SIZE]);
+  }
+
+  /**
+   * Deserializes the next BSER-encoded value from the stream, reading exactly as many bytes as
+   * the value's message is made of.
+   *
+   * @return either a {@link String}, {@link Number}, {@link Boolean}, {@link List}, {@link Map},
+   *     or {@code null}, depending on the type of the top-level encoded object.
+   */
+  @Nullable
+  public Object deserializeBserValue(InputStream inputStream) throws IOException {
+    position = 0;
+    limit = 0;
+    readHeader(inputStream);
+    Object value = readValue(inputStream);
+    // Keep the stream positioned at the start of the next message.
+    while (messageBytesRemaining > 0) {
+      if (inputStream.read() < 0) {
+        throw new BserDeserializer.BserEofException("Prematurely reached end of BSER stream");
+      }
+      messageBytesRemaining--;
+    }
+    return value;
+  }
+
+  private void readHeader(InputStream inputStream) throws IOException {
+    // The length of the message isn't known yet, so read the marker and the length's type first.
+    messageBytesRemaining = 3;
+    ensure(inputStream, 3);
+    if (buffer[position] != 0x00 || buffer[position + 1] != 0x01) {
+      throw new IOException("Invalid BSER header");
+    }
+    position += 2;
+    byte lengthType = buffer[position++];
+    int lengthSize = getIntSize(lengthType);
+    messageBytesRemaining = lengthSize;
+    ensure(inputStream, lengthSize);
+    long length = readInt(lengthType);
+    if (length < 0 || length > Integer.MAX_VALUE) {
+      throw new IOException(String.format("BSER length out of range (%d)", length));
+    }
+    messageBytesRemaining = length;
+  }
+
+  @Nullable
+  private Object readValue(InputStream inputStream) throws IOException {
+    ensure(inputStream, 1);
+    return readValueOfType(inputStream, buffer[position++]);
+  }
+
+  @Nullable
+  private Object readValueOfType(InputStream inputStream, byte type) throws IOException {
+    switch (type) {
+      case BSER_INT8:
+      case BSER_INT16:
+      case BSER_INT32:
+      case BSER_INT64:
+        return readNumber(inputStream, type);
+      case BSER_REAL:
+        ensure(inputStream, 8);
+        double real = byteBuffer.getDouble(position);
+        position += 8;
+        return real;
+      case BSER_TRUE:
+        return true;
+      case BSER_FALSE:
+        return false;
+      case BSER_NULL:
+        return null;
+      case BSER_STRING:
+        return readString(inputStream);
+      case BSER_ARRAY:
+        return readArray(inputStream);
+      case BSER_OBJECT:
+        return readObject(inputStream);
+      case BSER_TEMPLATE:
+        return readTemplate(inputStream);
+      default:
+        throw new IOException(String.format("Unrecognized BSER value type %d", type));
+    }
+  }
+
+  private Number readNumber(InputStream inputStream, byte type) throws IOException {
+    ensure(inputStream, getIntSize(type));
+    // Keep the boxed types BserDeserializer produces.
+    switch (type) {
+      case BSER_INT8:
+        return (byte) readInt(type);
+      case BSER_INT16:
+        return (short) readInt(type);
+      case BSER_INT32:
+        return (int) readInt(type);
+      default:
+        return readInt(type);
+    }
+  }
+
+  private int readLength(InputStream inputStream) throws IOException {
+    ensure(inputStream, 1);
+    byte type = buffer[position++];
+    ensure(inputStream, getIntSize(type));
+    long value = readInt(type);
+    if (value < 0 || value > Integer.MAX_VALUE) {
+      throw new IOException(String.format("BSER length out of range (%d)", value));
+    }
+    return (int) value;
+  }
+
+  private String readString(InputStream inputStream) throws IOException {
+    int length = readLength(inputStream);
+    ensure(inputStream, length);
+    int start = position;
+    position += length;
+
+    if (length > MAX_CACHED_STRING_LENGTH) {
+      return STRING_INTERNER.intern(decode(start, length));
+    }
+
+    int hash = 1;
+    for (int i = start; i < start + length; i++) {
+      hash = 31 * hash + buffer[i];
+    }
+    int slot = (hash ^ (hash >>> 16)) & (STRING_CACHE_SIZE - 1);
+    byte[] cachedBytes = cachedStringBytes[slot];
+    if (cachedBytes != null && bytesEqual(cachedBytes, start, length)) {
+      return cachedStrings[slot];
+    }
+
+    String string = STRING_INTERNER.intern(decode(start, length));
+    cachedStringBytes[slot] = Arrays.copyOfRange(buffer, start, start + length);
+    cachedStrings[slot] = string;
+    return string;
+  }
+
+  private boolean bytesEqual(byte[] bytes, int start, int length) {
+    if (bytes.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (bytes[i] != buffer[start + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private String decode(int start, int length) throws IOException {
+    boolean ascii = true;
+    for (int i = start; i < start + length; i++) {
+      if (buffer[i] < 0) {
+        ascii = false;
+        break;
+      }
+    }
+    if (ascii) {
+      return new String(buffer, start, length, StandardCharsets.US_ASCII);
+    }
+    // We use a CharsetDecoder here instead of String(byte[], Charset) because we want it to throw
+    // an exception for any non-UTF-8 input.
+    CharBuffer chars = utf8Decoder.decode(ByteBuffer.wrap(buffer, start, length));
+    return chars.toString();
+  }
+
+  private List<Object> readArray(InputStream inputStream) throws IOException {
+    int size = readLength(inputStream);
+    if (size == 0) {
+      return ImmutableList.of();
+    }
+    Object[] items = new Object[size];
+    boolean hasNulls = false;
+    for (int i = 0; i < size; i++) {
+      items[i] = readValue(inputStream);
+      hasNulls |= items[i] == null;
+    }
+    return toList(items, hasNulls);
+  }
+
+  private static List<Object> toList(Object[] items, boolean hasNulls) {
+    if (hasNulls) {
+      return Collections.unmodifiableList(Arrays.asList(items));
+    }
+    return ImmutableList.copyOf(items);
+  }
+
+  private Map<String, Object> readObject(InputStream inputStream) throws IOException {
+    int size = readLength(inputStream);
+    if (size == 0) {
+      return ImmutableMap.of();
+    }
+    String[] keys = new String[size];
+    Object[] values = new Object[size];
+    for (int i = 0; i < size; i++) {
+      ensure(inputStream, 1);
+      byte keyType = buffer[position++];
+      if (keyType != BSER_STRING) {
+        throw new IOException(
+            String.format("Unrecognized BSER object key type %d, expected string", keyType));
+      }
+      keys[i] = readString(inputStream);
+      values[i] = readValue(inputStream);
+    }
+    return ArrayBackedMap.of(
+        keys,
+        values,
+        size,
+        keyOrdering == BserDeserializer.KeyOrdering.SORTED);
+  }
+
+  private List<Object> readTemplate(InputStream inputStream) throws IOException {
+    ensure(inputStream, 1);
+    byte arrayType = buffer[position++];
+    if (arrayType != BSER_ARRAY) {
+      throw new IOException(String.format("Expected ARRAY to follow TEMPLATE, got %d", arrayType));
+    }
+    List<Object> keyObjects = readArray(inputStream);
+    String[] templateKeys = new String[keyObjects.size()];
+    for (int i = 0; i < templateKeys.length; i++) {
+      Object key = keyObjects.get(i);
+      if (!(key instanceof String)) {
+        throw new IOException(String.format("Invalid BSER template key %s", key));
+      }
+      templateKeys[i] = (String) key;
+    }
+
+    int size = readLength(inputStream);
+    Object[] items = new Object[size];
+    for (int item = 0; item < size; item++) {
+      String[] keys = new String[templateKeys.length];
+      Object[] values = new Object[templateKeys.length];
+      int present = 0;
+      for (String templateKey : templateKeys) {
+        ensure(inputStream, 1);
+        byte type = buffer[position++];
+        if (type != BSER_SKIP) {
+          keys[present] = templateKey;
+          values[present] = readValueOfType(inputStream, type);
+          present++;
+        }
+      }
+      items[item] = ArrayBackedMap.of(
+          keys,
+          values,
+          present,
+          keyOrdering == BserDeserializer.KeyOrdering.SORTED);
+    }
+    return toList(items, /* hasNulls */ false);
+  }
+
+  private static int getIntSize(byte type) throws IOException {
+    switch (type) {
+      case BSER_INT8:
+        return 1;
+      case BSER_INT16:
+        return 2;
+      case BSER_INT32:
+        return 4;
+      case BSER_INT64:
+        return 8;
+      default:
+        throw new IOException(String.format("Invalid BSER number encoding %d", type));
+    }
+  }
+
+  /**
+   * Reads an integer of the given type, whose bytes must already be in the buffer.
+   */
+  private long readInt(byte type) throws IOException {
+    long value;
+    switch (type) {
+      case BSER_INT8:
+        value = buffer[position];
+        break;
+      case BSER_INT16:
+        value = byteBuffer.getShort(position);
+        break;
+      case BSER_INT32:
+        value = byteBuffer.getInt(position);
+        break;
+      case BSER_INT64:
+        value = byteBuffer.getLong(position);
+        break;
+      default:
+        throw new IOException(String.format("Invalid BSER number encoding %d", type));
+    }
+    position += getIntSize(type);
+    return value;
+  }
+
+  /**
+   * Makes sure the next {@code count} bytes of the message are in the buffer, reading from the
+   * stream as needed.
+   */
+  private void ensure(InputStream inputStream, int count) throws IOException {
+    int available = limit - position;
+    if (available >= count) {
+      return;
+    }
+    if (count - available > messageBytesRemaining) {
+      throw new BserDeserializer.BserEofException("Prematurely reached end of BSER buffer");
+    }
+
+    // Move what's left to the start of the buffer, growing it if it's too small.
+    if (count > buffer.length) {
+      byte[] newBuffer = new byte[Math.max(count, buffer.length * 2)];
+      System.arraycopy(buffer, position, newBuffer, 0, available);
+      setBuffer(newBuffer);
+    } else if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, available);
+    }
+    position = 0;
+    limit = available;
+
+    while (limit < count) {
+      int toRead = (int) Math.min(buffer.length - limit, messageBytesRemaining);
+      int read = inputStream.read(buffer, limit, toRead);
+      if (read < 0) {
+        throw new BserDeserializer.BserEofException(
+            String.format(
+                "Prematurely reached end of BSER stream (expected %d more bytes)",
+                messageBytesRemaining));
+      }
+      limit += read;
+      messageBytesRemaining -= read;
+    }
+  }
+
+  private void setBuffer(byte[] newBuffer) {
+    buffer = newBuffer;
+    byteBuffer = ByteBuffer.wrap(newBuffer).order(ByteOrder.nativeOrder());
+  }
+}
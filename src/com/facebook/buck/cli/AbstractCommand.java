@@ -23,6 +23,8 @@ import com.facebook.buck.parser.BuildTargetParser;
 import com.facebook.buck.parser.BuildTargetPatternParser;
 import com.facebook.buck.parser.BuildTargetPatternTargetNodeParser;
 import com.facebook.buck.parser.TargetNodeSpec;
+import com.facebook.buck.rules.BuildRuleDurationStore;
+import com.facebook.buck.rules.CachingBuildEngine;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.concurrent.ConcurrencyLimit;
@@ -229,6 +231,23 @@ public abstract class AbstractCommand implements Command {
         .build();
   }
 
+  /**
+   * @return the historical rule build times to schedule the build by, if the build is scheduled
+   *     by them.
+   */
+  protected Optional<BuildRuleDurationStore> getBuildRuleDurationStore(
+      CommandRunnerParams params) {
+    if (params.getBuckConfig().getDependencySchedulingOrder() !=
+        CachingBuildEngine.DependencySchedulingOrder.CRITICAL_PATH) {
+      return Optional.absent();
+    }
+    return Optional.of(
+        BuildRuleDurationStore.load(
+            params.getCell().getFilesystem(),
+            BuildRuleDurationStore.DEFAULT_PATH,
+            params.getObjectMapper()));
+  }
+
   public ConcurrencyLimit getConcurrencyLimit(BuckConfig buckConfig) {
     Double loadLimit = this.loadLimit;
     if (loadLimit == null) {
@@ -175,36 +175,61 @@ public class AuditOwnerCommand extends AbstractCommand {
     Map<Path, ImmutableSet<TargetNode<?>>> targetNodes = Maps.newHashMap();
     OwnersReport report = OwnersReport.emptyReport();
 
-    for (Path filePath : getArgumentsAsPaths(rootPath, arguments)) {
-      Optional<Path> basePath = buildFileTree.getBasePathOfAncestorTarget(filePath);
-      if (!basePath.isPresent()) {
-        report = report.updatedWith(
-            new OwnersReport(
-                ImmutableSetMultimap.<TargetNode<?>, Path>of(),
-                /* inputWithNoOwners */ ImmutableSet.of(filePath),
-                Sets.<String>newHashSet(),
-                Sets.<String>newHashSet()));
-        continue;
-      }
+    try (CommandThreadManager pool = new CommandThreadManager(
+        "AuditOwner",
+        params.getBuckConfig().getWorkQueueExecutionOrder(),
+        getConcurrencyLimit(params.getBuckConfig()))) {
+      for (Path filePath : getArgumentsAsPaths(rootPath, arguments)) {
+        Optional<Path> basePath = buildFileTree.getBasePathOfAncestorTarget(filePath);
+        if (!basePath.isPresent()) {
+          report = report.updatedWith(
+              new OwnersReport(
+                  ImmutableSetMultimap.<TargetNode<?>, Path>of(),
+                  /* inputWithNoOwners */ ImmutableSet.of(filePath),
+                  Sets.<String>newHashSet(),
+                  Sets.<String>newHashSet()));
+          continue;
+        }
 
-      Path buckFile = cellFilesystem.resolve(basePath.get())
-          .resolve(params.getCell().getBuildFileName());
-      Preconditions.checkState(cellFilesystem.exists(buckFile));
-
-      // Parse buck files and load target nodes.
-      if (!targetNodes.containsKey(buckFile)) {
-        try (CommandThreadManager pool = new CommandThreadManager(
-            "AuditOwner",
-            params.getBuckConfig().getWorkQueueExecutionOrder(),
-            getConcurrencyLimit(params.getBuckConfig()))){
-          targetNodes.put(
-              buckFile,
-              params.getParser().getAllTargetNodes(
-                  params.getBuckEventBus(),
-                  params.getCell(),
-                  /* enable profiling */ false,
-                  pool.getExecutor(),
-                  buckFile));
+        Path buckFile = cellFilesystem.resolve(basePath.get())
+            .resolve(params.getCell().getBuildFileName());
+        Preconditions.checkState(cellFilesystem.exists(buckFile));
+
+        try {
+          // The owners of an existing file can be looked up in the parser's index, rather than by
+          // going over the inputs of every target in the build file.
+          if (cellFilesystem.isFile(filePath)) {
+            ImmutableSet<TargetNode<?>> owners = params.getParser().getTargetNodesOwning(
+                params.getBuckEventBus(),
+                params.getCell(),
+                /* enable profiling */ false,
+                pool.getExecutor(),
+                buckFile,
+                cellFilesystem.resolve(filePath));
+            SetMultimap<TargetNode<?>, Path> ownedPaths = TreeMultimap.create();
+            for (TargetNode<?> owner : owners) {
+              ownedPaths.put(owner, filePath);
+            }
+            report = report.updatedWith(
+                new OwnersReport(
+                    ownedPaths,
+                    owners.isEmpty() ? ImmutableSet.of(filePath) : ImmutableSet.<Path>of(),
+                    Sets.<String>newHashSet(),
+                    Sets.<String>newHashSet()));
+            continue;
+          }
+
+          // Parse buck files and load target nodes.
+          if (!targetNodes.containsKey(buckFile)) {
+            targetNodes.put(
+                buckFile,
+                params.getParser().getAllTargetNodes(
+                    params.getBuckEventBus(),
+                    params.getCell(),
+                    /* enable profiling */ false,
+                    pool.getExecutor(),
+                    buckFile));
+          }
         } catch (BuildFileParseException e) {
           Path targetBasePath = MorePaths.relativize(rootPath, rootPath.resolve(basePath.get()));
           String targetBaseName = "//" + MorePaths.pathWithUnixSeparators(targetBasePath);
@@ -215,15 +240,15 @@ public class AuditOwnerCommand extends AbstractCommand {
               .format("Could not parse build targets for %s", targetBaseName);
           throw e;
         }
-      }
 
-      for (TargetNode<?> targetNode : targetNodes.get(buckFile)) {
-        report = report.updatedWith(
-            generateOwnersReport(
-                params,
-                targetNode,
-                ImmutableList.of(filePath.toString()),
-                guessForDeletedEnabled));
+        for (TargetNode<?> targetNode : targetNodes.get(buckFile)) {
+          report = report.updatedWith(
+              generateOwnersReport(
+                  params,
+                  targetNode,
+                  ImmutableList.of(filePath.toString()),
+                  guessForDeletedEnabled));
+        }
       }
     }
     return report;
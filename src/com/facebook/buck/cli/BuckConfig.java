@@ -469,6 +469,10 @@ public class BuckConfig {
     return getBooleanValue("log", "compress_traces", false);
   }
 
+  public boolean getBinaryTraces() {
+    return getBooleanValue("log", "binary_traces", false);
+  }
+
   public boolean getRestartAdbOnFailure() {
     return Boolean.parseBoolean(getValue("adb", "adb_restart_on_failure").or("true"));
   }
@@ -731,6 +735,37 @@ public class BuckConfig {
     return getLong("build", "artifact_cache_size_limit");
   }
 
+  /**
+   * @return the maximum number of artifacts to speculatively fetch from the cache at once, or zero
+   *     if speculative fetching is disabled.
+   */
+  public int getBuildCachePrefetchWindow() {
+    return getLong("build", "cache_prefetch_window").or(0L).intValue();
+  }
+
+  /**
+   * @return whether file hashes should be kept on disk, so that they survive restarting buckd.
+   */
+  public boolean isPersistentFileHashCacheEnabled() {
+    return getBooleanValue("build", "persistent_file_hash_cache", false);
+  }
+
+  /**
+   * @return whether buckd should build a new action graph by reusing the rules of the parts of the
+   *     previous one whose targets haven't changed.
+   */
+  public boolean isIncrementalActionGraphEnabled() {
+    return getBooleanValue("build", "incremental_action_graph", false);
+  }
+
+  /**
+   * @return how many build rules the action graphs buckd keeps, besides the last one it used, may
+   *     have between them.
+   */
+  public long getActionGraphCacheMaxRules() {
+    return getLong("build", "action_graph_cache_max_rules").or(0L);
+  }
+
   /**
    * @return the local cache directory
    */
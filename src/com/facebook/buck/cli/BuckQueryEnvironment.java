@@ -17,6 +17,8 @@
 package com.facebook.buck.cli;
 
 
+import com.facebook.buck.graph.AbstractBreadthFirstTraversal;
+import com.facebook.buck.graph.MutableDirectedGraph;
 import com.facebook.buck.io.MorePaths;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.json.BuildFileParseException;
@@ -26,6 +28,7 @@ import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetException;
 import com.facebook.buck.model.FilesystemBackedBuildFileTree;
 import com.facebook.buck.model.HasBuildTarget;
+import com.facebook.buck.query.FunctionExpression;
 import com.facebook.buck.query.QueryBuildTarget;
 import com.facebook.buck.query.QueryEnvironment;
 import com.facebook.buck.query.QueryException;
@@ -42,20 +45,25 @@ import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
-import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.ListeningExecutorService;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 /**
  * The environment of a Buck query that can evaluate queries to produce a result.
  *
@@ -66,8 +74,22 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryTarget> {
   private static final Logger LOG = Logger.get(BuckQueryEnvironment.class);
 
   private final CommandRunnerParams params;
+  private final QueryResultCache queryResultCache;
+  private final ImmutableList<QueryFunction> functions;
   private Map<Cell, BuildFileTree> buildFileTrees =  new HashMap<>();
-  private TargetGraph graph = TargetGraph.EMPTY;
+
+  /**
+   * The graph of the targets whose transitive closures have been built so far, which grows as the
+   * query reaches more targets.
+   */
+  private final MutableDirectedGraph<TargetNode<?>> graph = new MutableDirectedGraph<>();
+  private final Map<BuildTarget, TargetNode<?>> targetsToNodes = new HashMap<>();
+
+  /**
+   * An immutable copy of {@link #graph}, made when asked for and dropped when the graph grows.
+   */
+  @Nullable
+  private TargetGraph targetGraph = TargetGraph.EMPTY;
 
   @VisibleForTesting
   protected TargetPatternEvaluator targetPatternEvaluator;
@@ -80,6 +102,7 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryTarget> {
       CommandRunnerParams params,
       boolean enableProfiling) {
     this.params = params;
+    this.queryResultCache = params.getQueryResultCache();
     this.enableProfiling = enableProfiling;
     this.buildFileTrees.put(
         params.getCell(),
@@ -87,6 +110,12 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryTarget> {
             params.getCell().getFilesystem(),
             params.getCell().getBuildFileName()));
     this.targetPatternEvaluator = new TargetPatternEvaluator(params, enableProfiling);
+
+    ImmutableList.Builder<QueryFunction> functions = ImmutableList.builder();
+    for (QueryFunction function : DEFAULT_QUERY_FUNCTIONS) {
+      functions.add(new CachingQueryFunction(function));
+    }
+    this.functions = functions.build();
   }
 
   public CommandRunnerParams getParams() {
@@ -94,7 +123,10 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryTarget> {
   }
 
   public TargetGraph getTargetGraph() {
-    return graph;
+    if (targetGraph == null) {
+      targetGraph = new TargetGraph(graph, ImmutableMap.copyOf(targetsToNodes));
+    }
+    return targetGraph;
   }
 
   /**
@@ -136,6 +168,10 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryTarget> {
   TargetNode<?> getNode(QueryTarget target)
       throws QueryException, InterruptedException {
     Preconditions.checkState(target instanceof QueryBuildTarget);
+    TargetNode<?> node = targetsToNodes.get(((QueryBuildTarget) target).getBuildTarget());
+    if (node != null) {
+      return node;
+    }
     ListeningExecutorService executor = null;
     try {
       executor = com.google.common.util.concurrent.MoreExecutors.listeningDecorator(
@@ -182,15 +218,6 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryTarget> {
     return builder.build();
   }
 
-  /** Given a set of target nodes, returns the build targets. */
-  private static Set<BuildTarget> getTargetsFromNodes(Iterable<TargetNode<?>> input) {
-    Set<BuildTarget> result = new LinkedHashSet<>();
-    for (TargetNode<?> node : input) {
-      result.add(node.getBuildTarget());
-    }
-    return result;
-  }
-
   @Override
   public Collection<QueryTarget> getFwdDeps(Iterable<QueryTarget> targets)
       throws QueryException, InterruptedException {
@@ -216,28 +243,19 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryTarget> {
   @Override
   public ImmutableSet<QueryTarget> getTransitiveClosure(Set<QueryTarget> targets)
       throws QueryException, InterruptedException {
-    Set<TargetNode<?>> nodes = new LinkedHashSet<>();
+    Set<TargetNode<?>> roots = new LinkedHashSet<>();
     for (QueryTarget target : targets) {
-      nodes.add(getNode(target));
-    }
-    // Reusing the existing getSubgraph() for simplicity. It builds the graph when we only need the
-    // nodes. The impact of creating the edges in terms of time and space should be minimal.
-    return getTargetsFromBuildTargetsContainer(graph.getSubgraph(nodes).getNodes());
-  }
-
-  private void buildGraphForBuildTargets(
-      Set<BuildTarget> targets,
-      ListeningExecutorService executor) throws QueryException, InterruptedException {
-    try {
-      graph = params.getParser().buildTargetGraph(
-          params.getBuckEventBus(),
-          params.getCell(),
-          enableProfiling,
-          executor,
-          targets);
-    } catch (BuildFileParseException | BuildTargetException | IOException e) {
-      throw new QueryException("Error in building dependency graph");
+      roots.add(getNode(target));
     }
+    final Set<TargetNode<?>> nodes = new HashSet<>();
+    new AbstractBreadthFirstTraversal<TargetNode<?>>(roots) {
+      @Override
+      public Iterable<TargetNode<?>> visit(TargetNode<?> node) {
+        nodes.add(node);
+        return graph.getOutgoingNodesFor(node);
+      }
+    }.start();
+    return getTargetsFromBuildTargetsContainer(nodes);
   }
 
   @Override
@@ -246,24 +264,58 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryTarget> {
       int maxDepth,
       ListeningExecutorService executor) throws QueryException, InterruptedException {
     // Filter QueryTargets that are build targets and not yet present in the build target graph.
-    Set<BuildTarget> graphTargets = getTargetsFromNodes(graph.getNodes());
-    Set<BuildTarget> newBuildTargets = new HashSet<>();
+    Set<BuildTarget> newBuildTargets = new LinkedHashSet<>();
     for (QueryTarget target : targets) {
       if (target instanceof QueryBuildTarget) {
         BuildTarget buildTarget = ((QueryBuildTarget) target).getBuildTarget();
-        if (!graphTargets.contains(buildTarget)) {
+        if (!targetsToNodes.containsKey(buildTarget)) {
           newBuildTargets.add(buildTarget);
         }
       }
     }
-    if (!newBuildTargets.isEmpty()) {
-      buildGraphForBuildTargets(Sets.union(newBuildTargets, graphTargets), executor);
-      for (BuildTarget buildTarget : getTargetsFromNodes(graph.getNodes())) {
-        if (!buildTargetToQueryTarget.containsKey(buildTarget)) {
-          buildTargetToQueryTarget.put(buildTarget, QueryBuildTarget.of(buildTarget));
-        }
+    if (newBuildTargets.isEmpty()) {
+      return;
+    }
+
+    // A daemon may already know the whole closure, from an earlier target graph.
+    Optional<ImmutableMap<BuildTarget, TargetNode<?>>> cachedClosure =
+        params.getParser().getCachedTransitiveClosure(params.getCell(), newBuildTargets);
+    Iterable<TargetNode<?>> newNodes;
+    if (cachedClosure.isPresent()) {
+      newNodes = cachedClosure.get().values();
+    } else {
+      // Only build the part of the graph we don't have yet, and add it to the graph.
+      try {
+        newNodes = params.getParser().buildTargetGraph(
+            params.getBuckEventBus(),
+            params.getCell(),
+            enableProfiling,
+            executor,
+            newBuildTargets,
+            Collections.unmodifiableMap(targetsToNodes)).getNodes();
+      } catch (BuildFileParseException | BuildTargetException | IOException e) {
+        throw new QueryException("Error in building dependency graph");
       }
     }
+
+    // Nodes we already had are only there as the ends of edges, and have all their own edges.
+    List<TargetNode<?>> addedNodes = new ArrayList<>();
+    for (TargetNode<?> node : newNodes) {
+      BuildTarget buildTarget = node.getBuildTarget();
+      if (targetsToNodes.containsKey(buildTarget)) {
+        continue;
+      }
+      targetsToNodes.put(buildTarget, node);
+      graph.addNode(node);
+      getOrCreateQueryBuildTarget(buildTarget);
+      addedNodes.add(node);
+    }
+    for (TargetNode<?> node : addedNodes) {
+      for (BuildTarget dep : node.getDeps()) {
+        graph.addEdge(node, Preconditions.checkNotNull(targetsToNodes.get(dep)));
+      }
+    }
+    targetGraph = null;
   }
 
   @Override
@@ -349,7 +401,56 @@ public class BuckQueryEnvironment implements QueryEnvironment<QueryTarget> {
 
   @Override
   public Iterable<QueryFunction> getFunctions() {
-    return DEFAULT_QUERY_FUNCTIONS;
+    return functions;
+  }
+
+  /**
+   * Looks up the result of each call of a query function in the {@link QueryResultCache}, so that
+   * sub-expressions which were evaluated before, in this query or earlier ones, are not evaluated
+   * again.
+   */
+  private class CachingQueryFunction implements QueryFunction {
+
+    private final QueryFunction delegate;
+
+    public CachingQueryFunction(QueryFunction delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public String getName() {
+      return delegate.getName();
+    }
+
+    @Override
+    public int getMandatoryArguments() {
+      return delegate.getMandatoryArguments();
+    }
+
+    @Override
+    public ImmutableList<ArgumentType> getArgumentTypes() {
+      return delegate.getArgumentTypes();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Set<T> eval(
+        QueryEnvironment<T> env,
+        ImmutableList<Argument> args,
+        ListeningExecutorService executor) throws QueryException, InterruptedException {
+      if (env != BuckQueryEnvironment.this) {
+        return delegate.eval(env, args, executor);
+      }
+
+      String expression = new FunctionExpression(delegate, args).toString();
+      Optional<ImmutableSet<QueryTarget>> cachedResult = queryResultCache.get(expression);
+      if (cachedResult.isPresent()) {
+        return (Set<T>) cachedResult.get();
+      }
+      Set<T> result = delegate.eval(env, args, executor);
+      queryResultCache.put(expression, ImmutableSet.copyOf((Set<QueryTarget>) result));
+      return result;
+    }
   }
 
 }
@@ -38,6 +38,7 @@ import com.facebook.buck.rules.ActionGraphAndResolver;
 import com.facebook.buck.rules.BuildEngine;
 import com.facebook.buck.rules.BuildEvent;
 import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleDurationStore;
 import com.facebook.buck.rules.BuildRuleResolver;
 import com.facebook.buck.rules.CachingBuildEngine;
 import com.facebook.buck.rules.TargetGraphAndBuildTargets;
@@ -444,6 +445,7 @@ public class BuildCommand extends AbstractCommand {
       artifactCache = new NoopArtifactCache();
     }
 
+    Optional<BuildRuleDurationStore> ruleDurations = getBuildRuleDurationStore(params);
     try (Build build = createBuild(
         params.getBuckConfig(),
         actionGraphAndResolver.getActionGraph(),
@@ -457,6 +459,8 @@ public class BuildCommand extends AbstractCommand {
             params.getBuckConfig().getBuildDepFiles(),
             params.getBuckConfig().getBuildMaxDepFileCacheEntries(),
             params.getBuckConfig().getBuildArtifactCacheSizeLimit(),
+            params.getBuckConfig().getBuildCachePrefetchWindow(),
+            ruleDurations,
             params.getObjectMapper(),
             actionGraphAndResolver.getResolver()),
         artifactCache,
@@ -477,6 +481,10 @@ public class BuildCommand extends AbstractCommand {
           params.getBuckEventBus(),
           params.getConsole(),
           getPathToBuildReport(params.getBuckConfig()));
+    } finally {
+      if (ruleDurations.isPresent()) {
+        ruleDurations.get().save();
+      }
     }
   }
 
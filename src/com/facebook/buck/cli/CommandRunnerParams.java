@@ -64,6 +64,7 @@ class CommandRunnerParams {
   private final Map<ExecutionContext.ExecutorPool, ListeningExecutorService> executors;
   private final BuildEnvironmentDescription buildEnvironmentDescription;
   private final ActionGraphCache actionGraphCache;
+  private final QueryResultCache queryResultCache;
 
   public CommandRunnerParams(
       Console console,
@@ -84,7 +85,8 @@ class CommandRunnerParams {
       FileHashCache fileHashCache,
       Map<ExecutionContext.ExecutorPool, ListeningExecutorService> executors,
       BuildEnvironmentDescription buildEnvironmentDescription,
-      ActionGraphCache actionGraphCache) {
+      ActionGraphCache actionGraphCache,
+      QueryResultCache queryResultCache) {
     this.console = console;
     this.stdIn = stdIn;
     this.cell = cell;
@@ -104,6 +106,7 @@ class CommandRunnerParams {
     this.executors = executors;
     this.buildEnvironmentDescription = buildEnvironmentDescription;
     this.actionGraphCache = actionGraphCache;
+    this.queryResultCache = queryResultCache;
   }
 
   public Console getConsole() {
@@ -182,4 +185,8 @@ class CommandRunnerParams {
     return actionGraphCache;
   }
 
+  public QueryResultCache getQueryResultCache() {
+    return queryResultCache;
+  }
+
 }
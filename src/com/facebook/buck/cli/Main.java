@@ -30,8 +30,10 @@ import com.facebook.buck.artifact_cache.ArtifactCaches;
 import com.facebook.buck.artifact_cache.HttpArtifactCacheEvent;
 import com.facebook.buck.config.Config;
 import com.facebook.buck.config.Configs;
+import com.facebook.buck.counters.Counter;
 import com.facebook.buck.counters.CounterRegistry;
 import com.facebook.buck.counters.CounterRegistryImpl;
+import com.facebook.buck.counters.EventBusQueueCounter;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.BuckEventListener;
 import com.facebook.buck.event.ConsoleEvent;
@@ -54,6 +56,7 @@ import com.facebook.buck.io.TempDirectoryCreator;
 import com.facebook.buck.io.Watchman;
 import com.facebook.buck.jvm.java.JavaBuckConfig;
 import com.facebook.buck.jvm.java.JavacOptions;
+import com.facebook.buck.jvm.java.Jsr199Javac;
 import com.facebook.buck.log.CommandThreadAssociation;
 import com.facebook.buck.log.LogConfig;
 import com.facebook.buck.log.Logger;
@@ -61,6 +64,7 @@ import com.facebook.buck.model.BuckVersion;
 import com.facebook.buck.model.BuildId;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.parser.ParserConfig;
+import com.facebook.buck.parser.PersistentRawNodeStore;
 import com.facebook.buck.rules.ActionGraphCache;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.ConstructorArgMarshaller;
@@ -96,6 +100,7 @@ import com.facebook.buck.util.WatchmanWatcher;
 import com.facebook.buck.util.WatchmanWatcherException;
 import com.facebook.buck.util.cache.DefaultFileHashCache;
 import com.facebook.buck.util.cache.FileHashCache;
+import com.facebook.buck.util.cache.PersistentFileHashStore;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.cache.StackedFileHashCache;
 import com.facebook.buck.util.cache.WatchedFileHashCache;
@@ -201,6 +206,9 @@ public final class Main {
   private static final int EXECUTOR_SERVICES_TIMEOUT_SECONDS = 60;
   private static final int COUNTER_AGGREGATOR_SERVICE_TIMEOUT_SECONDS = 20;
 
+  private static final String FILE_HASH_STORE_NAME = "file_hashes";
+  private static final String RAW_NODE_STORE_NAME = "parse_cache";
+
   private final InputStream stdIn;
   private final PrintStream stdOut;
   private final PrintStream stdErr;
@@ -254,12 +262,15 @@ public final class Main {
 
     private final Cell cell;
     private final Parser parser;
+    private final Optional<PersistentFileHashStore> fileHashStore;
+    private final Optional<PersistentRawNodeStore> rawNodeStore;
     private final DefaultFileHashCache hashCache;
     private final DefaultFileHashCache buckOutHashCache;
     private final EventBus fileEventBus;
     private final Optional<WebServer> webServer;
     private final UUID watchmanQueryUUID;
     private final ActionGraphCache actionGraphCache;
+    private final QueryResultCache queryResultCache;
 
     public Daemon(
         Cell cell,
@@ -267,7 +278,9 @@ public final class Main {
         Optional<WebServer> webServerToReuse)
         throws IOException, InterruptedException {
       this.cell = cell;
-      this.hashCache = new WatchedFileHashCache(cell.getFilesystem());
+      this.fileHashStore = createFileHashStore(cell);
+      this.hashCache = new WatchedFileHashCache(cell.getFilesystem(), fileHashStore);
+      this.rawNodeStore = createRawNodeStore(cell, hashCache);
       this.buckOutHashCache =
           new DefaultFileHashCache(
               new ProjectFilesystem(
@@ -276,15 +289,20 @@ public final class Main {
                   ImmutableSet.<ProjectFilesystem.PathOrGlobMatcher>of()));
       this.fileEventBus = new EventBus("file-change-events");
 
-      actionGraphCache = new ActionGraphCache();
+      actionGraphCache = new ActionGraphCache(
+          cell.getBuckConfig().isIncrementalActionGraphEnabled(),
+          cell.getBuckConfig().getActionGraphCacheMaxRules());
+      queryResultCache = new QueryResultCache();
 
       TypeCoercerFactory typeCoercerFactory = new DefaultTypeCoercerFactory(objectMapper);
       this.parser = new Parser(
           new ParserConfig(cell.getBuckConfig()),
           typeCoercerFactory,
-          new ConstructorArgMarshaller(typeCoercerFactory));
+          new ConstructorArgMarshaller(typeCoercerFactory),
+          rawNodeStore);
       fileEventBus.register(parser);
       fileEventBus.register(actionGraphCache);
+      fileEventBus.register(queryResultCache);
       fileEventBus.register(hashCache);
 
       if (webServerToReuse.isPresent()) {
@@ -358,6 +376,10 @@ public final class Main {
       return actionGraphCache;
     }
 
+    private QueryResultCache getQueryResultCache() {
+      return queryResultCache;
+    }
+
     private DefaultFileHashCache getFileHashCache() {
       return hashCache;
     }
@@ -366,6 +388,14 @@ public final class Main {
       return buckOutHashCache;
     }
 
+    private Optional<PersistentFileHashStore> getFileHashStore() {
+      return fileHashStore;
+    }
+
+    private Optional<PersistentRawNodeStore> getRawNodeStore() {
+      return rawNodeStore;
+    }
+
     private void watchClient(final NGContext context) {
       context.addClientListener(new NGClientListener() {
         @Override
@@ -439,6 +469,12 @@ public final class Main {
     @Override
     public void close() throws IOException {
       shutdownWebServer();
+      if (fileHashStore.isPresent()) {
+        fileHashStore.get().close();
+      }
+      if (rawNodeStore.isPresent()) {
+        rawNodeStore.get().close();
+      }
     }
 
     private void shutdownWebServer() {
@@ -828,11 +864,17 @@ public final class Main {
 
         ProjectFileHashCache cellHashCache;
         ProjectFileHashCache buckOutHashCache;
+        Optional<PersistentFileHashStore> fileHashStore;
+        Optional<PersistentRawNodeStore> rawNodeStore;
         if (isDaemon) {
           cellHashCache = getFileHashCacheFromDaemon(rootCell);
           buckOutHashCache = getBuckOutFileHashCacheFromDaemon(rootCell);
+          fileHashStore = getFileHashStoreFromDaemon(rootCell);
+          rawNodeStore = getRawNodeStoreFromDaemon(rootCell);
         } else {
-          cellHashCache = new DefaultFileHashCache(rootCell.getFilesystem());
+          fileHashStore = createFileHashStore(rootCell);
+          cellHashCache = new DefaultFileHashCache(rootCell.getFilesystem(), fileHashStore);
+          rawNodeStore = createRawNodeStore(rootCell, cellHashCache);
           buckOutHashCache =
               new DefaultFileHashCache(
                   new ProjectFilesystem(
@@ -925,6 +967,9 @@ public final class Main {
                  buckConfig.getCountersFlushIntervalMillis())) {
 
           buildEventBus.register(HANG_MONITOR.getHangMonitor());
+          counterRegistry.registerCounters(
+              ImmutableList.<Counter>of(
+                  new EventBusQueueCounter("buck_event_bus", "listener_queue", buildEventBus)));
 
           ArtifactCache artifactCache = asyncCloseable.closeAsync(
               ArtifactCaches.newInstance(
@@ -1017,10 +1062,12 @@ public final class Main {
             parser = new Parser(
                 new ParserConfig(rootCell.getBuckConfig()),
                 typeCoercerFactory,
-                new ConstructorArgMarshaller(typeCoercerFactory));
+                new ConstructorArgMarshaller(typeCoercerFactory),
+                rawNodeStore);
           }
 
           ActionGraphCache actionGraphCache = getActionGraphCacheFromDaemon(context, rootCell);
+          QueryResultCache queryResultCache = getQueryResultCacheFromDaemon(context, rootCell);
 
           // Because the Parser is potentially constructed before the CounterRegistry,
           // we need to manually register its counters after it's created.
@@ -1030,9 +1077,11 @@ public final class Main {
 
           // Because the ActionGraphCache is potentially constructed before the CounterRegistry,
           // we need to manually register its counters after it's created. We register the counters
-          // of the ActionGraphCache only if we run the daemon.
+          // of the ActionGraphCache only if we run the daemon. The same goes for the
+          // QueryResultCache.
           if (context.isPresent()) {
             counterRegistry.registerCounters(actionGraphCache.getCounters());
+            counterRegistry.registerCounters(queryResultCache.getCounters());
           }
 
           JavaUtilsLoggingBuildListener.ensureLogFileIsWritten(rootCell.getFilesystem());
@@ -1083,7 +1132,8 @@ public final class Main {
                   fileHashCache,
                   executors,
                   buildEnvironmentDescription,
-                  actionGraphCache));
+                  actionGraphCache,
+                  queryResultCache));
           // Wait for HTTP writes to complete.
           closeHttpExecutorService(
               cacheBuckConfig, Optional.of(buildEventBus), httpWriteExecutorService);
@@ -1117,6 +1167,23 @@ public final class Main {
           for (ExecutionContext.ExecutorPool p: executors.keySet()) {
             closeExecutorService(p.toString(), executors.get(p), EXECUTOR_SERVICES_TIMEOUT_SECONDS);
           }
+          if (fileHashStore.isPresent()) {
+            // The daemon keeps using its store, so just make sure what we've hashed so far is on
+            // disk in case it gets killed.
+            if (isDaemon) {
+              fileHashStore.get().flush();
+            } else {
+              fileHashStore.get().close();
+            }
+          }
+          if (rawNodeStore.isPresent()) {
+            if (isDaemon) {
+              rawNodeStore.get().flush();
+            } else {
+              rawNodeStore.get().close();
+            }
+          }
+          Jsr199Javac.closeIdleClasspathJars();
         }
         if (context.isPresent() && !rootCell.getBuckConfig().getFlushEventsBeforeExit()) {
           context.get().in.close(); // Avoid client exit triggering client disconnection handling.
@@ -1286,6 +1353,41 @@ public final class Main {
     return daemon.getFileHashCache();
   }
 
+  private Optional<PersistentFileHashStore> getFileHashStoreFromDaemon(Cell cell)
+      throws IOException, InterruptedException {
+    Daemon daemon = getDaemon(cell, objectMapper);
+    return daemon.getFileHashStore();
+  }
+
+  private static Optional<PersistentFileHashStore> createFileHashStore(Cell cell) {
+    if (!cell.getBuckConfig().isPersistentFileHashCacheEnabled()) {
+      return Optional.absent();
+    }
+    return Optional.of(
+        new PersistentFileHashStore(
+            cell.getFilesystem().resolve(
+                BuckConstant.getBuckOutputPath().resolve(FILE_HASH_STORE_NAME))));
+  }
+
+  private Optional<PersistentRawNodeStore> getRawNodeStoreFromDaemon(Cell cell)
+      throws IOException, InterruptedException {
+    Daemon daemon = getDaemon(cell, objectMapper);
+    return daemon.getRawNodeStore();
+  }
+
+  private static Optional<PersistentRawNodeStore> createRawNodeStore(
+      Cell cell,
+      FileHashCache fileHashCache) {
+    if (!new ParserConfig(cell.getBuckConfig()).getEnablePersistentParseCache()) {
+      return Optional.absent();
+    }
+    return Optional.of(
+        new PersistentRawNodeStore(
+            cell.getFilesystem().resolve(
+                BuckConstant.getBuckOutputPath().resolve(RAW_NODE_STORE_NAME)),
+            fileHashCache));
+  }
+
   private DefaultFileHashCache getBuckOutFileHashCacheFromDaemon(Cell cell)
       throws IOException, InterruptedException {
     Daemon daemon = getDaemon(cell, objectMapper);
@@ -1313,6 +1415,16 @@ public final class Main {
     return new ActionGraphCache();
   }
 
+  private QueryResultCache getQueryResultCacheFromDaemon(
+      Optional<NGContext> context,
+      Cell cell)
+      throws IOException, InterruptedException {
+    if (context.isPresent()) {
+      return getDaemon(cell, objectMapper).getQueryResultCache();
+    }
+    return new QueryResultCache();
+  }
+
   private void loadListenersFromBuckConfig(
       ImmutableList.Builder<BuckEventListener> eventListeners,
       ProjectFilesystem projectFilesystem,
@@ -1384,6 +1496,9 @@ public final class Main {
             .add(new JavaUtilsLoggingBuildListener())
             .add(consoleEventBusListener)
             .add(new LoggingBuildListener());
+    // Listeners which only pass events on to somewhere else, and can do without some of them,
+    // rather than slow the build down when they can't keep up.
+    ImmutableSet.Builder<BuckEventListener> droppingListenersBuilder = ImmutableSet.builder();
     try {
       eventListenersBuilder.add(new ChromeTraceBuildListener(
           projectFilesystem,
@@ -1391,12 +1506,15 @@ public final class Main {
           clock,
           objectMapper,
           config.getMaxTraces(),
-          config.getCompressTraces()));
+          config.getCompressTraces(),
+          config.getBinaryTraces()));
     } catch (IOException e) {
       LOG.error("Unable to create ChromeTrace listener!");
     }
     if (webServer.isPresent()) {
-      eventListenersBuilder.add(webServer.get().createListener());
+      BuckEventListener webServerListener = webServer.get().createListener();
+      eventListenersBuilder.add(webServerListener);
+      droppingListenersBuilder.add(webServerListener);
     }
 
     loadListenersFromBuckConfig(eventListenersBuilder, projectFilesystem, config);
@@ -1410,11 +1528,12 @@ public final class Main {
         .transform(MoreFunctions.<BuildId, Boolean>applyFunction(buildId))
         .or(true);
     if (remoteLogUrl.isPresent() && shouldSample) {
-      eventListenersBuilder.add(
-          new RemoteLogUploaderEventListener(
-              objectMapper,
-              RemoteLoggerFactory.create(remoteLogUrl.get(), objectMapper),
-              buildEnvironmentDescription));
+      BuckEventListener remoteLogUploader = new RemoteLogUploaderEventListener(
+          objectMapper,
+          RemoteLoggerFactory.create(remoteLogUrl.get(), objectMapper),
+          buildEnvironmentDescription);
+      eventListenersBuilder.add(remoteLogUploader);
+      droppingListenersBuilder.add(remoteLogUploader);
     }
 
 
@@ -1436,9 +1555,14 @@ public final class Main {
     eventListenersBuilder.addAll(externalEventsListeners);
 
     ImmutableList<BuckEventListener> eventListeners = eventListenersBuilder.build();
+    ImmutableSet<BuckEventListener> droppingListeners = droppingListenersBuilder.build();
 
     for (BuckEventListener eventListener : eventListeners) {
-      buckEvents.register(eventListener);
+      buckEvents.register(
+          eventListener,
+          droppingListeners.contains(eventListener) ?
+              BuckEventBus.OverflowPolicy.DROP :
+              BuckEventBus.OverflowPolicy.BLOCK);
     }
 
     return eventListeners;
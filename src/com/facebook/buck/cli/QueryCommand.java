@@ -176,7 +176,7 @@ public class QueryCommand extends AbstractCommand {
     if (shouldOutputAttributes()) {
       collectAndPrintAttributes(params, executor, env, queryResult);
     } else if (shouldGenerateDotOutput()) {
-      printDotOutput(params, env, queryResult);
+      printDotOutput(params, env, executor, queryResult);
     } else if (shouldGenerateJsonOutput()) {
       CommandHelper.printJSON(params, queryResult);
     } else {
@@ -188,8 +188,12 @@ public class QueryCommand extends AbstractCommand {
   private void printDotOutput(
       CommandRunnerParams params,
       BuckQueryEnvironment env,
+      ListeningExecutorService executor,
       Set<QueryTarget> queryResult)
       throws IOException, QueryException, InterruptedException {
+    // The result may have been cached, or be made of target literals, so the graph might not have
+    // the edges between its targets yet.
+    env.buildTransitiveClosure(queryResult, Integer.MAX_VALUE, executor);
     Dot.writeSubgraphOutput(
         env.getTargetGraph(),
         "result_graph",
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.query.QueryTarget;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.Subscribe;
+
+import java.nio.file.WatchEvent;
+
+/**
+ * Remembers the results of the function calls in the queries evaluated by
+ * {@link BuckQueryEnvironment}, by their pretty-printed expression, so that a daemon doesn't work
+ * out the same {@code deps()} or {@code rdeps()} again for each query that contains it.
+ * <p>
+ * What a query function returns only depends on the build files and the files they glob, so the
+ * results are kept until any watch event is received.
+ */
+public class QueryResultCache {
+
+  private static final Logger LOG = Logger.get(QueryResultCache.class);
+
+  private static final String COUNTER_CATEGORY = "buck_query_result_cache";
+  private static final String CACHE_HIT_COUNTER_NAME = "cache_hit";
+  private static final String CACHE_MISS_COUNTER_NAME = "cache_miss";
+
+  /**
+   * How many targets the cached results may have between them.
+   */
+  private static final long DEFAULT_MAX_CACHED_TARGETS = 1 << 20;
+
+  private final Cache<String, ImmutableSet<QueryTarget>> results;
+  private final IntegerCounter cacheHitCounter;
+  private final IntegerCounter cacheMissCounter;
+
+  public QueryResultCache() {
+    this(DEFAULT_MAX_CACHED_TARGETS);
+  }
+
+  public QueryResultCache(long maxCachedTargets) {
+    this.results = CacheBuilder.newBuilder()
+        .concurrencyLevel(1)
+        .maximumWeight(maxCachedTargets)
+        .weigher(
+            new Weigher<String, ImmutableSet<QueryTarget>>() {
+              @Override
+              public int weigh(String expression, ImmutableSet<QueryTarget> result) {
+                // Empty results are worth keeping too.
+                return result.size() + 1;
+              }
+            })
+        .build();
+    this.cacheHitCounter = new IntegerCounter(
+        COUNTER_CATEGORY,
+        CACHE_HIT_COUNTER_NAME,
+        ImmutableMap.<String, String>of());
+    this.cacheMissCounter = new IntegerCounter(
+        COUNTER_CATEGORY,
+        CACHE_MISS_COUNTER_NAME,
+        ImmutableMap.<String, String>of());
+  }
+
+  public Optional<ImmutableSet<QueryTarget>> get(String expression) {
+    ImmutableSet<QueryTarget> result = results.getIfPresent(expression);
+    if (result == null) {
+      cacheMissCounter.inc();
+      return Optional.absent();
+    }
+    cacheHitCounter.inc();
+    return Optional.of(result);
+  }
+
+  public void put(String expression, ImmutableSet<QueryTarget> result) {
+    results.put(expression, result);
+  }
+
+  @Subscribe
+  public void invalidateBasedOn(WatchEvent<?> event) {
+    if (results.size() > 0) {
+      LOG.debug("Invalidating %d query results due to watch event %s.", results.size(), event);
+      results.invalidateAll();
+    }
+  }
+
+  public ImmutableList<Counter> getCounters() {
+    return ImmutableList.<Counter>of(cacheHitCounter, cacheMissCounter);
+  }
+}
@@ -96,7 +96,8 @@ public class SimulateCommand extends AbstractCommand {
         times,
         actionGraphAndResolver.getActionGraph(),
         actionGraphAndResolver.getResolver(),
-        params.getBuckConfig().getNumThreads());
+        params.getBuckConfig().getNumThreads(),
+        params.getBuckConfig().getDependencySchedulingOrder());
     SimulateReport report = simulator.simulateBuild(
         params.getClock().currentTimeMillis(),
         buildCommand.getBuildTargets());
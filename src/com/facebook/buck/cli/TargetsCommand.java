@@ -52,6 +52,7 @@ import com.facebook.buck.rules.TargetGraphAndBuildTargets;
 import com.facebook.buck.rules.TargetGraphAndTargetNodes;
 import com.facebook.buck.rules.TargetGraphAndTargets;
 import com.facebook.buck.rules.TargetGraphHashing;
+import com.facebook.buck.rules.TargetNodeHashCache;
 import com.facebook.buck.rules.TargetNode;
 import com.facebook.buck.rules.TargetNodes;
 import com.facebook.buck.rules.keys.DefaultRuleKeyBuilderFactory;
@@ -882,13 +883,18 @@ public class TargetsCommand extends AbstractCommand {
 
     FileHashLoader fileHashLoader = createOrGetFileHashLoader(params);
 
-    // Hash each target's rule description and contents of any files.
+    // Hash each target's rule description and contents of any files.  The hashes of the nodes'
+    // inputs are only remembered across commands when they come from the file hash cache.
     ImmutableMap<BuildTarget, HashCode> buildTargetHashes =
         TargetGraphHashing.hashTargetGraph(
             params.getCell(),
             targetGraphWithTests,
             fileHashLoader,
-            targetGraphAndNodesWithTests.getTargetNodes());
+            targetGraphAndNodesWithTests.getTargetNodes(),
+            executor,
+            getTargetHashFileMode() == TargetHashFileMode.PATHS_AND_CONTENTS ?
+                Optional.of(params.getParser().getTargetNodeHashCache()) :
+                Optional.<TargetNodeHashCache>absent());
 
     ImmutableMap<BuildTarget, HashCode> finalHashes = rehashWithTestsIfNeeded(
         targetGraphWithTests,
@@ -28,6 +28,7 @@ import com.facebook.buck.parser.TargetNodePredicateSpec;
 import com.facebook.buck.rules.ActionGraphAndResolver;
 import com.facebook.buck.rules.BuildEngine;
 import com.facebook.buck.rules.BuildEvent;
+import com.facebook.buck.rules.BuildRuleDurationStore;
 import com.facebook.buck.rules.CachingBuildEngine;
 import com.facebook.buck.rules.ExternalTestRunnerRule;
 import com.facebook.buck.rules.ExternalTestRunnerTestSpec;
@@ -466,6 +467,7 @@ public class TestCommand extends BuildCommand {
         printMatchingTestRules(params.getConsole(), testRules);
       }
 
+      Optional<BuildRuleDurationStore> ruleDurations = getBuildRuleDurationStore(params);
       CachingBuildEngine cachingBuildEngine =
           new CachingBuildEngine(
               pool.getExecutor(),
@@ -475,56 +477,64 @@ public class TestCommand extends BuildCommand {
               params.getBuckConfig().getBuildDepFiles(),
               params.getBuckConfig().getBuildMaxDepFileCacheEntries(),
               params.getBuckConfig().getBuildArtifactCacheSizeLimit(),
+              params.getBuckConfig().getBuildCachePrefetchWindow(),
+              ruleDurations,
               params.getObjectMapper(),
               actionGraphAndResolver.getResolver());
-      try (Build build = createBuild(
-          params.getBuckConfig(),
-          actionGraphAndResolver.getActionGraph(),
-          actionGraphAndResolver.getResolver(),
-          params.getAndroidPlatformTargetSupplier(),
-          cachingBuildEngine,
-          params.getArtifactCache(),
-          params.getConsole(),
-          params.getBuckEventBus(),
-          getTargetDeviceOptional(),
-          params.getPlatform(),
-          params.getEnvironment(),
-          params.getObjectMapper(),
-          params.getClock(),
-          Optional.of(getAdbOptions(params.getBuckConfig())),
-          Optional.of(getTargetDeviceOptions()),
-          params.getExecutors())) {
-
-        // Build all of the test rules.
-        int exitCode = build.executeAndPrintFailuresToEventBus(
-            testRules,
-            isKeepGoing(),
-            params.getBuckEventBus(),
+      try {
+        try (Build build = createBuild(
+            params.getBuckConfig(),
+            actionGraphAndResolver.getActionGraph(),
+            actionGraphAndResolver.getResolver(),
+            params.getAndroidPlatformTargetSupplier(),
+            cachingBuildEngine,
+            params.getArtifactCache(),
             params.getConsole(),
-            getPathToBuildReport(params.getBuckConfig()));
-        params.getBuckEventBus().post(BuildEvent.finished(started, exitCode));
-        if (exitCode != 0) {
-          return exitCode;
-        }
+            params.getBuckEventBus(),
+            getTargetDeviceOptional(),
+            params.getPlatform(),
+            params.getEnvironment(),
+            params.getObjectMapper(),
+            params.getClock(),
+            Optional.of(getAdbOptions(params.getBuckConfig())),
+            Optional.of(getTargetDeviceOptions()),
+            params.getExecutors())) {
+
+          // Build all of the test rules.
+          int exitCode = build.executeAndPrintFailuresToEventBus(
+              testRules,
+              isKeepGoing(),
+              params.getBuckEventBus(),
+              params.getConsole(),
+              getPathToBuildReport(params.getBuckConfig()));
+          params.getBuckEventBus().post(BuildEvent.finished(started, exitCode));
+          if (exitCode != 0) {
+            return exitCode;
+          }
 
-        // If the user requests that we build tests that we filter out, then we perform
-        // the filtering here, after we've done the build but before we run the tests.
-        if (isBuildFiltered(params.getBuckConfig())) {
-          testRules =
-              filterTestRules(params.getBuckConfig(), explicitBuildTargets, testRules);
-        }
+          // If the user requests that we build tests that we filter out, then we perform
+          // the filtering here, after we've done the build but before we run the tests.
+          if (isBuildFiltered(params.getBuckConfig())) {
+            testRules =
+                filterTestRules(params.getBuckConfig(), explicitBuildTargets, testRules);
+          }
 
-        // Once all of the rules are built, then run the tests.
-        Optional<ImmutableList<String>> externalTestRunner =
-            params.getBuckConfig().getExternalTestRunner();
-        if (externalTestRunner.isPresent()) {
-          return runTestsExternal(
-              params,
-              build,
-              externalTestRunner.get(),
-              testRules);
+          // Once all of the rules are built, then run the tests.
+          Optional<ImmutableList<String>> externalTestRunner =
+              params.getBuckConfig().getExternalTestRunner();
+          if (externalTestRunner.isPresent()) {
+            return runTestsExternal(
+                params,
+                build,
+                externalTestRunner.get(),
+                testRules);
+          }
+          return runTestsInternal(params, cachingBuildEngine, build, testRules);
+        }
+      } finally {
+        if (ruleDurations.isPresent()) {
+          ruleDurations.get().save();
         }
-        return runTestsInternal(params, cachingBuildEngine, build, testRules);
       }
     }
   }
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.counters;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reports how far behind each listener of a {@link BuckEventBus} fell: the most events its queue
+ * held at once, and how many events were dropped or had to wait because the queue was full.
+ */
+public class EventBusQueueCounter extends Counter {
+
+  private final BuckEventBus eventBus;
+
+  public EventBusQueueCounter(String category, String name, BuckEventBus eventBus) {
+    super(category, name, ImmutableMap.<String, String>of());
+    this.eventBus = eventBus;
+  }
+
+  @Override
+  public Optional<CounterSnapshot> flush() {
+    // Listeners of the same type are reported together.
+    Map<String, Long> values = new TreeMap<>();
+    for (BuckEventBus.ListenerQueueStats stats : eventBus.flushListenerQueueStats()) {
+      if (stats.getMaxDepth() == 0 &&
+          stats.getDroppedEvents() == 0 &&
+          stats.getBlockedPosts() == 0) {
+        continue;
+      }
+      String prefix = getName() + "_" + stats.getListenerName();
+      put(values, prefix + "_max_depth", stats.getMaxDepth(), /* sum */ false);
+      put(values, prefix + "_dropped", stats.getDroppedEvents(), /* sum */ true);
+      put(values, prefix + "_blocked", stats.getBlockedPosts(), /* sum */ true);
+    }
+    if (values.isEmpty()) {
+      return Optional.absent();
+    }
+    return Optional.of(CounterSnapshot.builderForCounter(this).putAllValues(values).build());
+  }
+
+  private static void put(Map<String, Long> values, String key, long value, boolean sum) {
+    Long previous = values.get(key);
+    if (previous != null) {
+      value = sum ? previous + value : Math.max(previous, value);
+    }
+    values.put(key, value);
+  }
+}
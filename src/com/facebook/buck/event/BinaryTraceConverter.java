@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Converts the traces written by a {@link BinaryTraceWriter} to the JSON that Chrome's trace
+ * viewer reads, an event at a time.
+ * <p>
+ * Usage: {@code BinaryTraceConverter build.btrace build.trace}
+ */
+public class BinaryTraceConverter {
+
+  /** Utility class: do not instantiate. */
+  private BinaryTraceConverter() {}
+
+  /**
+   * Writes the events of {@code binaryTrace} to {@code generator} as a JSON array, leaving the
+   * generator open.
+   *
+   * @param generator a generator whose codec can serialize {@link ChromeTraceEvent}s, such as one
+   *     created by an {@link ObjectMapper}.
+   */
+  public static void convertToJson(InputStream binaryTrace, JsonGenerator generator)
+      throws IOException {
+    BinaryTraceReader reader = new BinaryTraceReader(binaryTrace);
+    generator.writeStartArray();
+    Optional<ChromeTraceEvent> event;
+    while ((event = reader.readEvent()).isPresent()) {
+      generator.writeObject(event.get());
+    }
+    generator.writeEndArray();
+    generator.flush();
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: BinaryTraceConverter <binary trace> <json trace>");
+      System.exit(1);
+    }
+    Path input = Paths.get(args[0]);
+    Path output = Paths.get(args[1]);
+    ObjectMapper mapper = new ObjectMapper();
+    try (
+        InputStream inputStream = new BufferedInputStream(Files.newInputStream(input));
+        OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(output));
+        JsonGenerator generator = mapper.getFactory().createGenerator(outputStream)) {
+      convertToJson(inputStream, generator);
+    }
+  }
+}
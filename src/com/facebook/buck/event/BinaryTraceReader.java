@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the {@link ChromeTraceEvent}s written by a {@link BinaryTraceWriter}, one at a time.
+ */
+public class BinaryTraceReader implements Closeable {
+
+  private final InputStream input;
+  private final List<String> strings = new ArrayList<>();
+  private long lastMicroTime = 0;
+
+  public BinaryTraceReader(InputStream input) throws IOException {
+    this.input = input.markSupported() ? input : new BufferedInputStream(input);
+    if (!isBinaryTrace(this.input)) {
+      throw new IOException("Not a binary trace.");
+    }
+    ByteStreams.skipFully(this.input, BinaryTraceWriter.MAGIC.length);
+    int version = this.input.read();
+    if (version != BinaryTraceWriter.VERSION) {
+      throw new IOException("Unsupported binary trace version: " + version);
+    }
+  }
+
+  /**
+   * @param input a stream which supports {@link InputStream#mark(int)}.
+   * @return whether the stream starts with the header of a binary trace, leaving the stream where
+   *     it was.
+   */
+  public static boolean isBinaryTrace(InputStream input) throws IOException {
+    Preconditions.checkArgument(input.markSupported());
+    byte[] magic = new byte[BinaryTraceWriter.MAGIC.length];
+    input.mark(magic.length);
+    try {
+      return ByteStreams.read(input, magic, 0, magic.length) == magic.length &&
+          Arrays.equals(magic, BinaryTraceWriter.MAGIC);
+    } finally {
+      input.reset();
+    }
+  }
+
+  /**
+   * @return the next event, or nothing if the end of the trace has been reached. A record which
+   *     has only been written in part, because the trace is still being written, counts as the
+   *     end.
+   */
+  public Optional<ChromeTraceEvent> readEvent() throws IOException {
+    try {
+      while (true) {
+        int recordType = input.read();
+        if (recordType == -1) {
+          return Optional.absent();
+        } else if (recordType == BinaryTraceWriter.STRING_RECORD) {
+          byte[] bytes = new byte[readVarInt()];
+          ByteStreams.readFully(input, bytes);
+          strings.add(new String(bytes, StandardCharsets.UTF_8));
+        } else if (recordType == BinaryTraceWriter.EVENT_RECORD) {
+          return Optional.of(readEventRecord());
+        } else {
+          throw new IOException("Unknown record type in binary trace: " + recordType);
+        }
+      }
+    } catch (EOFException e) {
+      return Optional.absent();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    input.close();
+  }
+
+  private ChromeTraceEvent readEventRecord() throws IOException {
+    String category = readString();
+    String name = readString();
+    ChromeTraceEvent.Phase phase = readPhase();
+    long processId = readVarLong();
+    long threadId = readVarLong();
+    long zigzagDelta = readVarLong();
+    long microTime = lastMicroTime + ((zigzagDelta >>> 1) ^ -(zigzagDelta & 1));
+    int argCount = readVarInt();
+    ImmutableMap.Builder<String, String> args = ImmutableMap.builder();
+    for (int i = 0; i < argCount; i++) {
+      args.put(readString(), readString());
+    }
+    lastMicroTime = microTime;
+    return new ChromeTraceEvent(
+        category,
+        name,
+        phase,
+        processId,
+        threadId,
+        microTime,
+        args.build());
+  }
+
+  private ChromeTraceEvent.Phase readPhase() throws IOException {
+    int code = readByte();
+    for (ChromeTraceEvent.Phase phase : ChromeTraceEvent.Phase.values()) {
+      if (phase.getPhase().charAt(0) == code) {
+        return phase;
+      }
+    }
+    throw new IOException("Unknown phase in binary trace: " + (char) code);
+  }
+
+  private String readString() throws IOException {
+    int id = readVarInt();
+    if (id >= strings.size()) {
+      throw new IOException("Undefined string in binary trace: " + id);
+    }
+    return strings.get(id);
+  }
+
+  private int readVarInt() throws IOException {
+    long value = readVarLong();
+    if (value < 0 || value > Integer.MAX_VALUE) {
+      throw new IOException("Value out of range in binary trace: " + value);
+    }
+    return (int) value;
+  }
+
+  private long readVarLong() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = readByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in binary trace.");
+  }
+
+  private int readByte() throws IOException {
+    int b = input.read();
+    if (b == -1) {
+      throw new EOFException();
+    }
+    return b;
+  }
+}
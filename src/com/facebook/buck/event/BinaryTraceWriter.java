@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes {@link ChromeTraceEvent}s in a compact binary format, which is a fraction of the size of
+ * the equivalent JSON and much quicker to write.
+ * <p>
+ * A binary trace is the {@link #MAGIC} bytes and the {@link #VERSION}, followed by records, each
+ * of which starts with its type:
+ * <ul>
+ *   <li>{@link #STRING_RECORD}: the length of a string and its UTF-8 bytes. Strings are numbered
+ *   in the order they appear in the trace, from zero, and are written once, before the first
+ *   event that uses them.</li>
+ *   <li>{@link #EVENT_RECORD}: the numbers of the category and name strings, the phase, the
+ *   process and thread ids, the difference between the event's timestamp and the previous
+ *   event's, the number of arguments, and the numbers of each argument's key and value
+ *   strings.</li>
+ * </ul>
+ * Numbers are written as unsigned LEB128 varints, and the timestamp differences are zigzag
+ * encoded first, since events aren't always written in order. Records are only ever appended, so
+ * a trace can be read while it's being written, or after the process writing it died, up to the
+ * last complete record.
+ */
+public class BinaryTraceWriter implements Closeable {
+
+  static final byte[] MAGIC = {'B', 'T', 'R', 'C'};
+  static final int VERSION = 1;
+
+  static final int STRING_RECORD = 1;
+  static final int EVENT_RECORD = 2;
+
+  private final OutputStream output;
+  private final Map<String, Integer> stringIds = new HashMap<>();
+  private long lastMicroTime = 0;
+
+  public BinaryTraceWriter(OutputStream output) throws IOException {
+    this.output = new BufferedOutputStream(output);
+    this.output.write(MAGIC);
+    this.output.write(VERSION);
+  }
+
+  public void writeEvent(ChromeTraceEvent event) throws IOException {
+    // The strings have to be written before the event record which refers to them.
+    int categoryId = intern(event.getCategory());
+    int nameId = intern(event.getName());
+    int[] argIds = new int[event.getArgs().size() * 2];
+    int i = 0;
+    for (Map.Entry<String, String> arg : event.getArgs().entrySet()) {
+      argIds[i++] = intern(arg.getKey());
+      argIds[i++] = intern(arg.getValue());
+    }
+
+    output.write(EVENT_RECORD);
+    writeVarLong(categoryId);
+    writeVarLong(nameId);
+    output.write(event.getPhase().getPhase().charAt(0));
+    writeVarLong(event.getProcessId());
+    writeVarLong(event.getThreadId());
+    long delta = event.getMicroTime() - lastMicroTime;
+    writeVarLong((delta << 1) ^ (delta >> 63));
+    lastMicroTime = event.getMicroTime();
+    writeVarLong(event.getArgs().size());
+    for (int argId : argIds) {
+      writeVarLong(argId);
+    }
+  }
+
+  public void flush() throws IOException {
+    output.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    output.close();
+  }
+
+  private int intern(String string) throws IOException {
+    Integer id = stringIds.get(string);
+    if (id == null) {
+      id = stringIds.size();
+      stringIds.put(string, id);
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      output.write(STRING_RECORD);
+      writeVarLong(bytes.length);
+      output.write(bytes);
+    }
+    return id;
+  }
+
+  private void writeVarLong(long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      output.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    output.write((int) value);
+  }
+}
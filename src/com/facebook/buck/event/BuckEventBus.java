@@ -19,19 +19,29 @@ import com.facebook.buck.log.CommandThreadFactory;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildId;
 import com.facebook.buck.timing.Clock;
-import com.facebook.buck.util.concurrent.MoreExecutors;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Supplier;
-import com.google.common.eventbus.EventBus;
+import com.google.common.collect.ImmutableList;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Thin wrapper around guava event bus.
+ * Delivers the events posted to it to the listeners registered with it, by way of a guava event
+ * bus for each listener.
+ * <p>
+ * Each listener has a queue of its own, which is drained by a task on the executor, so that a
+ * listener that is slow to handle events, such as one writing them to disk or sending them over
+ * the network, doesn't hold up the others. The queues are bounded: what happens when one is full
+ * is up to the {@link OverflowPolicy} it was registered with.
  */
 public class BuckEventBus implements Closeable {
 
@@ -39,6 +49,26 @@ public class BuckEventBus implements Closeable {
 
   public static final int DEFAULT_SHUTDOWN_TIMEOUT_MS = 15000;
 
+  /**
+   * How many events may be waiting to be delivered to each listener.
+   */
+  public static final int DEFAULT_LISTENER_QUEUE_CAPACITY = 1 << 16;
+
+  /**
+   * What to do with an event that is posted while a listener's queue is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * Wait for the listener to make room, slowing down whoever posted the event. Events posted by
+     * a listener while it handles an event never wait, though, and are queued regardless.
+     */
+    BLOCK,
+    /**
+     * Drop the event, for listeners that can do without some of them.
+     */
+    DROP,
+  }
+
   private static final Supplier<Long> DEFAULT_THREAD_ID_SUPPLIER = new Supplier<Long>() {
     @Override
     public Long get() {
@@ -48,17 +78,26 @@ public class BuckEventBus implements Closeable {
 
   private final Clock clock;
   private final ExecutorService executorService;
-  private final EventBus eventBus;
+  private final int listenerQueueCapacity;
+  private final List<ListenerQueue> listenerQueues = new CopyOnWriteArrayList<>();
   private final Supplier<Long> threadIdSupplier;
   private final BuildId buildId;
   private final int shutdownTimeoutMillis;
 
   public BuckEventBus(Clock clock, BuildId buildId) {
     this(clock,
-        MoreExecutors.newSingleThreadExecutor(
-            new CommandThreadFactory(BuckEventBus.class.getSimpleName())),
+        // Each listener's queue is drained by at most one thread at a time, so there are never
+        // more threads than listeners.
+        new ThreadPoolExecutor(
+            /* corePoolSize */ 0,
+            /* maximumPoolSize */ Integer.MAX_VALUE,
+            /* keepAliveTime */ 60L, TimeUnit.SECONDS,
+            /* workQueue */ new SynchronousQueue<Runnable>(),
+            /* threadFactory */ new CommandThreadFactory(BuckEventBus.class.getSimpleName()),
+            /* handler */ new ThreadPoolExecutor.DiscardPolicy()),
         buildId,
-        DEFAULT_SHUTDOWN_TIMEOUT_MS);
+        DEFAULT_SHUTDOWN_TIMEOUT_MS,
+        DEFAULT_LISTENER_QUEUE_CAPACITY);
   }
 
   @VisibleForTesting
@@ -67,22 +106,41 @@ public class BuckEventBus implements Closeable {
       ExecutorService executorService,
       BuildId buildId,
       int shutdownTimeoutMillis) {
+    this(
+        clock,
+        executorService,
+        buildId,
+        shutdownTimeoutMillis,
+        DEFAULT_LISTENER_QUEUE_CAPACITY);
+  }
+
+  @VisibleForTesting
+  BuckEventBus(
+      Clock clock,
+      ExecutorService executorService,
+      BuildId buildId,
+      int shutdownTimeoutMillis,
+      int listenerQueueCapacity) {
     this.clock = clock;
     this.executorService = executorService;
-    this.eventBus = new EventBus("buck-build-events");
     this.threadIdSupplier = DEFAULT_THREAD_ID_SUPPLIER;
     this.buildId = buildId;
     this.shutdownTimeoutMillis = shutdownTimeoutMillis;
+    this.listenerQueueCapacity = listenerQueueCapacity;
   }
 
-  private void dispatch(final BuckEvent event) {
-    executorService.submit(
-        new Runnable() {
-          @Override
-          public void run() {
-            eventBus.post(event);
-          }
-        });
+  private void dispatch(BuckEvent event) {
+    // Queue the event for every listener before delivering it to any of them, so that the events
+    // which listeners post in response to it are queued after it.
+    List<ListenerQueue> queuesToSchedule = new ArrayList<>(listenerQueues.size());
+    for (ListenerQueue queue : listenerQueues) {
+      if (queue.offer(event)) {
+        queuesToSchedule.add(queue);
+      }
+    }
+    for (ListenerQueue queue : queuesToSchedule) {
+      queue.schedule();
+    }
   }
 
   public void post(BuckEvent event) {
@@ -109,16 +167,57 @@ public class BuckEventBus implements Closeable {
   }
 
   public void register(Object object) {
-    eventBus.register(object);
+    register(object, OverflowPolicy.BLOCK);
+  }
+
+  /**
+   * Registers {@code object} to receive the events it subscribes to, unless it is registered
+   * already.
+   */
+  public synchronized void register(Object object, OverflowPolicy overflowPolicy) {
+    for (ListenerQueue queue : listenerQueues) {
+      if (queue.getListener() == object) {
+        return;
+      }
+    }
+    listenerQueues.add(
+        new ListenerQueue(object, overflowPolicy, listenerQueueCapacity, executorService));
+  }
+
+  /**
+   * Stops delivering events to {@code object}, including the ones that are waiting to be.
+   *
+   * @throws IllegalArgumentException if {@code object} isn't registered.
+   */
+  public synchronized void unregister(Object object) {
+    for (ListenerQueue queue : listenerQueues) {
+      if (queue.getListener() == object) {
+        queue.close();
+        listenerQueues.remove(queue);
+        return;
+      }
+    }
+    throw new IllegalArgumentException("Missing event listener for " + object);
   }
 
-  public void unregister(Object object) {
-    eventBus.unregister(object);
+  /**
+   * @return the statistics of each listener's queue since they were last flushed, for reporting
+   *     as counters.
+   */
+  public ImmutableList<ListenerQueueStats> flushListenerQueueStats() {
+    ImmutableList.Builder<ListenerQueueStats> stats = ImmutableList.builder();
+    for (ListenerQueue queue : listenerQueues) {
+      stats.add(queue.flushStats());
+    }
+    return stats.build();
   }
 
+  /**
+   * Delivers an event which has been configured already.
+   */
   @VisibleForTesting
-  EventBus getEventBus() {
-    return eventBus;
+  void postWithoutConfiguring(BuckEvent event) {
+    dispatch(event);
   }
 
   @VisibleForTesting
@@ -142,10 +241,56 @@ public class BuckEventBus implements Closeable {
     return buildId;
   }
 
+  /**
+   * How far behind a listener fell, and what that cost, over some period.
+   */
+  public static class ListenerQueueStats {
+    private final String listenerName;
+    private final int maxDepth;
+    private final long droppedEvents;
+    private final long blockedPosts;
+
+    public ListenerQueueStats(
+        String listenerName,
+        int maxDepth,
+        long droppedEvents,
+        long blockedPosts) {
+      this.listenerName = listenerName;
+      this.maxDepth = maxDepth;
+      this.droppedEvents = droppedEvents;
+      this.blockedPosts = blockedPosts;
+    }
+
+    public String getListenerName() {
+      return listenerName;
+    }
+
+    /**
+     * @return the most events that were waiting to be delivered to the listener at once.
+     */
+    public int getMaxDepth() {
+      return maxDepth;
+    }
+
+    /**
+     * @return how many events were dropped because the listener's queue was full.
+     */
+    public long getDroppedEvents() {
+      return droppedEvents;
+    }
+
+    /**
+     * @return how many events had to wait for room in the listener's queue.
+     */
+    public long getBlockedPosts() {
+      return blockedPosts;
+    }
+  }
+
   /**
    * {@link ExecutorService#awaitTermination(long, java.util.concurrent.TimeUnit)} is called
-   * to wait for events which have been posted, but which have been queued by the
-   * {@link EventBus}, to be delivered. This allows listeners to record or report as much
+   * to wait for events which have been posted, but which are still queued for some listeners,
+   * to be delivered. This allows listeners to record or report as much
    * information as possible. This aids debugging when close is called during exception processing.
    */
   @Override
@@ -162,6 +307,11 @@ public class BuckEventBus implements Closeable {
       }
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
+    } finally {
+      // Nothing will drain the queues from now on, so nothing should wait for room in them.
+      for (ListenerQueue queue : listenerQueues) {
+        queue.close();
+      }
     }
   }
 
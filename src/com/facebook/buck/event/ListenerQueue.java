@@ -0,0 +1,241 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.reflect.TypeToken;
+
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * The events waiting to be delivered to one listener registered with a {@link BuckEventBus}.
+ * <p>
+ * At most one task drains the queue at a time, so the listener sees the events in the order they
+ * were posted, and a listener that is slow to handle them only holds up its own queue.
+ */
+class ListenerQueue {
+
+  /**
+   * Whether the current thread is delivering events to a listener, in which case any events it
+   * posts must not wait for room in a queue: the queue may be its own, or the queue of a listener
+   * which is waiting for room in its own.
+   */
+  private static final ThreadLocal<Boolean> isDelivering = new ThreadLocal<Boolean>() {
+    @Override
+    protected Boolean initialValue() {
+      return false;
+    }
+  };
+
+  private final Object listener;
+  private final BuckEventBus.OverflowPolicy overflowPolicy;
+  private final int capacity;
+  private final Executor executor;
+  private final EventBus eventBus;
+  private final ImmutableSet<Class<?>> subscribedTypes;
+  private final ConcurrentMap<Class<?>, Boolean> acceptedTypes = new ConcurrentHashMap<>();
+  private final Queue<BuckEvent> events = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger depth = new AtomicInteger();
+  private final AtomicBoolean isScheduled = new AtomicBoolean();
+  private volatile boolean isClosed = false;
+
+  private final AtomicInteger maxDepth = new AtomicInteger();
+  private final AtomicLong droppedEvents = new AtomicLong();
+  private final AtomicLong blockedPosts = new AtomicLong();
+
+  @GuardedBy("this")
+  private int waitingPosters = 0;
+
+  private final Runnable drainer = new Runnable() {
+    @Override
+    public void run() {
+      drain();
+    }
+  };
+
+  ListenerQueue(
+      Object listener,
+      BuckEventBus.OverflowPolicy overflowPolicy,
+      int capacity,
+      Executor executor) {
+    this.listener = listener;
+    this.overflowPolicy = overflowPolicy;
+    this.capacity = capacity;
+    this.executor = executor;
+    this.eventBus = new EventBus("buck-build-events");
+    this.eventBus.register(listener);
+    this.subscribedTypes = getSubscribedTypes(listener.getClass());
+  }
+
+  Object getListener() {
+    return listener;
+  }
+
+  /**
+   * Adds {@code event} to the queue, if the listener subscribes to it, waiting for or giving up
+   * on room in the queue when it is full, as the {@link BuckEventBus.OverflowPolicy} says.
+   *
+   * @return whether the event was added, in which case {@link #schedule()} should be called.
+   */
+  boolean offer(BuckEvent event) {
+    if (isClosed || !accepts(event)) {
+      return false;
+    }
+    if (depth.get() >= capacity && !isDelivering.get()) {
+      if (overflowPolicy == BuckEventBus.OverflowPolicy.DROP) {
+        droppedEvents.incrementAndGet();
+        return false;
+      }
+      blockedPosts.incrementAndGet();
+      if (!waitForRoom()) {
+        droppedEvents.incrementAndGet();
+        return false;
+      }
+    }
+    events.add(event);
+    int newDepth = depth.incrementAndGet();
+    int currentMax;
+    while (newDepth > (currentMax = maxDepth.get())) {
+      if (maxDepth.compareAndSet(currentMax, newDepth)) {
+        break;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Starts a task to deliver the queued events, unless one is running already.
+   */
+  void schedule() {
+    if (!events.isEmpty() && isScheduled.compareAndSet(false, true)) {
+      executor.execute(drainer);
+    }
+  }
+
+  /**
+   * Stops delivering events to the listener, including the ones that are queued already.
+   */
+  void close() {
+    isClosed = true;
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * @return the statistics of the queue since they were last flushed.
+   */
+  BuckEventBus.ListenerQueueStats flushStats() {
+    String listenerName = listener.getClass().getSimpleName();
+    return new BuckEventBus.ListenerQueueStats(
+        listenerName.isEmpty() ? listener.getClass().getName() : listenerName,
+        maxDepth.getAndSet(depth.get()),
+        droppedEvents.getAndSet(0),
+        blockedPosts.getAndSet(0));
+  }
+
+  private synchronized boolean waitForRoom() {
+    waitingPosters++;
+    try {
+      while (depth.get() >= capacity && !isClosed) {
+        wait();
+      }
+      return !isClosed;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      waitingPosters--;
+    }
+  }
+
+  private void drain() {
+    boolean wasDelivering = isDelivering.get();
+    isDelivering.set(true);
+    try {
+      while (true) {
+        BuckEvent event;
+        while ((event = events.poll()) != null) {
+          if (depth.getAndDecrement() == capacity) {
+            synchronized (this) {
+              if (waitingPosters > 0) {
+                notifyAll();
+              }
+            }
+          }
+          if (!isClosed) {
+            eventBus.post(event);
+          }
+        }
+        isScheduled.set(false);
+        // An event may have been added after the queue was found empty, but before the flag was
+        // cleared, in which case whoever added it didn't start a task to deliver it.
+        if (events.isEmpty() || !isScheduled.compareAndSet(false, true)) {
+          return;
+        }
+      }
+    } finally {
+      isDelivering.set(wasDelivering);
+    }
+  }
+
+  private boolean accepts(BuckEvent event) {
+    Class<?> eventType = event.getClass();
+    Boolean accepted = acceptedTypes.get(eventType);
+    if (accepted == null) {
+      accepted = false;
+      for (Class<?> subscribedType : subscribedTypes) {
+        if (subscribedType.isAssignableFrom(eventType)) {
+          accepted = true;
+          break;
+        }
+      }
+      acceptedTypes.put(eventType, accepted);
+    }
+    return accepted;
+  }
+
+  /**
+   * @return the types of the events which the {@link Subscribe} methods of {@code listenerType}
+   *     and its supertypes take, as {@link EventBus} finds them.
+   */
+  private static ImmutableSet<Class<?>> getSubscribedTypes(Class<?> listenerType) {
+    ImmutableSet.Builder<Class<?>> subscribedTypes = ImmutableSet.builder();
+    for (Class<?> type : TypeToken.of(listenerType).getTypes().rawTypes()) {
+      for (Method method : type.getDeclaredMethods()) {
+        if (method.isAnnotationPresent(Subscribe.class) &&
+            !method.isSynthetic() &&
+            method.getParameterTypes().length == 1) {
+          subscribedTypes.add(method.getParameterTypes()[0]);
+        }
+      }
+    }
+    return subscribedTypes.build();
+  }
+}
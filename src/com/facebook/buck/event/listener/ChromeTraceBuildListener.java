@@ -21,6 +21,7 @@ import com.facebook.buck.artifact_cache.ArtifactCacheEvent;
 import com.facebook.buck.cli.CommandEvent;
 import com.facebook.buck.event.ArtifactCompressionEvent;
 import com.facebook.buck.event.BuckEvent;
+import com.facebook.buck.event.BinaryTraceWriter;
 import com.facebook.buck.event.BuckEventListener;
 import com.facebook.buck.event.ChromeTraceEvent;
 import com.facebook.buck.event.CompilerPluginDurationEvent;
@@ -58,6 +59,7 @@ import com.google.common.base.CaseFormat;
 import com.google.common.base.Functions;
 import com.google.common.base.Joiner;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.eventbus.Subscribe;
@@ -73,8 +75,12 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
 /**
- * Logs events to a json file formatted to be viewed in Chrome Trace View (chrome://tracing).
+ * Logs events to a json file formatted to be viewed in Chrome Trace View (chrome://tracing), or
+ * to a much smaller binary file written by a {@link BinaryTraceWriter}, which the web server
+ * converts to json as it serves it.
  */
 public class ChromeTraceBuildListener implements BuckEventListener {
   private static final Logger LOG = Logger.get(ChromeTraceBuildListener.class);
@@ -84,11 +90,15 @@ public class ChromeTraceBuildListener implements BuckEventListener {
   private final Clock clock;
   private final int tracesToKeep;
   private final boolean compressTraces;
+  private final boolean binaryTraces;
   private final ObjectMapper mapper;
   private final ThreadLocal<SimpleDateFormat> dateFormat;
   private final Path tracePath;
   private final OutputStream traceStream;
+  @Nullable
   private final JsonGenerator jsonGenerator;
+  @Nullable
+  private final BinaryTraceWriter binaryTraceWriter;
 
   private final ExecutorService outputExecutor;
 
@@ -99,7 +109,8 @@ public class ChromeTraceBuildListener implements BuckEventListener {
       Clock clock,
       ObjectMapper objectMapper,
       int tracesToKeep,
-      boolean compressTraces) throws IOException {
+      boolean compressTraces,
+      boolean binaryTraces) throws IOException {
     this(
         projectFilesystem,
         buildId,
@@ -108,7 +119,30 @@ public class ChromeTraceBuildListener implements BuckEventListener {
         Locale.US,
         TimeZone.getDefault(),
         tracesToKeep,
-        compressTraces);
+        compressTraces,
+        binaryTraces);
+  }
+
+  @VisibleForTesting
+  ChromeTraceBuildListener(
+      ProjectFilesystem projectFilesystem,
+      BuildId buildId,
+      Clock clock,
+      ObjectMapper objectMapper,
+      Locale locale,
+      TimeZone timeZone,
+      int tracesToKeep,
+      boolean compressTraces) throws IOException {
+    this(
+        projectFilesystem,
+        buildId,
+        clock,
+        objectMapper,
+        locale,
+        timeZone,
+        tracesToKeep,
+        compressTraces,
+        /* binaryTraces */ false);
   }
 
   @VisibleForTesting
@@ -120,7 +154,8 @@ public class ChromeTraceBuildListener implements BuckEventListener {
       final Locale locale,
       final TimeZone timeZone,
       int tracesToKeep,
-      boolean compressTraces) throws IOException {
+      boolean compressTraces,
+      boolean binaryTraces) throws IOException {
     this.projectFilesystem = projectFilesystem;
     this.clock = clock;
     this.mapper = objectMapper;
@@ -133,15 +168,22 @@ public class ChromeTraceBuildListener implements BuckEventListener {
       }
     };
     this.tracesToKeep = tracesToKeep;
-    this.compressTraces = compressTraces;
+    // Binary traces are compact already, and are read while they're being written.
+    this.compressTraces = compressTraces && !binaryTraces;
+    this.binaryTraces = binaryTraces;
     this.outputExecutor = MoreExecutors.newSingleThreadExecutor(
         new CommandThreadFactory(getClass().getName()));
     TracePathAndStream tracePathAndStream = createPathAndStream(buildId);
     this.tracePath = tracePathAndStream.getPath();
     this.traceStream = tracePathAndStream.getStream();
-    this.jsonGenerator = objectMapper.getFactory().createGenerator(this.traceStream);
-
-    this.jsonGenerator.writeStartArray();
+    if (binaryTraces) {
+      this.jsonGenerator = null;
+      this.binaryTraceWriter = new BinaryTraceWriter(this.traceStream);
+    } else {
+      this.jsonGenerator = objectMapper.getFactory().createGenerator(this.traceStream);
+      this.jsonGenerator.writeStartArray();
+      this.binaryTraceWriter = null;
+    }
     addProcessMetadataEvent();
   }
 
@@ -173,7 +215,7 @@ public class ChromeTraceBuildListener implements BuckEventListener {
     try {
       for (Path path : PathListing.listMatchingPathsWithFilters(
                traceDirectory,
-               "build.*.trace",
+               "build.*.{trace,btrace}",
                PathListing.GET_PATH_MODIFIED_TIME,
                PathListing.FilterMode.EXCLUDE,
                Optional.of(tracesToKeep),
@@ -187,7 +229,10 @@ public class ChromeTraceBuildListener implements BuckEventListener {
 
   private TracePathAndStream createPathAndStream(BuildId buildId) {
     String filenameTime = dateFormat.get().format(new Date(clock.currentTimeMillis()));
-    String traceName = String.format("build.%s.%s.trace", filenameTime, buildId);
+    String traceName = String.format(
+        binaryTraces ? "build.%s.%s.btrace" : "build.%s.%s.trace",
+        filenameTime,
+        buildId);
     if (compressTraces) {
       traceName = traceName + ".gz";
     }
@@ -217,10 +262,15 @@ public class ChromeTraceBuildListener implements BuckEventListener {
         Thread.currentThread().interrupt();
       }
 
-      jsonGenerator.writeEndArray();
-      jsonGenerator.close();
+      if (binaryTraceWriter != null) {
+        binaryTraceWriter.close();
+      } else {
+        Preconditions.checkNotNull(jsonGenerator).writeEndArray();
+        jsonGenerator.close();
+      }
       traceStream.close();
-      String symlinkName = compressTraces ? "build.trace.gz" : "build.trace";
+      String symlinkName =
+          binaryTraces ? "build.btrace" : compressTraces ? "build.trace.gz" : "build.trace";
       Path symlinkPath = BuckConstant.getBuckTraceDir().resolve(symlinkName);
       projectFilesystem.createSymLink(
           projectFilesystem.resolve(symlinkPath),
@@ -693,7 +743,11 @@ public class ChromeTraceBuildListener implements BuckEventListener {
       @Override
       public Void call() throws Exception {
         try {
-          mapper.writeValue(jsonGenerator, chromeTraceEvent);
+          if (binaryTraceWriter != null) {
+            binaryTraceWriter.writeEvent(chromeTraceEvent);
+          } else {
+            mapper.writeValue(jsonGenerator, chromeTraceEvent);
+          }
         } catch (IOException e) {
           // Swallow any failures to write.
         }
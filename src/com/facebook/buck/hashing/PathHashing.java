@@ -42,8 +42,33 @@ public class PathHashing {
         !root.equals(EMPTY_PATH),
         "Path to hash (%s) must not be empty",
         root);
+    return hashPath(
+        hasher,
+        fileHashLoader,
+        projectFilesystem,
+        root,
+        projectFilesystem.getFilesUnderPath(root));
+  }
+
+  /**
+   * Like {@link #hashPath(Hasher, FileHashLoader, ProjectFilesystem, Path)}, but for callers which
+   * have already listed the files under {@code root}.
+   *
+   * @param filesUnderRoot the files under {@code root}, as returned by
+   *     {@link ProjectFilesystem#getFilesUnderPath(Path)}.
+   */
+  public static ImmutableSet<Path> hashPath(
+      Hasher hasher,
+      FileHashLoader fileHashLoader,
+      ProjectFilesystem projectFilesystem,
+      Path root,
+      ImmutableSet<Path> filesUnderRoot) throws IOException {
+    Preconditions.checkArgument(
+        !root.equals(EMPTY_PATH),
+        "Path to hash (%s) must not be empty",
+        root);
     ImmutableSet.Builder<Path> children = ImmutableSet.builder();
-    for (Path path : ImmutableSortedSet.copyOf(projectFilesystem.getFilesUnderPath(root))) {
+    for (Path path : ImmutableSortedSet.copyOf(filesUnderRoot)) {
       StringHashing.hashStringAndLength(hasher, MorePaths.pathWithUnixSeparators(path));
       if (!root.equals(path)) {
         children.add(root.relativize(path));
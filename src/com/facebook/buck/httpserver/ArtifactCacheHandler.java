@@ -27,6 +27,8 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.util.BuckConstant;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteSource;
 
@@ -38,6 +40,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -75,6 +79,8 @@ public class ArtifactCacheHandler extends AbstractHandler {
         status = handleGet(baseRequest, response);
       } else if (method.equals("PUT")) {
         status = handlePut(baseRequest, response);
+      } else if (method.equals("POST")) {
+        status = handlePost(baseRequest, response);
       }
       response.setStatus(status);
     } catch (Exception e) {
@@ -135,6 +141,100 @@ public class ArtifactCacheHandler extends AbstractHandler {
     }
   }
 
+  private int handlePost(Request baseRequest, HttpServletResponse response) throws IOException {
+    if (!artifactCache.isPresent()) {
+      response.getWriter().write("Serving local cache is disabled for this instance.");
+      return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    String path = baseRequest.getUri().getPath();
+    String[] pathElements = path.split("/");
+    if (pathElements.length != 3) {
+      response.getWriter().write("Incorrect url format.");
+      return HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    ImmutableSet<RuleKey> ruleKeys;
+    try (DataInputStream requestInputData = new DataInputStream(baseRequest.getInputStream())) {
+      ruleKeys = HttpArtifactCacheBinaryProtocol.readMultiKeyRequest(requestInputData);
+    }
+
+    switch (pathElements[2]) {
+      case "multifetch":
+        return handleMultiFetch(ruleKeys, response);
+      case "multicontains":
+        return handleMultiContains(ruleKeys, response);
+      default:
+        response.getWriter().write("Incorrect url format.");
+        return HttpServletResponse.SC_NOT_FOUND;
+    }
+  }
+
+  private int handleMultiFetch(ImmutableSet<RuleKey> ruleKeys, HttpServletResponse response)
+      throws IOException {
+    Map<RuleKey, Path> temps = new LinkedHashMap<>();
+    try {
+      projectFilesystem.mkdirs(BuckConstant.getScratchPath());
+      ImmutableMap.Builder<RuleKey, LazyPath> outputs = ImmutableMap.builder();
+      for (RuleKey ruleKey : ruleKeys) {
+        Path temp = projectFilesystem.createTempFile(
+            BuckConstant.getScratchPath(),
+            "outgoing_rulekey",
+            ".tmp");
+        temps.put(ruleKey, temp);
+        outputs.put(ruleKey, LazyPath.ofInstance(temp));
+      }
+      ImmutableMap<RuleKey, CacheResult> fetchResults =
+          artifactCache.get().multiFetch(outputs.build());
+
+      ImmutableList.Builder<Optional<HttpArtifactCacheBinaryProtocol.FetchResponse>> entries =
+          ImmutableList.builder();
+      for (final Map.Entry<RuleKey, Path> temp : temps.entrySet()) {
+        CacheResult fetchResult = fetchResults.get(temp.getKey());
+        if (fetchResult == null || !fetchResult.getType().isSuccess()) {
+          entries.add(Optional.<HttpArtifactCacheBinaryProtocol.FetchResponse>absent());
+          continue;
+        }
+        entries.add(
+            Optional.of(
+                new HttpArtifactCacheBinaryProtocol.FetchResponse(
+                    ImmutableSet.of(temp.getKey()),
+                    fetchResult.getMetadata(),
+                    new ByteSource() {
+                      @Override
+                      public InputStream openStream() throws IOException {
+                        return projectFilesystem.newFileInputStream(temp.getValue());
+                      }
+                    })));
+      }
+
+      HttpArtifactCacheBinaryProtocol.MultiFetchResponse multiFetchResponse =
+          new HttpArtifactCacheBinaryProtocol.MultiFetchResponse(entries.build());
+      response.setContentLengthLong(multiFetchResponse.getContentLength());
+      multiFetchResponse.write(response.getOutputStream());
+      return HttpServletResponse.SC_OK;
+    } finally {
+      for (Path temp : temps.values()) {
+        projectFilesystem.deleteFileAtPathIfExists(temp);
+      }
+    }
+  }
+
+  private int handleMultiContains(ImmutableSet<RuleKey> ruleKeys, HttpServletResponse response)
+      throws IOException {
+    ImmutableMap<RuleKey, CacheResult> containsResults =
+        artifactCache.get().multiContains(ruleKeys);
+    ImmutableList.Builder<Boolean> contains = ImmutableList.builder();
+    for (RuleKey ruleKey : ruleKeys) {
+      CacheResult containsResult = containsResults.get(ruleKey);
+      contains.add(containsResult != null && containsResult.getType().isSuccess());
+    }
+    byte[] body = HttpArtifactCacheBinaryProtocol.createMultiContainsResponse(contains.build());
+    response.setContentLengthLong(body.length);
+    response.getOutputStream().write(body);
+    return HttpServletResponse.SC_OK;
+  }
+
   private int handlePut(Request baseRequest, HttpServletResponse response) throws IOException {
     if (!artifactCache.isPresent()) {
       response.getWriter().write("Serving local cache is disabled for this instance.");
@@ -16,6 +16,10 @@
 
 package com.facebook.buck.httpserver;
 
+import com.facebook.buck.event.BinaryTraceConverter;
+import com.facebook.buck.event.BinaryTraceReader;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.io.CharStreams;
 import com.google.common.net.MediaType;
@@ -23,6 +27,7 @@ import com.google.common.net.MediaType;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -46,9 +51,11 @@ class TraceDataHandler extends AbstractHandler {
   static final Pattern CALLBACK_PATTERN = Pattern.compile("[\\w\\.]+");
 
   private final TracesHelper tracesHelper;
+  private final ObjectMapper objectMapper;
 
-  TraceDataHandler(TracesHelper tracesHelper) {
+  TraceDataHandler(TracesHelper tracesHelper, ObjectMapper objectMapper) {
     this.tracesHelper = tracesHelper;
+    this.objectMapper = objectMapper;
   }
 
   @Override
@@ -102,10 +109,16 @@ class TraceDataHandler extends AbstractHandler {
       } else {
         isFirst = false;
       }
-      try (
-          InputStream input = traceStreams.next();
-          InputStreamReader inputStreamReader = new InputStreamReader(input)) {
-        CharStreams.copy(inputStreamReader, responseWriter);
+      try (InputStream input = new BufferedInputStream(traceStreams.next())) {
+        if (BinaryTraceReader.isBinaryTrace(input)) {
+          // Convert binary traces as they're read, rather than all at once.
+          JsonGenerator generator = objectMapper.getFactory().createGenerator(responseWriter);
+          generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+          BinaryTraceConverter.convertToJson(input, generator);
+          generator.close();
+        } else {
+          CharStreams.copy(new InputStreamReader(input), responseWriter);
+        }
       }
     }
 
@@ -16,6 +16,8 @@
 
 package com.facebook.buck.httpserver;
 
+import com.facebook.buck.event.BinaryTraceReader;
+import com.facebook.buck.event.ChromeTraceEvent;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.util.BuckConstant;
@@ -29,6 +31,7 @@ import com.google.gson.JsonObject;
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -114,6 +117,16 @@ public class TracesHelper {
   }
 
   private Optional<String> parseCommandFrom(Path pathToTrace) {
+    try (InputStream input =
+             new BufferedInputStream(projectFilesystem.newFileInputStream(pathToTrace))) {
+      if (BinaryTraceReader.isBinaryTrace(input)) {
+        return parseCommandFromBinaryTrace(new BinaryTraceReader(input));
+      }
+    } catch (IOException e) {
+      logger.error(e);
+      return Optional.absent();
+    }
+
     try (
         InputStream input = projectFilesystem.newFileInputStream(pathToTrace);
         JsonReader jsonReader = new JsonReader(new InputStreamReader(input))) {
@@ -143,6 +156,21 @@ public class TracesHelper {
     }
   }
 
+  private static Optional<String> parseCommandFromBinaryTrace(BinaryTraceReader reader)
+      throws IOException {
+    for (int i = 0; i < 4; i++) {
+      Optional<ChromeTraceEvent> event = reader.readEvent();
+      if (!event.isPresent()) {
+        break;
+      }
+      String commandArgs = event.get().getArgs().get("command_args");
+      if (commandArgs != null) {
+        return Optional.of("buck " + event.get().getName() + " " + commandArgs);
+      }
+    }
+    return Optional.absent();
+  }
+
   private static Optional<String> tryToFindCommand(JsonObject json) {
     JsonElement nameEl = json.get("name");
     if (nameEl == null || !nameEl.isJsonPrimitive()) {
@@ -167,14 +195,16 @@ public class TracesHelper {
   private boolean isTraceForBuild(Path path, String id) {
     String testPrefix = "build.";
     String testSuffix = "." + id + ".trace";
+    String binaryTestSuffix = "." + id + ".btrace";
     String name = path.getFileName().toString();
-    return name.startsWith(testPrefix) && name.endsWith(testSuffix);
+    return name.startsWith(testPrefix) &&
+        (name.endsWith(testSuffix) || name.endsWith(binaryTestSuffix));
   }
 
   Collection<Path> listTraceFilesByLastModified() throws IOException {
     return projectFilesystem.getSortedMatchingDirectoryContents(
         BuckConstant.getBuckTraceDir(),
-        "build.*.trace");
+        "build.*.{trace,btrace}");
   }
 
   /**
@@ -188,7 +218,7 @@ public class TracesHelper {
 
     Collection<Path> traces = projectFilesystem.getSortedMatchingDirectoryContents(
         BuckConstant.getBuckTraceDir(),
-        "*" + id + "*.trace");
+        "*" + id + "*.{trace,btrace}");
 
     if (traces.isEmpty()) {
       throw new HumanReadableException("Could not find a build trace with id %s.", id);
@@ -65,6 +65,7 @@ public class WebServer {
   private final Server server;
   private final StreamingWebSocketServlet streamingWebSocketServlet;
   private final ArtifactCacheHandler artifactCacheHandler;
+  private final ObjectMapper objectMapper;
 
   /**
    * @param port If 0, then an <a href="http://en.wikipedia.org/wiki/Ephemeral_port">
@@ -81,6 +82,7 @@ public class WebServer {
     this.port = Optional.absent();
     this.server = new Server(port);
     this.streamingWebSocketServlet = new StreamingWebSocketServlet(objectMapper);
+    this.objectMapper = objectMapper;
     this.artifactCacheHandler = new ArtifactCacheHandler(projectFilesystem);
   }
 
@@ -149,7 +151,8 @@ public class WebServer {
         new TraceHandlerDelegate(tracesHelper)));
     contextPathToHandler.put(TRACES_CONTEXT_PATH, new TemplateHandler(
         new TracesHandlerDelegate(tracesHelper)));
-    contextPathToHandler.put(TRACE_DATA_CONTEXT_PATH, new TraceDataHandler(tracesHelper));
+    contextPathToHandler.put(TRACE_DATA_CONTEXT_PATH, new TraceDataHandler(
+        tracesHelper, objectMapper));
     contextPathToHandler.put(ARTIFACTS_CONTEXT_PATH, artifactCacheHandler);
 
     ImmutableList.Builder<ContextHandler> handlers = ImmutableList.builder();
@@ -58,6 +58,8 @@ import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.CopyOption;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystem;
@@ -784,6 +786,17 @@ public class ProjectFilesystem {
         Files.newInputStream(getPathForRelativePath(pathRelativeToProjectRoot)));
   }
 
+  /**
+   * @return an unbuffered channel for reading the contents of the file, for callers which do
+   *     their own buffering.
+   */
+  public ReadableByteChannel newFileReadChannel(Path pathRelativeToProjectRoot)
+      throws IOException {
+    return FileChannel.open(
+        getPathForRelativePath(pathRelativeToProjectRoot),
+        StandardOpenOption.READ);
+  }
+
   /**
    * @param inputStream Source of the bytes. This method does not close this stream.
    */
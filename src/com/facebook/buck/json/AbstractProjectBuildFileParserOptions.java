@@ -50,4 +50,29 @@ abstract class AbstractProjectBuildFileParserOptions {
   }
 
   abstract Optional<Long> getWatchmanQueryTimeoutMs();
+
+  /**
+   * Directory in which buck.py processes share the code compiled from build files and includes.
+   */
+  abstract Optional<Path> getBytecodeCacheDir();
+
+  /**
+   * Whether buck.py should report the directories that globs depend on, which only the persistent
+   * parse cache needs.
+   */
+  @Value.Default
+  public boolean getTrackGlobbedDirectories() {
+    return false;
+  }
+
+  /**
+   * Directories which buck.py needn't walk into when working out which directories globs depend
+   * on.
+   */
+  abstract ImmutableSet<Path> getIgnorePaths();
+
+  @Value.Default
+  public boolean getEnforceBuckPackageBoundaries() {
+    return false;
+  }
 }
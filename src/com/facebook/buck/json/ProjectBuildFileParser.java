@@ -20,6 +20,7 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.facebook.buck.bser.BserDeserializer;
 import com.facebook.buck.bser.BserSerializer;
+import com.facebook.buck.bser.StreamingBserDeserializer;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.event.PerfEventId;
@@ -102,7 +103,7 @@ public class ProjectBuildFileParser implements AutoCloseable {
   private final ConstructorArgMarshaller marshaller;
   private final BuckEventBus buckEventBus;
   private final ProcessExecutor processExecutor;
-  private final BserDeserializer bserDeserializer;
+  private final StreamingBserDeserializer bserDeserializer;
   private final BserSerializer bserSerializer;
   private final AssertScopeExclusiveAccess assertSingleThreadedParsing;
   private final boolean ignoreBuckAutodepsFiles;
@@ -129,7 +130,7 @@ public class ProjectBuildFileParser implements AutoCloseable {
     this.environment = environment;
     this.buckEventBus = buckEventBus;
     this.processExecutor = processExecutor;
-    this.bserDeserializer = new BserDeserializer(BserDeserializer.KeyOrdering.SORTED);
+    this.bserDeserializer = new StreamingBserDeserializer(BserDeserializer.KeyOrdering.SORTED);
     this.bserSerializer = new BserSerializer();
     this.assertSingleThreadedParsing = new AssertScopeExclusiveAccess();
     this.ignoreBuckAutodepsFiles = ignoreBuckAutodepsFiles;
@@ -279,6 +280,24 @@ public class ProjectBuildFileParser implements AutoCloseable {
           options.getWatchmanQueryTimeoutMs().get().toString());
     }
 
+    if (options.getBytecodeCacheDir().isPresent()) {
+      argBuilder.add(
+          "--bytecode_cache_dir",
+          options.getBytecodeCacheDir().get().toAbsolutePath().toString());
+    }
+
+    if (options.getTrackGlobbedDirectories()) {
+      argBuilder.add("--track_globbed_directories");
+      for (Path ignorePath : options.getIgnorePaths()) {
+        argBuilder.add(
+            "--ignore_path",
+            options.getProjectRoot().resolve(ignorePath).toAbsolutePath().toString());
+      }
+      if (options.getEnforceBuckPackageBoundaries()) {
+        argBuilder.add("--enforce_buck_package_boundary");
+      }
+    }
+
     argBuilder.add("--project_root", options.getProjectRoot().toAbsolutePath().toString());
     argBuilder.add("--build_file_name", options.getBuildFileName());
 
@@ -306,8 +325,8 @@ public class ProjectBuildFileParser implements AutoCloseable {
       throws BuildFileParseException, InterruptedException {
     List<Map<String, Object>> result = getAllRulesAndMetaRules(buildFile);
 
-    // Strip out the __includes and __configs meta rules, which are the last rules.
-    return Collections.unmodifiableList(result.subList(0, result.size() - 2));
+    // Strip out the __includes, __globs and __configs meta rules, which are the last rules.
+    return Collections.unmodifiableList(result.subList(0, result.size() - 3));
   }
 
   /**
@@ -18,6 +18,7 @@ import hashlib
 import imp
 import inspect
 import json
+import marshal
 import optparse
 import os
 import os.path
@@ -25,6 +26,8 @@ import pstats
 import re
 import subprocess
 import sys
+import tempfile
+import time
 import traceback
 
 # When build files are executed, the functions in this file tagged with
@@ -43,6 +46,9 @@ BUILD_FUNCTIONS = []
 
 VERIFY_AUTODEPS_SIGNATURE = False
 
+# Code in the bytecode cache which hasn't been used for this long is deleted.
+BYTECODE_CACHE_MAX_AGE_SECONDS = 7 * 24 * 60 * 60
+
 class SyncCookieState(object):
     """
     Process-wide state used to enable Watchman sync cookies only on
@@ -72,9 +78,11 @@ class BuildFileContext(object):
 
     def __init__(self, base_path, dirname, autodeps, allow_empty_globs, watchman_client,
                  watchman_watch_root, watchman_project_prefix, sync_cookie_state,
-                 watchman_error):
+                 watchman_error, should_walk_globbed_directory=None):
         self.globals = {}
         self.includes = set()
+        self.globbed_directories = set()
+        self.should_walk_globbed_directory = should_walk_globbed_directory
         self.used_configs = {}
         self.base_path = base_path
         self.dirname = dirname
@@ -128,6 +136,10 @@ class LazyBuildEnvPartial(object):
 
 DiagnosticMessageAndLevel = namedtuple('DiagnosticMessageAndLevel', ['message', 'level'])
 
+# The result of processing a file, along with the hashes of the contents of the
+# file and of every include it processed at the time.
+ProcessedFile = namedtuple('ProcessedFile', ['contents_hash', 'include_hashes', 'result'])
+
 
 def provide_for_build(func):
     BUILD_FUNCTIONS.append(func)
@@ -255,10 +267,16 @@ def glob(includes, excludes=[], include_dotfiles=False, build_env=None, search_b
                 pass
             build_env.watchman_client = None
 
-    if results is None:
-        if search_base is None:
-            search_base = Path(build_env.dirname)
+    if search_base is None:
+        search_base = Path(build_env.dirname)
+    if build_env.should_walk_globbed_directory is not None:
+        build_env.globbed_directories.update(
+            glob_directories(
+                includes,
+                str(search_base),
+                build_env.should_walk_globbed_directory))
 
+    if results is None:
         results = glob_internal(
             includes,
             excludes,
@@ -388,6 +406,39 @@ def glob_watchman(includes, excludes, include_dotfiles, base_path, watchman_watc
     return sorted(result)
 
 
+def is_special(pat):
+    return "*" in pat or "?" in pat or "[" in pat
+
+
+def glob_directories(includes, search_base, should_walk):
+    """Returns the directories whose contents the results of a glob depend on.
+
+    This is the directory named by the fixed part of each pattern and, if the
+    rest of the pattern spans directories, every directory beneath it for
+    which should_walk is true.  A directory which doesn't exist is stood in
+    for by its closest existing ancestor, whose contents change when it is
+    created.
+    """
+    directories = set()
+    for pattern in includes:
+        parts = pattern.split('/')[:-1]
+        fixed_parts = []
+        for part in parts:
+            if is_special(part):
+                break
+            fixed_parts.append(part)
+        directory = os.path.join(search_base, *fixed_parts)
+        while directory != search_base and not os.path.isdir(directory):
+            directory = os.path.dirname(directory)
+        directories.add(directory)
+        if len(fixed_parts) < len(parts):
+            for root, dirnames, _ in os.walk(directory):
+                dirnames[:] = [
+                    d for d in dirnames if should_walk(os.path.join(root, d))]
+                directories.update(os.path.join(root, d) for d in dirnames)
+    return directories
+
+
 def glob_internal(includes, excludes, include_dotfiles, search_base):
 
     def includes_iterator():
@@ -397,9 +448,6 @@ def glob_internal(includes, excludes, include_dotfiles, search_base):
                 if path.is_file() and (include_dotfiles or not path.name.startswith('.')):
                     yield path.relative_to(search_base)
 
-    def is_special(pat):
-        return "*" in pat or "?" in pat or "[" in pat
-
     non_special_excludes = set()
     match_excludes = set()
     for pattern in excludes:
@@ -472,8 +520,11 @@ class BuildFileProcessor(object):
 
     def __init__(self, project_root, watchman_watch_root, watchman_project_prefix, build_file_name,
                  allow_empty_globs, ignore_buck_autodeps_files, watchman_client, watchman_error,
-                 implicit_includes=[], extra_funcs=[], configs={}):
+                 implicit_includes=[], extra_funcs=[], configs={}, bytecode_cache_dir=None,
+                 track_globbed_directories=False, ignore_paths=[],
+                 enforce_buck_package_boundary=False):
         self._cache = {}
+        self._bytecode_cache_dir = bytecode_cache_dir
         self._build_env_stack = []
         self._sync_cookie_state = SyncCookieState()
 
@@ -487,6 +538,9 @@ class BuildFileProcessor(object):
         self._watchman_client = watchman_client
         self._watchman_error = watchman_error
         self._configs = configs
+        self._track_globbed_directories = track_globbed_directories
+        self._ignore_paths = set(ignore_paths)
+        self._enforce_buck_package_boundary = enforce_buck_package_boundary
 
         lazy_functions = {}
         for func in BUILD_FUNCTIONS + extra_funcs:
@@ -494,6 +548,17 @@ class BuildFileProcessor(object):
             lazy_functions[func.__name__] = func_with_env
         self._functions = lazy_functions
 
+    def _should_walk_globbed_directory(self, directory):
+        """
+        Whether the directories beneath a directory which a glob spans should be
+        tracked: the parser ignores those in ignored directories and, when
+        package boundaries are enforced, those in other packages.
+        """
+        if directory in self._ignore_paths:
+            return False
+        return not (self._enforce_buck_package_boundary and
+                    os.path.isfile(os.path.join(directory, self._build_file_name)))
+
     def _merge_globals(self, mod, dst):
         """
         Copy the global definitions from one globals dict to another.
@@ -629,15 +694,98 @@ class BuildFileProcessor(object):
         if self._build_env_stack:
             self._update_functions(self._build_env_stack[-1])
 
+    def _compile(self, path, contents, contents_hash):
+        """
+        Compile the given file contents, reusing the code compiled by other
+        parser processes when a bytecode cache directory was given.
+        """
+
+        cache_file = None
+        if self._bytecode_cache_dir is not None:
+            # Code objects are specific to the interpreter version and record
+            # the path they were compiled from.
+            key = hashlib.sha1()
+            key.update(imp.get_magic())
+            key.update(path)
+            key.update('\0')
+            key.update(contents_hash)
+            cache_file = os.path.join(self._bytecode_cache_dir, key.hexdigest())
+            try:
+                with open(cache_file, 'rb') as f:
+                    code = marshal.load(f)
+                # Keep code that is still in use from being pruned.
+                os.utime(cache_file, None)
+                return code
+            except (IOError, OSError, EOFError, ValueError, TypeError):
+                pass
+
+        # Enable absolute imports.  This prevents the compiler from trying to
+        # do a relative import first, and warning that this module doesn't
+        # exist in sys.modules.
+        future_features = __future__.absolute_import.compiler_flag
+        code = compile(contents, path, 'exec', future_features, 1)
+
+        if cache_file is not None:
+            # Write to a temporary file and rename it into place, so that other
+            # processes never read a partially written file.
+            temp_path = None
+            try:
+                if not os.path.isdir(self._bytecode_cache_dir):
+                    os.makedirs(self._bytecode_cache_dir)
+                fd, temp_path = tempfile.mkstemp(dir=self._bytecode_cache_dir)
+                with os.fdopen(fd, 'wb') as f:
+                    marshal.dump(code, f)
+                # On Windows, this fails if another process got there first.
+                os.rename(temp_path, cache_file)
+                temp_path = None
+            except (IOError, OSError):
+                pass
+            finally:
+                if temp_path is not None:
+                    try:
+                        os.remove(temp_path)
+                    except OSError:
+                        pass
+
+        return code
+
+    def prune_bytecode_cache(self, max_age_seconds=BYTECODE_CACHE_MAX_AGE_SECONDS):
+        """
+        Delete the code in the bytecode cache which no parser process has
+        used for a while, such as that of old versions of build files.
+        """
+
+        if self._bytecode_cache_dir is None:
+            return
+        try:
+            names = os.listdir(self._bytecode_cache_dir)
+        except OSError:
+            return
+        cutoff = time.time() - max_age_seconds
+        for name in names:
+            cache_file = os.path.join(self._bytecode_cache_dir, name)
+            try:
+                if os.path.getmtime(cache_file) < cutoff:
+                    os.remove(cache_file)
+            except OSError:
+                pass
+
     def _process(self, build_env, path, implicit_includes=[]):
         """
         Process a build file or include at the given path.
         """
 
-        # First check the cache.
+        # We don't open this file as binary, as we assume it's a textual source
+        # file.
+        with open(path, 'r') as f:
+            contents = f.read()
+        contents_hash = hashlib.sha1(contents).hexdigest()
+
+        # First check the cache, which is only valid while the contents of the
+        # file and of its includes stay the same.
         cached = self._cache.get(path)
-        if cached is not None:
-            return cached
+        if cached is not None and self._is_up_to_date(cached, contents_hash):
+            return cached.result
 
         # Install the build context for this input as the current context.
         self._push_build_env(build_env)
@@ -671,24 +819,40 @@ class BuildFileProcessor(object):
         module.__file__ = path
         module.__dict__.update(default_globals)
 
-        # We don't open this file as binary, as we assume it's a textual source
-        # file.
-        with open(path, 'r') as f:
-            contents = f.read()
-
-        # Enable absolute imports.  This prevents the compiler from trying to
-        # do a relative import first, and warning that this module doesn't
-        # exist in sys.modules.
-        future_features = __future__.absolute_import.compiler_flag
-        code = compile(contents, path, 'exec', future_features, 1)
+        code = self._compile(path, contents, contents_hash)
         exec(code, module.__dict__)
 
         # Restore the previous build context.
         self._pop_build_env()
 
-        self._cache[path] = build_env, module
+        include_hashes = {}
+        for include_path in build_env.includes:
+            processed_include = self._cache.get(include_path)
+            if processed_include is not None:
+                include_hashes[include_path] = processed_include.contents_hash
+        self._cache[path] = ProcessedFile(
+            contents_hash=contents_hash,
+            include_hashes=include_hashes,
+            result=(build_env, module))
         return build_env, module
 
+    def _is_up_to_date(self, processed_file, contents_hash):
+        """
+        Check whether a processed file and its includes still have the contents
+        they were processed with.
+        """
+
+        if processed_file.contents_hash != contents_hash:
+            return False
+        for include_path, include_hash in processed_file.include_hashes.iteritems():
+            try:
+                with open(include_path, 'r') as f:
+                    if hashlib.sha1(f.read()).hexdigest() != include_hash:
+                        return False
+            except IOError:
+                return False
+        return True
+
     def _process_include(self, path, implicit_includes=[]):
         """
         Process the include file at the given path.
@@ -733,7 +897,9 @@ class BuildFileProcessor(object):
             self._watchman_watch_root,
             self._watchman_project_prefix,
             self._sync_cookie_state,
-            self._watchman_error)
+            self._watchman_error,
+            self._should_walk_globbed_directory
+            if self._track_globbed_directories else None)
 
         # If the .autodeps file has been successfully parsed, then treat it as if it were
         # a file loaded via include_defs() in that a change to the .autodeps file should
@@ -817,6 +983,9 @@ class BuildFileProcessor(object):
         # Add in tracked included files as a special meta rule.
         values.append({"__includes": [path] + sorted(build_env.includes)})
 
+        # Add in the directories that globs looked at as a special meta rule.
+        values.append({"__globs": sorted(build_env.globbed_directories)})
+
         # Add in tracked used config settings as a special meta rule.
         configs = {}
         for (section, field), value in build_env.used_configs.iteritems():
@@ -1001,6 +1170,25 @@ def main():
         '--profile',
         action='store_true',
         help='Profile every buck file execution')
+    parser.add_option(
+        '--bytecode_cache_dir',
+        action='store',
+        type='string',
+        dest='bytecode_cache_dir',
+        help='Directory in which to share compiled build files and includes between processes.')
+    parser.add_option(
+        '--track_globbed_directories',
+        action='store_true',
+        help='Report the directories that globs depend on.')
+    parser.add_option(
+        '--ignore_path',
+        action='append',
+        dest='ignore_path',
+        help='Directory whose contents globbed directories are not tracked in.')
+    parser.add_option(
+        '--enforce_buck_package_boundary',
+        action='store_true',
+        help='Do not track globbed directories in packages nested in the one being parsed.')
     (options, args) = parser.parse_args()
 
     # Even though project_root is absolute path, it may not be concise. For
@@ -1045,8 +1233,14 @@ def main():
         watchman_client,
         watchman_error,
         implicit_includes=options.include or [],
-        configs=configs)
-
+        configs=configs,
+        bytecode_cache_dir=options.bytecode_cache_dir,
+        track_globbed_directories=options.track_globbed_directories,
+        ignore_paths=[os.path.abspath(cygwin_adjusted_path(p))
+                      for p in options.ignore_path or []],
+        enforce_buck_package_boundary=options.enforce_buck_package_boundary)
+
+    buildFileProcessor.prune_bytecode_cache()
     buildFileProcessor.install_builtins(__builtin__.__dict__)
 
     # While processing, we'll write exceptions as diagnostic messages
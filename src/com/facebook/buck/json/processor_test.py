@@ -31,6 +31,10 @@ def get_config_from_results(results):
     return extract_from_results('__configs', results)
 
 
+def get_globs_from_results(results):
+    return extract_from_results('__globs', results)
+
+
 class ProjectFile(object):
 
     def __init__(self, path, contents):
@@ -374,6 +378,78 @@ class BuckTest(unittest.TestCase):
             get_config_from_results(result),
             {'hello': {'world': 'foo', 'bar': None, 'goo': None}})
 
+    def test_globbed_directories(self):
+        """
+        Verify that the directories which globs looked at are recorded.
+        """
+
+        for directory in ('res', 'src', os.path.join('src', 'sub'), 'other'):
+            os.makedirs(os.path.join(self.project_root, directory))
+        build_file = ProjectFile(
+            path='BUCK',
+            contents=(
+                'glob(["res/*.xml", "missing/*.txt"])',
+                'glob(["src/**/*.java"])',
+            ))
+        self.write_file(build_file)
+        self.allow_empty_globs = True
+        build_file_processor = self.create_build_file_processor(
+            track_globbed_directories=True)
+        result = build_file_processor.process(build_file.path, set())
+        self.assertEquals(
+            get_globs_from_results(result),
+            [self.project_root] +
+            [os.path.join(self.project_root, directory)
+             for directory in ('res', 'src', os.path.join('src', 'sub'))])
+
+    def test_globbed_directories_are_only_tracked_on_request(self):
+        """
+        Verify that no directories are recorded unless they are asked for.
+        """
+
+        os.makedirs(os.path.join(self.project_root, 'src', 'sub'))
+        build_file = ProjectFile(
+            path='BUCK',
+            contents=(
+                'glob(["src/**/*.java"])',
+            ))
+        self.write_file(build_file)
+        self.allow_empty_globs = True
+        build_file_processor = self.create_build_file_processor()
+        result = build_file_processor.process(build_file.path, set())
+        self.assertEquals(get_globs_from_results(result), [])
+
+    def test_globbed_directories_skip_ignored_directories_and_packages(self):
+        """
+        Verify that ignored directories, and packages nested in the one being
+        parsed when package boundaries are enforced, are not walked into.
+        """
+
+        for directory in (
+                os.path.join('src', 'ignored', 'sub'),
+                os.path.join('src', 'package', 'sub'),
+                os.path.join('src', 'sub')):
+            os.makedirs(os.path.join(self.project_root, directory))
+        build_file = ProjectFile(
+            path='BUCK',
+            contents=(
+                'glob(["src/**/*.java"])',
+            ))
+        nested_build_file = ProjectFile(
+            path=os.path.join('src', 'package', 'BUCK'),
+            contents=('',))
+        self.write_files(build_file, nested_build_file)
+        self.allow_empty_globs = True
+        build_file_processor = self.create_build_file_processor(
+            track_globbed_directories=True,
+            ignore_paths=[os.path.join(self.project_root, 'src', 'ignored')],
+            enforce_buck_package_boundary=True)
+        result = build_file_processor.process(build_file.path, set())
+        self.assertEquals(
+            get_globs_from_results(result),
+            [os.path.join(self.project_root, directory)
+             for directory in ('src', os.path.join('src', 'sub'))])
+
     def test_add_build_file_dep(self):
         """
         Test simple use of `add_build_file_dep`.
@@ -398,3 +474,74 @@ class BuckTest(unittest.TestCase):
         self.assertTrue(
             os.path.join(self.project_root, dep.path) in
             get_includes_from_results(results))
+
+    def test_changed_include_is_evaluated_again(self):
+        """
+        Test that an include is only reused while its contents stay the same.
+        """
+
+        include_def = ProjectFile(path='inc_def', contents=('FOO = 1',))
+        build_file = ProjectFile(
+            path='BUCK',
+            contents=(
+                'include_defs({0!r})'.format(include_def.name),
+                'foo_rule(name=str(FOO))',
+            ))
+        self.write_files(include_def, build_file)
+        build_file_processor = self.create_build_file_processor(extra_funcs=[foo_rule])
+        results = build_file_processor.process(build_file.path, set())
+        self.assertEquals('1', results[0]['name'])
+
+        include_def = ProjectFile(path='inc_def', contents=('FOO = 2',))
+        self.write_file(include_def)
+        results = build_file_processor.process(build_file.path, set())
+        self.assertEquals('2', results[0]['name'])
+
+    def test_bytecode_cache_is_shared_between_processors(self):
+        """
+        Test that code compiled by one processor is reused by another.
+        """
+
+        bytecode_cache_dir = os.path.join(self.project_root, 'bytecode')
+        include_def = ProjectFile(path='inc_def', contents=('FOO = 1',))
+        build_file = ProjectFile(
+            path='BUCK',
+            contents=(
+                'include_defs({0!r})'.format(include_def.name),
+                'foo_rule(name=str(FOO))',
+            ))
+        self.write_files(include_def, build_file)
+
+        build_file_processor = self.create_build_file_processor(
+            extra_funcs=[foo_rule],
+            bytecode_cache_dir=bytecode_cache_dir)
+        build_file_processor.process(build_file.path, set())
+        self.assertEquals(2, len(os.listdir(bytecode_cache_dir)))
+
+        build_file_processor = self.create_build_file_processor(
+            extra_funcs=[foo_rule],
+            bytecode_cache_dir=bytecode_cache_dir)
+        results = build_file_processor.process(build_file.path, set())
+        self.assertEquals('1', results[0]['name'])
+        self.assertEquals(2, len(os.listdir(bytecode_cache_dir)))
+
+    def test_unused_bytecode_is_pruned(self):
+        """
+        Test that code which hasn't been used for a while is deleted.
+        """
+
+        bytecode_cache_dir = os.path.join(self.project_root, 'bytecode')
+        build_file = ProjectFile(path='BUCK', contents=('foo_rule(name="foo")',))
+        self.write_file(build_file)
+
+        build_file_processor = self.create_build_file_processor(
+            extra_funcs=[foo_rule],
+            bytecode_cache_dir=bytecode_cache_dir)
+        build_file_processor.process(build_file.path, set())
+        stale_file = os.path.join(bytecode_cache_dir, 'stale')
+        open(stale_file, 'wb').close()
+        os.utime(stale_file, (0, 0))
+
+        build_file_processor.prune_bytecode_cache()
+        self.assertEquals(1, len(os.listdir(bytecode_cache_dir)))
+        self.assertFalse(os.path.exists(stale_file))
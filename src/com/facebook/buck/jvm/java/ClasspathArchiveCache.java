@@ -0,0 +1,381 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.jvm.java;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.Nullable;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.tools.JavaFileObject;
+
+/**
+ * Classpath jars opened and indexed once, and shared by every compilation that has them on its
+ * classpath. Large jars such as android.jar, or a big third party library, appear on the classpath
+ * of hundreds of compilations in a build; without this each one would open the jar and scan its
+ * central directory again.
+ * <p>
+ * Compilations {@link #acquire(Path)} the archives they use and {@link #release(Archive)} them once
+ * they are done. An archive is replaced as soon as its jar changes on disk, and closed once the
+ * last compilation using the old version releases it. Archives no compilation is using are kept
+ * open, up to a limit, in case a later compilation in the same build wants them again, and are
+ * closed by {@link #closeIdleArchives()} once the build is over. Between builds, jars may be
+ * rewritten in ways {@link JarState} can't see, such as being restored from the cache with the
+ * same size and timestamp, so nothing is kept open across them.
+ */
+final class ClasspathArchiveCache {
+
+  private static final Logger LOG = Logger.get(ClasspathArchiveCache.class);
+
+  private final int maxIdleArchives;
+
+  /** The current version of each jar we have open. */
+  private final Map<Path, Archive> archives = new HashMap<>();
+  /** Archives nobody is using, least recently used first. */
+  private final Set<Archive> idleArchives = new LinkedHashSet<>();
+
+  ClasspathArchiveCache(int maxIdleArchives) {
+    this.maxIdleArchives = maxIdleArchives;
+  }
+
+  /**
+   * @return the archive for the jar at {@code path}, which the caller must {@link #release} once
+   *     it is done with it, or null if {@code path} isn't a regular file.
+   */
+  @Nullable
+  Archive acquire(Path path) throws IOException {
+    path = path.toAbsolutePath();
+    JarState state = JarState.of(path);
+    if (state == null) {
+      return null;
+    }
+
+    List<Archive> toClose = new ArrayList<>();
+    try {
+      synchronized (this) {
+        Archive archive = getCurrent(path, state, toClose);
+        if (archive != null) {
+          return archive;
+        }
+      }
+
+      // Opening and indexing a big jar takes a while, so don't hold up other compilations while
+      // we do it. Should another compilation open the same jar meanwhile, one copy is thrown away.
+      Archive opened = Archive.open(path, state);
+      synchronized (this) {
+        Archive archive = getCurrent(path, state, toClose);
+        if (archive != null) {
+          toClose.add(opened);
+          return archive;
+        }
+        archives.put(path, opened);
+        opened.refCount = 1;
+        return opened;
+      }
+    } finally {
+      closeAll(toClose);
+    }
+  }
+
+  /**
+   * Hand back an archive returned by {@link #acquire(Path)}.
+   */
+  void release(Archive archive) {
+    List<Archive> toClose = new ArrayList<>();
+    synchronized (this) {
+      archive.refCount--;
+      if (archive.refCount > 0) {
+        return;
+      }
+      if (archives.get(archive.path) != archive) {
+        // The jar has changed since this was opened, so nobody else will want it.
+        toClose.add(archive);
+      } else {
+        idleArchives.add(archive);
+        for (Iterator<Archive> it = idleArchives.iterator();
+             idleArchives.size() > maxIdleArchives; ) {
+          Archive evicted = it.next();
+          it.remove();
+          archives.remove(evicted.path);
+          toClose.add(evicted);
+        }
+      }
+    }
+    closeAll(toClose);
+  }
+
+  /**
+   * Close every archive that no compilation is using.
+   */
+  void closeIdleArchives() {
+    List<Archive> toClose;
+    synchronized (this) {
+      toClose = new ArrayList<>(idleArchives);
+      for (Archive archive : idleArchives) {
+        archives.remove(archive.path);
+      }
+      idleArchives.clear();
+    }
+    closeAll(toClose);
+  }
+
+  @VisibleForTesting
+  synchronized int getOpenArchiveCount() {
+    return archives.size();
+  }
+
+  /**
+   * @return the archive for {@code path} if it's already open and up to date, with a reference
+   *     taken on it, or null if it needs opening. Out of date archives nobody is using are added to
+   *     {@code toClose}.
+   */
+  @Nullable
+  private Archive getCurrent(Path path, JarState state, List<Archive> toClose) {
+    Archive archive = archives.get(path);
+    if (archive == null) {
+      return null;
+    }
+    if (!archive.state.equals(state)) {
+      LOG.debug("%s has changed, dropping the cached copy.", path);
+      archives.remove(path);
+      if (idleArchives.remove(archive)) {
+        toClose.add(archive);
+      }
+      return null;
+    }
+    archive.refCount++;
+    idleArchives.remove(archive);
+    return archive;
+  }
+
+  private static void closeAll(List<Archive> toClose) {
+    for (Archive archive : toClose) {
+      try {
+        archive.zipFile.close();
+      } catch (IOException e) {
+        LOG.warn(e, "Unable to close %s.", archive.path);
+      }
+    }
+  }
+
+  /**
+   * An open classpath jar, with its class files indexed by package.
+   */
+  static final class Archive {
+    private final Path path;
+    private final JarState state;
+    private final ZipFile zipFile;
+    /** Class files, keyed by the directory of their package, such as "com/example". */
+    private final ImmutableListMultimap<String, ArchiveFileObject> classFiles;
+    /** Guarded by the cache which owns this archive. */
+    private int refCount = 0;
+
+    private Archive(
+        Path path,
+        JarState state,
+        ZipFile zipFile,
+        ImmutableListMultimap<String, ArchiveFileObject> classFiles) {
+      this.path = path;
+      this.state = state;
+      this.zipFile = zipFile;
+      this.classFiles = classFiles;
+    }
+
+    private static Archive open(Path path, JarState state) throws IOException {
+      ZipFile zipFile = new ZipFile(path.toFile());
+      try {
+        String jarUri = path.toUri().normalize().toString();
+        ImmutableListMultimap.Builder<String, ArchiveFileObject> classFiles =
+            ImmutableListMultimap.builder();
+        for (Enumeration<? extends ZipEntry> entries = zipFile.entries();
+             entries.hasMoreElements(); ) {
+          ZipEntry entry = entries.nextElement();
+          String name = entry.getName();
+          if (entry.isDirectory() || !name.endsWith(JavaFileObject.Kind.CLASS.extension)) {
+            continue;
+          }
+          int lastSlash = name.lastIndexOf('/');
+          String directory = lastSlash == -1 ? "" : name.substring(0, lastSlash);
+          classFiles.put(
+              directory,
+              new ArchiveFileObject(
+                  URI.create("jar:" + jarUri + "!/" + name),
+                  path,
+                  zipFile,
+                  entry));
+        }
+        return new Archive(path, state, zipFile, classFiles.build());
+      } catch (RuntimeException e) {
+        zipFile.close();
+        throw e;
+      }
+    }
+
+    /**
+     * @return the class files in the package {@code packageName}, and in its subpackages too if
+     *     {@code recurse} is set.
+     */
+    ImmutableList<ArchiveFileObject> listClassFiles(String packageName, boolean recurse) {
+      String directory = packageName.replace('.', '/');
+      if (!recurse) {
+        return classFiles.get(directory);
+      }
+      ImmutableList.Builder<ArchiveFileObject> files = ImmutableList.builder();
+      for (String key : classFiles.keySet()) {
+        if (directory.isEmpty() || key.equals(directory) || key.startsWith(directory + "/")) {
+          files.addAll(classFiles.get(key));
+        }
+      }
+      return files.build();
+    }
+
+    @Nullable
+    ArchiveFileObject getClassFile(String className) {
+      String name = className.replace('.', '/') + JavaFileObject.Kind.CLASS.extension;
+      int lastSlash = name.lastIndexOf('/');
+      String directory = lastSlash == -1 ? "" : name.substring(0, lastSlash);
+      for (ArchiveFileObject file : classFiles.get(directory)) {
+        if (file.entry.getName().equals(name)) {
+          return file;
+        }
+      }
+      return null;
+    }
+
+  }
+
+  /**
+   * A class file in an {@link Archive}. Its URI has the same form as those of the class files
+   * javac's own file manager reads from jars, which {@link ClassUsageTracker} relies on.
+   */
+  static final class ArchiveFileObject implements JavaFileObject {
+    private final URI uri;
+    private final Path jarPath;
+    private final ZipFile zipFile;
+    private final ZipEntry entry;
+
+    private ArchiveFileObject(URI uri, Path jarPath, ZipFile zipFile, ZipEntry entry) {
+      this.uri = uri;
+      this.jarPath = jarPath;
+      this.zipFile = zipFile;
+      this.entry = entry;
+    }
+
+    /**
+     * @return the binary name of the class, such as "com.example.Outer$Inner".
+     */
+    String getBinaryName() {
+      String name = entry.getName();
+      return name.substring(0, name.length() - Kind.CLASS.extension.length()).replace('/', '.');
+    }
+
+    @Override
+    public Kind getKind() {
+      return Kind.CLASS;
+    }
+
+    @Override
+    public boolean isNameCompatible(String simpleName, Kind kind) {
+      String name = entry.getName();
+      String baseName = simpleName + kind.extension;
+      return kind == Kind.CLASS && (name.equals(baseName) || name.endsWith("/" + baseName));
+    }
+
+    @Override
+    @Nullable
+    public NestingKind getNestingKind() {
+      return null;
+    }
+
+    @Override
+    @Nullable
+    public Modifier getAccessLevel() {
+      return null;
+    }
+
+    @Override
+    public URI toUri() {
+      return uri;
+    }
+
+    @Override
+    public String getName() {
+      return jarPath + "(" + entry.getName() + ")";
+    }
+
+    @Override
+    public InputStream openInputStream() throws IOException {
+      return zipFile.getInputStream(entry);
+    }
+
+    @Override
+    public OutputStream openOutputStream() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Reader openReader(boolean ignoreEncodingErrors) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Writer openWriter() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long getLastModified() {
+      return entry.getTime();
+    }
+
+    @Override
+    public boolean delete() {
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return getName();
+    }
+  }
+}
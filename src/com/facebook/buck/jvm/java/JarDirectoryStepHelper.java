@@ -25,6 +25,8 @@ import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.model.Pair;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.zip.CustomZipOutputStream;
+import com.facebook.buck.zip.RawZipEntry;
+import com.facebook.buck.zip.RawZipFile;
 import com.facebook.buck.zip.ZipConstants;
 import com.facebook.buck.zip.ZipOutputStreams;
 import com.google.common.base.Optional;
@@ -42,7 +44,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Enumeration;
 import java.util.Map;
 import java.util.Set;
 import java.util.jar.Attributes;
@@ -51,9 +52,7 @@ import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
-import java.util.zip.ZipFile;
 
 public class JarDirectoryStepHelper {
 
@@ -158,8 +157,10 @@ public class JarDirectoryStepHelper {
       ExecutionContext context) throws IOException {
 
     Path absoluteOutputPath = filesystem.getPathForRelativePath(pathToOutputFile);
-    try (CustomZipOutputStream outputFile = ZipOutputStreams.newOutputStream(
-        absoluteOutputPath, APPEND_TO_ZIP)) {
+    try (CustomZipOutputStream outputFile = ZipOutputStreams.newParallelOutputStream(
+        absoluteOutputPath,
+        APPEND_TO_ZIP,
+        context.getExecutorService(ExecutionContext.ExecutorPool.CPU))) {
       return createJarFile(filesystem,
           pathToOutputFile,
           outputFile,
@@ -215,10 +216,9 @@ public class JarDirectoryStepHelper {
       Set<String> alreadyAddedEntries,
       BuckEventBus eventBus,
       Iterable<Pattern> blacklist) throws IOException {
-    try (ZipFile zip = new ZipFile(inputFile.toFile())) {
+    try (RawZipFile zip = RawZipFile.open(inputFile)) {
       zipEntryLoop:
-      for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements(); ) {
-        ZipEntry entry = entries.nextElement();
+      for (RawZipEntry entry : zip.getEntries()) {
         String entryName = entry.getName();
 
         if (entryName.equals(JarFile.MANIFEST_NAME)) {
@@ -236,7 +236,7 @@ public class JarDirectoryStepHelper {
         if (!isDuplicateAllowed(entryName) && !alreadyAddedEntries.add(entryName)) {
           // Duplicate entries. Skip.
           eventBus.post(ConsoleEvent.create(
-                  determineSeverity(entry),
+                  determineSeverity(entry.isDirectory()),
                   "Duplicate found when adding '%s' to '%s' from '%s'",
                   entryName,
                   outputFile.toAbsolutePath(),
@@ -253,27 +253,9 @@ public class JarDirectoryStepHelper {
           }
         }
 
-        ZipEntry newEntry = new ZipEntry(entry);
-
-        // For deflated entries, the act of re-"putting" this entry means we're re-compressing
-        // the data that we've just uncompressed.  Due to various environmental issues (e.g. a
-        // newer version of zlib, changed compression settings), we may end up with a different
-        // compressed size.  This causes an issue in java's `java.util.zip.ZipOutputStream`
-        // implementation, as it only updates the compressed size field if one of `crc`,
-        // `compressedSize`, or `size` is -1.  When we copy the entry as-is, none of these are
-        // -1, and we may end up with an incorrect compressed size, in which case, we'll get an
-        // exception.  So, for deflated entries, reset the compressed size to -1 (as the
-        // ZipEntry(String) would).
-        // See https://github.com/spearce/buck/commit/8338c1c3d4a546f577eed0c9941d9f1c2ba0a1b7.
-        if (entry.getMethod() == ZipEntry.DEFLATED) {
-          newEntry.setCompressedSize(-1);
-        }
-
-        jar.putNextEntry(newEntry);
-        try (InputStream inputStream = zip.getInputStream(entry)) {
-          ByteStreams.copy(inputStream, jar);
-        }
-        jar.closeEntry();
+        // The entry's data is copied still compressed, so there's no need to inflate it only to
+        // deflate it again.
+        jar.putRawEntry(zip, entry);
       }
     } catch (ZipException e) {
       throw new IOException(
@@ -281,11 +263,13 @@ public class JarDirectoryStepHelper {
     }
   }
 
-  private static Level determineSeverity(ZipEntry entry) {
-    return entry.isDirectory() ? Level.FINE : Level.INFO;
+  private static Level determineSeverity(boolean isDirectory) {
+    return isDirectory ? Level.FINE : Level.INFO;
   }
 
-  private static Manifest readManifest(ZipFile zip, ZipEntry manifestMfEntry) throws IOException {
+  private static Manifest readManifest(
+      RawZipFile zip,
+      RawZipEntry manifestMfEntry) throws IOException {
     try (
         ByteArrayOutputStream output = new ByteArrayOutputStream((int) manifestMfEntry.getSize());
         InputStream stream = zip.getInputStream(manifestMfEntry)
@@ -324,7 +308,7 @@ public class JarDirectoryStepHelper {
         if (!isDuplicateAllowed(entryName) && !alreadyAddedEntries.add(entryName)) {
           if (!entryName.endsWith("/")) {
             eventBus.post(ConsoleEvent.create(
-                determineSeverity(entry),
+                determineSeverity(entry.isDirectory()),
                 "Duplicate found when adding directory to jar: %s", relativePath));
           }
             return;
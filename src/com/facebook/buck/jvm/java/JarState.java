@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.jvm.java;
+
+import com.google.common.base.Objects;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import javax.annotation.Nullable;
+
+/**
+ * Identifies a version of a jar. Rather than hashing the whole jar on every compilation, this
+ * relies on anything that rewrites a jar changing its size, modification time or file key. That
+ * holds within a build, where each jar is written once by its own rule, but not necessarily
+ * across builds.
+ */
+final class JarState {
+  private final long size;
+  private final long lastModifiedMillis;
+  @Nullable private final Object fileKey;
+
+  private JarState(long size, long lastModifiedMillis, @Nullable Object fileKey) {
+    this.size = size;
+    this.lastModifiedMillis = lastModifiedMillis;
+    this.fileKey = fileKey;
+  }
+
+  /**
+   * @return the state of the jar at {@code path}, or null if it isn't a regular file.
+   */
+  @Nullable
+  static JarState of(Path path) {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (IOException e) {
+      return null;
+    }
+    if (!attributes.isRegularFile()) {
+      return null;
+    }
+    return new JarState(
+        attributes.size(),
+        attributes.lastModifiedTime().toMillis(),
+        attributes.fileKey());
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof JarState)) {
+      return false;
+    }
+    JarState that = (JarState) other;
+    return size == that.size &&
+        lastModifiedMillis == that.lastModifiedMillis &&
+        Objects.equal(fileKey, that.fileKey);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(size, lastModifiedMillis, fileKey);
+  }
+}
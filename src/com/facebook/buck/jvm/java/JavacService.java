@@ -0,0 +1,393 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.jvm.java;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * State shared by the in-process compilations run by {@link Jsr199Javac}, which lives as long as
+ * the process does. When buck runs as a daemon, that means across builds.
+ * <p>
+ * Three things are kept:
+ * <ul>
+ *   <li>Idle {@link StandardJavaFileManager}s. A file manager keeps the classpath jars it has
+ *   opened, along with their indexes, so handing the same one to the next compilation saves
+ *   opening and scanning the same jars again. A file manager is thrown away as soon as one of the
+ *   jars it has seen changes, and idle ones are only kept until the end of the build.</li>
+ *   <li>A memory budget. Each compilation is charged an estimate of the memory it will use before
+ *   it starts, so that many large libraries building at once don't run the process out of
+ *   heap.</li>
+ *   <li>Open classpath jars, in a {@link ClasspathArchiveCache}. Unlike the jars a file manager
+ *   keeps, these are shared by every compilation, including ones running at the same time, and
+ *   are only kept until the end of the build.</li>
+ * </ul>
+ */
+final class JavacService {
+
+  private static final Logger LOG = Logger.get(JavacService.class);
+
+  /** What a compilation costs before it has looked at a single source file. */
+  private static final long BASE_COMPILATION_BYTES = 32L * 1024 * 1024;
+  /** Roughly how much heap javac uses for each byte of source it compiles. */
+  private static final long BYTES_PER_SOURCE_BYTE = 200;
+  private static final int BYTES_PER_PERMIT = 1024 * 1024;
+  /** Enough for the dependencies of a large app, or the most popular ones of several. */
+  private static final int MAX_IDLE_ARCHIVES = 1000;
+
+  /**
+   * Options which are reset (or set again) for every compilation, and so don't stop file managers
+   * being shared between compilations which use different values for them.
+   */
+  private static final ImmutableSet<String> PER_COMPILATION_OPTIONS = ImmutableSet.of(
+      "-classpath",
+      "-cp",
+      "-sourcepath",
+      "-d",
+      "-s",
+      "-processorpath",
+      "-processor");
+
+  /** Locations which compilations set up for themselves from their options. */
+  private static final ImmutableList<StandardLocation> RESET_LOCATIONS = ImmutableList.of(
+      StandardLocation.CLASS_PATH,
+      StandardLocation.SOURCE_PATH,
+      StandardLocation.CLASS_OUTPUT,
+      StandardLocation.SOURCE_OUTPUT,
+      StandardLocation.ANNOTATION_PROCESSOR_PATH);
+
+  private static final JavacService INSTANCE = new JavacService(
+      Runtime.getRuntime().maxMemory() / 2,
+      Runtime.getRuntime().availableProcessors());
+
+  private final Semaphore memoryPermits;
+  private final int totalMemoryPermits;
+  private final int maxIdleFileManagers;
+  private final ClasspathArchiveCache archiveCache = new ClasspathArchiveCache(MAX_IDLE_ARCHIVES);
+
+  /** Idle file managers, least recently used first. */
+  private final Deque<PooledFileManager> idleFileManagers = new ArrayDeque<>();
+
+  @VisibleForTesting
+  JavacService(long memoryBudgetBytes, int maxIdleFileManagers) {
+    this.totalMemoryPermits = (int) Math.max(1, memoryBudgetBytes / BYTES_PER_PERMIT);
+    this.memoryPermits = new Semaphore(totalMemoryPermits, /* fair */ true);
+    this.maxIdleFileManagers = maxIdleFileManagers;
+  }
+
+  static JavacService getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return a rough estimate of how much memory compiling {@code sourceFiles} will take.
+   */
+  static long estimateMemoryUse(Iterable<Path> sourceFiles) {
+    long sourceBytes = 0;
+    for (Path sourceFile : sourceFiles) {
+      try {
+        sourceBytes += Files.size(sourceFile);
+      } catch (IOException e) {
+        // Let javac report it: the estimate just has to be in the right ballpark.
+      }
+    }
+    return BASE_COMPILATION_BYTES + sourceBytes * BYTES_PER_SOURCE_BYTE;
+  }
+
+  /**
+   * Wait until {@code estimatedBytes} of the memory budget is free, and take it. A compilation
+   * which needs more than the whole budget waits for all of it.
+   *
+   * @return the memory taken, which must be closed once the compilation is over.
+   */
+  MemoryPermit acquireMemory(long estimatedBytes) throws InterruptedException {
+    int permits = (int) Math.min(
+        totalMemoryPermits,
+        Math.max(1, (estimatedBytes + BYTES_PER_PERMIT - 1) / BYTES_PER_PERMIT));
+    if (!memoryPermits.tryAcquire(permits)) {
+      LOG.debug("Waiting for %d MB of the javac memory budget.", permits);
+      memoryPermits.acquire(permits);
+    }
+    return new MemoryPermit(permits);
+  }
+
+  /**
+   * @return {@code fileManager}, reading its classpath jars from the archives shared by all
+   *     compilations. The result must be closed when the compilation is over, and before
+   *     {@code fileManager} is.
+   */
+  SharedClasspathFileManager shareClasspathArchives(StandardJavaFileManager fileManager) {
+    return new SharedClasspathFileManager(fileManager, archiveCache);
+  }
+
+  /**
+   * Close the idle file managers, and the shared classpath jars which no compilation is using,
+   * once a build is over. Jars can change between builds without {@link JarState} noticing, so
+   * nothing which has read them is trusted by the next build.
+   */
+  void closeIdleClasspathJars() {
+    ImmutableList<PooledFileManager> idle;
+    synchronized (this) {
+      idle = ImmutableList.copyOf(idleFileManagers);
+      idleFileManagers.clear();
+    }
+    for (PooledFileManager pooled : idle) {
+      pooled.close();
+    }
+    archiveCache.closeIdleArchives();
+  }
+
+  /**
+   * Hand out a file manager from {@code compiler} for a compilation run with {@code options}: an
+   * idle one if there's a suitable one, or a new one otherwise.
+   */
+  FileManagerLease leaseFileManager(JavaCompiler compiler, ImmutableList<String> options) {
+    FileManagerKey key = new FileManagerKey(compiler.getClass(), getSharedOptions(options));
+    ImmutableMap<Path, JarState> classpathJars = getClasspathJars(options);
+
+    PooledFileManager pooled = null;
+    synchronized (this) {
+      // Most recently used first, since those are the most likely to have the jars open.
+      for (Iterator<PooledFileManager> it = idleFileManagers.descendingIterator(); it.hasNext(); ) {
+        PooledFileManager candidate = it.next();
+        if (!candidate.key.equals(key)) {
+          continue;
+        }
+        it.remove();
+        if (candidate.isUpToDate(classpathJars)) {
+          pooled = candidate;
+          break;
+        }
+        LOG.debug("Classpath jars have changed, dropping a javac file manager.");
+        candidate.close();
+      }
+    }
+
+    if (pooled == null) {
+      pooled = new PooledFileManager(key, compiler.getStandardFileManager(null, null, null));
+    }
+    pooled.seenJars.putAll(classpathJars);
+    return new FileManagerLease(pooled);
+  }
+
+  private void release(PooledFileManager pooled) {
+    try {
+      // Drop the contents of the last compilation's sources, and the locations it set up, so that
+      // neither leaks into the next one.
+      pooled.fileManager.flush();
+      for (StandardLocation location : RESET_LOCATIONS) {
+        pooled.fileManager.setLocation(location, null);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Unable to reset javac file manager. It will not be reused.");
+      pooled.close();
+      return;
+    }
+
+    PooledFileManager evicted = null;
+    synchronized (this) {
+      idleFileManagers.addLast(pooled);
+      if (idleFileManagers.size() > maxIdleFileManagers) {
+        evicted = idleFileManagers.removeFirst();
+      }
+    }
+    if (evicted != null) {
+      evicted.close();
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int getIdleFileManagerCount() {
+    return idleFileManagers.size();
+  }
+
+  @VisibleForTesting
+  int getAvailableMemoryPermits() {
+    return memoryPermits.availablePermits();
+  }
+
+  private static ImmutableList<String> getSharedOptions(ImmutableList<String> options) {
+    ImmutableList.Builder<String> shared = ImmutableList.builder();
+    for (Iterator<String> it = options.iterator(); it.hasNext(); ) {
+      String option = it.next();
+      if (PER_COMPILATION_OPTIONS.contains(option)) {
+        if (it.hasNext()) {
+          it.next();
+        }
+      } else if (!option.startsWith("-A")) {
+        shared.add(option);
+      }
+    }
+    return shared.build();
+  }
+
+  private static ImmutableMap<Path, JarState> getClasspathJars(ImmutableList<String> options) {
+    Map<Path, JarState> jars = new HashMap<>();
+    for (Iterator<String> it = options.iterator(); it.hasNext(); ) {
+      String option = it.next();
+      if (!it.hasNext() ||
+          !(option.equals("-classpath") ||
+              option.equals("-cp") ||
+              option.equals("-bootclasspath"))) {
+        continue;
+      }
+      for (String entry : Splitter.on(File.pathSeparator).omitEmptyStrings().split(it.next())) {
+        Path path = Paths.get(entry);
+        JarState state = JarState.of(path);
+        if (state != null) {
+          jars.put(path, state);
+        }
+      }
+    }
+    return ImmutableMap.copyOf(jars);
+  }
+
+  /**
+   * A share of the memory budget, taken for the length of a compilation.
+   */
+  final class MemoryPermit implements AutoCloseable {
+    private final int permits;
+    private boolean released = false;
+
+    private MemoryPermit(int permits) {
+      this.permits = permits;
+    }
+
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        memoryPermits.release(permits);
+      }
+    }
+  }
+
+  /**
+   * A file manager lent to a compilation. Closing the lease hands the file manager back so that
+   * later compilations can use it, unless {@link #discard()} has been called.
+   */
+  final class FileManagerLease implements Closeable {
+    private final PooledFileManager pooled;
+    private boolean reusable = true;
+    private boolean closed = false;
+
+    private FileManagerLease(PooledFileManager pooled) {
+      this.pooled = pooled;
+    }
+
+    StandardJavaFileManager getFileManager() {
+      return pooled.fileManager;
+    }
+
+    /**
+     * Close the file manager rather than reuse it, for instance because the compilation using it
+     * went wrong in a way that might have left it in a bad state.
+     */
+    void discard() {
+      reusable = false;
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (reusable) {
+        release(pooled);
+      } else {
+        pooled.close();
+      }
+    }
+  }
+
+  private static final class PooledFileManager {
+    private final FileManagerKey key;
+    private final StandardJavaFileManager fileManager;
+    /** The classpath jars, as they were, of the compilations that have used this. */
+    private final Map<Path, JarState> seenJars = new HashMap<>();
+
+    private PooledFileManager(FileManagerKey key, StandardJavaFileManager fileManager) {
+      this.key = key;
+      this.fileManager = fileManager;
+    }
+
+    private boolean isUpToDate(ImmutableMap<Path, JarState> classpathJars) {
+      for (Map.Entry<Path, JarState> jar : classpathJars.entrySet()) {
+        JarState seen = seenJars.get(jar.getKey());
+        if (seen != null && !seen.equals(jar.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void close() {
+      try {
+        fileManager.close();
+      } catch (IOException e) {
+        LOG.warn(e, "Unable to close java filemanager. We may be leaking memory.");
+      }
+    }
+  }
+
+  private static final class FileManagerKey {
+    private final Class<?> compilerClass;
+    private final ImmutableList<String> sharedOptions;
+
+    private FileManagerKey(Class<?> compilerClass, ImmutableList<String> sharedOptions) {
+      this.compilerClass = compilerClass;
+      this.sharedOptions = sharedOptions;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof FileManagerKey)) {
+        return false;
+      }
+      FileManagerKey that = (FileManagerKey) other;
+      return compilerClass.equals(that.compilerClass) && sharedOptions.equals(that.sharedOptions);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(compilerClass, sharedOptions);
+    }
+  }
+}
@@ -76,14 +76,17 @@ public abstract class Jsr199Javac implements Javac {
 
   private static final Logger LOG = Logger.get(Jsr199Javac.class);
   private static final JavacVersion VERSION = JavacVersion.of("in memory");
-  private static final StandardJavaFileManagerFactory DEFAULT_FILE_MANAGER_FACTORY =
-      new StandardJavaFileManagerFactory() {
-        @Override
-        public StandardJavaFileManager create(
-            JavaCompiler compiler) {
-          return compiler.getStandardFileManager(null, null, null);
-        }
-      };
+
+  private final JavacService javacService = JavacService.getInstance();
+
+  /**
+   * Close the classpath jars that in-process compilations kept open to share with each other, and
+   * the idle file managers that have read them. Called once a build is over, so that they aren't
+   * held open, or trusted to be unchanged, until the next one.
+   */
+  public static void closeIdleClasspathJars() {
+    JavacService.getInstance().closeIdleClasspathJars();
+  }
 
   @Override
   public JavacVersion getVersion() {
@@ -134,45 +137,128 @@ public abstract class Jsr199Javac implements Javac {
       Path pathToSrcsList,
       Optional<Path> workingDirectory,
       ClassUsageFileWriter usedClassesFileWriter,
-      Optional<StandardJavaFileManagerFactory> fileManagerFactory) {
+      Optional<StandardJavaFileManagerFactory> fileManagerFactory) throws InterruptedException {
     JavaCompiler compiler = createCompiler(context, resolver);
 
-    StandardJavaFileManager fileManager =
-        fileManagerFactory.or(DEFAULT_FILE_MANAGER_FACTORY).create(compiler);
-    try {
-      Iterable<? extends JavaFileObject> compilationUnits;
-      try {
-        compilationUnits = createCompilationUnits(
-            fileManager,
-            filesystem.getAbsolutifier(),
-            javaSourceFilePaths);
-      } catch (IOException e) {
-        LOG.warn(e, "Error building compilation units");
-        return 1;
+    try (JavacService.MemoryPermit permit = javacService.acquireMemory(
+             JavacService.estimateMemoryUse(
+                 FluentIterable.from(javaSourceFilePaths)
+                     .transform(filesystem.getAbsolutifier())))) {
+      if (fileManagerFactory.isPresent()) {
+        StandardJavaFileManager fileManager = fileManagerFactory.get().create(compiler);
+        try {
+          return buildWithFileManager(
+              context,
+              filesystem,
+              invokingRule,
+              options,
+              safeAnnotationProcessors,
+              javaSourceFilePaths,
+              pathToSrcsList,
+              compiler,
+              usedClassesFileWriter,
+              fileManager);
+        } finally {
+          try {
+            fileManager.close();
+          } catch (IOException e) {
+            LOG.warn(e, "Unable to close java filemanager. We may be leaking memory.");
+          }
+        }
       }
 
-      try {
-        return buildWithClasspath(
-            context,
-            filesystem,
-            invokingRule,
-            options,
-            safeAnnotationProcessors,
-            javaSourceFilePaths,
-            pathToSrcsList,
-            compiler,
-            usedClassesFileWriter,
-            fileManager,
-            compilationUnits);
-      } finally {
-        close(compilationUnits);
+      // Nobody needs a file manager of their own, so use one which has already been warmed up by
+      // earlier compilations, if there is one.
+      try (JavacService.FileManagerLease lease =
+               javacService.leaseFileManager(compiler, options)) {
+        boolean succeeded = false;
+        try {
+          int result = buildWithFileManager(
+              context,
+              filesystem,
+              invokingRule,
+              options,
+              safeAnnotationProcessors,
+              javaSourceFilePaths,
+              pathToSrcsList,
+              compiler,
+              usedClassesFileWriter,
+              lease.getFileManager());
+          succeeded = true;
+          return result;
+        } finally {
+          if (!succeeded) {
+            lease.discard();
+          }
+        }
       }
+    }
+  }
+
+  private int buildWithFileManager(
+      ExecutionContext context,
+      ProjectFilesystem filesystem,
+      BuildTarget invokingRule,
+      ImmutableList<String> options,
+      ImmutableSet<String> safeAnnotationProcessors,
+      ImmutableSortedSet<Path> javaSourceFilePaths,
+      Path pathToSrcsList,
+      JavaCompiler compiler,
+      ClassUsageFileWriter usedClassesFileWriter,
+      StandardJavaFileManager fileManager) {
+    try (SharedClasspathFileManager sharedFileManager =
+             javacService.shareClasspathArchives(fileManager)) {
+      return buildWithSharedClasspath(
+          context,
+          filesystem,
+          invokingRule,
+          options,
+          safeAnnotationProcessors,
+          javaSourceFilePaths,
+          pathToSrcsList,
+          compiler,
+          usedClassesFileWriter,
+          sharedFileManager);
+    }
+  }
+
+  private int buildWithSharedClasspath(
+      ExecutionContext context,
+      ProjectFilesystem filesystem,
+      BuildTarget invokingRule,
+      ImmutableList<String> options,
+      ImmutableSet<String> safeAnnotationProcessors,
+      ImmutableSortedSet<Path> javaSourceFilePaths,
+      Path pathToSrcsList,
+      JavaCompiler compiler,
+      ClassUsageFileWriter usedClassesFileWriter,
+      StandardJavaFileManager fileManager) {
+    Iterable<? extends JavaFileObject> compilationUnits;
+    try {
+      compilationUnits = createCompilationUnits(
+          fileManager,
+          filesystem.getAbsolutifier(),
+          javaSourceFilePaths);
+    } catch (IOException e) {
+      LOG.warn(e, "Error building compilation units");
+      return 1;
+    }
+
+    try {
+      return buildWithClasspath(
+          context,
+          filesystem,
+          invokingRule,
+          options,
+          safeAnnotationProcessors,
+          javaSourceFilePaths,
+          pathToSrcsList,
+          compiler,
+          usedClassesFileWriter,
+          fileManager,
+          compilationUnits);
     } finally {
-      try {
-        fileManager.close();
-      } catch (IOException e) {
-        LOG.warn(e, "Unable to close java filemanager. We may be leaking memory.");
-      }
+      close(compilationUnits);
     }
   }
 
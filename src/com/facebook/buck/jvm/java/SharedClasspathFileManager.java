@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.jvm.java;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+import javax.tools.FileObject;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * A file manager which reads class files from classpath jars through a {@link
+ * ClasspathArchiveCache}, so that concurrent and successive compilations share one open, indexed
+ * copy of each jar rather than each opening its own. Directories on the classpath, and everything
+ * else, are left to the wrapped file manager.
+ * <p>
+ * The bootclasspath is shared in the same way, but only when it has been set explicitly: javac's
+ * default one is backed by ct.sym, which restricts access to internal JDK classes.
+ * <p>
+ * Closing this releases the archives the compilation used. The wrapped file manager belongs to
+ * the caller, and is left open.
+ */
+class SharedClasspathFileManager extends ForwardingStandardJavaFileManager {
+
+  private static final ImmutableSet<String> BOOTCLASSPATH_OPTIONS = ImmutableSet.of(
+      "-bootclasspath",
+      "--boot-class-path");
+
+  private final ClasspathArchiveCache archiveCache;
+  /** The archives this compilation has used, which are released when it's over. */
+  private final Map<Path, ClasspathArchiveCache.Archive> archives = new HashMap<>();
+  private boolean isBootclasspathSet = false;
+
+  SharedClasspathFileManager(
+      StandardJavaFileManager fileManager,
+      ClasspathArchiveCache archiveCache) {
+    super(fileManager);
+    this.archiveCache = archiveCache;
+  }
+
+  @Override
+  public boolean handleOption(String current, Iterator<String> remaining) {
+    if (BOOTCLASSPATH_OPTIONS.contains(current)) {
+      isBootclasspathSet = true;
+    }
+    return super.handleOption(current, remaining);
+  }
+
+  @Override
+  public void setLocation(Location location, Iterable<? extends File> path) throws IOException {
+    if (location == StandardLocation.PLATFORM_CLASS_PATH) {
+      isBootclasspathSet = path != null;
+    }
+    super.setLocation(location, path);
+  }
+
+  @Override
+  public Iterable<JavaFileObject> list(
+      Location location,
+      String packageName,
+      Set<JavaFileObject.Kind> kinds,
+      boolean recurse) throws IOException {
+    Iterable<? extends File> path = getSharedPath(location);
+    if (path == null || !isOnlyLookingForClassFiles(kinds)) {
+      return super.list(location, packageName, kinds, recurse);
+    }
+
+    List<JavaFileObject> files = new ArrayList<>();
+    for (File entry : path) {
+      if (entry.isDirectory()) {
+        listDirectory(entry.toPath(), packageName, recurse, files);
+        continue;
+      }
+      ClasspathArchiveCache.Archive archive = getArchive(entry.toPath());
+      if (archive != null) {
+        files.addAll(archive.listClassFiles(packageName, recurse));
+      }
+    }
+    return files;
+  }
+
+  @Override
+  public JavaFileObject getJavaFileForInput(
+      Location location,
+      String className,
+      JavaFileObject.Kind kind) throws IOException {
+    Iterable<? extends File> path = getSharedPath(location);
+    if (path == null || kind != JavaFileObject.Kind.CLASS) {
+      return super.getJavaFileForInput(location, className, kind);
+    }
+
+    for (File entry : path) {
+      if (entry.isDirectory()) {
+        File classFile = new File(
+            entry,
+            className.replace('.', File.separatorChar) + kind.extension);
+        if (classFile.isFile()) {
+          return Iterables.getOnlyElement(fileManager.getJavaFileObjects(classFile));
+        }
+        continue;
+      }
+      ClasspathArchiveCache.Archive archive = getArchive(entry.toPath());
+      if (archive != null) {
+        JavaFileObject classFile = archive.getClassFile(className);
+        if (classFile != null) {
+          return classFile;
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public String inferBinaryName(Location location, JavaFileObject file) {
+    if (file instanceof ClasspathArchiveCache.ArchiveFileObject) {
+      return ((ClasspathArchiveCache.ArchiveFileObject) file).getBinaryName();
+    }
+    return super.inferBinaryName(location, file);
+  }
+
+  @Override
+  public boolean isSameFile(FileObject a, FileObject b) {
+    if (a instanceof ClasspathArchiveCache.ArchiveFileObject ||
+        b instanceof ClasspathArchiveCache.ArchiveFileObject) {
+      return a.toUri().equals(b.toUri());
+    }
+    return super.isSameFile(a, b);
+  }
+
+  @Override
+  public void close() {
+    for (ClasspathArchiveCache.Archive archive : archives.values()) {
+      archiveCache.release(archive);
+    }
+    archives.clear();
+  }
+
+  /**
+   * @return the entries of {@code location}, if it's one whose jars we should share, or null if
+   *     it should be left to the wrapped file manager.
+   */
+  @Nullable
+  private Iterable<? extends File> getSharedPath(JavaFileManager.Location location) {
+    if (location != StandardLocation.CLASS_PATH &&
+        !(location == StandardLocation.PLATFORM_CLASS_PATH && isBootclasspathSet)) {
+      return null;
+    }
+    Iterable<? extends File> path = fileManager.getLocation(location);
+    if (path == null) {
+      return null;
+    }
+    for (File entry : path) {
+      // Anything that isn't plainly a jar, such as a JDK module image, is best left to javac.
+      String name = entry.getName().toLowerCase();
+      if (entry.isFile() && !name.endsWith(".jar") && !name.endsWith(".zip")) {
+        return null;
+      }
+    }
+    return path;
+  }
+
+  /**
+   * Javac asks for more kinds of file than it needs, but once there's a sourcepath, it only looks
+   * at class files from the classpath.
+   */
+  private boolean isOnlyLookingForClassFiles(Set<JavaFileObject.Kind> kinds) {
+    if (!kinds.contains(JavaFileObject.Kind.CLASS)) {
+      return false;
+    }
+    return !kinds.contains(JavaFileObject.Kind.SOURCE) ||
+        fileManager.hasLocation(StandardLocation.SOURCE_PATH);
+  }
+
+  @Nullable
+  private ClasspathArchiveCache.Archive getArchive(Path jar) throws IOException {
+    Path key = jar.toAbsolutePath();
+    ClasspathArchiveCache.Archive archive = archives.get(key);
+    if (archive == null && !archives.containsKey(key)) {
+      archive = archiveCache.acquire(key);
+      archives.put(key, archive);
+    }
+    return archive;
+  }
+
+  private void listDirectory(
+      Path directory,
+      String packageName,
+      boolean recurse,
+      List<JavaFileObject> files) throws IOException {
+    Path packageDirectory = directory.resolve(packageName.replace('.', File.separatorChar));
+    if (!Files.isDirectory(packageDirectory)) {
+      return;
+    }
+    final ImmutableList.Builder<File> classFiles = ImmutableList.builder();
+    Files.walkFileTree(
+        packageDirectory,
+        ImmutableSet.<FileVisitOption>of(),
+        recurse ? Integer.MAX_VALUE : 1,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            if (attrs.isRegularFile() &&
+                file.toString().endsWith(JavaFileObject.Kind.CLASS.extension)) {
+              classFiles.add(file.toFile());
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+    Iterables.addAll(files, fileManager.getJavaFileObjectsFromFiles(classFiles.build()));
+  }
+}
@@ -105,6 +105,11 @@ class DaemonicParserState implements ParsePipeline.Cache {
    * build files as the tail, for example: {"__includes":["/foo/BUCK", "/foo/buck_includes"]}
    */
   private static final String INCLUDES_META_RULE = "__includes";
+  /**
+   * Key of the meta-rule that lists the absolute paths of the directories whose contents the
+   * results of the build file's globs depend on.
+   */
+  private static final String GLOBS_META_RULE = "__globs";
   private static final String CONFIGS_META_RULE = "__configs";
 
   private static final String COUNTER_CATEGORY = "buck_parser_state";
@@ -118,6 +123,8 @@ class DaemonicParserState implements ParsePipeline.Cache {
   private static final String FILES_CHANGED_COUNTER_NAME = "files_changed";
   private static final String RULES_INVALIDATED_BY_WATCH_EVENTS_COUNTER_NAME =
       "rules_invalidated_by_watch_events";
+  private static final String BUILD_FILES_LOADED_FROM_STORE_COUNTER_NAME =
+      "build_files_loaded_from_store";
 
   private final TypeCoercerFactory typeCoercerFactory;
   private final TagSetCounter cacheInvalidatedByEnvironmentVariableChangeCounter;
@@ -126,6 +133,8 @@ class DaemonicParserState implements ParsePipeline.Cache {
   private final IntegerCounter buildFilesInvalidatedByFileAddOrRemoveCounter;
   private final IntegerCounter filesChangedCounter;
   private final IntegerCounter rulesInvalidatedByWatchEventsCounter;
+  private final IntegerCounter buildFilesLoadedFromStoreCounter;
+  private final ProjectBuildFileParserPool.Counters parserPoolCounters;
   @GuardedBy("nodesAndTargetsLock")
   private final ConcurrentMapCache<Path, ImmutableList<Map<String, Object>>> allRawNodes;
   @GuardedBy("nodesAndTargetsLock")
@@ -134,6 +143,17 @@ class DaemonicParserState implements ParsePipeline.Cache {
   private final ConcurrentMapCache<BuildTarget, TargetNode<?>> allTargetNodes;
   private final LoadingCache<Cell, BuildFileTree> buildFileTrees;
 
+  /**
+   * The cached target nodes by their inputs and deps, updated along with {@link #allTargetNodes}.
+   */
+  private final TargetNodeIndex targetNodeIndex;
+
+  /**
+   * Raw nodes recorded by earlier parsers, possibly in other processes, which are consulted before
+   * evaluating a build file that isn't cached in memory.
+   */
+  private final Optional<PersistentRawNodeStore> rawNodeStore;
+
   /**
    * A map from absolute included files ({@code /foo/BUILD_DEFS}, for example) to the build files
    * that depend on them (typically {@code /foo/BUCK} files).
@@ -167,13 +187,23 @@ class DaemonicParserState implements ParsePipeline.Cache {
    */
   private final Set<Cell> knownCells;
 
+  /**
+   * The unflavored targets whose nodes have been invalidated since the last call to
+   * {@link #drainInvalidatedTargets(Cell)}, or null if all of them have been.
+   */
+  @GuardedBy("this")
+  @Nullable
+  private Set<UnflavoredBuildTarget> invalidatedTargets;
+
   private final AutoCloseableReadWriteUpdateLock cachedStateLock;
   private final AutoCloseableReadWriteUpdateLock nodesAndTargetsLock;
 
   public DaemonicParserState(
       TypeCoercerFactory typeCoercerFactory,
-      int parsingThreads) {
+      int parsingThreads,
+      Optional<PersistentRawNodeStore> rawNodeStore) {
     this.typeCoercerFactory = typeCoercerFactory;
+    this.rawNodeStore = rawNodeStore;
     this.cacheInvalidatedByEnvironmentVariableChangeCounter = new TagSetCounter(
         COUNTER_CATEGORY,
         INVALIDATED_BY_ENV_VARS_COUNTER_NAME,
@@ -199,8 +229,14 @@ class DaemonicParserState implements ParsePipeline.Cache {
         COUNTER_CATEGORY,
         RULES_INVALIDATED_BY_WATCH_EVENTS_COUNTER_NAME,
         ImmutableMap.<String, String>of());
+    this.buildFilesLoadedFromStoreCounter = new IntegerCounter(
+        COUNTER_CATEGORY,
+        BUILD_FILES_LOADED_FROM_STORE_COUNTER_NAME,
+        ImmutableMap.<String, String>of());
+    this.parserPoolCounters = new ProjectBuildFileParserPool.Counters(COUNTER_CATEGORY);
     this.targetsCornucopia = HashMultimap.create();
     this.allTargetNodes = new ConcurrentMapCache<>(parsingThreads);
+    this.targetNodeIndex = new TargetNodeIndex();
     this.buildFileTrees = CacheBuilder.newBuilder().build(
         new CacheLoader<Cell, BuildFileTree>() {
           @Override
@@ -213,6 +249,7 @@ class DaemonicParserState implements ParsePipeline.Cache {
     this.cachedEnvironment = ImmutableMap.of();
     this.cachedIncludes = new ConcurrentHashMap<>();
     this.knownCells = Collections.synchronizedSet(new HashSet<Cell>());
+    this.invalidatedTargets = null;
 
     this.cachedStateLock = new AutoCloseableReadWriteUpdateLock();
     this.nodesAndTargetsLock = new AutoCloseableReadWriteUpdateLock();
@@ -246,17 +283,30 @@ class DaemonicParserState implements ParsePipeline.Cache {
       TargetNode<?> updatedNode = allTargetNodes.get(target, targetNode);
       if (updatedNode == targetNode) {
         targetsCornucopia.put(target.getUnflavoredBuildTarget(), target);
+        targetNodeIndex.add(targetNode);
       }
       return updatedNode;
     }
   }
 
   @Override
-  @SuppressWarnings("unchecked")
   public ImmutableList<Map<String, Object>> putRawNodesIfNotPresentAndStripMetaEntries(
       final Cell cell,
       final Path buildFile,
       final ImmutableList<Map<String, Object>> rawNodes) {
+    return putRawNodes(cell, buildFile, rawNodes, /* record */ true);
+  }
+
+  /**
+   * @param record whether newly cached raw nodes should also be recorded in the
+   *     {@link PersistentRawNodeStore}, if there is one.
+   */
+  @SuppressWarnings("unchecked")
+  private ImmutableList<Map<String, Object>> putRawNodes(
+      Cell cell,
+      Path buildFile,
+      ImmutableList<Map<String, Object>> rawNodes,
+      boolean record) {
     Preconditions.checkState(buildFile.isAbsolute());
     // Technically this leads to inconsistent state if the state change happens after rawNodes
     // were computed, but before we reach the synchronized section here, however that's a problem
@@ -268,6 +318,7 @@ class DaemonicParserState implements ParsePipeline.Cache {
     final ImmutableList.Builder<Map<String, Object>> withoutMetaIncludesBuilder =
         ImmutableList.builder();
     ImmutableSet.Builder<Path> dependentsOfEveryNode = ImmutableSet.builder();
+    ImmutableSet.Builder<Path> globbedDirectories = ImmutableSet.builder();
     ImmutableMap<String, ImmutableMap<String, Optional<String>>> configs =
         ImmutableMap.of();
     for (Map<String, Object> rawNode : rawNodes) {
@@ -276,6 +327,11 @@ class DaemonicParserState implements ParsePipeline.Cache {
             Preconditions.checkNotNull((List<String>) rawNode.get(INCLUDES_META_RULE))) {
           dependentsOfEveryNode.add(cell.getFilesystem().resolve(path));
         }
+      } else if (rawNode.containsKey(GLOBS_META_RULE)) {
+        for (String path :
+            Preconditions.checkNotNull((List<String>) rawNode.get(GLOBS_META_RULE))) {
+          globbedDirectories.add(cell.getFilesystem().resolve(path));
+        }
       } else if (rawNode.containsKey(CONFIGS_META_RULE)) {
         ImmutableMap.Builder<String, ImmutableMap<String, Optional<String>>> builder =
             ImmutableMap.builder();
@@ -317,22 +373,34 @@ class DaemonicParserState implements ParsePipeline.Cache {
       dependentsOfEveryNode.add(cell.getFilesystem().resolve(include.substring(2)));
     }
 
+    ImmutableList<Map<String, Object>> updated;
+    ImmutableSet<Path> dependents = dependentsOfEveryNode.build();
     synchronized (this) {
       try (AutoCloseableLock writeLock = nodesAndTargetsLock.writeLock()) {
-        ImmutableList<Map<String, Object>> updated =
-            allRawNodes.get(buildFile, withoutMetaIncludes);
+        updated = allRawNodes.get(buildFile, withoutMetaIncludes);
         buildFileConfigs.put(buildFile, configs);
 
         if (updated == withoutMetaIncludes) {
           // We now know all the nodes. They all implicitly depend on everything in
           // the "dependentsOfEveryNode" set.
-          for (Path dependent : dependentsOfEveryNode.build()) {
+          for (Path dependent : dependents) {
             buildFileDependents.put(dependent, buildFile);
           }
         }
-        return updated;
       }
     }
+
+    // Stamping the build file's inputs touches the filesystem, so do it outside of the locks.
+    if (record && updated == withoutMetaIncludes && rawNodeStore.isPresent()) {
+      rawNodeStore.get().put(
+          cell,
+          buildFile,
+          rawNodes,
+          dependents,
+          globbedDirectories.build(),
+          configs);
+    }
+    return updated;
   }
 
   @Override
@@ -344,8 +412,22 @@ class DaemonicParserState implements ParsePipeline.Cache {
     invalidateIfBuckConfigHasChanged(cell, buildFile);
 
     try (AutoCloseableLock readLock = nodesAndTargetsLock.readLock()) {
-      return Optional.fromNullable(allRawNodes.getIfPresent(buildFile));
+      ImmutableList<Map<String, Object>> rawNodes = allRawNodes.getIfPresent(buildFile);
+      if (rawNodes != null) {
+        return Optional.of(rawNodes);
+      }
+    }
+
+    if (rawNodeStore.isPresent()) {
+      Optional<ImmutableList<Map<String, Object>>> recorded =
+          rawNodeStore.get().get(cell, buildFile);
+      if (recorded.isPresent()) {
+        LOG.verbose("Loaded raw nodes for %s from %s.", buildFile, rawNodeStore.get().getPath());
+        buildFilesLoadedFromStoreCounter.inc();
+        return Optional.of(putRawNodes(cell, buildFile, recorded.get(), /* record */ false));
+      }
     }
+    return Optional.absent();
   }
 
   @SuppressWarnings({"rawtypes", "unchecked"})
@@ -605,8 +687,17 @@ class DaemonicParserState implements ParsePipeline.Cache {
           UnflavoredBuildTarget target =
               ParsePipeline.parseBuildTargetFromRawRule(cell.getRoot(), rawNode, path);
           LOG.debug("Invalidating target for path %s: %s", path, target);
+          for (BuildTarget buildTarget : targetsCornucopia.get(target)) {
+            TargetNode<?> node = allTargetNodes.getIfPresent(buildTarget);
+            if (node != null) {
+              targetNodeIndex.remove(node);
+            }
+          }
           allTargetNodes.invalidateAll(targetsCornucopia.get(target));
           targetsCornucopia.removeAll(target);
+          if (invalidatedTargets != null) {
+            invalidatedTargets.add(target);
+          }
         }
 
         // And then the raw node itself.
@@ -614,6 +705,10 @@ class DaemonicParserState implements ParsePipeline.Cache {
       }
     }
 
+    if (rawNodeStore.isPresent()) {
+      rawNodeStore.get().invalidate(path);
+    }
+
     // We may have been given a file that other build files depend on. Iteratively remove those.
     Iterable<Path> dependents = buildFileDependents.get(path);
     LOG.debug("Invalidating dependents for path %s: %s", path, dependents);
@@ -723,12 +818,14 @@ class DaemonicParserState implements ParsePipeline.Cache {
 
   private synchronized boolean invalidateAllCaches() {
     LOG.debug("Starting to invalidate all caches..");
+    invalidatedTargets = null;
     try (AutoCloseableLock writeLock = nodesAndTargetsLock.writeLock()) {
       boolean invalidated = false;
       if (!allTargetNodes.isEmpty()) {
         invalidated = true;
       }
       allTargetNodes.invalidateAll();
+      targetNodeIndex.clear();
       if (!targetsCornucopia.isEmpty()) {
         invalidated = true;
       }
@@ -756,15 +853,86 @@ class DaemonicParserState implements ParsePipeline.Cache {
     }
   }
 
+  /**
+   * Hands over the unflavored targets whose nodes have been invalidated since this was last
+   * called, so that nodes obtained before then can be told apart from stale ones without looking
+   * them up again.  Whether the state of the root cell's build file parser has changed is checked
+   * first, since that would otherwise only happen when a node is looked up.
+   *
+   * @return the invalidated targets, or absent if every node may have been invalidated.
+   */
+  Optional<ImmutableSet<UnflavoredBuildTarget>> drainInvalidatedTargets(Cell rootCell) {
+    invalidateIfProjectBuildFileParserStateChanged(rootCell);
+    synchronized (this) {
+      Optional<ImmutableSet<UnflavoredBuildTarget>> drained =
+          invalidatedTargets == null ?
+              Optional.<ImmutableSet<UnflavoredBuildTarget>>absent() :
+              Optional.of(ImmutableSet.copyOf(invalidatedTargets));
+      invalidatedTargets = new HashSet<>();
+      return drained;
+    }
+  }
+
+  /**
+   * @return all the target nodes defined in {@code buildFile}, if they are all cached.
+   */
+  Optional<ImmutableSet<TargetNode<?>>> lookupAllTargetNodes(Cell cell, Path buildFile) {
+    invalidateIfProjectBuildFileParserStateChanged(cell);
+    invalidateIfBuckConfigHasChanged(cell, buildFile);
+    try (AutoCloseableLock readLock = nodesAndTargetsLock.readLock()) {
+      List<Map<String, Object>> rawNodes = allRawNodes.getIfPresent(buildFile);
+      if (rawNodes == null) {
+        return Optional.absent();
+      }
+      ImmutableSet.Builder<TargetNode<?>> nodes = ImmutableSet.builder();
+      for (Map<String, Object> rawNode : rawNodes) {
+        TargetNode<?> node = allTargetNodes.getIfPresent(
+            BuildTarget.of(
+                ParsePipeline.parseBuildTargetFromRawRule(cell.getRoot(), rawNode, buildFile)));
+        if (node == null) {
+          return Optional.absent();
+        }
+        nodes.add(node);
+      }
+      return Optional.of(nodes.build());
+    }
+  }
+
+  TargetNodeIndex getTargetNodeIndex() {
+    return targetNodeIndex;
+  }
+
+  /**
+   * @return the nodes of the transitive closure of {@code targets} from the
+   *     {@link TargetNodeIndex}, after checking that the state of the root cell's build file parser
+   *     hasn't changed, since that would otherwise only happen when a node is looked up.
+   */
+  Optional<ImmutableMap<BuildTarget, TargetNode<?>>> lookupTransitiveClosure(
+      Cell rootCell,
+      Iterable<BuildTarget> targets) {
+    invalidateIfProjectBuildFileParserStateChanged(rootCell);
+    return targetNodeIndex.getTransitiveClosure(targets);
+  }
+
+  /**
+   * @return the counters shared by the build file parser pools of every {@link PerBuildState}.
+   */
+  ProjectBuildFileParserPool.Counters getParserPoolCounters() {
+    return parserPoolCounters;
+  }
+
   public ImmutableList<Counter> getCounters() {
-    return ImmutableList.<Counter>of(
-        cacheInvalidatedByEnvironmentVariableChangeCounter,
-        cacheInvalidatedByDefaultIncludesChangeCounter,
-        cacheInvalidatedByWatchOverflowCounter,
-        buildFilesInvalidatedByFileAddOrRemoveCounter,
-        filesChangedCounter,
-        rulesInvalidatedByWatchEventsCounter
-    );
+    return ImmutableList.<Counter>builder()
+        .add(
+            cacheInvalidatedByEnvironmentVariableChangeCounter,
+            cacheInvalidatedByDefaultIncludesChangeCounter,
+            cacheInvalidatedByWatchOverflowCounter,
+            buildFilesInvalidatedByFileAddOrRemoveCounter,
+            filesChangedCounter,
+            rulesInvalidatedByWatchEventsCounter,
+            buildFilesLoadedFromStoreCounter)
+        .addAll(parserPoolCounters.getCounters())
+        .build();
   }
 
   @Override
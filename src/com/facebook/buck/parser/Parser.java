@@ -31,12 +31,14 @@ import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetException;
 import com.facebook.buck.model.HasDefaultFlavors;
 import com.facebook.buck.model.Flavor;
+import com.facebook.buck.model.UnflavoredBuildTarget;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.ConstructorArgMarshaller;
 import com.facebook.buck.rules.ImplicitFlavorsInferringDescription;
 import com.facebook.buck.rules.TargetGraph;
 import com.facebook.buck.rules.TargetGraphAndBuildTargets;
 import com.facebook.buck.rules.TargetNode;
+import com.facebook.buck.rules.TargetNodeHashCache;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.MoreMaps;
@@ -45,6 +47,7 @@ import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicates;
 import com.google.common.base.Throwables;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
@@ -63,6 +66,7 @@ import java.nio.file.Path;
 import java.nio.file.WatchEvent;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -71,6 +75,7 @@ import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
  * High-level build file parsing machinery. Primarily responsible for producing a
@@ -91,15 +96,58 @@ public class Parser {
 
   private final DaemonicParserState permState;
   private final ConstructorArgMarshaller marshaller;
+  private final boolean incrementalTargetGraph;
+  private final TargetNodeHashCache targetNodeHashCache = new TargetNodeHashCache();
+
+  /**
+   * The most recently built target graph, whose nodes are reused by the next graph built in the
+   * same root cell unless they've been invalidated since.
+   */
+  @GuardedBy("this")
+  @Nullable
+  private TargetGraph lastTargetGraph;
+
+  @GuardedBy("this")
+  @Nullable
+  private Cell lastTargetGraphCell;
+
+  @GuardedBy("this")
+  private boolean lastTargetGraphIgnoredBuckAutodepsFiles;
+
+  /**
+   * Unflavored targets invalidated since {@link #lastTargetGraph} was built, or null if every
+   * target may have been.
+   */
+  @GuardedBy("this")
+  @Nullable
+  private Set<UnflavoredBuildTarget> invalidatedSinceLastTargetGraph;
 
   public Parser(
       ParserConfig parserConfig,
       TypeCoercerFactory typeCoercerFactory,
       ConstructorArgMarshaller marshaller) {
+    this(
+        parserConfig,
+        typeCoercerFactory,
+        marshaller,
+        Optional.<PersistentRawNodeStore>absent());
+  }
+
+  /**
+   * @param rawNodeStore where to look for the raw nodes of build files which haven't been parsed
+   *     by this parser yet, and where to record those it does parse.
+   */
+  public Parser(
+      ParserConfig parserConfig,
+      TypeCoercerFactory typeCoercerFactory,
+      ConstructorArgMarshaller marshaller,
+      Optional<PersistentRawNodeStore> rawNodeStore) {
     this.permState = new DaemonicParserState(
         typeCoercerFactory,
-        parserConfig.getNumParsingThreads());
+        parserConfig.getNumParsingThreads(),
+        rawNodeStore);
     this.marshaller = marshaller;
+    this.incrementalTargetGraph = parserConfig.getEnableIncrementalTargetGraph();
   }
 
   @VisibleForTesting
@@ -143,6 +191,12 @@ public class Parser {
         cell.getRoot(),
         buildFile);
 
+    Optional<ImmutableSet<TargetNode<?>>> cachedNodes =
+        permState.lookupAllTargetNodes(cell, buildFile);
+    if (cachedNodes.isPresent()) {
+      return cachedNodes.get();
+    }
+
     try (PerBuildState state = new PerBuildState(
         permState,
         marshaller,
@@ -156,6 +210,41 @@ public class Parser {
     }
   }
 
+  /**
+   * @param file an absolute path.
+   * @return the nodes defined in {@code buildFile} which take {@code file}, or a directory
+   *     containing it, as an input.
+   */
+  public ImmutableSet<TargetNode<?>> getTargetNodesOwning(
+      BuckEventBus eventBus,
+      Cell cell,
+      boolean enableProfiling,
+      ListeningExecutorService executor,
+      Path buildFile,
+      Path file) throws BuildFileParseException {
+    Preconditions.checkState(file.isAbsolute());
+    ImmutableSet<TargetNode<?>> nodes =
+        getAllTargetNodes(eventBus, cell, enableProfiling, executor, buildFile);
+    return FluentIterable.from(permState.getTargetNodeIndex().getOwners(file))
+        .filter(Predicates.in(nodes))
+        .toSet();
+  }
+
+  /**
+   * Looks up the transitive closure of {@code targets} without building a target graph, which is
+   * possible when all of its nodes are cached and have been part of a target graph since.
+   *
+   * @return the nodes of the closure by target, or nothing if it has to be built.
+   */
+  public Optional<ImmutableMap<BuildTarget, TargetNode<?>>> getCachedTransitiveClosure(
+      Cell rootCell,
+      Iterable<BuildTarget> targets) {
+    if (!incrementalTargetGraph) {
+      return Optional.absent();
+    }
+    return permState.lookupTransitiveClosure(rootCell, targets);
+  }
+
   public TargetNode<?> getTargetNode(
       BuckEventBus eventBus,
       Cell cell,
@@ -231,6 +320,32 @@ public class Parser {
       ListeningExecutorService executor,
       final Iterable<BuildTarget> toExplore)
       throws IOException, InterruptedException, BuildFileParseException, BuildTargetException {
+    return buildTargetGraph(
+        eventBus,
+        rootCell,
+        enableProfiling,
+        executor,
+        toExplore,
+        ImmutableMap.<BuildTarget, TargetNode<?>>of());
+  }
+
+  /**
+   * Builds the part of a target graph that is reachable from {@code toExplore} but isn't already
+   * in a graph the caller has, so that the caller can add it to that graph.
+   *
+   * @param knownNodes the nodes of the caller's graph, by target.  That graph must contain the
+   *     transitive dependencies of each of these nodes.
+   * @return a graph of the nodes reachable from {@code toExplore} which aren't known, with the
+   *     edges between them, and the known nodes they depend on directly, without their edges.
+   */
+  public TargetGraph buildTargetGraph(
+      final BuckEventBus eventBus,
+      final Cell rootCell,
+      final boolean enableProfiling,
+      ListeningExecutorService executor,
+      final Iterable<BuildTarget> toExplore,
+      final Map<BuildTarget, TargetNode<?>> knownNodes)
+      throws IOException, InterruptedException, BuildFileParseException, BuildTargetException {
     if (Iterables.isEmpty(toExplore)) {
       return TargetGraph.EMPTY;
     }
@@ -248,7 +363,9 @@ public class Parser {
       return buildTargetGraph(
           state,
           eventBus,
+          rootCell,
           toExplore,
+          knownNodes,
           /* ignoreBuckAutodepsFiles */ false);
     }
   }
@@ -256,7 +373,9 @@ public class Parser {
   private TargetGraph buildTargetGraph(
       final PerBuildState state,
       final BuckEventBus eventBus,
+      final Cell rootCell,
       final Iterable<BuildTarget> toExplore,
+      final Map<BuildTarget, TargetNode<?>> knownNodes,
       final boolean ignoreBuckAutodepsFiles)
       throws IOException, InterruptedException, BuildFileParseException, BuildTargetException {
 
@@ -266,6 +385,8 @@ public class Parser {
 
     final MutableDirectedGraph<TargetNode<?>> graph = new MutableDirectedGraph<>();
     final Map<BuildTarget, TargetNode<?>> index = new HashMap<>();
+    final ImmutableMap<BuildTarget, TargetNode<?>> reusableNodes =
+        getReusableNodes(rootCell, ignoreBuckAutodepsFiles);
 
     ParseEvent.Started parseStart = ParseEvent.started(toExplore);
     eventBus.post(parseStart);
@@ -273,12 +394,19 @@ public class Parser {
     GraphTraversable<BuildTarget> traversable = new GraphTraversable<BuildTarget>() {
       @Override
       public Iterator<BuildTarget> findChildren(BuildTarget target) {
-        TargetNode<?> node;
-        try (SimplePerfEvent.Scope scope = getTargetNodeEventScope(eventBus, target)) {
-          try {
-            node = state.getTargetNode(target);
-          } catch (BuildFileParseException | BuildTargetException e) {
-            throw new RuntimeException(e);
+        // The caller's graph already has the dependencies of its nodes.
+        if (knownNodes.containsKey(target)) {
+          return Collections.emptyIterator();
+        }
+
+        TargetNode<?> node = reusableNodes.get(target);
+        if (node == null) {
+          try (SimplePerfEvent.Scope scope = getTargetNodeEventScope(eventBus, target)) {
+            try {
+              node = state.getTargetNode(target);
+            } catch (BuildFileParseException | BuildTargetException e) {
+              throw new RuntimeException(e);
+            }
           }
         }
 
@@ -288,20 +416,30 @@ public class Parser {
 
         Set<BuildTarget> deps = Sets.newHashSet();
         for (BuildTarget dep : node.getDeps()) {
-          TargetNode<?> depTargetNode;
-          try (SimplePerfEvent.Scope scope = getTargetNodeEventScope(eventBus, dep)) {
-            try {
-              depTargetNode = state.getTargetNode(dep);
-            } catch (BuildFileParseException | BuildTargetException | HumanReadableException e) {
-              throw new HumanReadableException(
-                  e,
-                  "Couldn't get dependency '%s' of target '%s':\n%s",
-                  dep,
-                  target,
-                  e.getMessage());
+          TargetNode<?> depTargetNode = knownNodes.get(dep);
+          if (depTargetNode == null) {
+            depTargetNode = reusableNodes.get(dep);
+          }
+          // Both ends of an edge between reused nodes were the same when the previous graph was
+          // built, so the dependency was already found to be visible.
+          if (!reusableNodes.containsKey(dep) || !reusableNodes.containsKey(target)) {
+            if (depTargetNode == null) {
+              try (SimplePerfEvent.Scope scope = getTargetNodeEventScope(eventBus, dep)) {
+                try {
+                  depTargetNode = state.getTargetNode(dep);
+                } catch (BuildFileParseException | BuildTargetException |
+                    HumanReadableException e) {
+                  throw new HumanReadableException(
+                      e,
+                      "Couldn't get dependency '%s' of target '%s':\n%s",
+                      dep,
+                      target,
+                      e.getMessage());
+                }
+              }
             }
+            depTargetNode.checkVisibility(node);
           }
-          depTargetNode.checkVisibility(node);
           deps.add(dep);
         }
         return deps.iterator();
@@ -314,7 +452,7 @@ public class Parser {
     TargetGraph targetGraph = null;
     try {
       for (BuildTarget target : traversal.traverse(toExplore)) {
-        TargetNode<?> targetNode = state.getTargetNode(target);
+        TargetNode<?> targetNode = getTargetNode(state, knownNodes, reusableNodes, target);
 
         Preconditions.checkNotNull(targetNode, "No target node found for %s", target);
         graph.addNode(targetNode);
@@ -324,13 +462,29 @@ public class Parser {
           MoreMaps.putCheckEquals(
               index,
               unflavoredTarget,
-              state.getTargetNode(unflavoredTarget));
+              getTargetNode(state, knownNodes, reusableNodes, unflavoredTarget));
+        }
+        if (knownNodes.containsKey(target)) {
+          continue;
         }
         for (BuildTarget dep : targetNode.getDeps()) {
-          graph.addEdge(targetNode, state.getTargetNode(dep));
+          graph.addEdge(targetNode, getTargetNode(state, knownNodes, reusableNodes, dep));
         }
       }
       targetGraph = new TargetGraph(graph, ImmutableMap.copyOf(index));
+      // Every edge of the graph has been checked now, bar those of the caller's nodes.
+      if (!ignoreBuckAutodepsFiles) {
+        TargetNodeIndex targetNodeIndex = permState.getTargetNodeIndex();
+        for (TargetNode<?> node : graph.getNodes()) {
+          if (!knownNodes.containsKey(node.getBuildTarget())) {
+            targetNodeIndex.markChecked(node, graph.getOutgoingNodesFor(node));
+          }
+        }
+      }
+      // A graph which leaves out the caller's nodes would be a poor start for the next one.
+      if (knownNodes.isEmpty()) {
+        recordTargetGraph(rootCell, ignoreBuckAutodepsFiles, targetGraph);
+      }
       return targetGraph;
     } catch (AcyclicDepthFirstPostOrderTraversal.CycleException e) {
       throw new HumanReadableException(e.getMessage());
@@ -341,6 +495,72 @@ public class Parser {
     }
   }
 
+  private static TargetNode<?> getTargetNode(
+      PerBuildState state,
+      Map<BuildTarget, TargetNode<?>> knownNodes,
+      ImmutableMap<BuildTarget, TargetNode<?>> reusableNodes,
+      BuildTarget target) throws BuildFileParseException, BuildTargetException {
+    TargetNode<?> node = knownNodes.get(target);
+    if (node == null) {
+      node = reusableNodes.get(target);
+    }
+    return node != null ? node : state.getTargetNode(target);
+  }
+
+  /**
+   * @return the nodes of the last target graph built in {@code rootCell} the same way which haven't
+   *     been invalidated since, by target, or nothing if incremental target graphs are disabled.
+   */
+  private synchronized ImmutableMap<BuildTarget, TargetNode<?>> getReusableNodes(
+      Cell rootCell,
+      boolean ignoreBuckAutodepsFiles) {
+    if (!incrementalTargetGraph) {
+      return ImmutableMap.of();
+    }
+
+    Optional<ImmutableSet<UnflavoredBuildTarget>> invalidated =
+        permState.drainInvalidatedTargets(rootCell);
+    if (!invalidated.isPresent()) {
+      invalidatedSinceLastTargetGraph = null;
+    } else if (invalidatedSinceLastTargetGraph != null) {
+      invalidatedSinceLastTargetGraph.addAll(invalidated.get());
+    }
+
+    if (lastTargetGraph == null ||
+        invalidatedSinceLastTargetGraph == null ||
+        !rootCell.equals(lastTargetGraphCell) ||
+        ignoreBuckAutodepsFiles != lastTargetGraphIgnoredBuckAutodepsFiles) {
+      return ImmutableMap.of();
+    }
+
+    ImmutableMap.Builder<BuildTarget, TargetNode<?>> reusable = ImmutableMap.builder();
+    for (TargetNode<?> node : lastTargetGraph.getNodes()) {
+      BuildTarget target = node.getBuildTarget();
+      if (!invalidatedSinceLastTargetGraph.contains(target.getUnflavoredBuildTarget())) {
+        reusable.put(target, node);
+      }
+    }
+    ImmutableMap<BuildTarget, TargetNode<?>> reusableNodes = reusable.build();
+    LOG.debug(
+        "Reusing %d of the %d nodes in the previous target graph.",
+        reusableNodes.size(),
+        lastTargetGraph.getNodes().size());
+    return reusableNodes;
+  }
+
+  private synchronized void recordTargetGraph(
+      Cell rootCell,
+      boolean ignoreBuckAutodepsFiles,
+      TargetGraph targetGraph) {
+    if (!incrementalTargetGraph) {
+      return;
+    }
+    lastTargetGraph = targetGraph;
+    lastTargetGraphCell = rootCell;
+    lastTargetGraphIgnoredBuckAutodepsFiles = ignoreBuckAutodepsFiles;
+    invalidatedSinceLastTargetGraph = new HashSet<>();
+  }
+
   /**
    * @param eventBus used to log events while parsing.
    * @param targetNodeSpecs the specs representing the build targets to generate a target graph for.
@@ -400,7 +620,13 @@ public class Parser {
           rootCell,
           targetNodeSpecs,
           applyDefaultFlavorsMode);
-      TargetGraph graph = buildTargetGraph(state, eventBus, buildTargets, ignoreBuckAutodepsFiles);
+      TargetGraph graph = buildTargetGraph(
+          state,
+          eventBus,
+          rootCell,
+          buildTargets,
+          ImmutableMap.<BuildTarget, TargetNode<?>>of(),
+          ignoreBuckAutodepsFiles);
 
       return TargetGraphAndBuildTargets.builder()
           .setBuildTargets(buildTargets)
@@ -587,6 +813,15 @@ public class Parser {
         WatchEvents.createContextString(event));
 
     permState.invalidateBasedOn(event);
+    targetNodeHashCache.invalidateBasedOn(event);
+  }
+
+  /**
+   * @return the hashes of the inputs of the target nodes parsed so far, kept up to date with the
+   *     watch events the parser receives.
+   */
+  public TargetNodeHashCache getTargetNodeHashCache() {
+    return targetNodeHashCache;
   }
 
   public void recordParseStartTime(BuckEventBus eventBus) {
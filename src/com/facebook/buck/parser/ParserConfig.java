@@ -127,6 +127,26 @@ public class ParserConfig {
     return delegate.getBooleanValue("project", "parallel_parsing", true);
   }
 
+  /**
+   * @return whether the raw nodes of parsed build files should be kept on disk, so that they
+   *     survive restarting buckd.
+   */
+  public boolean getEnablePersistentParseCache() {
+    return delegate.getBooleanValue("project", "persistent_parse_cache", false);
+  }
+
+  /**
+   * @return whether buck.py processes should share the code they compile from build files and
+   *     includes through {@code buck-out}.
+   */
+  public boolean getEnableParserBytecodeCache() {
+    return delegate.getBooleanValue("project", "parser_bytecode_cache", false);
+  }
+
+  public boolean getEnableIncrementalTargetGraph() {
+    return delegate.getBooleanValue("project", "incremental_target_graph", false);
+  }
+
   public int getNumParsingThreads() {
     if (!getEnableParallelParsing()) {
       return 1;
@@ -139,4 +159,21 @@ public class ParserConfig {
 
     return Math.min(value, delegate.getNumThreads());
   }
+
+  /**
+   * @return how many build file parsers to start for a cell before any build file is parsed. These
+   *     are also kept around when parsing load drops.
+   */
+  public int getMinParsersPerCell() {
+    if (!getEnableParallelParsing()) {
+      return 0;
+    }
+
+    int value = delegate
+        .getLong("project", "min_parsers_per_cell")
+        .or(0L)
+        .intValue();
+
+    return Math.min(value, getNumParsingThreads());
+  }
 }
@@ -114,14 +114,21 @@ class PerBuildState implements AutoCloseable {
     };
     ParserConfig parserConfig = new ParserConfig(rootCell.getBuckConfig());
     int numParsingThreads = parserConfig.getNumParsingThreads();
+    int minParsersPerCell = parserConfig.getMinParsersPerCell();
     this.projectBuildFileParserPool = new ProjectBuildFileParserPool(
+        minParsersPerCell,
         numParsingThreads, // Max parsers to create per cell.
         new Function<Cell, ProjectBuildFileParser>() {
           @Override
           public ProjectBuildFileParser apply(Cell input) {
             return createBuildFileParser(input, ignoreBuckAutodepsFiles);
           }
-        });
+        },
+        permState.getParserPoolCounters());
+    if (minParsersPerCell > 0) {
+      // Start the root cell's interpreters while the targets to parse are being worked out.
+      projectBuildFileParserPool.warmUp(rootCell, executorService);
+    }
     this.parsePipeline = new ParsePipeline(
         permState,
         new ParsePipeline.Delegate() {
@@ -0,0 +1,504 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.facebook.buck.bser.BserDeserializer;
+import com.facebook.buck.bser.BserSerializer;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuckVersion;
+import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.Description;
+import com.facebook.buck.util.cache.FileHashCache;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An on-disk map from build files to the raw nodes that evaluating them produced, so that a
+ * freshly started parser doesn't have to run every build file through buck.py again.
+ * <p>
+ * Alongside its raw nodes, each build file records what they were derived from: the hashes of
+ * the build file and everything it included, the values of the config options it read, the
+ * modification times of the directories its globs looked at, and a key covering the
+ * version of Buck, the environment and the parser settings of its cell.  Raw nodes are only
+ * handed back out if all of these still match.
+ * <p>
+ * Records are kept in memory in their BSER encoding, and are only decoded when looked up.  The
+ * whole store is read the first time it's used.  On {@link #flush()}, the records of build files
+ * which have changed since are appended to it, and it's only rewritten once more than half of it
+ * is made up of superseded records.  Failing to read or write the store is never fatal: it only
+ * means build files get parsed again.
+ */
+public class PersistentRawNodeStore implements Closeable {
+
+  private static final Logger LOG = Logger.get(PersistentRawNodeStore.class);
+
+  private static final int MAGIC = 0x42524e53;  // "BRNS"
+  private static final int VERSION = 2;
+
+  /**
+   * The length written in place of a record's to say that the build file's record was dropped.
+   */
+  private static final int REMOVED = -1;
+
+  private static final String KEY = "key";
+  private static final String HASHES = "hashes";
+  private static final String DIRECTORIES = "directories";
+  private static final String CONFIGS = "configs";
+  private static final String NODES = "nodes";
+
+  /**
+   * Build files whose inputs were modified this recently aren't recorded, since the inputs may
+   * have changed again between being read by buck.py and being stamped here.
+   */
+  @VisibleForTesting
+  static final long RACY_MODIFICATION_WINDOW_MILLIS = 2000;
+
+  private final Path path;
+  private final FileHashCache fileHashCache;
+  private final LoadingCache<Cell, String> cellKeys;
+
+  @GuardedBy("this")
+  @Nullable
+  private ConcurrentMap<Path, byte[]> records;
+
+  /**
+   * Build files whose records have been added or dropped since the store was last written.
+   */
+  @GuardedBy("this")
+  private final Set<Path> changed = new LinkedHashSet<>();
+
+  /**
+   * The number of records in the file, superseded ones included.
+   */
+  @GuardedBy("this")
+  private int recordCount;
+
+  /**
+   * Whether the file holds exactly the records that were read from or written to it, so that new
+   * ones can be appended to it.
+   */
+  @GuardedBy("this")
+  private boolean appendable;
+
+  public PersistentRawNodeStore(Path path, FileHashCache fileHashCache) {
+    this.path = path;
+    this.fileHashCache = fileHashCache;
+    this.cellKeys = CacheBuilder.newBuilder()
+        .weakKeys()
+        .build(
+            new CacheLoader<Cell, String>() {
+              @Override
+              public String load(Cell cell) {
+                return computeCellKey(cell);
+              }
+            });
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * @return the raw nodes, meta rules included, recorded for {@code buildFile} if everything they
+   *     were derived from is unchanged.  Records which are out of date are dropped.
+   */
+  Optional<ImmutableList<Map<String, Object>>> get(Cell cell, Path buildFile) {
+    byte[] record = getRecords().get(buildFile);
+    if (record == null) {
+      return Optional.absent();
+    }
+    try {
+      Map<String, Object> contents = decode(record);
+      if (isUpToDate(cell, contents)) {
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> nodes = (List<Map<String, Object>>) contents.get(NODES);
+        return Optional.of(ImmutableList.copyOf(nodes));
+      }
+      LOG.verbose("Recorded raw nodes for %s are out of date.", buildFile);
+    } catch (IOException | RuntimeException e) {
+      LOG.debug(e, "Could not use recorded raw nodes for %s.", buildFile);
+    }
+    invalidate(buildFile);
+    return Optional.absent();
+  }
+
+  /**
+   * Records the raw nodes produced by evaluating {@code buildFile}, which read the given files and
+   * config options, and whose globs looked at the given directories.
+   */
+  void put(
+      Cell cell,
+      Path buildFile,
+      ImmutableList<Map<String, Object>> rawNodes,
+      Iterable<Path> includes,
+      Iterable<Path> globbedDirectories,
+      ImmutableMap<String, ImmutableMap<String, Optional<String>>> configs) {
+    long racyAfter = System.currentTimeMillis() - RACY_MODIFICATION_WINDOW_MILLIS;
+    try {
+      ImmutableSortedMap.Builder<String, String> hashes = ImmutableSortedMap.naturalOrder();
+      for (Path include : ImmutableSortedSet.copyOf(includes)) {
+        if (Files.getLastModifiedTime(include).toMillis() > racyAfter) {
+          return;
+        }
+        hashes.put(include.toString(), getHash(include).toString());
+      }
+      ImmutableSortedMap<String, Long> directories =
+          stampDirectories(cell, buildFile.getParent(), globbedDirectories);
+      for (long modified : directories.values()) {
+        if (modified > racyAfter) {
+          return;
+        }
+      }
+
+      ImmutableSortedMap.Builder<String, Object> configValues = ImmutableSortedMap.naturalOrder();
+      for (Map.Entry<String, ImmutableMap<String, Optional<String>>> section :
+          configs.entrySet()) {
+        Map<String, String> values = new TreeMap<>();
+        for (Map.Entry<String, Optional<String>> value : section.getValue().entrySet()) {
+          values.put(value.getKey(), value.getValue().orNull());
+        }
+        configValues.put(section.getKey(), values);
+      }
+
+      byte[] record = encode(
+          ImmutableMap.<String, Object>of(
+              KEY, cellKeys.getUnchecked(cell),
+              HASHES, hashes.build(),
+              DIRECTORIES, directories,
+              CONFIGS, configValues.build(),
+              NODES, rawNodes));
+      synchronized (this) {
+        getRecords().put(buildFile, record);
+        changed.add(buildFile);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.debug(e, "Could not record raw nodes for %s.", buildFile);
+    }
+  }
+
+  /**
+   * Drops anything recorded for {@code buildFile}.
+   */
+  synchronized void invalidate(Path buildFile) {
+    if (getRecords().remove(buildFile) != null) {
+      changed.add(buildFile);
+    }
+  }
+
+  /**
+   * Writes out the records of build files which have changed since the store was last read or
+   * written.
+   */
+  public synchronized void flush() {
+    if (changed.isEmpty()) {
+      return;
+    }
+    ConcurrentMap<Path, byte[]> records = getRecords();
+    try {
+      if (appendable &&
+          Files.isRegularFile(path) &&
+          recordCount + changed.size() <= 2 * records.size()) {
+        append(records);
+      } else {
+        rewrite(records);
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Could not write parse cache to %s.", path);
+      appendable = false;
+    } finally {
+      changed.clear();
+    }
+  }
+
+  @GuardedBy("this")
+  private void append(Map<Path, byte[]> records) throws IOException {
+    // Write everything at once, so that the file is never left with only some of the records.
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    for (Path buildFile : changed) {
+      writeRecord(output, buildFile, records.get(buildFile));
+    }
+    try (OutputStream stream = Files.newOutputStream(path, StandardOpenOption.APPEND)) {
+      bytes.writeTo(stream);
+    }
+    recordCount += changed.size();
+  }
+
+  @GuardedBy("this")
+  private void rewrite(Map<Path, byte[]> records) throws IOException {
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    Files.createDirectories(path.getParent());
+    try (DataOutputStream output =
+             new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      for (Map.Entry<Path, byte[]> record : records.entrySet()) {
+        writeRecord(output, record.getKey(), record.getValue());
+      }
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    recordCount = records.size();
+    appendable = true;
+  }
+
+  private static void writeRecord(
+      DataOutputStream output,
+      Path buildFile,
+      @Nullable byte[] record) throws IOException {
+    output.writeUTF(buildFile.toString());
+    if (record == null) {
+      output.writeInt(REMOVED);
+    } else {
+      output.writeInt(record.length);
+      output.write(record);
+    }
+  }
+
+  @Override
+  public void close() {
+    flush();
+  }
+
+  private synchronized ConcurrentMap<Path, byte[]> getRecords() {
+    if (records == null) {
+      records = read();
+    }
+    return records;
+  }
+
+  @GuardedBy("this")
+  private ConcurrentMap<Path, byte[]> read() {
+    ConcurrentMap<Path, byte[]> read = new ConcurrentHashMap<>();
+    recordCount = 0;
+    appendable = false;
+    if (!Files.isRegularFile(path)) {
+      return read;
+    }
+    try (DataInputStream input =
+             new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(path)))) {
+      if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+        LOG.info("Ignoring parse cache %s written by a different version of Buck.", path);
+        return read;
+      }
+      while (input.available() > 0) {
+        Path buildFile = Paths.get(input.readUTF());
+        int length = input.readInt();
+        if (length == REMOVED) {
+          read.remove(buildFile);
+        } else {
+          byte[] record = new byte[length];
+          input.readFully(record);
+          read.put(buildFile, record);
+        }
+        recordCount++;
+      }
+      appendable = true;
+      LOG.debug("Read %d build files from parse cache %s.", read.size(), path);
+      return read;
+    } catch (EOFException e) {
+      // The last write was cut short.  Everything before it is still good, and the next flush
+      // rewrites the store without the partial record.
+      LOG.info("Dropping a partially written record from parse cache %s.", path);
+      return read;
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Could not read parse cache from %s, starting afresh.", path);
+      read.clear();
+      return read;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private boolean isUpToDate(Cell cell, Map<String, Object> contents) throws IOException {
+    if (!cellKeys.getUnchecked(cell).equals(contents.get(KEY))) {
+      return false;
+    }
+
+    Map<String, Map<String, String>> configs =
+        (Map<String, Map<String, String>>) contents.get(CONFIGS);
+    for (Map.Entry<String, Map<String, String>> section : configs.entrySet()) {
+      for (Map.Entry<String, String> value : section.getValue().entrySet()) {
+        if (!cell.getBuckConfig().getValue(section.getKey(), value.getKey())
+            .equals(Optional.fromNullable(value.getValue()))) {
+          return false;
+        }
+      }
+    }
+
+    Map<String, Number> directories = (Map<String, Number>) contents.get(DIRECTORIES);
+    for (Map.Entry<String, Number> directory : directories.entrySet()) {
+      Path dir = Paths.get(directory.getKey());
+      if (!Files.isDirectory(dir) ||
+          Files.getLastModifiedTime(dir).toMillis() != directory.getValue().longValue()) {
+        return false;
+      }
+    }
+
+    Map<String, String> hashes = (Map<String, String>) contents.get(HASHES);
+    for (Map.Entry<String, String> hash : hashes.entrySet()) {
+      Path include = Paths.get(hash.getKey());
+      if (!Files.isRegularFile(include) || !getHash(include).toString().equals(hash.getValue())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private HashCode getHash(Path file) throws IOException {
+    if (fileHashCache.willGet(file)) {
+      return fileHashCache.get(file);
+    }
+    return com.google.common.io.Files.asByteSource(file.toFile()).hash(Hashing.sha1());
+  }
+
+  /**
+   * Stamps each of the directories that the globs of the package rooted at {@code packageDir}
+   * looked at with the time it was last modified, which changes whenever a file is added to or
+   * removed from it.  As with the invalidation done by {@link DaemonicParserState} on watch
+   * events, ignored directories, and those of nested packages if package boundaries are enforced,
+   * aren't stamped.
+   */
+  private static ImmutableSortedMap<String, Long> stampDirectories(
+      Cell cell,
+      Path packageDir,
+      Iterable<Path> globbedDirectories) throws IOException {
+    ImmutableSortedMap.Builder<String, Long> stamps = ImmutableSortedMap.naturalOrder();
+    Map<Path, Boolean> watched = new HashMap<>();
+    for (Path dir : globbedDirectories) {
+      if (isWatched(cell, packageDir, dir, watched)) {
+        stamps.put(dir.toString(), Files.getLastModifiedTime(dir).toMillis());
+      }
+    }
+    return stamps.build();
+  }
+
+  private static boolean isWatched(
+      Cell cell,
+      Path packageDir,
+      Path dir,
+      Map<Path, Boolean> watched) {
+    if (dir.equals(packageDir) || !dir.startsWith(packageDir)) {
+      return true;
+    }
+    Boolean isWatched = watched.get(dir);
+    if (isWatched == null) {
+      ProjectFilesystem filesystem = cell.getFilesystem();
+      Optional<Path> relative = filesystem.getPathRelativeToProjectRoot(dir);
+      isWatched =
+          !(relative.isPresent() && filesystem.isIgnored(relative.get())) &&
+          !(cell.isEnforcingBuckPackageBoundaries() &&
+              Files.isRegularFile(dir.resolve(cell.getBuildFileName()))) &&
+          isWatched(cell, packageDir, dir.getParent(), watched);
+      watched.put(dir, isWatched);
+    }
+    return isWatched;
+  }
+
+  /**
+   * @return a key for everything outside of the build files themselves that affects the raw nodes
+   *     they evaluate to.
+   */
+  private static String computeCellKey(Cell cell) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(BuckVersion.getVersion(), UTF_8);
+    hasher.putString(cell.getRoot().toString(), UTF_8);
+    for (Map.Entry<String, String> entry :
+        ImmutableSortedMap.copyOf(cell.getBuckConfig().getFilteredEnvironment()).entrySet()) {
+      hasher.putString(entry.getKey(), UTF_8).putByte((byte) 0);
+      hasher.putString(entry.getValue(), UTF_8).putByte((byte) 0);
+    }
+    ParserConfig parserConfig = new ParserConfig(cell.getBuckConfig());
+    hasher.putString(parserConfig.getBuildFileName(), UTF_8).putByte((byte) 0);
+    for (String include : parserConfig.getDefaultIncludes()) {
+      hasher.putString(include, UTF_8).putByte((byte) 0);
+    }
+    hasher.putBoolean(parserConfig.getAllowEmptyGlobs());
+    hasher.putString(parserConfig.getGlobHandler().toString(), UTF_8).putByte((byte) 0);
+    hasher.putString(parserConfig.getAllowSymlinks().toString(), UTF_8).putByte((byte) 0);
+    hasher.putBoolean(parserConfig.getEnforceBuckPackageBoundary());
+    ImmutableSortedSet.Builder<String> types = ImmutableSortedSet.naturalOrder();
+    for (Description<?> description : cell.getAllDescriptions()) {
+      types.add(description.getBuildRuleType().getName());
+    }
+    for (String type : types.build()) {
+      hasher.putString(type, UTF_8).putByte((byte) 0);
+    }
+    return hasher.hash().toString();
+  }
+
+  private static byte[] encode(Map<String, Object> contents) throws IOException {
+    ByteBuffer buffer = new BserSerializer().serializeToBuffer(
+        contents,
+        ByteBuffer.allocate(4096).order(ByteOrder.nativeOrder()));
+    byte[] encoded = new byte[buffer.position()];
+    buffer.flip();
+    buffer.get(encoded);
+    return encoded;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> decode(byte[] record) throws IOException {
+    InputStream input = new ByteArrayInputStream(record);
+    Object decoded = new BserDeserializer(BserDeserializer.KeyOrdering.SORTED)
+        .deserializeBserValue(input);
+    if (!(decoded instanceof Map) || input.read() != -1) {
+      throw new EOFException("Malformed parse cache record.");
+    }
+    return (Map<String, Object>) decoded;
+  }
+}
@@ -16,6 +16,8 @@
 
 package com.facebook.buck.parser;
 
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.IntegerCounter;
 import com.facebook.buck.json.BuildFileParseException;
 import com.facebook.buck.json.ProjectBuildFileParser;
 import com.facebook.buck.log.Logger;
@@ -27,6 +29,7 @@ import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Multimap;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
@@ -34,15 +37,19 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.SettableFuture;
 
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.concurrent.GuardedBy;
@@ -54,11 +61,18 @@ import javax.annotation.concurrent.GuardedBy;
  * requested the associated 'requests' are queued up in the parserRequests field. As soon as
  * a parser is returned it will be used to satisfy the first pending request, otherwise it
  * is stored in the parkedParsers queue.
+ *
+ * The number of parsers can follow the load: a returned parser is then shut down instead of being
+ * parked when nothing is waiting for one and there are already as many idle parsers as busy ones. A
+ * minimum number of parsers per cell can be started ahead of time with {@link #warmUp}, so that
+ * starting the Python interpreters overlaps with whatever happens before parsing begins.
  */
 class ProjectBuildFileParserPool implements AutoCloseable {
   private static final Logger LOG = Logger.get(ProjectBuildFileParserPool.class);
 
+  private final int minParsersPerCell;
   private final int maxParsersPerCell;
+  private final boolean shutDownIdleParsers;
   @GuardedBy("this")
   private final Function<Cell, ProjectBuildFileParser> parserFactory;
   @GuardedBy("this")
@@ -70,23 +84,95 @@ class ProjectBuildFileParserPool implements AutoCloseable {
   private final AtomicBoolean closing;
   @GuardedBy("this")
   private final Set<ListenableFuture<?>> pendingWork;
+  @GuardedBy("this")
+  private final Map<ProjectBuildFileParser, ParserStats> parserStats;
+  private final Counters counters;
 
   /**
+   * Creates a pool that keeps every parser it starts until it is closed.
+   *
    * @param maxParsersPerCell maximum number of parsers to create for a single cell.
    * @param parserFactory function used to create a new parser.
    */
   public ProjectBuildFileParserPool(
       int maxParsersPerCell,
       Function<Cell, ProjectBuildFileParser> parserFactory) {
+    this(
+        /* minParsersPerCell */ 0,
+        maxParsersPerCell,
+        /* shutDownIdleParsers */ false,
+        parserFactory,
+        new Counters("buck_parser_pool"));
+  }
+
+  /**
+   * @param minParsersPerCell number of parsers {@link #warmUp} starts for a cell, and below which
+   *     idle parsers are not shut down.
+   * @param maxParsersPerCell maximum number of parsers to create for a single cell.
+   * @param parserFactory function used to create a new parser.
+   * @param counters where to record how many parsers were started and how much they parsed.
+   */
+  public ProjectBuildFileParserPool(
+      int minParsersPerCell,
+      int maxParsersPerCell,
+      Function<Cell, ProjectBuildFileParser> parserFactory,
+      Counters counters) {
+    this(
+        minParsersPerCell,
+        maxParsersPerCell,
+        /* shutDownIdleParsers */ true,
+        parserFactory,
+        counters);
+  }
+
+  private ProjectBuildFileParserPool(
+      int minParsersPerCell,
+      int maxParsersPerCell,
+      boolean shutDownIdleParsers,
+      Function<Cell, ProjectBuildFileParser> parserFactory,
+      Counters counters) {
     Preconditions.checkArgument(maxParsersPerCell > 0);
+    Preconditions.checkArgument(minParsersPerCell >= 0);
 
+    this.minParsersPerCell = Math.min(minParsersPerCell, maxParsersPerCell);
     this.maxParsersPerCell = maxParsersPerCell;
+    this.shutDownIdleParsers = shutDownIdleParsers;
     this.parserFactory = parserFactory;
     this.createdParsers = ArrayListMultimap.create();
     this.parkedParsers = new HashMap<>();
     this.parserRequests = new HashMap<>();
     this.closing = new AtomicBoolean(false);
     this.pendingWork = new HashSet<>();
+    this.parserStats = new IdentityHashMap<>();
+    this.counters = counters;
+  }
+
+  /**
+   * Starts parsers for the given cell until it has at least the minimum number of them. The
+   * parsers' interpreters are launched on the given executor, and the parsers only become
+   * available to requests once they have been launched.
+   */
+  public synchronized void warmUp(final Cell cell, ListeningExecutorService executorService) {
+    Preconditions.checkState(!closing.get());
+
+    while (createdParsers.get(cell).size() < minParsersPerCell) {
+      final ProjectBuildFileParser parser = createParser(cell);
+      final ListenableFuture<Void> futureWork = executorService.submit(
+          new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+              boolean failedToStart = true;
+              try {
+                parser.initIfNeeded();
+                failedToStart = false;
+              } finally {
+                returnParser(cell, parser, failedToStart, /* parseNanos */ 0);
+              }
+              return null;
+            }
+          });
+      trackPendingWork(futureWork, executorService);
+    }
   }
 
   /**
@@ -116,6 +202,7 @@ class ProjectBuildFileParserPool implements AutoCloseable {
             if (parserRequest.isLeft()) {
               ProjectBuildFileParser parser = parserRequest.getLeft();
               boolean hadErrorDuringParsing = false;
+              long start = System.nanoTime();
               try {
                 return Futures.immediateFuture(
                     ImmutableList.copyOf(parser.getAllRulesAndMetaRules(buildFile)));
@@ -123,7 +210,7 @@ class ProjectBuildFileParserPool implements AutoCloseable {
                 hadErrorDuringParsing = true;
                 throw e;
               } finally {
-                returnParser(cell, parser, hadErrorDuringParsing);
+                returnParser(cell, parser, hadErrorDuringParsing, System.nanoTime() - start);
               }
             } else {
               return Futures.transformAsync(parserRequest.getRight(), this, executorService);
@@ -132,6 +219,16 @@ class ProjectBuildFileParserPool implements AutoCloseable {
         },
         executorService);
 
+    trackPendingWork(futureWork, executorService);
+
+    // If someone else calls cancel on `futureWork` it makes it impossible to wait for that future
+    // to finish using the parser.
+    return Futures.nonCancellationPropagating(futureWork);
+  }
+
+  private synchronized void trackPendingWork(
+      final ListenableFuture<?> futureWork,
+      ListeningExecutorService executorService) {
     pendingWork.add(futureWork);
     futureWork.addListener(
         new Runnable() {
@@ -143,10 +240,6 @@ class ProjectBuildFileParserPool implements AutoCloseable {
           }
         },
         executorService);
-
-    // If someone else calls cancel on `futureWork` it makes it impossible to wait for that future
-    // to finish using the parser.
-    return Futures.nonCancellationPropagating(futureWork);
   }
 
   private synchronized ListenableFuture<Void> initialSchedule(Cell cell) {
@@ -205,14 +298,30 @@ class ProjectBuildFileParserPool implements AutoCloseable {
   private synchronized void returnParser(
       Cell cell,
       ProjectBuildFileParser parser,
-      boolean parserIsDefunct) {
+      boolean parserIsDefunct,
+      long parseNanos) {
+    ParserStats stats = Preconditions.checkNotNull(parserStats.get(parser));
+    if (parseNanos > 0) {
+      stats.buildFilesParsed++;
+      stats.parseNanos += parseNanos;
+      counters.buildFilesParsed.inc();
+      counters.parseTimeMs.inc(TimeUnit.NANOSECONDS.toMillis(parseNanos));
+    }
+
     if (parserIsDefunct) {
-      createdParsers.remove(cell, parser);
+      stopParser(cell, parser);
       try {
         parser.close();
       } catch (Exception e) {
         LOG.info(e, "Error shutting down a defunct parser.");
       }
+    } else if (isSurplus(cell)) {
+      stopParser(cell, parser);
+      try {
+        parser.close();
+      } catch (Exception e) {
+        LOG.info(e, "Error shutting down an idle parser.");
+      }
     } else {
       Deque<ProjectBuildFileParser> parkedParsersQueue = getParkedParserQueue(cell);
       parkedParsersQueue.add(parser);
@@ -220,6 +329,44 @@ class ProjectBuildFileParserPool implements AutoCloseable {
     scheduleNextRequest(cell);
   }
 
+  /**
+   * @return whether a parser being returned for the given cell isn't needed: nothing is waiting for
+   *     one and there are already as many idle parsers as busy ones.
+   */
+  private synchronized boolean isSurplus(Cell cell) {
+    if (!shutDownIdleParsers || closing.get()) {
+      return false;
+    }
+    Deque<SettableFuture<Void>> requestsQueue = parserRequests.get(cell);
+    if (requestsQueue != null && !requestsQueue.isEmpty()) {
+      return false;
+    }
+    int created = createdParsers.get(cell).size();
+    if (created <= Math.max(minParsersPerCell, 1)) {
+      return false;
+    }
+    int parked = getParkedParserQueue(cell).size();
+    // The parser being returned is neither parked nor busy.
+    int busy = created - parked - 1;
+    return parked >= Math.max(busy, 1);
+  }
+
+  private synchronized void stopParser(Cell cell, ProjectBuildFileParser parser) {
+    createdParsers.remove(cell, parser);
+    logStats(parser, Preconditions.checkNotNull(parserStats.remove(parser)));
+    counters.parsersStopped.inc();
+  }
+
+  private static void logStats(ProjectBuildFileParser parser, ParserStats stats) {
+    long parseMillis = TimeUnit.NANOSECONDS.toMillis(stats.parseNanos);
+    LOG.debug(
+        "Parser %s parsed %d build files in %d ms (%s files/s).",
+        parser,
+        stats.buildFilesParsed,
+        parseMillis,
+        parseMillis == 0 ? "-" : String.valueOf(stats.buildFilesParsed * 1000 / parseMillis));
+  }
+
   private synchronized void scheduleNextRequest(Cell cell) {
     if (!parserRequests.containsKey(cell)) {
       return;
@@ -246,9 +393,15 @@ class ProjectBuildFileParserPool implements AutoCloseable {
     if (!allowedToCreateParser(cell)) {
       return Optional.absent();
     }
+    return Optional.of(createParser(cell));
+  }
+
+  private synchronized ProjectBuildFileParser createParser(Cell cell) {
     ProjectBuildFileParser parser = Preconditions.checkNotNull(parserFactory.apply(cell));
     createdParsers.put(cell, parser);
-    return Optional.of(parser);
+    parserStats.put(parser, new ParserStats());
+    counters.parsersStarted.inc();
+    return parser;
   }
 
   @Override
@@ -296,7 +449,12 @@ class ProjectBuildFileParserPool implements AutoCloseable {
             // Now that pending work is done we can close all parsers.
             for (Map.Entry<Cell, ProjectBuildFileParser> createdParserEntry :
                 createdParsers.entries()) {
-              createdParserEntry.getValue().close();
+              ProjectBuildFileParser parser = createdParserEntry.getValue();
+              ParserStats stats = parserStats.get(parser);
+              if (stats != null) {
+                logStats(parser, stats);
+              }
+              parser.close();
             }
             for (Map.Entry<Cell, Deque<SettableFuture<Void>>> cellDequeEntry :
                 parserRequests.entrySet()) {
@@ -312,4 +470,49 @@ class ProjectBuildFileParserPool implements AutoCloseable {
         },
         executorService);
   }
+
+  /**
+   * How much a single parser has been used.
+   */
+  private static class ParserStats {
+    private int buildFilesParsed;
+    private long parseNanos;
+  }
+
+  /**
+   * Counters describing the parsers of a pool, across all the cells it serves.
+   */
+  public static class Counters {
+    private final IntegerCounter parsersStarted;
+    private final IntegerCounter parsersStopped;
+    private final IntegerCounter buildFilesParsed;
+    private final IntegerCounter parseTimeMs;
+
+    public Counters(String category) {
+      this.parsersStarted = new IntegerCounter(
+          category,
+          "build_file_parsers_started",
+          ImmutableMap.<String, String>of());
+      this.parsersStopped = new IntegerCounter(
+          category,
+          "build_file_parsers_stopped",
+          ImmutableMap.<String, String>of());
+      this.buildFilesParsed = new IntegerCounter(
+          category,
+          "build_files_parsed",
+          ImmutableMap.<String, String>of());
+      this.parseTimeMs = new IntegerCounter(
+          category,
+          "build_file_parse_time_ms",
+          ImmutableMap.<String, String>of());
+    }
+
+    public ImmutableList<Counter> getCounters() {
+      return ImmutableList.<Counter>of(
+          parsersStarted,
+          parsersStopped,
+          buildFilesParsed,
+          parseTimeMs);
+    }
+  }
 }
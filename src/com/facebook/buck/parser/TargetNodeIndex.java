@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.TargetNode;
+import com.google.common.base.Optional;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.SetMultimap;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An index of the target nodes cached by {@link DaemonicParserState}, kept up to date as nodes are
+ * cached and invalidated, which answers the questions the daemon is asked most often without
+ * going over every node or building a target graph:
+ * <ul>
+ *   <li>which nodes take a file as an input, and</li>
+ *   <li>which nodes depend on a target.</li>
+ * </ul>
+ * It also remembers which nodes have been part of a target graph built since they were cached,
+ * meaning that their deps exist and are visible to them, so that the transitive closure of such
+ * nodes can be handed out without going through the parser.
+ */
+public class TargetNodeIndex {
+
+  @GuardedBy("this")
+  private final Map<BuildTarget, TargetNode<?>> nodes = new HashMap<>();
+
+  /**
+   * Nodes by the absolute paths of their inputs.
+   */
+  @GuardedBy("this")
+  private final SetMultimap<Path, TargetNode<?>> nodesByInput = HashMultimap.create();
+
+  /**
+   * Nodes by the targets they depend on.
+   */
+  @GuardedBy("this")
+  private final SetMultimap<BuildTarget, TargetNode<?>> nodesByDep = HashMultimap.create();
+
+  /**
+   * The targets of the nodes whose edges have been checked by building a target graph.
+   */
+  @GuardedBy("this")
+  private final Set<BuildTarget> checkedTargets = new HashSet<>();
+
+  synchronized void add(TargetNode<?> node) {
+    TargetNode<?> previous = nodes.put(node.getBuildTarget(), node);
+    if (previous != null) {
+      unindex(previous);
+    }
+    for (Path input : node.getInputs()) {
+      nodesByInput.put(resolveInput(node, input), node);
+    }
+    for (BuildTarget dep : node.getDeps()) {
+      nodesByDep.put(dep, node);
+    }
+  }
+
+  synchronized void remove(TargetNode<?> node) {
+    if (nodes.get(node.getBuildTarget()) != node) {
+      return;
+    }
+    nodes.remove(node.getBuildTarget());
+    unindex(node);
+  }
+
+  @GuardedBy("this")
+  private void unindex(TargetNode<?> node) {
+    for (Path input : node.getInputs()) {
+      nodesByInput.remove(resolveInput(node, input), node);
+    }
+    for (BuildTarget dep : node.getDeps()) {
+      nodesByDep.remove(dep, node);
+    }
+    checkedTargets.remove(node.getBuildTarget());
+    // Whatever replaces the node may not be visible to the nodes depending on it.
+    for (TargetNode<?> dependent : nodesByDep.get(node.getBuildTarget())) {
+      checkedTargets.remove(dependent.getBuildTarget());
+    }
+  }
+
+  synchronized void clear() {
+    nodes.clear();
+    nodesByInput.clear();
+    nodesByDep.clear();
+    checkedTargets.clear();
+  }
+
+  /**
+   * Records that the edges from {@code node} to {@code deps} have been checked, provided that they
+   * are still the nodes cached for their targets.
+   */
+  synchronized void markChecked(TargetNode<?> node, Iterable<TargetNode<?>> deps) {
+    if (nodes.get(node.getBuildTarget()) != node) {
+      return;
+    }
+    for (TargetNode<?> dep : deps) {
+      if (nodes.get(dep.getBuildTarget()) != dep) {
+        return;
+      }
+    }
+    checkedTargets.add(node.getBuildTarget());
+  }
+
+  /**
+   * @return the nodes which take {@code path}, or a directory containing it, as an input.
+   */
+  public synchronized ImmutableSet<TargetNode<?>> getOwners(Path path) {
+    ImmutableSet.Builder<TargetNode<?>> owners = ImmutableSet.builder();
+    for (Path current = path; current != null; current = current.getParent()) {
+      owners.addAll(nodesByInput.get(current));
+    }
+    return owners.build();
+  }
+
+  /**
+   * @return the nodes which depend on {@code target} directly.
+   */
+  public synchronized ImmutableSet<TargetNode<?>> getReverseDeps(BuildTarget target) {
+    return ImmutableSet.copyOf(nodesByDep.get(target));
+  }
+
+  /**
+   * @return the nodes of the transitive closure of {@code targets}, by target, or nothing if any
+   *     of them isn't cached or hasn't been checked as part of a target graph.
+   */
+  public synchronized Optional<ImmutableMap<BuildTarget, TargetNode<?>>> getTransitiveClosure(
+      Iterable<BuildTarget> targets) {
+    Map<BuildTarget, TargetNode<?>> closure = new LinkedHashMap<>();
+    Deque<BuildTarget> toVisit = new ArrayDeque<>();
+    for (BuildTarget target : targets) {
+      toVisit.add(target);
+    }
+    while (!toVisit.isEmpty()) {
+      BuildTarget target = toVisit.remove();
+      if (closure.containsKey(target)) {
+        continue;
+      }
+      TargetNode<?> node = nodes.get(target);
+      if (node == null || !checkedTargets.contains(target)) {
+        return Optional.absent();
+      }
+      closure.put(target, node);
+      toVisit.addAll(node.getDeps());
+    }
+    return Optional.of(ImmutableMap.copyOf(closure));
+  }
+
+  private static Path resolveInput(TargetNode<?> node, Path input) {
+    return node.getRuleFactoryParams().getProjectFilesystem().resolve(input);
+  }
+}
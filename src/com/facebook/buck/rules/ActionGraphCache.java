@@ -22,8 +22,13 @@ import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.PerfEventId;
 import com.facebook.buck.event.SimplePerfEvent;
 import com.facebook.buck.graph.AbstractBottomUpTraversal;
+import com.facebook.buck.graph.AcyclicDepthFirstPostOrderTraversal;
+import com.facebook.buck.graph.GraphTraversable;
+import com.facebook.buck.hashing.StringHashing;
 import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.Pair;
+import com.facebook.buck.model.UnflavoredBuildTarget;
 import com.facebook.buck.parser.NoSuchBuildTargetException;
 import com.facebook.buck.rules.keys.ContentAgnosticRuleKeyBuilderFactory;
 import com.facebook.buck.util.HumanReadableException;
@@ -31,14 +36,26 @@ import com.facebook.buck.util.concurrent.MoreExecutors;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.eventbus.Subscribe;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -46,11 +63,15 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
 /**
- * Class that transforms {@link TargetGraph} to {@link ActionGraph}. It also holds a cache for the
- * last ActionGraph it generated.
+ * Class that transforms {@link TargetGraph} to {@link ActionGraph}. It also holds a cache of the
+ * ActionGraphs it generated most recently, keyed by the structure of their TargetGraphs.
+ * <p>
+ * The cache always keeps the last ActionGraph, and as many of the others as fit in a budget
+ * measured in build rules, which stand in for the memory the graphs take up.  The least recently
+ * used graphs are evicted first.
  */
 public class ActionGraphCache {
   private static final Logger LOG = Logger.get(ActionGraphCache.class);
@@ -58,21 +79,44 @@ public class ActionGraphCache {
   private static final String COUNTER_CATEGORY = "buck_action_graph_cache";
   private static final String CACHE_HIT_COUNTER_NAME = "cache_hit";
   private static final String CACHE_MISS_COUNTER_NAME = "cache_miss";
+  private static final String INCREMENTAL_UPDATE_COUNTER_NAME = "incremental_update";
+  private static final String EVICTION_COUNTER_NAME = "eviction";
   private static final String NEW_AND_CACHED_ACTIONGRAPHS_MISMATCH_NAME =
       "new_and_cached_actiongraphs_mismatch";
 
   private final IntegerCounter cacheHitCounter;
   private final IntegerCounter cacheMissCounter;
+  private final IntegerCounter incrementalUpdateCounter;
+  private final IntegerCounter evictionCounter;
   private final IntegerCounter actionGraphsMismatch;
 
   private static final int MAX_MISMATCH_RULES_TO_PRINT = 10;
 
-  @Nullable
-  private Pair<TargetGraph, ActionGraphAndResolver> lastActionGraph;
+  private static final GraphTraversable<BuildRule> RULE_DEPS_TRAVERSABLE =
+      new GraphTraversable<BuildRule>() {
+        @Override
+        public Iterator<BuildRule> findChildren(BuildRule rule) {
+          return getRuleDeps(rule).iterator();
+        }
+      };
+
+  // From the least to the most recently used.
+  @GuardedBy("this")
+  private final LinkedHashMap<HashCode, CacheEntry> cachedActionGraphs;
+  @GuardedBy("this")
+  private long cachedRules;
+  private final long maxCachedRules;
   // RuleKey checking is done in a separate thread so it doesn't slow down critical path by much.
   private ExecutorService checkExecutor;
   private AtomicBoolean checkAlreadyRunning;
+  // Whether a miss reuses the rules of the parts of the last target graph that haven't changed.
+  private final boolean incremental;
+
   public ActionGraphCache() {
+    this(/* incremental */ false, /* maxCachedRules */ 0);
+  }
+
+  public ActionGraphCache(boolean incremental, long maxCachedRules) {
     // Setting corePoolSize to 0 kills the thread every time the checking task is finished.
     // Setting thread priority to minimum so it doesn't content with buck's main work.
     this(new ThreadPoolExecutor(
@@ -83,10 +127,25 @@ public class ActionGraphCache {
         /* threadFactory */ new MoreExecutors.NamedAndPriorityThreadFactory(
             "ActionGraphCache-RuleCheck",
             Thread.MIN_PRIORITY),
-        /* handler */ new ThreadPoolExecutor.DiscardPolicy()));
+        /* handler */ new ThreadPoolExecutor.DiscardPolicy()),
+        incremental,
+        maxCachedRules);
   }
 
   public ActionGraphCache(ExecutorService checkExecutor) {
+    this(checkExecutor, /* incremental */ false, /* maxCachedRules */ 0);
+  }
+
+  /**
+   * @param incremental whether a miss reuses the rules of the parts of the last ActionGraph whose
+   *     targets haven't changed.
+   * @param maxCachedRules how many build rules the ActionGraphs kept besides the last one may
+   *     have between them.
+   */
+  public ActionGraphCache(
+      ExecutorService checkExecutor,
+      boolean incremental,
+      long maxCachedRules) {
     this.cacheHitCounter = new IntegerCounter(
         COUNTER_CATEGORY,
         CACHE_HIT_COUNTER_NAME,
@@ -95,12 +154,26 @@ public class ActionGraphCache {
         COUNTER_CATEGORY,
         CACHE_MISS_COUNTER_NAME,
         ImmutableMap.<String, String>of());
+    this.incrementalUpdateCounter = new IntegerCounter(
+        COUNTER_CATEGORY,
+        INCREMENTAL_UPDATE_COUNTER_NAME,
+        ImmutableMap.<String, String>of());
+    this.evictionCounter = new IntegerCounter(
+        COUNTER_CATEGORY,
+        EVICTION_COUNTER_NAME,
+        ImmutableMap.<String, String>of());
     this.actionGraphsMismatch = new IntegerCounter(
         COUNTER_CATEGORY,
         NEW_AND_CACHED_ACTIONGRAPHS_MISMATCH_NAME,
         ImmutableMap.<String, String>of());
     this.checkExecutor = checkExecutor;
     this.checkAlreadyRunning = new AtomicBoolean(false);
+    this.incremental = incremental;
+    this.cachedActionGraphs = new LinkedHashMap<>(
+        /* initialCapacity */ 16,
+        /* loadFactor */ 0.75f,
+        /* accessOrder */ true);
+    this.maxCachedRules = maxCachedRules;
   }
 
   /**
@@ -111,37 +184,94 @@ public class ActionGraphCache {
    * @param targetGraph the target graph that the action graph will be based on.
    * @return a {@link ActionGraphAndResolver}
    */
-  public ActionGraphAndResolver getActionGraph(
+  public synchronized ActionGraphAndResolver getActionGraph(
       final BuckEventBus eventBus,
       final boolean checkActionGraphs,
       final TargetGraph targetGraph) {
     ActionGraphEvent.Started started = ActionGraphEvent.started();
     eventBus.post(started);
     try {
-      if (lastActionGraph != null && lastActionGraph.getFirst().equals(targetGraph)) {
+      HashCode key = getTargetGraphKey(targetGraph);
+      CacheEntry entry = cachedActionGraphs.get(key);
+      if (entry != null) {
+        entry.hits++;
         cacheHitCounter.inc();
-        LOG.info("ActionGraph cache hit.");
+        LOG.info(
+            "ActionGraph cache hit on an entry of %d rules, hit %d times.",
+            entry.ruleCount,
+            entry.hits);
         if (checkActionGraphs) {
-          spawnThreadToCompareActionGraphs(eventBus, lastActionGraph.getSecond(), targetGraph);
+          spawnThreadToCompareActionGraphs(eventBus, entry.actionGraphAndResolver, targetGraph);
         }
       } else {
         cacheMissCounter.inc();
-        if (lastActionGraph == null) {
+        ImmutableList<BuildRule> reusableRules = ImmutableList.of();
+        if (cachedActionGraphs.isEmpty()) {
           LOG.info("ActionGraph cache miss. Cache was empty.");
         } else {
-          LOG.info("ActionGraph cache miss. TargetGraphs mismatched.");
+          LOG.info(
+              "ActionGraph cache miss. TargetGraph matched none of the %d cached.",
+              cachedActionGraphs.size());
+          if (incremental) {
+            reusableRules = getReusableRules(
+                Iterables.getLast(cachedActionGraphs.values()),
+                targetGraph);
+          }
         }
-        lastActionGraph = new Pair<TargetGraph, ActionGraphAndResolver>(
+        entry = new CacheEntry(
             targetGraph,
             createActionGraph(
                 eventBus,
                 new DefaultTargetNodeToBuildRuleTransformer(),
-                targetGraph));
+                targetGraph,
+                reusableRules));
+        cachedActionGraphs.put(key, entry);
+        cachedRules += entry.ruleCount;
+        evictLeastRecentlyUsed();
+        if (!reusableRules.isEmpty()) {
+          incrementalUpdateCounter.inc();
+          LOG.info("Reused %d rules of the previous ActionGraph.", reusableRules.size());
+          if (checkActionGraphs) {
+            spawnThreadToCompareActionGraphs(eventBus, entry.actionGraphAndResolver, targetGraph);
+          }
+        }
       }
+      return entry.actionGraphAndResolver;
     } finally {
       eventBus.post(ActionGraphEvent.finished(started));
     }
-    return lastActionGraph.getSecond();
+  }
+
+  /**
+   * @return a hash of every node in {@code targetGraph} and the edges between them, which doesn't
+   *     depend on the contents of their input files since ActionGraphs don't either.
+   */
+  private static HashCode getTargetGraphKey(TargetGraph targetGraph) {
+    ImmutableMap<BuildTarget, HashCode> hashes =
+        TargetGraphHashing.hashTargetGraphStructure(targetGraph, targetGraph.getNodes());
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (Map.Entry<BuildTarget, HashCode> entry :
+         ImmutableSortedMap.copyOf(hashes).entrySet()) {
+      StringHashing.hashStringAndLength(hasher, entry.getKey().toString());
+      hasher.putBytes(entry.getValue().asBytes());
+    }
+    return hasher.hash();
+  }
+
+  @GuardedBy("this")
+  private void evictLeastRecentlyUsed() {
+    CacheEntry mostRecentlyUsed = Iterables.getLast(cachedActionGraphs.values());
+    Iterator<CacheEntry> entries = cachedActionGraphs.values().iterator();
+    while (cachedRules - mostRecentlyUsed.ruleCount > maxCachedRules) {
+      CacheEntry evicted = entries.next();
+      entries.remove();
+      cachedRules -= evicted.ruleCount;
+      evictionCounter.inc();
+      LOG.info(
+          "Evicted an ActionGraph of %d rules, hit %d times, from the cache.",
+          evicted.ruleCount,
+          evicted.hits);
+    }
   }
 
   /**
@@ -174,17 +304,108 @@ public class ActionGraphCache {
     ActionGraphEvent.Started started = ActionGraphEvent.started();
     eventBus.post(started);
 
-    ActionGraphAndResolver actionGraph = createActionGraph(eventBus, transformer, targetGraph);
+    ActionGraphAndResolver actionGraph = createActionGraph(
+        eventBus,
+        transformer,
+        targetGraph,
+        ImmutableList.<BuildRule>of());
 
     eventBus.post(ActionGraphEvent.finished(started));
     return actionGraph;
   }
 
+  /**
+   * Finds the rules of {@code lastEntry} that would be created again, unchanged, for
+   * {@code targetGraph}.
+   * <p>
+   * Every rule created for a target node, including the flavored rules its description adds to the
+   * resolver, is tied to the node's unflavored target.  A target whose nodes differ from those in
+   * the last target graph has changed, and so have all the targets depending on it, since their
+   * descriptions may look at it.  The rules of the remaining targets can be reused, as long as
+   * none of their dependencies have to be created again.
+   */
+  private static ImmutableList<BuildRule> getReusableRules(
+      CacheEntry lastEntry,
+      TargetGraph targetGraph) {
+    Map<UnflavoredBuildTarget, Set<TargetNode<?>>> lastNodes =
+        getNodesByUnflavoredTarget(lastEntry.targetGraph);
+    Map<UnflavoredBuildTarget, Set<TargetNode<?>>> nodes = getNodesByUnflavoredTarget(targetGraph);
+
+    Set<UnflavoredBuildTarget> changed = new HashSet<>();
+    Deque<TargetNode<?>> toVisit = new ArrayDeque<>();
+    for (Map.Entry<UnflavoredBuildTarget, Set<TargetNode<?>>> entry : nodes.entrySet()) {
+      if (!entry.getValue().equals(lastNodes.get(entry.getKey()))) {
+        changed.add(entry.getKey());
+        toVisit.addAll(entry.getValue());
+      }
+    }
+    while (!toVisit.isEmpty()) {
+      for (TargetNode<?> dependent : targetGraph.getIncomingNodesFor(toVisit.remove())) {
+        if (changed.add(dependent.getBuildTarget().getUnflavoredBuildTarget())) {
+          toVisit.addAll(nodes.get(dependent.getBuildTarget().getUnflavoredBuildTarget()));
+        }
+      }
+    }
+
+    Iterable<BuildRule> postOrder;
+    try {
+      postOrder = new AcyclicDepthFirstPostOrderTraversal<>(RULE_DEPS_TRAVERSABLE)
+          .traverse(lastEntry.actionGraphAndResolver.getActionGraph().getNodes());
+    } catch (AcyclicDepthFirstPostOrderTraversal.CycleException e) {
+      throw new IllegalStateException(e);
+    }
+
+    Set<BuildRule> reusable = new HashSet<>();
+    ImmutableList.Builder<BuildRule> reusableRules = ImmutableList.builder();
+    for (BuildRule rule : postOrder) {
+      UnflavoredBuildTarget target = rule.getBuildTarget().getUnflavoredBuildTarget();
+      if (!nodes.containsKey(target) || changed.contains(target)) {
+        continue;
+      }
+      boolean depsReusable = true;
+      for (BuildRule dep : getRuleDeps(rule)) {
+        if (!reusable.contains(dep)) {
+          depsReusable = false;
+          break;
+        }
+      }
+      if (depsReusable) {
+        reusable.add(rule);
+        reusableRules.add(rule);
+      }
+    }
+    return reusableRules.build();
+  }
+
+  private static Map<UnflavoredBuildTarget, Set<TargetNode<?>>> getNodesByUnflavoredTarget(
+      TargetGraph targetGraph) {
+    Map<UnflavoredBuildTarget, Set<TargetNode<?>>> nodes = new HashMap<>();
+    for (TargetNode<?> node : targetGraph.getNodes()) {
+      UnflavoredBuildTarget target = node.getBuildTarget().getUnflavoredBuildTarget();
+      Set<TargetNode<?>> nodesForTarget = nodes.get(target);
+      if (nodesForTarget == null) {
+        nodesForTarget = Sets.newIdentityHashSet();
+        nodes.put(target, nodesForTarget);
+      }
+      nodesForTarget.add(node);
+    }
+    return nodes;
+  }
+
+  private static Iterable<BuildRule> getRuleDeps(BuildRule rule) {
+    if (rule instanceof HasRuntimeDeps) {
+      return Iterables.concat(rule.getDeps(), ((HasRuntimeDeps) rule).getRuntimeDeps());
+    }
+    return rule.getDeps();
+  }
+
   private static ActionGraphAndResolver createActionGraph(
       final BuckEventBus eventBus,
       TargetNodeToBuildRuleTransformer transformer,
-      TargetGraph targetGraph) {
+      TargetGraph targetGraph,
+      Iterable<BuildRule> reusableRules) {
     final BuildRuleResolver resolver = new BuildRuleResolver(targetGraph, transformer);
+    resolver.addAllToIndex(reusableRules);
 
     final int numberOfNodes = targetGraph.getNodes().size();
     final AtomicInteger processedNodes = new AtomicInteger(0);
@@ -259,7 +480,8 @@ public class ActionGraphCache {
                   createActionGraph(
                       eventBus,
                       new DefaultTargetNodeToBuildRuleTransformer(),
-                      targetGraph));
+                      targetGraph,
+                      ImmutableList.<BuildRule>of()));
 
           Map<BuildRule, RuleKey> lastActionGraphRuleKeys = getRuleKeysFromBuildRules(
               lastActionGraphAndResolver.getActionGraph().getNodes(),
@@ -311,19 +533,40 @@ public class ActionGraphCache {
     return event.kind() == StandardWatchEventKinds.ENTRY_MODIFY;
   }
 
-  private void invalidateCache() {
-    lastActionGraph = null;
+  private synchronized void invalidateCache() {
+    cachedActionGraphs.clear();
+    cachedRules = 0;
   }
 
   public ImmutableList<Counter> getCounters() {
     return ImmutableList.<Counter>of(
         cacheHitCounter,
         cacheMissCounter,
+        incrementalUpdateCounter,
+        evictionCounter,
         actionGraphsMismatch);
   }
 
   @VisibleForTesting
-  boolean isEmpty() {
-    return lastActionGraph == null;
+  synchronized boolean isEmpty() {
+    return cachedActionGraphs.isEmpty();
+  }
+
+  @VisibleForTesting
+  synchronized int getCachedActionGraphCount() {
+    return cachedActionGraphs.size();
+  }
+
+  private static class CacheEntry {
+    private final TargetGraph targetGraph;
+    private final ActionGraphAndResolver actionGraphAndResolver;
+    private final int ruleCount;
+    private int hits;
+
+    public CacheEntry(TargetGraph targetGraph, ActionGraphAndResolver actionGraphAndResolver) {
+      this.targetGraph = targetGraph;
+      this.actionGraphAndResolver = actionGraphAndResolver;
+      this.ruleCount = Iterables.size(actionGraphAndResolver.getActionGraph().getNodes());
+    }
   }
 }
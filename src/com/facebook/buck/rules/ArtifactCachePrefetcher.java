@@ -0,0 +1,365 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.CounterRegistry;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.io.MoreFiles;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.Pair;
+import com.facebook.buck.util.BuckConstant;
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+/**
+ * Speculatively fetches the artifacts of every rule in the action graph reachable from the rules
+ * being built, without waiting for their deps to finish first.
+ * <p>
+ * Rule keys are calculated while walking down from the top-level rules, and each cacheable rule
+ * that isn't already up to date on disk is queued for a fetch in that order, which is also the
+ * order in which the build engine will look them up.  At most {@code window} fetches are
+ * outstanding at any time, and artifacts are downloaded into a staging directory under the
+ * scratch path.  When the build engine gets to a rule, {@link #take(RuleKey)} hands over the
+ * prefetched artifact, waiting for the fetch if it is still in progress.  Rules whose fetch hasn't
+ * started yet are dropped from the queue so that the engine can fetch them itself.
+ * <p>
+ * Artifacts that were downloaded but never claimed, for example because their dependents were
+ * fetched from the cache, are deleted once the build finishes and reported as waste.
+ */
+class ArtifactCachePrefetcher {
+
+  private static final Logger LOG = Logger.get(ArtifactCachePrefetcher.class);
+
+  private static final String COUNTER_CATEGORY = "buck_cache_prefetch";
+
+  private static final Path STAGING_PATH = BuckConstant.getScratchPath().resolve("cache_prefetch");
+
+  private enum State {
+    // Waiting for a slot in the window.
+    QUEUED,
+    // The fetch has started, so the result will be set.
+    FETCHING,
+    // Taken by the build engine, or dropped, before the fetch started.
+    CLAIMED,
+  }
+
+  private static class Entry {
+    private final BuildRule rule;
+    private final RuleKey ruleKey;
+    private final LazyPath output;
+    private final AtomicReference<State> state = new AtomicReference<>(State.QUEUED);
+    private final SettableFuture<CacheResult> result = SettableFuture.create();
+
+    public Entry(BuildRule rule, RuleKey ruleKey, LazyPath output) {
+      this.rule = rule;
+      this.ruleKey = ruleKey;
+      this.output = output;
+    }
+  }
+
+  private final ListeningExecutorService service;
+  private final int window;
+  private final Function<? super BuildRule, RuleKey> ruleKeyFunction;
+
+  private final Set<BuildTarget> seen = Sets.newConcurrentHashSet();
+  private final ConcurrentMap<RuleKey, Entry> entries = Maps.newConcurrentMap();
+  private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger activeBuilds = new AtomicInteger();
+  private final AtomicBoolean countersRegistered = new AtomicBoolean();
+
+  private final IntegerCounter prefetchHits;
+  private final IntegerCounter prefetchMisses;
+  private final IntegerCounter prefetchWasted;
+  private final IntegerCounter prefetchWastedBytes;
+
+  public ArtifactCachePrefetcher(
+      ListeningExecutorService service,
+      int window,
+      Function<? super BuildRule, RuleKey> ruleKeyFunction) {
+    Preconditions.checkArgument(window > 0);
+    this.service = service;
+    this.window = window;
+    this.ruleKeyFunction = ruleKeyFunction;
+
+    this.prefetchHits = new IntegerCounter(
+        COUNTER_CATEGORY,
+        "prefetch_hits",
+        ImmutableMap.<String, String>of());
+    this.prefetchMisses = new IntegerCounter(
+        COUNTER_CATEGORY,
+        "prefetch_misses",
+        ImmutableMap.<String, String>of());
+    this.prefetchWasted = new IntegerCounter(
+        COUNTER_CATEGORY,
+        "prefetch_wasted",
+        ImmutableMap.<String, String>of());
+    this.prefetchWastedBytes = new IntegerCounter(
+        COUNTER_CATEGORY,
+        "prefetch_wasted_bytes",
+        ImmutableMap.<String, String>of());
+  }
+
+  public ImmutableList<Counter> getCounters() {
+    return ImmutableList.<Counter>of(
+        prefetchHits,
+        prefetchMisses,
+        prefetchWasted,
+        prefetchWastedBytes);
+  }
+
+  /**
+   * Starts prefetching everything reachable from {@code root}.  Every call must be balanced by a
+   * call to {@link #release()} once the build of {@code root} has finished.
+   */
+  public void start(final BuildContext context, final BuildRule root) {
+    activeBuilds.incrementAndGet();
+    if (countersRegistered.compareAndSet(false, true)) {
+      context.getEventBus().post(new CounterRegistry.AsyncCounterRegistrationEvent(getCounters()));
+    }
+    if (!seen.add(root.getBuildTarget())) {
+      return;
+    }
+    service.submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            walk(context, root);
+          }
+        });
+  }
+
+  /**
+   * Marks the build of one of the roots passed to {@link #start} as finished.  When there are no
+   * builds left, anything that was prefetched but never claimed is cleaned up.
+   */
+  public void release() {
+    if (activeBuilds.decrementAndGet() == 0) {
+      discardUnclaimedEntries();
+    }
+  }
+
+  /**
+   * @return the prefetched result and artifact for {@code ruleKey}, waiting for the fetch to
+   *     finish if it has already started, or absent if it was never queued or hasn't started yet.
+   */
+  public Optional<Pair<CacheResult, LazyPath>> take(RuleKey ruleKey) throws InterruptedException {
+    Entry entry = entries.remove(ruleKey);
+    if (entry == null || entry.state.compareAndSet(State.QUEUED, State.CLAIMED)) {
+      return Optional.absent();
+    }
+
+    CacheResult cacheResult;
+    try {
+      cacheResult = entry.result.get();
+    } catch (ExecutionException e) {
+      // Fetches report failures as cache errors, so this shouldn't happen.  Either way, the
+      // engine can still look the rule up itself.
+      LOG.warn(e.getCause(), "Prefetching %s failed", entry.rule);
+      return Optional.absent();
+    }
+
+    if (cacheResult.getType().isSuccess()) {
+      prefetchHits.inc();
+    } else {
+      prefetchMisses.inc();
+    }
+    return Optional.of(new Pair<>(cacheResult, entry.output));
+  }
+
+  private void walk(BuildContext context, BuildRule root) {
+    Deque<BuildRule> toVisit = new ArrayDeque<>();
+    toVisit.add(root);
+    while (!toVisit.isEmpty() && activeBuilds.get() > 0) {
+      BuildRule rule = toVisit.remove();
+      if (rule.isCacheable()) {
+        enqueue(context, rule);
+      }
+      for (BuildRule dep : rule.getDeps()) {
+        if (seen.add(dep.getBuildTarget())) {
+          toVisit.add(dep);
+        }
+      }
+      if (rule instanceof HasRuntimeDeps) {
+        for (BuildRule dep : ((HasRuntimeDeps) rule).getRuntimeDeps()) {
+          if (seen.add(dep.getBuildTarget())) {
+            toVisit.add(dep);
+          }
+        }
+      }
+    }
+  }
+
+  private void enqueue(BuildContext context, BuildRule rule) {
+    RuleKey ruleKey = ruleKeyFunction.apply(rule);
+
+    // Rules which are already built locally won't be looked up at all.
+    Optional<RuleKey> onDiskRuleKey =
+        context.createOnDiskBuildInfoFor(rule.getBuildTarget(), rule.getProjectFilesystem())
+            .getRuleKey(BuildInfo.METADATA_KEY_FOR_RULE_KEY);
+    if (ruleKey.equals(onDiskRuleKey.orNull())) {
+      return;
+    }
+
+    Entry entry = new Entry(rule, ruleKey, newStagingPath(rule));
+    if (entries.putIfAbsent(ruleKey, entry) == null) {
+      queue.add(entry);
+      fillWindow(context);
+    }
+  }
+
+  private void fillWindow(final BuildContext context) {
+    while (activeBuilds.get() > 0) {
+      int current = inFlight.get();
+      if (current >= window) {
+        return;
+      }
+      if (!inFlight.compareAndSet(current, current + 1)) {
+        continue;
+      }
+      final Entry entry = pollQueued();
+      if (entry == null) {
+        inFlight.decrementAndGet();
+        // Something may have been queued after we looked, in which case we go around again.
+        if (queue.isEmpty()) {
+          return;
+        }
+        continue;
+      }
+      service.submit(
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                fetch(context, entry);
+              } finally {
+                inFlight.decrementAndGet();
+              }
+              fillWindow(context);
+            }
+          });
+    }
+  }
+
+  @Nullable
+  private Entry pollQueued() {
+    Entry entry = queue.poll();
+    while (entry != null && entry.state.get() != State.QUEUED) {
+      entry = queue.poll();
+    }
+    return entry;
+  }
+
+  private void fetch(BuildContext context, Entry entry) {
+    // The engine may have got to this rule while the fetch was waiting to run.
+    if (!entry.state.compareAndSet(State.QUEUED, State.FETCHING)) {
+      return;
+    }
+    try {
+      entry.result.set(context.getArtifactCache().fetch(entry.ruleKey, entry.output));
+    } catch (RuntimeException e) {
+      entry.result.set(CacheResult.error("prefetch", e.toString()));
+    }
+  }
+
+  private void discardUnclaimedEntries() {
+    for (final Entry entry : entries.values()) {
+      if (!entries.remove(entry.ruleKey, entry) ||
+          entry.state.compareAndSet(State.QUEUED, State.CLAIMED)) {
+        continue;
+      }
+      entry.result.addListener(
+          new Runnable() {
+            @Override
+            public void run() {
+              discard(entry);
+            }
+          },
+          MoreExecutors.directExecutor());
+    }
+    queue.clear();
+  }
+
+  private void discard(Entry entry) {
+    CacheResult cacheResult = entry.result.isCancelled() ? null : getQuietly(entry.result);
+    if (cacheResult == null || !cacheResult.getType().isSuccess()) {
+      return;
+    }
+    try {
+      Path path = entry.output.get();
+      prefetchWasted.inc();
+      prefetchWastedBytes.inc(Files.size(path));
+      Files.delete(path);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to delete unused prefetched artifact for %s", entry.rule);
+    }
+  }
+
+  @Nullable
+  private static CacheResult getQuietly(SettableFuture<CacheResult> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException | ExecutionException e) {
+      return null;
+    }
+  }
+
+  private static LazyPath newStagingPath(final BuildRule rule) {
+    return new LazyPath() {
+      @Override
+      protected Path create() throws IOException {
+        ProjectFilesystem filesystem = rule.getProjectFilesystem();
+        filesystem.mkdirs(STAGING_PATH);
+        // The extension must be ".zip" for the unzip step to treat it as a zip file.
+        return filesystem.resolve(
+            filesystem.createTempFile(
+                STAGING_PATH,
+                "buck_artifact_" + MoreFiles.sanitize(rule.getBuildTarget().getShortName()),
+                ".zip"));
+      }
+    };
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.util.BuckConstant;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Historical times taken to build rules locally, kept in a file under buck-out across builds.
+ * <p>
+ * The file uses the same format as the times file read by {@code buck simulate}, with a single
+ * {@value #TIME_AGGREGATE} time aggregate, so builds can be replayed in the simulator.
+ */
+public class BuildRuleDurationStore {
+
+  private static final Logger LOG = Logger.get(BuildRuleDurationStore.class);
+
+  public static final String TIME_AGGREGATE = "local";
+
+  public static final Path DEFAULT_PATH =
+      BuckConstant.getBuckOutputPath().resolve("rule_durations.json");
+
+  private static final String BUILD_TARGETS_KEY = "build_targets";
+
+  private static final TypeReference<Map<String, Map<String, Map<String, Long>>>> FILE_TYPE =
+      new TypeReference<Map<String, Map<String, Map<String, Long>>>>() {};
+
+  private final ProjectFilesystem filesystem;
+  private final Path path;
+  private final ObjectMapper objectMapper;
+  private final ConcurrentMap<String, Long> durations;
+  private final long meanDurationMillis;
+  private final AtomicBoolean dirty = new AtomicBoolean();
+
+  private BuildRuleDurationStore(
+      ProjectFilesystem filesystem,
+      Path path,
+      ObjectMapper objectMapper,
+      Map<String, Long> durations) {
+    this.filesystem = filesystem;
+    this.path = path;
+    this.objectMapper = objectMapper;
+    this.durations = Maps.newConcurrentMap();
+    this.durations.putAll(durations);
+
+    long total = 0;
+    for (long millis : durations.values()) {
+      total += millis;
+    }
+    this.meanDurationMillis = durations.isEmpty() ? 1 : Math.max(1, total / durations.size());
+  }
+
+  /**
+   * Reads the durations recorded by earlier builds, starting afresh if the file is missing or
+   * can't be read.
+   */
+  public static BuildRuleDurationStore load(
+      ProjectFilesystem filesystem,
+      Path path,
+      ObjectMapper objectMapper) {
+    Map<String, Long> durations = Maps.newHashMap();
+    if (filesystem.isFile(path)) {
+      try (InputStream input = filesystem.newFileInputStream(path)) {
+        Map<String, Map<String, Map<String, Long>>> contents =
+            objectMapper.readValue(input, FILE_TYPE);
+        Map<String, Map<String, Long>> targets = contents.get(BUILD_TARGETS_KEY);
+        if (targets != null) {
+          for (Map.Entry<String, Map<String, Long>> entry : targets.entrySet()) {
+            Long millis = entry.getValue().get(TIME_AGGREGATE);
+            if (millis != null) {
+              durations.put(entry.getKey(), millis);
+            }
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        LOG.warn(e, "Could not read rule durations from %s, starting afresh.", path);
+        durations.clear();
+      }
+    }
+    return new BuildRuleDurationStore(filesystem, path, objectMapper, durations);
+  }
+
+  public Optional<Long> getDurationMillis(BuildTarget target) {
+    return Optional.fromNullable(durations.get(target.getFullyQualifiedName()));
+  }
+
+  /**
+   * @return the recorded duration of {@code target} or, if it has never been built locally, the
+   *     mean of all the recorded durations.  With nothing recorded at all, every rule is expected
+   *     to take 1ms, so that critical paths are measured in rules.
+   */
+  public long getExpectedDurationMillis(BuildTarget target) {
+    Optional<Long> millis = getDurationMillis(target);
+    if (millis.isPresent()) {
+      return millis.get();
+    }
+    return meanDurationMillis;
+  }
+
+  /**
+   * Records that {@code target} took {@code millis} to build.  The stored duration is a moving
+   * average, weighing the latest build as much as all earlier ones.
+   */
+  public void record(BuildTarget target, long millis) {
+    String key = target.getFullyQualifiedName();
+    Long previous;
+    do {
+      previous = durations.putIfAbsent(key, millis);
+    } while (previous != null && !durations.replace(key, previous, (previous + millis) / 2));
+    dirty.set(true);
+  }
+
+  /**
+   * Writes the durations back to disk, if any were recorded since the store was loaded.
+   */
+  public void save() {
+    if (!dirty.getAndSet(false)) {
+      return;
+    }
+    SortedMap<String, Map<String, Long>> targets = Maps.newTreeMap();
+    for (Map.Entry<String, Long> entry : durations.entrySet()) {
+      targets.put(entry.getKey(), ImmutableMap.of(TIME_AGGREGATE, entry.getValue()));
+    }
+    try {
+      filesystem.mkdirs(path.getParent());
+      Path tmp = filesystem.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+      try (OutputStream output = filesystem.newFileOutputStream(tmp)) {
+        objectMapper.writeValue(output, ImmutableMap.of(BUILD_TARGETS_KEY, targets));
+      }
+      filesystem.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOG.warn(e, "Could not write rule durations to %s.", path);
+    }
+  }
+}
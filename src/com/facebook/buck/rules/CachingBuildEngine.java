@@ -93,6 +93,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -100,6 +102,8 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -117,6 +121,9 @@ public class CachingBuildEngine implements BuildEngine {
   // The default weight to use in the executor when building a rule locally.
   private static final int DEFAULT_BUILD_WEIGHT = 1;
 
+  // The maximum number of threads to use when unpacking an artifact fetched from the cache.
+  private static final int ARTIFACT_UNZIP_PARALLELISM = 4;
+
   private static final Logger LOG = Logger.get(CachingBuildEngine.class);
 
   /**
@@ -129,6 +136,14 @@ public class CachingBuildEngine implements BuildEngine {
   private final ConcurrentMap<BuildTarget, ListenableFuture<RuleKey>> ruleKeys =
       Maps.newConcurrentMap();
 
+  /**
+   * Results of batched cache fetches made ahead of the per-rule cache lookups, keyed by rule key.
+   * Each is claimed by the first lookup of its rule key, which waits for the batch to finish.
+   */
+  private final ConcurrentMap<RuleKey, Pair<ListenableFuture<CacheResult>, LazyPath>>
+      prefetchedArtifacts = Maps.newConcurrentMap();
+  private final AtomicInteger activeBuilds = new AtomicInteger();
+
   private final RuleDepsCache ruleDeps;
   private final Optional<UnskippedRulesTracker> unskippedRulesTracker;
 
@@ -138,6 +153,8 @@ public class CachingBuildEngine implements BuildEngine {
   private final WeightedListeningExecutorService service;
   private final BuildMode buildMode;
   private final DependencySchedulingOrder dependencySchedulingOrder;
+  private final Optional<BuildRuleDurationStore> ruleDurations;
+  private final Optional<CriticalPathPriorities> criticalPathPriorities;
   private final DepFiles depFiles;
   private final long maxDepFileCacheEntries;
   private final ObjectMapper objectMapper;
@@ -145,6 +162,7 @@ public class CachingBuildEngine implements BuildEngine {
   private final Optional<Long> artifactCacheSizeLimit;
   private final LoadingCache<ProjectFilesystem, FileHashCache> fileHashCaches;
   private final LoadingCache<ProjectFilesystem, RuleKeyFactories> ruleKeyFactories;
+  private final Optional<ArtifactCachePrefetcher> cachePrefetcher;
 
   public CachingBuildEngine(
       WeightedListeningExecutorService service,
@@ -156,12 +174,47 @@ public class CachingBuildEngine implements BuildEngine {
       Optional<Long> artifactCacheSizeLimit,
       ObjectMapper objectMapper,
       final BuildRuleResolver resolver) {
+    this(
+        service,
+        fileHashCache,
+        buildMode,
+        dependencySchedulingOrder,
+        depFiles,
+        maxDepFileCacheEntries,
+        artifactCacheSizeLimit,
+        /* cachePrefetchWindow */ 0,
+        Optional.<BuildRuleDurationStore>absent(),
+        objectMapper,
+        resolver);
+  }
+
+  /**
+   * @param cachePrefetchWindow if positive, the artifacts of all the rules being built are fetched
+   *     from the cache ahead of time, with at most this many batches of fetches in flight.
+   * @param ruleDurations where the time taken to build each rule locally is recorded, and, for
+   *     {@link DependencySchedulingOrder#CRITICAL_PATH}, where expected build times come from.
+   */
+  public CachingBuildEngine(
+      WeightedListeningExecutorService service,
+      final FileHashCache fileHashCache,
+      BuildMode buildMode,
+      DependencySchedulingOrder dependencySchedulingOrder,
+      DepFiles depFiles,
+      long maxDepFileCacheEntries,
+      Optional<Long> artifactCacheSizeLimit,
+      int cachePrefetchWindow,
+      Optional<BuildRuleDurationStore> ruleDurations,
+      ObjectMapper objectMapper,
+      final BuildRuleResolver resolver) {
     this.ruleDeps = new RuleDepsCache(service);
     this.unskippedRulesTracker = createUnskippedRulesTracker(buildMode, ruleDeps, service);
 
     this.service = service;
     this.buildMode = buildMode;
     this.dependencySchedulingOrder = dependencySchedulingOrder;
+    this.ruleDurations = ruleDurations;
+    this.criticalPathPriorities =
+        createCriticalPathPriorities(dependencySchedulingOrder, ruleDurations);
     this.depFiles = depFiles;
     this.maxDepFileCacheEntries = maxDepFileCacheEntries;
     this.artifactCacheSizeLimit = artifactCacheSizeLimit;
@@ -176,6 +229,36 @@ public class CachingBuildEngine implements BuildEngine {
             return RuleKeyFactories.build(fileHashCaches.get(filesystem), resolver);
           }
         });
+    this.cachePrefetcher =
+        createCachePrefetcher(service, cachePrefetchWindow, ruleKeyFactories);
+  }
+
+  /**
+   * This constructor MUST ONLY BE USED FOR TESTS.
+   */
+  @VisibleForTesting
+  CachingBuildEngine(
+      WeightedListeningExecutorService service,
+      FileHashCache fileHashCache,
+      BuildMode buildMode,
+      DependencySchedulingOrder dependencySchedulingOrder,
+      DepFiles depFiles,
+      long maxDepFileCacheEntries,
+      Optional<Long> artifactCacheSizeLimit,
+      SourcePathResolver pathResolver,
+      Function<? super ProjectFilesystem, RuleKeyFactories> ruleKeyFactoriesFunction) {
+    this(
+        service,
+        fileHashCache,
+        buildMode,
+        dependencySchedulingOrder,
+        depFiles,
+        maxDepFileCacheEntries,
+        artifactCacheSizeLimit,
+        /* cachePrefetchWindow */ 0,
+        Optional.<BuildRuleDurationStore>absent(),
+        pathResolver,
+        ruleKeyFactoriesFunction);
   }
 
   /**
@@ -190,6 +273,8 @@ public class CachingBuildEngine implements BuildEngine {
       DepFiles depFiles,
       long maxDepFileCacheEntries,
       Optional<Long> artifactCacheSizeLimit,
+      int cachePrefetchWindow,
+      Optional<BuildRuleDurationStore> ruleDurations,
       SourcePathResolver pathResolver,
       final Function<? super ProjectFilesystem, RuleKeyFactories> ruleKeyFactoriesFunction) {
     this.ruleDeps = new RuleDepsCache(service);
@@ -198,6 +283,9 @@ public class CachingBuildEngine implements BuildEngine {
     this.service = service;
     this.buildMode = buildMode;
     this.dependencySchedulingOrder = dependencySchedulingOrder;
+    this.ruleDurations = ruleDurations;
+    this.criticalPathPriorities =
+        createCriticalPathPriorities(dependencySchedulingOrder, ruleDurations);
     this.depFiles = depFiles;
     this.maxDepFileCacheEntries = maxDepFileCacheEntries;
     this.artifactCacheSizeLimit = artifactCacheSizeLimit;
@@ -212,6 +300,8 @@ public class CachingBuildEngine implements BuildEngine {
             return ruleKeyFactoriesFunction.apply(filesystem);
           }
         });
+    this.cachePrefetcher =
+        createCachePrefetcher(service, cachePrefetchWindow, ruleKeyFactories);
   }
 
   private static Optional<UnskippedRulesTracker> createUnskippedRulesTracker(
@@ -225,6 +315,44 @@ public class CachingBuildEngine implements BuildEngine {
     return Optional.of(new UnskippedRulesTracker(ruleDeps, service));
   }
 
+  private static Optional<CriticalPathPriorities> createCriticalPathPriorities(
+      DependencySchedulingOrder dependencySchedulingOrder,
+      final Optional<BuildRuleDurationStore> ruleDurations) {
+    if (dependencySchedulingOrder != DependencySchedulingOrder.CRITICAL_PATH) {
+      return Optional.absent();
+    }
+    return Optional.of(
+        new CriticalPathPriorities(
+            new Function<BuildRule, Long>() {
+              @Override
+              public Long apply(BuildRule rule) {
+                return ruleDurations.isPresent() ?
+                    ruleDurations.get().getExpectedDurationMillis(rule.getBuildTarget()) :
+                    1L;
+              }
+            }));
+  }
+
+  private static Optional<ArtifactCachePrefetcher> createCachePrefetcher(
+      ListeningExecutorService service,
+      int cachePrefetchWindow,
+      final LoadingCache<ProjectFilesystem, RuleKeyFactories> ruleKeyFactories) {
+    if (cachePrefetchWindow <= 0) {
+      return Optional.absent();
+    }
+    return Optional.of(
+        new ArtifactCachePrefetcher(
+            service,
+            cachePrefetchWindow,
+            new Function<BuildRule, RuleKey>() {
+              @Override
+              public RuleKey apply(BuildRule rule) {
+                return ruleKeyFactories.getUnchecked(rule.getProjectFilesystem())
+                    .defaultRuleKeyBuilderFactory.build(rule);
+              }
+            }));
+  }
+
   private static LoadingCache<ProjectFilesystem, FileHashCache> createFileHashCacheLoader(
       final FileHashCache defaultCache) {
     return CacheBuilder.newBuilder()
@@ -280,6 +408,9 @@ public class CachingBuildEngine implements BuildEngine {
       case RANDOM:
         deps = shuffled(deps);
         break;
+      case CRITICAL_PATH:
+        deps = byDescendingPriority(deps, criticalPathPriorities.get());
+        break;
     }
     for (BuildRule dep : deps) {
       depResults.add(getBuildRuleResultWithRuntimeDeps(dep, context, asyncCallbacks));
@@ -293,6 +424,21 @@ public class CachingBuildEngine implements BuildEngine {
     return rulesList;
   }
 
+  private static List<BuildRule> byDescendingPriority(
+      Iterable<BuildRule> rules,
+      final CriticalPathPriorities priorities) {
+    ArrayList<BuildRule> rulesList = Lists.newArrayList(rules);
+    Collections.sort(
+        rulesList,
+        new Comparator<BuildRule>() {
+          @Override
+          public int compare(BuildRule a, BuildRule b) {
+            return Long.compare(priorities.getPriority(b), priorities.getPriority(a));
+          }
+        });
+    return rulesList;
+  }
+
   private ListenableFuture<BuildResult> processBuildRule(
       final BuildRule rule,
       final BuildContext context,
@@ -348,7 +494,11 @@ public class CachingBuildEngine implements BuildEngine {
       }
     }
 
-    // 3. Build deps.
+    // 3. Build deps.  All of them are about to be looked up in the cache, so fetch them in one go,
+    // unless they're already being prefetched.
+    if (!cachePrefetcher.isPresent()) {
+      prefetchDepsFromCache(rule, context);
+    }
     ListenableFuture<List<BuildResult>> getDepResults =
         Futures.transformAsync(
             getDepResults(rule, context, asyncCallbacks),
@@ -558,7 +708,14 @@ public class CachingBuildEngine implements BuildEngine {
                                  context.getEventBus(),
                                  rule,
                                  ruleKeyFactory.defaultRuleKeyBuilderFactory)) {
+                      long startNanos = context.getClock().nanoTime();
                       executeCommandsNowThatDepsAreBuilt(rule, context, buildableContext);
+                      if (ruleDurations.isPresent()) {
+                        ruleDurations.get().record(
+                            rule.getBuildTarget(),
+                            TimeUnit.NANOSECONDS.toMillis(
+                                context.getClock().nanoTime() - startNanos));
+                      }
                       return BuildResult.success(
                           rule,
                           BuildRuleSuccessType.BUILT_LOCALLY,
@@ -566,7 +723,10 @@ public class CachingBuildEngine implements BuildEngine {
                     }
                   }
                 },
-                DEFAULT_BUILD_WEIGHT * ruleScheduleInfo.getJobsMultiplier());
+                DEFAULT_BUILD_WEIGHT * ruleScheduleInfo.getJobsMultiplier(),
+                criticalPathPriorities.isPresent() ?
+                    criticalPathPriorities.get().getPriority(rule) :
+                    0);
           }
         };
     return Futures.transformAsync(checkCachesResult, buildLocallyCallback);
@@ -1046,6 +1206,11 @@ public class CachingBuildEngine implements BuildEngine {
 
   @Override
   public int getNumRulesToBuild(Iterable<BuildRule> rules) {
+    // This is where we first see all of the top-level rules together, so rank them in one go
+    // rather than walking the graph again for each rule passed to build().
+    if (criticalPathPriorities.isPresent()) {
+      criticalPathPriorities.get().addRoots(rules);
+    }
     Set<BuildRule> seen = Sets.newConcurrentHashSet();
     ImmutableList.Builder<ListenableFuture<?>> results = ImmutableList.builder();
     for (final BuildRule rule : rules) {
@@ -1057,12 +1222,27 @@ public class CachingBuildEngine implements BuildEngine {
     return seen.size();
   }
 
-  private synchronized ListenableFuture<RuleKey> calculateRuleKey(
+  /**
+   * @return a future for the rule key of {@code rule}, which is only ever calculated once.
+   *     Callers race to register a placeholder for the key without taking a lock, and only the
+   *     winner sets up the calculation.  A plain {@code computeIfAbsent} can't be used, since
+   *     looking up the keys of the deps may recurse into this method on the same thread.
+   */
+  @VisibleForTesting
+  ListenableFuture<RuleKey> calculateRuleKey(
       final BuildRule rule,
       final BuildContext context) {
-    ListenableFuture<RuleKey> ruleKey = ruleKeys.get(rule.getBuildTarget());
-    if (ruleKey == null) {
+    ListenableFuture<RuleKey> existing = ruleKeys.get(rule.getBuildTarget());
+    if (existing != null) {
+      return existing;
+    }
+    SettableFuture<RuleKey> placeholder = SettableFuture.create();
+    existing = ruleKeys.putIfAbsent(rule.getBuildTarget(), placeholder);
+    if (existing != null) {
+      return existing;
+    }
 
+    try {
       // Grab all the dependency rule key futures.  Since our rule key calculation depends on this
       // one, we need to wait for them to complete.
       ListenableFuture<List<RuleKey>> depKeys =
@@ -1084,7 +1264,7 @@ public class CachingBuildEngine implements BuildEngine {
           ruleKeyFactories.getUnchecked(rule.getProjectFilesystem());
 
       // Setup a future to calculate this rule key once the dependencies have been calculated.
-      ruleKey = Futures.transform(
+      ListenableFuture<RuleKey> ruleKey = Futures.transform(
           depKeys,
           new Function<List<RuleKey>, RuleKey>() {
             @Override
@@ -1099,12 +1279,12 @@ public class CachingBuildEngine implements BuildEngine {
             }
           },
           service);
-
-      // Record the rule key future.
-      ruleKeys.put(rule.getBuildTarget(), ruleKey);
+      placeholder.setFuture(ruleKey);
+    } catch (RuntimeException e) {
+      placeholder.setException(e);
+      throw e;
     }
-
-    return ruleKey;
+    return placeholder;
   }
 
   @Override
@@ -1113,10 +1293,39 @@ public class CachingBuildEngine implements BuildEngine {
     // to make sure we wait for these before calling yielding the final build result.
     final ConcurrentLinkedQueue<ListenableFuture<Void>> asyncCallbacks =
         new ConcurrentLinkedQueue<>();
+    activeBuilds.incrementAndGet();
+    if (cachePrefetcher.isPresent()) {
+      cachePrefetcher.get().start(context, rule);
+    }
+    // Normally already ranked by getNumRulesToBuild(), in which case this does nothing.
+    if (criticalPathPriorities.isPresent()) {
+      criticalPathPriorities.get().addRoots(ImmutableList.of(rule));
+    }
     ListenableFuture<BuildResult> resultFuture = MoreFutures.chainExceptions(
         registerTopLevelRule(rule, context.getEventBus()),
         getBuildRuleResultWithRuntimeDeps(rule, context, asyncCallbacks),
         service);
+    resultFuture.addListener(
+        new Runnable() {
+          @Override
+          public void run() {
+            if (activeBuilds.decrementAndGet() == 0) {
+              discardUnclaimedPrefetches();
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+    if (cachePrefetcher.isPresent()) {
+      final ArtifactCachePrefetcher prefetcher = cachePrefetcher.get();
+      resultFuture.addListener(
+          new Runnable() {
+            @Override
+            public void run() {
+              prefetcher.release();
+            }
+          },
+          MoreExecutors.directExecutor());
+    }
     return Futures.transformAsync(
         resultFuture,
         new AsyncFunction<BuildResult, BuildResult>() {
@@ -1130,20 +1339,99 @@ public class CachingBuildEngine implements BuildEngine {
         });
   }
 
-  private CacheResult tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
-      final BuildRule rule,
-      RuleKey ruleKey,
-      BuildInfoRecorder buildInfoRecorder,
-      ArtifactCache artifactCache,
-      ProjectFilesystem filesystem,
-      BuildContext buildContext) throws InterruptedException {
-    if (!rule.isCacheable()) {
-      return CacheResult.ignored();
+  /**
+   * Fetches the artifacts of all the deps of {@code rule} that will be looked up in the cache when
+   * they are processed, in a single {@link ArtifactCache#multiFetch(ImmutableMap)} call.
+   */
+  private void prefetchDepsFromCache(BuildRule rule, BuildContext context) {
+    final SettableFuture<ImmutableMap<RuleKey, CacheResult>> batch = SettableFuture.create();
+    Map<RuleKey, LazyPath> outputs = new LinkedHashMap<>();
+    for (BuildRule dep : rule.getDeps()) {
+      if (!dep.isCacheable() || results.containsKey(dep.getBuildTarget())) {
+        continue;
+      }
+      final RuleKey ruleKey =
+          ruleKeyFactories.getUnchecked(dep.getProjectFilesystem())
+              .defaultRuleKeyBuilderFactory.build(dep);
+      if (outputs.containsKey(ruleKey) || prefetchedArtifacts.containsKey(ruleKey)) {
+        continue;
+      }
+
+      // Deps which are already built locally won't be looked up at all.
+      Optional<RuleKey> cachedRuleKey =
+          context.createOnDiskBuildInfoFor(dep.getBuildTarget(), dep.getProjectFilesystem())
+              .getRuleKey(BuildInfo.METADATA_KEY_FOR_RULE_KEY);
+      if (ruleKey.equals(cachedRuleKey.orNull())) {
+        continue;
+      }
+
+      outputs.put(ruleKey, newArtifactZipPath(dep));
     }
 
+    // A batch of one saves nothing over the lookup the dep will make anyway.
+    if (outputs.size() < 2) {
+      return;
+    }
+
+    // Claim the rule keys before fetching, so that rules sharing deps don't fetch them twice.
+    ImmutableMap.Builder<RuleKey, LazyPath> claimed = ImmutableMap.builder();
+    for (Map.Entry<RuleKey, LazyPath> entry : outputs.entrySet()) {
+      final RuleKey ruleKey = entry.getKey();
+      ListenableFuture<CacheResult> result = Futures.transform(
+          batch,
+          new Function<ImmutableMap<RuleKey, CacheResult>, CacheResult>() {
+            @Override
+            public CacheResult apply(ImmutableMap<RuleKey, CacheResult> cacheResults) {
+              CacheResult cacheResult = cacheResults.get(ruleKey);
+              return cacheResult != null ? cacheResult : CacheResult.miss();
+            }
+          });
+      if (prefetchedArtifacts.putIfAbsent(ruleKey, new Pair<>(result, entry.getValue())) == null) {
+        claimed.put(ruleKey, entry.getValue());
+      }
+    }
+
+    try {
+      batch.set(context.getArtifactCache().multiFetch(claimed.build()));
+    } catch (RuntimeException e) {
+      // The deps will each look themselves up instead.
+      LOG.warn(e, "Batched fetch of the deps of %s failed", rule);
+      batch.setException(e);
+    }
+  }
+
+  /**
+   * Deletes the artifacts fetched by batches whose rules never got to look them up, for example
+   * because a rule depending on them was itself fetched from the cache.
+   */
+  private void discardUnclaimedPrefetches() {
+    for (final Map.Entry<RuleKey, Pair<ListenableFuture<CacheResult>, LazyPath>> entry :
+        prefetchedArtifacts.entrySet()) {
+      if (!prefetchedArtifacts.remove(entry.getKey(), entry.getValue())) {
+        continue;
+      }
+      final ListenableFuture<CacheResult> result = entry.getValue().getFirst();
+      result.addListener(
+          new Runnable() {
+            @Override
+            public void run() {
+              try {
+                if (result.get().getType().isSuccess()) {
+                  Files.deleteIfExists(entry.getValue().getSecond().get());
+                }
+              } catch (InterruptedException | ExecutionException | IOException e) {
+                LOG.debug(e, "Failed to discard prefetched artifact for %s", entry.getKey());
+              }
+            }
+          },
+          MoreExecutors.directExecutor());
+    }
+  }
+
+  private static LazyPath newArtifactZipPath(final BuildRule rule) {
     // Create a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer
     // that we are creating a zip-based FileSystem.
-    LazyPath lazyZipPath = new LazyPath() {
+    return new LazyPath() {
       @Override
       protected Path create() throws IOException {
         return Files.createTempFile(
@@ -1151,12 +1439,45 @@ public class CachingBuildEngine implements BuildEngine {
             ".zip");
       }
     };
+  }
 
-    // TODO(bolinfest): Change ArtifactCache.fetch() so that it returns a File instead of takes one.
-    // Then we could download directly from the remote cache into the on-disk cache and unzip it
-    // from there.
-    CacheResult cacheResult =
-        buildInfoRecorder.fetchArtifactForBuildable(ruleKey, lazyZipPath, artifactCache);
+  private CacheResult tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
+      final BuildRule rule,
+      RuleKey ruleKey,
+      BuildInfoRecorder buildInfoRecorder,
+      ArtifactCache artifactCache,
+      ProjectFilesystem filesystem,
+      BuildContext buildContext) throws InterruptedException {
+    if (!rule.isCacheable()) {
+      return CacheResult.ignored();
+    }
+
+    // Use the result of a batched or speculative fetch if there was one, unless it failed, in
+    // which case it's worth trying again on its own.
+    LazyPath lazyZipPath;
+    CacheResult cacheResult;
+    Pair<CacheResult, LazyPath> prefetched = null;
+    Pair<ListenableFuture<CacheResult>, LazyPath> batched = prefetchedArtifacts.remove(ruleKey);
+    if (batched != null) {
+      try {
+        prefetched = new Pair<>(batched.getFirst().get(), batched.getSecond());
+      } catch (ExecutionException e) {
+        LOG.debug(e.getCause(), "Batched fetch of %s failed", rule);
+      }
+    } else if (cachePrefetcher.isPresent()) {
+      prefetched = cachePrefetcher.get().take(ruleKey).orNull();
+    }
+    if (prefetched != null && prefetched.getFirst().getType() != CacheResultType.ERROR) {
+      cacheResult = prefetched.getFirst();
+      lazyZipPath = prefetched.getSecond();
+    } else {
+      lazyZipPath = newArtifactZipPath(rule);
+      // TODO(bolinfest): Change ArtifactCache.fetch() so that it returns a File instead of takes
+      // one. Then we could download directly from the remote cache into the on-disk cache and
+      // unzip it from there.
+      cacheResult =
+          buildInfoRecorder.fetchArtifactForBuildable(ruleKey, lazyZipPath, artifactCache);
+    }
     if (!cacheResult.getType().isSuccess()) {
       LOG.debug("Cache miss for '%s' with rulekey '%s'", rule, ruleKey);
       return cacheResult;
@@ -1184,7 +1505,9 @@ public class CachingBuildEngine implements BuildEngine {
       Unzip.extractZipFile(
           zipPath.toAbsolutePath(),
           filesystem,
-          Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+          Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES,
+          service,
+          ARTIFACT_UNZIP_PARALLELISM);
 
       // We only delete the ZIP file when it has been unzipped successfully. Otherwise, we leave it
       // around for debugging purposes.
@@ -1563,6 +1886,10 @@ public class CachingBuildEngine implements BuildEngine {
 
     // Schedule dependencies in random order.
     RANDOM,
+
+    // Schedule the rules on the longest remaining path through the build first, going by how long
+    // each rule took to build in the past.
+    CRITICAL_PATH,
   }
 
   /**
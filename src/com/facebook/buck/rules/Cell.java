@@ -34,6 +34,7 @@ import com.facebook.buck.model.BuildTargetException;
 import com.facebook.buck.parser.ParserConfig;
 import com.facebook.buck.python.PythonBuckConfig;
 import com.facebook.buck.timing.Clock;
+import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.HumanReadableException;
 import com.google.common.annotations.VisibleForTesting;
@@ -64,6 +65,8 @@ import java.util.regex.Pattern;
  */
 public class Cell {
 
+  private static final String PARSER_BYTECODE_CACHE_NAME = "parser_bytecode";
+
   private final Cache<Path, Cell> cells;
   private final ImmutableSet<Path> knownRoots;
   private final ProjectFilesystem filesystem;
@@ -322,6 +325,16 @@ public class Cell {
             .setWatchman(watchman)
             .setWatchmanQueryTimeoutMs(parserConfig.getWatchmanQueryTimeoutMs())
             .setRawConfig(getBuckConfig().getRawConfigForParser())
+            .setBytecodeCacheDir(
+                parserConfig.getEnableParserBytecodeCache() ?
+                    Optional.of(
+                        getFilesystem().resolve(
+                            BuckConstant.getBuckOutputPath().resolve(
+                                PARSER_BYTECODE_CACHE_NAME))) :
+                    Optional.<Path>absent())
+            .setTrackGlobbedDirectories(parserConfig.getEnablePersistentParseCache())
+            .setIgnorePaths(getFilesystem().getIgnorePaths())
+            .setEnforceBuckPackageBoundaries(enforceBuckPackageBoundaries)
             .build());
   }
 
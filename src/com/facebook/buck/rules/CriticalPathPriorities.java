@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.graph.AcyclicDepthFirstPostOrderTraversal;
+import com.facebook.buck.graph.GraphTraversable;
+import com.facebook.buck.model.BuildTarget;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Ranks build rules by the length of the longest path from the rule up to any of the top-level
+ * rules being built, where the length of a path is the sum of the expected build times of the rules
+ * on it, including the rule itself.
+ * <p>
+ * This is how much of the build, at least, is still left to do once the rule starts, so running
+ * the rules with the highest priority first keeps long chains of rules from starting late.
+ */
+public class CriticalPathPriorities {
+
+  private static final GraphTraversable<BuildRule> DEPS_TRAVERSABLE =
+      new GraphTraversable<BuildRule>() {
+        @Override
+        public Iterator<BuildRule> findChildren(BuildRule rule) {
+          return getDeps(rule).iterator();
+        }
+      };
+
+  private final Function<? super BuildRule, Long> expectedDurationMillis;
+  private final ConcurrentMap<BuildTarget, Long> priorities = Maps.newConcurrentMap();
+
+  public CriticalPathPriorities(Function<? super BuildRule, Long> expectedDurationMillis) {
+    this.expectedDurationMillis = expectedDurationMillis;
+  }
+
+  /**
+   * Ranks all the rules reachable from {@code roots}.  Rules already ranked while adding earlier
+   * roots keep the higher of their two priorities.
+   * <p>
+   * Each call walks the whole graph below the new roots, so pass all the top-level rules in one
+   * call where possible.  Roots which have already been ranked are skipped: every path down from
+   * such a root extends to a path from one of the earlier roots, so it can't raise any priority.
+   */
+  public synchronized void addRoots(Iterable<? extends BuildRule> roots) {
+    ImmutableList.Builder<BuildRule> newRoots = ImmutableList.builder();
+    for (BuildRule root : roots) {
+      if (!priorities.containsKey(root.getBuildTarget())) {
+        newRoots.add(root);
+      }
+    }
+    ImmutableList<BuildRule> toRank = newRoots.build();
+    if (toRank.isEmpty()) {
+      return;
+    }
+
+    Iterable<BuildRule> postOrder;
+    try {
+      postOrder = new AcyclicDepthFirstPostOrderTraversal<>(DEPS_TRAVERSABLE).traverse(toRank);
+    } catch (AcyclicDepthFirstPostOrderTraversal.CycleException e) {
+      throw new IllegalStateException(e);
+    }
+
+    // Walk from the roots down, so that every rule is visited after all of its dependents.
+    Map<BuildTarget, Long> longestPathFromDependents = Maps.newHashMap();
+    for (BuildRule rule : ImmutableList.copyOf(postOrder).reverse()) {
+      Long fromDependents = longestPathFromDependents.remove(rule.getBuildTarget());
+      long priority =
+          expectedDurationMillis.apply(rule) + (fromDependents == null ? 0 : fromDependents);
+      Long previous = priorities.get(rule.getBuildTarget());
+      if (previous == null || previous < priority) {
+        priorities.put(rule.getBuildTarget(), priority);
+      }
+      for (BuildRule dep : getDeps(rule)) {
+        Long current = longestPathFromDependents.get(dep.getBuildTarget());
+        if (current == null || current < priority) {
+          longestPathFromDependents.put(dep.getBuildTarget(), priority);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the priority of {@code rule}, or 0 if it isn't reachable from any of the roots added so
+   *     far.
+   */
+  public long getPriority(BuildRule rule) {
+    Long priority = priorities.get(rule.getBuildTarget());
+    return priority == null ? 0 : priority;
+  }
+
+  private static Iterable<BuildRule> getDeps(BuildRule rule) {
+    if (rule instanceof HasRuntimeDeps) {
+      return Iterables.concat(rule.getDeps(), ((HasRuntimeDeps) rule).getRuntimeDeps());
+    }
+    return rule.getDeps();
+  }
+}
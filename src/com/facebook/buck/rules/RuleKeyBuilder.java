@@ -24,7 +24,7 @@ import com.facebook.buck.model.HasBuildTarget;
 import com.facebook.buck.model.UnflavoredBuildTarget;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.cache.FileHashCache;
-import com.facebook.buck.util.hash.AppendingHasher;
+import com.facebook.buck.util.hash.CloningHasher;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
@@ -32,17 +32,19 @@ import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
 import com.google.common.primitives.Primitives;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
-import java.util.Stack;
 
 import javax.annotation.Nullable;
 
@@ -53,12 +55,23 @@ public class RuleKeyBuilder {
 
   private static final Logger logger = Logger.get(RuleKeyBuilder.class);
 
+  /**
+   * Scratch space for encoding strings.  A builder is created for every rule and sub-key, so this
+   * is shared between all of the builders on a thread rather than allocated by each.
+   */
+  private static final ThreadLocal<byte[]> ENCODING_BUFFER = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[256];
+    }
+  };
+
   private final SourcePathResolver resolver;
   private final Hasher hasher;
   private final FileHashCache hashCache;
   private final RuleKeyBuilderFactory defaultRuleKeyBuilderFactory;
   private final RuleKeyLogger ruleKeyLogger;
-  private Stack<String> keyStack;
+  private final Deque<String> keyStack;
 
   public RuleKeyBuilder(
       SourcePathResolver resolver,
@@ -66,10 +79,10 @@ public class RuleKeyBuilder {
       RuleKeyBuilderFactory defaultRuleKeyBuilderFactory,
       RuleKeyLogger ruleKeyLogger) {
     this.resolver = resolver;
-    this.hasher = new AppendingHasher(Hashing.sha1(), /* numHashers */ 2);
+    this.hasher = CloningHasher.sha1();
     this.hashCache = hashCache;
     this.defaultRuleKeyBuilderFactory = defaultRuleKeyBuilderFactory;
-    this.keyStack = new Stack<>();
+    this.keyStack = new ArrayDeque<>();
     this.ruleKeyLogger = ruleKeyLogger;
   }
 
@@ -86,15 +99,46 @@ public class RuleKeyBuilder {
   }
 
   private RuleKeyBuilder feed(byte[] bytes) {
+    feedKeys();
+    hasher.putBytes(bytes);
+    hasher.putByte(SEPARATOR);
+    return this;
+  }
+
+  /**
+   * Equivalent to {@code feed(string.getBytes(UTF_8))}, but without allocating in the common case
+   * where the string is ASCII.
+   */
+  private RuleKeyBuilder feed(String string) {
+    feedKeys();
+    putUtf8(string);
+    hasher.putByte(SEPARATOR);
+    return this;
+  }
+
+  private void feedKeys() {
     while (!keyStack.isEmpty()) {
-      String key = keyStack.pop();
-      hasher.putBytes(key.getBytes(StandardCharsets.UTF_8));
+      putUtf8(keyStack.pop());
       hasher.putByte(SEPARATOR);
     }
+  }
 
-    hasher.putBytes(bytes);
-    hasher.putByte(SEPARATOR);
-    return this;
+  private void putUtf8(String string) {
+    int length = string.length();
+    byte[] buffer = ENCODING_BUFFER.get();
+    if (buffer.length < length) {
+      buffer = new byte[Math.max(length, 2 * buffer.length)];
+      ENCODING_BUFFER.set(buffer);
+    }
+    for (int i = 0; i < length; i++) {
+      char c = string.charAt(i);
+      if (c >= 0x80) {
+        hasher.putBytes(string.getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+      buffer[i] = (byte) c;
+    }
+    hasher.putBytes(buffer, 0, length);
   }
 
   protected RuleKeyBuilder setSourcePath(SourcePath sourcePath) {
@@ -112,7 +156,7 @@ public class RuleKeyBuilder {
     // And now we need to figure out what this thing is.
     Optional<BuildRule> buildRule = resolver.getRule(sourcePath);
     if (buildRule.isPresent()) {
-      feed(sourcePath.toString().getBytes(StandardCharsets.UTF_8));
+      feed(sourcePath.toString());
       return setSingleValue(buildRule.get());
     } else {
       // The original version of this expected the path to be relative, however, sometimes the
@@ -144,7 +188,7 @@ public class RuleKeyBuilder {
     }
 
     ruleKeyLogger.addNonHashingPath(pathForKey);
-    feed(pathForKey.getBytes(StandardCharsets.UTF_8));
+    feed(pathForKey);
     return this;
   }
 
@@ -200,6 +244,7 @@ public class RuleKeyBuilder {
       // Check to see if we're dealing with a collection of some description. Note
       // java.nio.file.Path implements "Iterable", so we don't check for that.
       if (val instanceof Collection) {
+        prefetchHashes((Collection<?>) val);
         val = ((Collection<?>) val).iterator();
         // Fall through to the Iterator handling
       }
@@ -226,18 +271,18 @@ public class RuleKeyBuilder {
               val);
         }
         try (RuleKeyLogger.Scope mapScope = ruleKeyLogger.pushMap()) {
-          feed("{".getBytes(StandardCharsets.UTF_8));
+          feed("{");
           for (Map.Entry<?, ?> entry : ((Map<?, ?>) val).entrySet()) {
             try (RuleKeyLogger.Scope mapKeyScope = ruleKeyLogger.pushMapKey()) {
               setReflectively(key, entry.getKey());
             }
-            feed(" -> ".getBytes(StandardCharsets.UTF_8));
+            feed(" -> ");
             try (RuleKeyLogger.Scope mapValueScope = ruleKeyLogger.pushMapValue()) {
               setReflectively(key, entry.getValue());
             }
           }
         }
-        return feed("}".getBytes(StandardCharsets.UTF_8));
+        return feed("}");
       }
 
       if (val instanceof Supplier) {
@@ -253,6 +298,36 @@ public class RuleKeyBuilder {
     }
   }
 
+  /**
+   * Hashes the files behind any {@link SourcePath}s in {@code values} in bulk, rather than one at a
+   * time as they're added to the key.  Rules with large lists of inputs spend most of the time it
+   * takes to build their keys hashing files.
+   */
+  private void prefetchHashes(Collection<?> values) {
+    if (values.size() < 2) {
+      return;
+    }
+    List<Path> paths = new ArrayList<>();
+    for (Object value : values) {
+      if (value instanceof SourcePath) {
+        paths.addAll(getPathToHash((SourcePath) value).asSet());
+      }
+    }
+    hashCache.prefetch(paths);
+  }
+
+  /**
+   * @return the absolute path whose contents {@link #setSourcePath(SourcePath)} will hash for the
+   *     given {@link SourcePath}, if any.
+   */
+  protected Optional<Path> getPathToHash(SourcePath sourcePath) {
+    if (sourcePath instanceof ArchiveMemberSourcePath ||
+        resolver.getRule(sourcePath).isPresent()) {
+      return Optional.absent();
+    }
+    return Optional.of(resolver.getAbsolutePath(sourcePath));
+  }
+
   // Paths get added as a combination of the file name and file hash. If the path is absolute
   // then we only include the file name (assuming that it represents a tool of some kind
   // that's being used for compilation or some such). This does mean that if a user renames a
@@ -277,8 +352,8 @@ public class RuleKeyBuilder {
 
     ruleKeyLogger.addPath(addToKey, sha1);
 
-    feed(addToKey.toString().getBytes(StandardCharsets.UTF_8));
-    feed(sha1.toString().getBytes(StandardCharsets.UTF_8));
+    feed(addToKey.toString());
+    feed(sha1.toString());
     return this;
   }
 
@@ -296,8 +371,8 @@ public class RuleKeyBuilder {
     ArchiveMemberPath addToKey = relativeArchiveMemberPath;
     ruleKeyLogger.addArchiveMemberPath(addToKey, hash);
 
-    feed(addToKey.toString().getBytes(StandardCharsets.UTF_8));
-    feed(hash.toString().getBytes(StandardCharsets.UTF_8));
+    feed(addToKey.toString());
+    feed(hash.toString());
     return this;
   }
 
@@ -308,10 +383,10 @@ public class RuleKeyBuilder {
       return feed(new byte[0]);
     } else if (val instanceof Boolean) {           // JRE types
       ruleKeyLogger.addValue((boolean) val);
-      feed(((boolean) val ? "t" : "f").getBytes(StandardCharsets.UTF_8));
+      feed((boolean) val ? "t" : "f");
     } else if (val instanceof Enum) {
       ruleKeyLogger.addValue((Enum<?>) val);
-      feed(String.valueOf(val).getBytes(StandardCharsets.UTF_8));
+      feed(String.valueOf(val));
     } else if (val instanceof Number) {
       Class<?> wrapped = Primitives.wrap(val.getClass());
       if (Double.class.equals(wrapped)) {
@@ -337,19 +412,19 @@ public class RuleKeyBuilder {
           "It's not possible to reliably disambiguate Paths. They are disallowed from rule keys");
     } else if (val instanceof String) {
       ruleKeyLogger.addValue((String) val);
-      feed(((String) val).getBytes(StandardCharsets.UTF_8));
+      feed((String) val);
     } else if (val instanceof BuildRule) {                       // Buck types
       return setBuildRule((BuildRule) val);
     } else if (val instanceof BuildRuleType) {
       ruleKeyLogger.addValue((BuildRuleType) val);
-      feed(val.toString().getBytes(StandardCharsets.UTF_8));
+      feed(val.toString());
     } else if (val instanceof RuleKey) {
       ruleKeyLogger.addValue((RuleKey) val);
-      feed(val.toString().getBytes(StandardCharsets.UTF_8));
+      feed(val.toString());
     } else if (val instanceof BuildTarget || val instanceof UnflavoredBuildTarget) {
       BuildTarget buildTarget = ((HasBuildTarget) val).getBuildTarget();
       ruleKeyLogger.addValue(buildTarget);
-      feed(buildTarget.getFullyQualifiedName().getBytes(StandardCharsets.UTF_8));
+      feed(buildTarget.getFullyQualifiedName());
     } else if (val instanceof Either) {
       Either<?, ?> either = (Either<?, ?>) val;
       if (either.isLeft()) {
@@ -366,18 +441,18 @@ public class RuleKeyBuilder {
     } else if (val instanceof SourceRoot) {
       SourceRoot sourceRoot = ((SourceRoot) val);
       ruleKeyLogger.addValue(sourceRoot);
-      feed(sourceRoot.getName().getBytes(StandardCharsets.UTF_8));
+      feed(sourceRoot.getName());
     } else if (val instanceof SourceWithFlags) {
       SourceWithFlags source = (SourceWithFlags) val;
       try (RuleKeyLogger.Scope scope = ruleKeyLogger.pushSourceWithFlags()) {
         setSourcePath(source.getSourcePath());
-        feed("[".getBytes(StandardCharsets.UTF_8));
+        feed("[");
         for (String flag : source.getFlags()) {
           ruleKeyLogger.addValue(flag);
-          feed(flag.getBytes(StandardCharsets.UTF_8));
-          feed(",".getBytes(StandardCharsets.UTF_8));
+          feed(flag);
+          feed(",");
         }
-        feed("]".getBytes(StandardCharsets.UTF_8));
+        feed("]");
       }
     } else if (val instanceof Sha1HashCode) {
       Sha1HashCode hashCode = (Sha1HashCode) val;
@@ -25,18 +25,30 @@ import com.facebook.buck.hashing.StringHashing;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.Pair;
 import com.facebook.buck.util.HumanReadableException;
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 
 /**
  * Utility class to calculate hash codes for build targets in a {@link TargetGraph}.
@@ -44,6 +56,10 @@ import java.util.Map;
  * A build target's hash code is guaranteed to change if the build
  * target or any of its dependencies change, including the contents of
  * all input files to the target and its dependencies.
+ *
+ * Each node's own inputs are hashed on the given executor, so independent
+ * parts of the graph are hashed concurrently, and a node's hash is then
+ * combined with those of its dependencies as soon as they're ready.
  */
 public class TargetGraphHashing {
   private static final Logger LOG = Logger.get(TargetGraphHashing.class);
@@ -58,74 +74,194 @@ public class TargetGraphHashing {
    */
   public static ImmutableMap<BuildTarget, HashCode> hashTargetGraph(
       Cell rootCell,
-      final TargetGraph targetGraph,
+      TargetGraph targetGraph,
+      FileHashLoader fileHashLoader,
+      Iterable<TargetNode<?>> roots) throws IOException, InterruptedException {
+    return hashTargetGraph(
+        rootCell,
+        targetGraph,
+        fileHashLoader,
+        roots,
+        MoreExecutors.newDirectExecutorService(),
+        Optional.<TargetNodeHashCache>absent());
+  }
+
+  /**
+   * Like {@link #hashTargetGraph(Cell, TargetGraph, FileHashLoader, Iterable)}, but hashes the
+   * nodes on {@code executor}, reusing the hashes of their inputs remembered by {@code cache}.
+   * The cache must only ever be used with the same {@code fileHashLoader}.
+   */
+  public static ImmutableMap<BuildTarget, HashCode> hashTargetGraph(
+      Cell rootCell,
+      TargetGraph targetGraph,
       FileHashLoader fileHashLoader,
-      Iterable<TargetNode<?>> roots) throws IOException {
+      Iterable<TargetNode<?>> roots,
+      ListeningExecutorService executor,
+      Optional<TargetNodeHashCache> cache) throws IOException, InterruptedException {
+    return hashTargetGraph(
+        targetGraph,
+        Optional.of(new Pair<>(rootCell, fileHashLoader)),
+        roots,
+        executor,
+        cache);
+  }
+
+  /**
+   * Like {@link #hashTargetGraph(Cell, TargetGraph, FileHashLoader, Iterable)}, but leaves out the
+   * contents of the input files, so a build target's hash code only changes if the build target or
+   * any of its dependencies change.  Hashing this way doesn't touch the filesystem.
+   */
+  public static ImmutableMap<BuildTarget, HashCode> hashTargetGraphStructure(
+      TargetGraph targetGraph,
+      Iterable<TargetNode<?>> roots) {
     try {
-      Map<BuildTarget, HashCode> buildTargetHashes = new HashMap<>();
-      AcyclicDepthFirstPostOrderTraversal<TargetNode<?>> traversal =
-          new AcyclicDepthFirstPostOrderTraversal<>(
-              new GraphTraversable<TargetNode<?>>() {
+      return hashTargetGraph(
+          targetGraph,
+          Optional.<Pair<Cell, FileHashLoader>>absent(),
+          roots,
+          MoreExecutors.newDirectExecutorService(),
+          Optional.<TargetNodeHashCache>absent());
+    } catch (IOException | InterruptedException e) {
+      // Nothing is read and nothing waits, since every node is hashed on the calling thread.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static ImmutableMap<BuildTarget, HashCode> hashTargetGraph(
+      final TargetGraph targetGraph,
+      final Optional<Pair<Cell, FileHashLoader>> inputHashing,
+      Iterable<TargetNode<?>> roots,
+      ListeningExecutorService executor,
+      final Optional<TargetNodeHashCache> cache) throws IOException, InterruptedException {
+    AcyclicDepthFirstPostOrderTraversal<TargetNode<?>> traversal =
+        new AcyclicDepthFirstPostOrderTraversal<>(
+            new GraphTraversable<TargetNode<?>>() {
+              @Override
+              public Iterator<TargetNode<?>> findChildren(TargetNode<?> node) {
+                return targetGraph.getAll(node.getDeps()).iterator();
+              }
+            });
+    Iterable<TargetNode<?>> postOrder;
+    try {
+      postOrder = traversal.traverse(roots);
+    } catch (CycleException e) {
+      throw new RuntimeException(e);
+    }
+
+    if (cache.isPresent()) {
+      cache.get().applyInvalidations();
+    }
+
+    // Every node's dependencies come before it in post-order, so their futures already exist.
+    Map<BuildTarget, ListenableFuture<HashCode>> buildTargetHashes = new HashMap<>();
+    for (final TargetNode<?> node : postOrder) {
+      if (buildTargetHashes.containsKey(node.getBuildTarget())) {
+        LOG.verbose("Already hashed node %s, not hashing again.", node);
+        continue;
+      }
+
+      List<ListenableFuture<HashCode>> hashes = new ArrayList<>();
+      Optional<HashCode> cachedInputsHash =
+          cache.isPresent() ? cache.get().get(node) : Optional.<HashCode>absent();
+      if (cachedInputsHash.isPresent()) {
+        hashes.add(Futures.immediateFuture(cachedInputsHash.get()));
+      } else {
+        hashes.add(
+            executor.submit(
+                new Callable<HashCode>() {
+                  @Override
+                  public HashCode call() {
+                    HashCode inputsHash = hashNodeInputs(inputHashing, node);
+                    if (cache.isPresent()) {
+                      cache.get().put(node, inputsHash);
+                    }
+                    return inputsHash;
+                  }
+                }));
+      }
+      for (BuildTarget dependency : node.getDeps()) {
+        hashes.add(Preconditions.checkNotNull(buildTargetHashes.get(dependency)));
+      }
+
+      buildTargetHashes.put(
+          node.getBuildTarget(),
+          Futures.transform(
+              Futures.allAsList(hashes),
+              new Function<List<HashCode>, HashCode>() {
                 @Override
-                public Iterator<TargetNode<?>> findChildren(TargetNode<?> node) {
-                  return targetGraph.getAll(node.getDeps()).iterator();
+                public HashCode apply(List<HashCode> hashes) {
+                  return combineHashes(node, hashes);
                 }
-              });
-      for (TargetNode<?> node : traversal.traverse(roots)) {
-        if (buildTargetHashes.containsKey(node.getBuildTarget())) {
-          LOG.verbose("Already hashed node %s, not hashing again.", node);
-          continue;
-        }
-        Hasher hasher = Hashing.sha1().newHasher();
-        try {
-          hashNode(rootCell, fileHashLoader, hasher, buildTargetHashes, node);
-        } catch (IOException e) {
-          throw new HumanReadableException(
-              e,
-              "Exception while attempting to hash %s: %s",
-              node.getBuildTarget().getFullyQualifiedName(),
-              e.getMessage());
-        }
-        HashCode result = hasher.hash();
-        LOG.debug("Hash for target %s: %s", node.getBuildTarget(), result);
-        buildTargetHashes.put(node.getBuildTarget(), result);
+              }));
+    }
+
+    try {
+      Futures.allAsList(buildTargetHashes.values()).get();
+      ImmutableMap.Builder<BuildTarget, HashCode> result = ImmutableMap.builder();
+      for (Map.Entry<BuildTarget, ListenableFuture<HashCode>> entry :
+           buildTargetHashes.entrySet()) {
+        result.put(entry.getKey(), entry.getValue().get());
       }
-      return ImmutableMap.copyOf(buildTargetHashes);
-    } catch (CycleException e) {
-      throw new RuntimeException(e);
+      return result.build();
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
     }
   }
 
-  private static void hashNode(
-      Cell rootCell,
-      FileHashLoader fileHashLoader,
-      Hasher hasher,
-      Map<BuildTarget, HashCode> buildTargetHashes,
-      TargetNode<?> node) throws IOException {
+  /**
+   * Hashes the parts of a node that don't depend on any other node: its build target, its rules
+   * and, unless we only care about the structure of the graph, the contents of its input files.
+   */
+  private static HashCode hashNodeInputs(
+      Optional<Pair<Cell, FileHashLoader>> inputHashing,
+      TargetNode<?> node) {
     LOG.verbose("Hashing node %s", node);
+    Hasher hasher = Hashing.sha1().newHasher();
     // Hash the node's build target and rules.
     StringHashing.hashStringAndLength(hasher, node.getBuildTarget().toString());
     HashCode targetRuleHashCode = node.getRawInputsHashCode();
     LOG.verbose("Got rules hash %s", targetRuleHashCode);
     hasher.putBytes(targetRuleHashCode.asBytes());
 
-    ProjectFilesystem cellFilesystem = rootCell.getCell(node.getBuildTarget()).getFilesystem();
+    if (inputHashing.isPresent()) {
+      ProjectFilesystem cellFilesystem =
+          inputHashing.get().getFirst().getCell(node.getBuildTarget()).getFilesystem();
 
-    // Hash the contents of all input files and directories.
-    PathHashing.hashPaths(
-        hasher,
-        fileHashLoader,
-        cellFilesystem,
-        ImmutableSortedSet.copyOf(node.getInputs()));
+      // Hash the contents of all input files and directories.
+      try {
+        PathHashing.hashPaths(
+            hasher,
+            inputHashing.get().getSecond(),
+            cellFilesystem,
+            ImmutableSortedSet.copyOf(node.getInputs()));
+      } catch (IOException e) {
+        throw new HumanReadableException(
+            e,
+            "Exception while attempting to hash %s: %s",
+            node.getBuildTarget().getFullyQualifiedName(),
+            e.getMessage());
+      }
+    }
+    return hasher.hash();
+  }
 
-    // We've already visited the dependencies (this is a depth-first traversal), so
-    // hash each dependency's build target and that build target's own hash.
+  /**
+   * @param hashes the hash of the node's own inputs, followed by the hashes of its dependencies in
+   *     the order of {@link TargetNode#getDeps()}.
+   */
+  private static HashCode combineHashes(TargetNode<?> node, List<HashCode> hashes) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putBytes(hashes.get(0).asBytes());
+    int index = 1;
     for (BuildTarget dependency : node.getDeps()) {
-      HashCode dependencyHashCode = buildTargetHashes.get(dependency);
-      Preconditions.checkState(dependencyHashCode != null);
+      HashCode dependencyHashCode = hashes.get(index++);
       LOG.verbose("Node %s: adding dependency %s (%s)", node, dependency, dependencyHashCode);
       StringHashing.hashStringAndLength(hasher, dependency.toString());
       hasher.putBytes(dependencyHashCode.asBytes());
     }
+    HashCode result = hasher.hash();
+    LOG.debug("Hash for target %s: %s", node.getBuildTarget(), result);
+    return result;
   }
 }
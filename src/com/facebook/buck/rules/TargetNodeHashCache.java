@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.io.WatchEvents;
+import com.facebook.buck.log.Logger;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Remembers the part of each target node's hash in {@link TargetGraphHashing} that only depends on
+ * the node itself: its build target, its raw inputs and the contents of its input files.
+ * <p>
+ * A node is recreated whenever its build file changes, so the only thing that can make a
+ * remembered hash stale is a change to one of the node's input files.  Watch events are collected
+ * as they arrive and applied in one pass over the cache before the next graph is hashed.
+ */
+public class TargetNodeHashCache {
+
+  private static final Logger LOG = Logger.get(TargetNodeHashCache.class);
+
+  // Weak keys, so nodes that have been parsed again don't stay around, and compared by identity.
+  private final Cache<TargetNode<?>, HashCode> hashes =
+      CacheBuilder.newBuilder().weakKeys().build();
+
+  /**
+   * The paths touched by watch events since the cache was last brought up to date, relative to the
+   * root of the cell they're in.
+   */
+  @GuardedBy("this")
+  private Set<Path> changedPaths = new HashSet<>();
+
+  @GuardedBy("this")
+  private boolean invalidateAll;
+
+  Optional<HashCode> get(TargetNode<?> node) {
+    return Optional.fromNullable(hashes.getIfPresent(node));
+  }
+
+  void put(TargetNode<?> node, HashCode hashCode) {
+    hashes.put(node, hashCode);
+  }
+
+  public synchronized void invalidateBasedOn(WatchEvent<?> event) {
+    if (!WatchEvents.isPathChangeEvent(event)) {
+      // Non-path change event, likely an overflow due to many change events: invalidate everything.
+      invalidateAll = true;
+      return;
+    }
+    changedPaths.add(((Path) event.context()).normalize());
+  }
+
+  /**
+   * Drops the hashes of the nodes with an input file, or a directory of input files, touched by the
+   * watch events received so far.
+   */
+  void applyInvalidations() {
+    Set<Path> changed;
+    synchronized (this) {
+      if (invalidateAll) {
+        LOG.debug("Invalidating all target node hashes.");
+        hashes.invalidateAll();
+        invalidateAll = false;
+        changedPaths = new HashSet<>();
+        return;
+      }
+      if (changedPaths.isEmpty()) {
+        return;
+      }
+      changed = changedPaths;
+      changedPaths = new HashSet<>();
+    }
+
+    // A node is affected if one of its inputs is a changed path or a directory containing one.
+    Set<Path> changedPathsAndParents = new HashSet<>();
+    for (Path path : changed) {
+      for (Path current = path; current != null; current = current.getParent()) {
+        if (!changedPathsAndParents.add(current)) {
+          break;
+        }
+      }
+    }
+
+    int invalidated = 0;
+    Iterator<TargetNode<?>> nodes = hashes.asMap().keySet().iterator();
+    while (nodes.hasNext()) {
+      for (Path input : nodes.next().getInputs()) {
+        if (changedPathsAndParents.contains(input)) {
+          nodes.remove();
+          invalidated++;
+          break;
+        }
+      }
+    }
+    LOG.debug(
+        "Invalidated %d target node hashes for %d changed paths.",
+        invalidated,
+        changed.size());
+  }
+}
@@ -89,6 +89,9 @@ public class ContentAgnosticRuleKeyBuilderFactory
 
       @Override
       public void set(Path path, HashCode hashCode) {}
+
+      @Override
+      public void prefetch(Iterable<Path> paths) {}
     };
   }
 
@@ -29,10 +29,14 @@ import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
 
 import java.io.IOException;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A variant of {@link InputBasedRuleKeyBuilderFactory} which ignores inputs when calculating the
@@ -42,6 +46,7 @@ public class DefaultDependencyFileRuleKeyBuilderFactory
     extends InputBasedRuleKeyBuilderFactory
     implements DependencyFileRuleKeyBuilderFactory {
 
+  private final FileHashCache fileHashCache;
   private final SourcePathResolver pathResolver;
 
   public DefaultDependencyFileRuleKeyBuilderFactory(
@@ -49,6 +54,7 @@ public class DefaultDependencyFileRuleKeyBuilderFactory
       SourcePathResolver pathResolver,
       RuleKeyBuilderFactory ruleKeyBuilderFactory) {
     super(fileHashCache, pathResolver, ruleKeyBuilderFactory, InputHandling.IGNORE);
+    this.fileHashCache = fileHashCache;
     this.pathResolver = pathResolver;
   }
 
@@ -92,6 +98,7 @@ public class DefaultDependencyFileRuleKeyBuilderFactory
             inputs,
             possibleDepFileSourcePaths.get());
 
+        builder.prefetchHashes(nonDepFileInputs);
         builder.addToRuleKey(ImmutableSet.copyOf(nonDepFileInputs));
 
         depFileInputs = ImmutableSet.copyOf(Sets.intersection(
@@ -124,6 +131,7 @@ public class DefaultDependencyFileRuleKeyBuilderFactory
       ImmutableList<SourcePath> depFileSourcePaths =
           getDepFileSourcePaths(depFileEntries, possibleDepFileSourcePaths);
 
+      builder.prefetchHashes(Iterables.concat(nonDepFileSourcePaths, depFileSourcePaths));
       builder.addToRuleKey(nonDepFileSourcePaths);
       builder.addToRuleKey(depFileSourcePaths);
 
@@ -218,6 +226,19 @@ public class DefaultDependencyFileRuleKeyBuilderFactory
       return builder.getInputsSoFar();
     }
 
+    /**
+     * Hashes the given inputs in bulk before they're added to the key one by one.
+     */
+    public void prefetchHashes(Iterable<SourcePath> sourcePaths) {
+      List<Path> paths = new ArrayList<>();
+      for (SourcePath sourcePath : sourcePaths) {
+        if (!(sourcePath instanceof ArchiveMemberSourcePath)) {
+          paths.add(pathResolver.getAbsolutePath(sourcePath));
+        }
+      }
+      fileHashCache.prefetch(paths);
+    }
+
     public void addToRuleKey(ImmutableCollection<SourcePath> sourcePaths) throws IOException {
       for (SourcePath sourcePath : sourcePaths) {
         addToRuleKey(sourcePath);
@@ -25,6 +25,7 @@ import com.facebook.buck.rules.RuleKeyBuilderFactory;
 import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.facebook.buck.util.cache.FileHashCache;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
@@ -34,6 +35,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Collections;
 
 import javax.annotation.Nonnull;
@@ -163,6 +165,15 @@ public class InputBasedRuleKeyBuilderFactory
       return this;
     }
 
+    @Override
+    protected Optional<Path> getPathToHash(SourcePath sourcePath) {
+      if (inputHandling == InputHandling.IGNORE ||
+          sourcePath instanceof ArchiveMemberSourcePath) {
+        return Optional.absent();
+      }
+      return Optional.of(pathResolver.getAbsolutePath(sourcePath));
+    }
+
     // Rules supporting input-based rule keys should be described entirely by their `SourcePath`
     // inputs.  If we see a `BuildRule` when generating the rule key, this is likely a break in
     // that contract, so check for that.
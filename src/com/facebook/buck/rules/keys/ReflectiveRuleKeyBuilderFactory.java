@@ -36,12 +36,16 @@ public abstract class ReflectiveRuleKeyBuilderFactory<T extends RuleKeyBuilder>
 
   private static final Logger LOG = Logger.get(ReflectiveRuleKeyBuilderFactory.class);
 
-  private final LoadingCache<Class<? extends BuildRule>, ImmutableCollection<AlterRuleKey>>
-      knownFields;
+  /**
+   * The fields to add to the rule key for each class of rule.  These only depend on the class, so
+   * they're shared by all factories rather than worked out again for every build.
+   */
+  private static final LoadingCache<Class<? extends BuildRule>, ImmutableCollection<AlterRuleKey>>
+      KNOWN_FIELDS = CacheBuilder.newBuilder().weakKeys().build(new ReflectiveAlterKeyLoader());
+
   private final LoadingCache<BuildRule, RuleKey> knownRules;
 
   public ReflectiveRuleKeyBuilderFactory() {
-    knownFields = CacheBuilder.newBuilder().build(new ReflectiveAlterKeyLoader());
     knownRules = CacheBuilder.newBuilder().weakKeys().build(
         new CacheLoader<BuildRule, RuleKey>() {
           @Override
@@ -74,7 +78,7 @@ public abstract class ReflectiveRuleKeyBuilderFactory<T extends RuleKeyBuilder>
     }
 
     try {
-      for (AlterRuleKey alterRuleKey : knownFields.get(buildRule.getClass())) {
+      for (AlterRuleKey alterRuleKey : KNOWN_FIELDS.get(buildRule.getClass())) {
         alterRuleKey.amendKey(builder, buildRule);
       }
     } catch (ExecutionException | RuntimeException e) {
@@ -35,4 +35,5 @@ abstract class AbstractSingleRunReport {
   public abstract String getSimulateTimesFile();
   public abstract String getTimeAggregate();
   public abstract long getRuleFallbackTimeMillis();
+  public abstract String getDependencySchedulingOrder();
 }
@@ -21,8 +21,11 @@ import com.facebook.buck.parser.NoSuchBuildTargetException;
 import com.facebook.buck.rules.ActionGraph;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.CachingBuildEngine;
+import com.facebook.buck.rules.CriticalPathPriorities;
 import com.facebook.buck.rules.HasRuntimeDeps;
 import com.facebook.buck.util.HumanReadableException;
+import com.google.common.base.Function;
 import com.google.common.base.Functions;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.FluentIterable;
@@ -32,8 +35,10 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
 
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Queue;
 
 public class BuildSimulator {
@@ -41,19 +46,28 @@ public class BuildSimulator {
   private final ActionGraph actionGraph;
   private final BuildRuleResolver resolver;
   private final int numberOfThreads;
+  private final CachingBuildEngine.DependencySchedulingOrder schedulingOrder;
   private final BuckEventBus eventBus;
 
+  /**
+   * @param schedulingOrder with {@link CachingBuildEngine.DependencySchedulingOrder#CRITICAL_PATH},
+   *     rules which are ready to build are started in order of priority, as the build engine would,
+   *     using the simulation times as the expected build times.  Otherwise they are started in the
+   *     order they became ready.
+   */
   public BuildSimulator(
       BuckEventBus eventBus,
       SimulateTimes times,
       ActionGraph actionGraph,
       BuildRuleResolver resolver,
-      int numberOfThreads) {
+      int numberOfThreads,
+      CachingBuildEngine.DependencySchedulingOrder schedulingOrder) {
     this.eventBus = eventBus;
     this.times = times;
     this.actionGraph = actionGraph;
     this.resolver = resolver;
     this.numberOfThreads = numberOfThreads;
+    this.schedulingOrder = schedulingOrder;
   }
 
   public SimulateReport simulateBuild(
@@ -62,19 +76,22 @@ public class BuildSimulator {
     Preconditions.checkArgument(buildTargets.size() > 0, "No targets provided for the simulation.");
     SimulateReport.Builder simulateReport = SimulateReport.builder();
 
+    ImmutableList.Builder<BuildRule> rulesBuilder = ImmutableList.builder();
+    for (BuildTarget target : buildTargets) {
+      try {
+        rulesBuilder.add(resolver.requireRule(target));
+      } catch (NoSuchBuildTargetException e) {
+        throw new HumanReadableException(e.getHumanReadableErrorMessage());
+      }
+    }
+    ImmutableList<BuildRule> rules = rulesBuilder.build();
+
     for (String timeAggregate : times.getTimeAggregates()) {
       // Setup the build order.
       Map<BuildTarget, NodeState> reverseDependencies = Maps.newHashMap();
-      Queue<BuildTarget> leafNodes = Queues.newArrayDeque();
+      Queue<BuildTarget> leafNodes = newBuildableNodesQueue(rules, timeAggregate);
       int totalDagEdges = 0;
-      for (BuildTarget target : buildTargets) {
-        BuildRule rule;
-        try {
-          rule = resolver.requireRule(target);
-        } catch (NoSuchBuildTargetException e) {
-          throw new HumanReadableException(e.getHumanReadableErrorMessage());
-        }
-
+      for (BuildRule rule : rules) {
         totalDagEdges += recursiveTraversal(rule, reverseDependencies, leafNodes);
       }
 
@@ -86,7 +103,8 @@ public class BuildSimulator {
           .setRuleFallbackTimeMillis(times.getRuleFallbackTimeMillis())
           .setTotalActionGraphNodes(Iterables.size(actionGraph.getNodes()))
           .setTimeAggregate(timeAggregate)
-          .setNumberOfThreads(numberOfThreads);
+          .setNumberOfThreads(numberOfThreads)
+          .setDependencySchedulingOrder(schedulingOrder.toString());
 
       report.setTotalDependencyDagEdges(totalDagEdges);
 
@@ -152,6 +170,36 @@ public class BuildSimulator {
     return report.build();
   }
 
+  private Queue<BuildTarget> newBuildableNodesQueue(
+      ImmutableList<BuildRule> rules,
+      final String timeAggregate) {
+    if (schedulingOrder != CachingBuildEngine.DependencySchedulingOrder.CRITICAL_PATH) {
+      return Queues.newArrayDeque();
+    }
+
+    final CriticalPathPriorities priorities = new CriticalPathPriorities(
+        new Function<BuildRule, Long>() {
+          @Override
+          public Long apply(BuildRule rule) {
+            return times.getMillisForTarget(rule.getBuildTarget().toString(), timeAggregate);
+          }
+        });
+    priorities.addRoots(rules);
+    return new PriorityQueue<>(
+        11,
+        new Comparator<BuildTarget>() {
+          @Override
+          public int compare(BuildTarget a, BuildTarget b) {
+            int result = Long.compare(getPriority(b), getPriority(a));
+            return result != 0 ? result : a.compareTo(b);
+          }
+
+          private long getPriority(BuildTarget target) {
+            return priorities.getPriority(resolver.getRule(target));
+          }
+        });
+  }
+
   /**
    *
    * @param rule
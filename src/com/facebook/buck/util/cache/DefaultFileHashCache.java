@@ -19,39 +19,114 @@ package com.facebook.buck.util.cache;
 import com.facebook.buck.hashing.PathHashing;
 import com.facebook.buck.io.ArchiveMemberPath;
 import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheLoader.InvalidCacheLoadException;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
-import com.google.common.io.ByteSource;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 public class DefaultFileHashCache implements ProjectFileHashCache {
 
+  private static final Logger LOG = Logger.get(DefaultFileHashCache.class);
+
+  /**
+   * The number of threads, besides the caller's, used to read files when hashing many of them at
+   * once.  Hashing is mostly I/O bound, so this is deliberately small and independent of the
+   * number of cores.
+   */
+  @VisibleForTesting
+  static final int HASHING_THREADS = 4;
+
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Shared by all caches, so that the number of files being read at once stays bounded no matter
+   * how many caches are hashing.
+   */
+  @VisibleForTesting
+  static final Supplier<ListeningExecutorService> HASHING_EXECUTOR = Suppliers.memoize(
+      new Supplier<ListeningExecutorService>() {
+        @Override
+        public ListeningExecutorService get() {
+          return MoreExecutors.listeningDecorator(
+              Executors.newFixedThreadPool(
+                  HASHING_THREADS,
+                  new ThreadFactoryBuilder()
+                      .setNameFormat("file-hash-%d")
+                      .setDaemon(true)
+                      .build()));
+        }
+      });
+
+  private static final ThreadLocal<ByteBuffer> READ_BUFFER = new ThreadLocal<ByteBuffer>() {
+    @Override
+    protected ByteBuffer initialValue() {
+      // Guava's Hasher can only consume arrays, so a direct buffer would just add a copy.
+      return ByteBuffer.allocate(READ_BUFFER_SIZE);
+    }
+  };
+
   private final ProjectFilesystem projectFilesystem;
 
+  private final Optional<PersistentFileHashStore> persistentStore;
+
   @VisibleForTesting
   final LoadingCache<Path, HashCodeAndFileType> loadingCache;
 
   public DefaultFileHashCache(ProjectFilesystem projectFilesystem) {
+    this(projectFilesystem, Optional.<PersistentFileHashStore>absent());
+  }
+
+  /**
+   * @param persistentStore if present, file hashes are looked up in and recorded to this store, so
+   *     that they don't need to be recomputed by later processes.
+   */
+  public DefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Optional<PersistentFileHashStore> persistentStore) {
     this.projectFilesystem = projectFilesystem;
+    this.persistentStore = persistentStore;
 
     this.loadingCache = CacheBuilder.newBuilder()
         .build(new CacheLoader<Path, HashCodeAndFileType>() {
@@ -59,9 +134,107 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
           public HashCodeAndFileType load(@Nonnull Path path) throws Exception {
             return getHashCodeAndFileType(path);
           }
+
+          @Override
+          public Map<Path, HashCodeAndFileType> loadAll(Iterable<? extends Path> paths)
+              throws Exception {
+            return getHashCodesAndFileTypes(paths);
+          }
         });
   }
 
+  /**
+   * Hashes all of the given paths, reading the contents of files in parallel.  Paths which can't
+   * be hashed are left out of the result.
+   */
+  private Map<Path, HashCodeAndFileType> getHashCodesAndFileTypes(Iterable<? extends Path> paths)
+      throws InterruptedException {
+    Map<Path, HashCodeAndFileType> results = new HashMap<>();
+    final List<Path> files = new ArrayList<>();
+    for (Path path : paths) {
+      if (projectFilesystem.isDirectory(path)) {
+        // Directories are hashed on this thread, since hashing one hashes its files in bulk too,
+        // and doing that from the hashing threads could leave them all waiting on each other.
+        try {
+          results.put(path, getDirHashCode(path));
+        } catch (IOException e) {
+          LOG.debug(e, "Failed to hash %s", path);
+        }
+      } else {
+        files.add(path);
+      }
+    }
+
+    HashCode[] fileHashCodes = hashFiles(files);
+    for (int i = 0; i < files.size(); i++) {
+      Path file = files.get(i);
+      HashCode hashCode = fileHashCodes[i];
+      if (hashCode == null) {
+        continue;
+      }
+      if (file.toString().endsWith(".jar")) {
+        results.put(file, HashCodeAndFileType.ofArchive(hashCode, projectFilesystem, file));
+      } else {
+        results.put(file, HashCodeAndFileType.ofFile(hashCode));
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Hashes {@code files} on the calling thread, with help from the shared hashing threads when they
+   * are free.  The hashing threads are shared by every cache, so the caller never waits for one of
+   * them to become available: it only waits for the files they have already started on.
+   *
+   * @return the hash of each file, or null where the file couldn't be hashed.
+   */
+  private HashCode[] hashFiles(final List<Path> files) throws InterruptedException {
+    final HashCode[] hashCodes = new HashCode[files.size()];
+    final AtomicInteger nextFile = new AtomicInteger();
+    final CountDownLatch hashed = new CountDownLatch(files.size());
+    final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    Runnable hashRemainingFiles = new Runnable() {
+      @Override
+      public void run() {
+        for (int i = nextFile.getAndIncrement(); i < files.size(); i = nextFile.getAndIncrement()) {
+          try {
+            hashCodes[i] = getFileHashCodeOrNull(files.get(i));
+          } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+          } finally {
+            hashed.countDown();
+          }
+        }
+      }
+    };
+
+    List<Future<?>> helpers = new ArrayList<>();
+    for (int i = 0; i < Math.min(HASHING_THREADS, files.size() - 1); i++) {
+      helpers.add(HASHING_EXECUTOR.get().submit(hashRemainingFiles));
+    }
+    hashRemainingFiles.run();
+    // Every file has been claimed by now, so helpers which haven't started have nothing to do.
+    for (Future<?> helper : helpers) {
+      helper.cancel(/* mayInterruptIfRunning */ false);
+    }
+    hashed.await();
+
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    return hashCodes;
+  }
+
+  @Nullable
+  private HashCode getFileHashCodeOrNull(Path path) {
+    try {
+      return getFileHashCode(path);
+    } catch (IOException e) {
+      LOG.debug(e, "Failed to hash %s", path);
+      return null;
+    }
+  }
+
   private HashCodeAndFileType getHashCodeAndFileType(Path path) throws IOException {
     if (projectFilesystem.isDirectory(path)) {
       return getDirHashCode(path);
@@ -76,24 +249,49 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   }
 
   private HashCode getFileHashCode(final Path path) throws IOException {
-    ByteSource source =
-        new ByteSource() {
-          @Override
-          public InputStream openStream() throws IOException {
-            if (!path.isAbsolute()) {
-              return projectFilesystem.newFileInputStream(path);
-            } else {
-              return Files.newInputStream(path);
-            }
-          }
-        };
-    return source.hash(Hashing.sha1());
+    if (!persistentStore.isPresent()) {
+      return hashFileContents(path);
+    }
+
+    // Stat the file before hashing it, so that if it changes while it's being hashed, the stamp
+    // recorded with the hash won't match the file any more.
+    PersistentFileHashStore.FileStamp stamp = PersistentFileHashStore.FileStamp.of(
+        projectFilesystem.readAttributes(path, BasicFileAttributes.class));
+    String key = path.toString();
+    Optional<HashCode> persisted = persistentStore.get().get(key, stamp);
+    if (persisted.isPresent()) {
+      return persisted.get();
+    }
+    HashCode hashCode = hashFileContents(path);
+    persistentStore.get().put(key, stamp, hashCode);
+    return hashCode;
+  }
+
+  private HashCode hashFileContents(Path path) throws IOException {
+    Hasher hasher = Hashing.sha1().newHasher();
+    ByteBuffer buffer = READ_BUFFER.get();
+    buffer.clear();
+    try (ReadableByteChannel channel =
+             path.isAbsolute() ?
+                 FileChannel.open(path, StandardOpenOption.READ) :
+                 projectFilesystem.newFileReadChannel(path)) {
+      while (channel.read(buffer) != -1) {
+        hasher.putBytes(buffer.array(), 0, buffer.position());
+        buffer.clear();
+      }
+    }
+    return hasher.hash();
   }
 
   private HashCodeAndFileType getDirHashCode(Path path) throws IOException {
+    // Fill the cache with the hashes of everything in the directory in one go, rather than one
+    // file at a time as we walk it below.
+    ImmutableSet<Path> files = projectFilesystem.getFilesUnderPath(path);
+    prefetchRelativePaths(files);
+
     Hasher hasher = Hashing.sha1().newHasher();
     ImmutableSet<Path> children =
-        PathHashing.hashPath(hasher, this, projectFilesystem, path);
+        PathHashing.hashPath(hasher, this, projectFilesystem, path, files);
     return HashCodeAndFileType.ofDirectory(hasher.hash(), children);
   }
 
@@ -137,6 +335,31 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
     loadingCache.invalidateAll();
   }
 
+  @Override
+  public void prefetch(Iterable<Path> paths) {
+    Set<Path> relativePaths = new LinkedHashSet<>();
+    for (Path path : paths) {
+      Optional<Path> relativePath = projectFilesystem.getPathRelativeToProjectRoot(path);
+      if (relativePath.isPresent() && !projectFilesystem.isIgnored(relativePath.get())) {
+        relativePaths.add(relativePath.get().normalize());
+      }
+    }
+    prefetchRelativePaths(relativePaths);
+  }
+
+  private void prefetchRelativePaths(Iterable<Path> relativePaths) {
+    if (Iterables.size(relativePaths) < 2) {
+      return;
+    }
+    try {
+      loadingCache.getAll(relativePaths);
+    } catch (ExecutionException | UncheckedExecutionException | InvalidCacheLoadException e) {
+      // Whatever was hashed successfully has been cached.  Leave reporting the failures to the
+      // calls to get() for those paths.
+      LOG.debug(e, "Failed to hash some of %s", relativePaths);
+    }
+  }
+
   /**
    * @return The {@link com.google.common.hash.HashCode} of the contents of path.
    */
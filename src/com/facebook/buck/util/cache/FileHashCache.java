@@ -39,4 +39,11 @@ public interface FileHashCache extends FileHashLoader {
 
   void set(Path path, HashCode hashCode) throws IOException;
 
+  /**
+   * Hashes any of the given paths which aren't already cached in one go, in parallel where
+   * possible, so that subsequent calls to {@link #get(Path)} for them are cheap.  Paths which
+   * can't be hashed are skipped; the error is left for {@link #get(Path)} to report.
+   */
+  void prefetch(Iterable<Path> paths);
+
 }
@@ -59,4 +59,8 @@ public class NullFileHashCache implements FileHashCache {
   public void set(Path path, HashCode hashCode) {
   }
 
+  @Override
+  public void prefetch(Iterable<Path> paths) {
+  }
+
 }
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An on-disk map from paths to the SHA-1 of their contents, so that file hashes survive daemon
+ * restarts.  Each hash is stored alongside a {@link FileStamp} of the file it was computed from,
+ * and is only handed back out if the file still has the same stamp.
+ * <p>
+ * The store is an append-only log of checksummed records, where later records for a path win.
+ * It is read lazily, by mapping the file into memory the first time a hash is asked for, and new
+ * records are buffered and appended as the buffer fills up, as well as on {@link #flush()}.  A
+ * torn or corrupt tail, e.g. from a process which was killed part way through a write, is
+ * dropped.  Whenever more than half of the log is made up of superseded records, it is rewritten
+ * when the store is loaded, flushed or closed, so that neither a long-lived process nor one that is
+ * killed before closing the store lets the log grow without bound.
+ * <p>
+ * Only one process may write to a store at a time.  Any other process which opens it while it is
+ * locked gets a read-only view.  Failing to read or write the store is never fatal: it only means
+ * files get hashed again.
+ */
+public class PersistentFileHashStore implements Closeable {
+
+  private static final Logger LOG = Logger.get(PersistentFileHashStore.class);
+
+  private static final int MAGIC = 0x42464853;  // "BFHS"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 8;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int SHA1_SIZE = 20;
+
+  /**
+   * The number of buffered bytes at which new records are appended to the file.
+   */
+  private static final int FLUSH_THRESHOLD_BYTES = 64 * 1024;
+
+  /**
+   * Files modified this recently aren't recorded, since they may be modified again without their
+   * modification time changing.
+   */
+  @VisibleForTesting
+  static final long RACY_MODIFICATION_WINDOW_MILLIS = 2000;
+
+  private final Path path;
+
+  @GuardedBy("this")
+  @Nullable
+  private Map<String, Entry> entries;
+
+  @GuardedBy("this")
+  @Nullable
+  private FileChannel channel;
+
+  @GuardedBy("this")
+  @Nullable
+  private FileLock lock;
+
+  @GuardedBy("this")
+  private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+  @GuardedBy("this")
+  private int recordCount;
+
+  public PersistentFileHashStore(Path path) {
+    this.path = path;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * @return the hash recorded for {@code key}, if there is one and it was recorded for a file with
+   *     the given stamp.
+   */
+  public synchronized Optional<HashCode> get(String key, FileStamp stamp) {
+    Entry entry = getEntries().get(key);
+    if (entry == null || !entry.stamp.equals(stamp)) {
+      return Optional.absent();
+    }
+    return Optional.of(entry.hashCode);
+  }
+
+  /**
+   * Records the hash of the file at {@code key}, which had the given stamp before it was hashed.
+   */
+  public synchronized void put(String key, FileStamp stamp, HashCode hashCode) {
+    if (stamp.getModifiedTimeMillis() >
+        System.currentTimeMillis() - RACY_MODIFICATION_WINDOW_MILLIS) {
+      return;
+    }
+    Map<String, Entry> entries = getEntries();
+    Entry entry = new Entry(stamp, hashCode);
+    if (entry.equals(entries.get(key))) {
+      return;
+    }
+    entries.put(key, entry);
+    if (lock == null) {
+      return;
+    }
+    try {
+      writeRecord(pending, key, entry);
+    } catch (IOException e) {
+      // Writing to a ByteArrayOutputStream doesn't fail.
+      throw new IllegalStateException(e);
+    }
+    recordCount++;
+    if (pending.size() >= FLUSH_THRESHOLD_BYTES) {
+      flush();
+    }
+  }
+
+  /**
+   * Appends any buffered records to the file.
+   */
+  public synchronized void flush() {
+    if (channel == null || lock == null || pending.size() == 0) {
+      return;
+    }
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+      long position = channel.size();
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to write file hashes to %s, no longer persisting them.", path);
+      closeChannel();
+    } finally {
+      pending.reset();
+    }
+    compactIfMostlySuperseded();
+  }
+
+  @Override
+  public synchronized void close() {
+    flush();
+    closeChannel();
+  }
+
+  @GuardedBy("this")
+  private Map<String, Entry> getEntries() {
+    if (entries == null) {
+      entries = new HashMap<>();
+      try {
+        load();
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to read file hashes from %s, not persisting them.", path);
+        entries.clear();
+        closeChannel();
+      }
+      compactIfMostlySuperseded();
+    }
+    return entries;
+  }
+
+  @GuardedBy("this")
+  private void load() throws IOException {
+    Files.createDirectories(path.getParent());
+    channel = FileChannel.open(
+        path,
+        StandardOpenOption.CREATE,
+        StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      lock = channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null;
+    }
+    if (lock == null) {
+      LOG.info("%s is in use by another process, only reading from it.", path);
+    }
+
+    long size = channel.size();
+    long validSize = HEADER_SIZE;
+    if (size >= HEADER_SIZE) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      if (buffer.getInt() == MAGIC && buffer.getInt() == VERSION) {
+        validSize = readRecords(buffer);
+      } else {
+        LOG.info("%s has an unknown format, starting over.", path);
+      }
+    }
+
+    if (lock == null || validSize == size) {
+      return;
+    }
+    if (size > validSize) {
+      LOG.debug("Dropping %d bytes of invalid records from %s.", size - validSize, path);
+    }
+    if (validSize == HEADER_SIZE) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putInt(VERSION).flip();
+      channel.truncate(0);
+      while (header.hasRemaining()) {
+        channel.write(header, header.position());
+      }
+    } else {
+      channel.truncate(validSize);
+    }
+  }
+
+  /**
+   * Reads records until the end of the buffer or the first invalid one.
+   *
+   * @return the offset after the last valid record.
+   */
+  @GuardedBy("this")
+  private long readRecords(ByteBuffer buffer) {
+    CRC32 crc = new CRC32();
+    while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+      int start = buffer.position();
+      int length = buffer.getInt();
+      int checksum = buffer.getInt();
+      if (length <= 0 || length > buffer.remaining()) {
+        return start;
+      }
+      byte[] payload = new byte[length];
+      buffer.get(payload);
+      crc.reset();
+      crc.update(payload);
+      if ((int) crc.getValue() != checksum) {
+        return start;
+      }
+      try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload))) {
+        String key = input.readUTF();
+        FileStamp stamp = new FileStamp(input.readLong(), input.readLong(), input.readLong());
+        byte[] sha1 = new byte[SHA1_SIZE];
+        input.readFully(sha1);
+        entries.put(key, new Entry(stamp, HashCode.fromBytes(sha1)));
+        recordCount++;
+      } catch (IOException e) {
+        return start;
+      }
+    }
+    return buffer.position();
+  }
+
+  @GuardedBy("this")
+  private void compactIfMostlySuperseded() {
+    if (entries != null && lock != null && pending.size() == 0 &&
+        recordCount > 2 * entries.size()) {
+      compact();
+    }
+  }
+
+  /**
+   * Replaces the log with one holding only the current record for each path, and carries on
+   * appending to the new log.
+   */
+  @GuardedBy("this")
+  private void compact() {
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try {
+      try (DataOutputStream output = new DataOutputStream(
+               new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+          writeRecord(output, entry.getKey(), entry.getValue());
+        }
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      recordCount = entries.size();
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to compact %s.", path);
+      return;
+    }
+
+    // Our channel and lock are on the old log, which is gone now.  Another process may have
+    // opened the new log in the meantime, in which case we stop writing to it.
+    closeChannel();
+    try {
+      channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+        lock = channel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        lock = null;
+      }
+      if (lock == null) {
+        LOG.info("%s was taken by another process, no longer writing to it.", path);
+        closeChannel();
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to reopen %s, no longer persisting file hashes.", path);
+      closeChannel();
+    }
+  }
+
+  @GuardedBy("this")
+  private void closeChannel() {
+    try {
+      if (lock != null) {
+        lock.release();
+      }
+      if (channel != null) {
+        channel.close();
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to close %s.", path);
+    } finally {
+      lock = null;
+      channel = null;
+    }
+  }
+
+  private static void writeRecord(
+      OutputStream output,
+      String key,
+      Entry entry) throws IOException {
+    ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+    DataOutputStream payload = new DataOutputStream(payloadBytes);
+    payload.writeUTF(key);
+    payload.writeLong(entry.stamp.getModifiedTimeMillis());
+    payload.writeLong(entry.stamp.getSize());
+    payload.writeLong(entry.stamp.getFileKeyHash());
+    payload.write(entry.hashCode.asBytes());
+    payload.flush();
+
+    CRC32 crc = new CRC32();
+    crc.update(payloadBytes.toByteArray());
+
+    DataOutputStream record = new DataOutputStream(output);
+    record.writeInt(payloadBytes.size());
+    record.writeInt((int) crc.getValue());
+    payloadBytes.writeTo(record);
+    record.flush();
+  }
+
+  /**
+   * The attributes of a file which are checked to decide whether a recorded hash still applies:
+   * its modification time, size, and identity (e.g. device and inode) on the filesystem.
+   */
+  public static final class FileStamp {
+    private final long modifiedTimeMillis;
+    private final long size;
+    private final long fileKeyHash;
+
+    @VisibleForTesting
+    FileStamp(long modifiedTimeMillis, long size, long fileKeyHash) {
+      this.modifiedTimeMillis = modifiedTimeMillis;
+      this.size = size;
+      this.fileKeyHash = fileKeyHash;
+    }
+
+    public static FileStamp of(BasicFileAttributes attributes) {
+      Object fileKey = attributes.fileKey();
+      return new FileStamp(
+          attributes.lastModifiedTime().toMillis(),
+          attributes.size(),
+          fileKey == null ?
+              0 :
+              Hashing.murmur3_128()
+                  .hashString(fileKey.toString(), StandardCharsets.UTF_8)
+                  .asLong());
+    }
+
+    public long getModifiedTimeMillis() {
+      return modifiedTimeMillis;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getFileKeyHash() {
+      return fileKeyHash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof FileStamp)) {
+        return false;
+      }
+      FileStamp that = (FileStamp) other;
+      return modifiedTimeMillis == that.modifiedTimeMillis &&
+          size == that.size &&
+          fileKeyHash == that.fileKeyHash;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(modifiedTimeMillis, size, fileKeyHash);
+    }
+  }
+
+  private static final class Entry {
+    private final FileStamp stamp;
+    private final HashCode hashCode;
+
+    private Entry(FileStamp stamp, HashCode hashCode) {
+      this.stamp = stamp;
+      this.hashCode = hashCode;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Entry)) {
+        return false;
+      }
+      Entry that = (Entry) other;
+      return stamp.equals(that.stamp) && hashCode.equals(that.hashCode);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(stamp, hashCode);
+    }
+  }
+}
@@ -21,11 +21,15 @@ import com.facebook.buck.model.Pair;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MultimapBuilder;
 import com.google.common.hash.HashCode;
 
 import java.io.IOException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * Presents a list of {@link FileHashCache}s as a single cache, implementing a Chain of
@@ -110,4 +114,20 @@ public class StackedFileHashCache implements FileHashCache {
     }
   }
 
+  @Override
+  public void prefetch(Iterable<Path> paths) {
+    // Hand each cache all of its paths at once, so that it can hash them together.
+    ListMultimap<FileHashCache, Path> pathsByCache =
+        MultimapBuilder.linkedHashKeys().arrayListValues().build();
+    for (Path path : paths) {
+      Optional<Pair<FileHashCache, Path>> found = lookup(path);
+      if (found.isPresent()) {
+        pathsByCache.put(found.get().getFirst(), found.get().getSecond());
+      }
+    }
+    for (Map.Entry<FileHashCache, Collection<Path>> entry : pathsByCache.asMap().entrySet()) {
+      entry.getKey().prefetch(entry.getValue());
+    }
+  }
+
 }
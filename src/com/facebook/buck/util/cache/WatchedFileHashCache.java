@@ -19,6 +19,7 @@ package com.facebook.buck.util.cache;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.io.WatchEvents;
 import com.facebook.buck.log.Logger;
+import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Maps;
 import com.google.common.eventbus.Subscribe;
@@ -36,6 +37,12 @@ public class WatchedFileHashCache extends DefaultFileHashCache {
     super(projectFilesystem);
   }
 
+  public WatchedFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Optional<PersistentFileHashStore> persistentStore) {
+    super(projectFilesystem, persistentStore);
+  }
+
   /**
    * Called when file change events are posted to the file change EventBus to invalidate cached
    * build rules if required. {@link Path}s contained within events must all be relative to the
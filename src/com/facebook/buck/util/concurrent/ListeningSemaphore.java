@@ -23,17 +23,24 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
 import java.util.AbstractMap;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 
 /**
  * A semaphore using {@link ListenableFuture}s for acquisition rather than blocking.
+ * <p>
+ * Queued acquisitions are granted in order of priority, highest first, and in the order they were
+ * made among those of equal priority.
  */
 public class ListeningSemaphore {
 
-  private final List<Map.Entry<Integer, SettableFuture<Void>>> pending = new LinkedList<>();
+  private final PriorityQueue<PendingAcquisition> pending =
+      new PriorityQueue<>(11, PendingAcquisition.ORDER);
+  // Breaks ties between acquisitions of equal priority, so that they are granted in order.
+  private long nextSequence = 0;
   private int size = 0;
 
   private final int maxSize;
@@ -68,7 +75,11 @@ public class ListeningSemaphore {
     return false;
   }
 
-  public synchronized ListenableFuture<Void> acquire(int permits) {
+  public ListenableFuture<Void> acquire(int permits) {
+    return acquire(permits, 0);
+  }
+
+  public synchronized ListenableFuture<Void> acquire(int permits, long priority) {
 
     // If the semaphore isn't full, acquire it now.  Since an immediate future cannot be canceled,
     // there's no extra handling we have to do here.
@@ -77,9 +88,9 @@ public class ListeningSemaphore {
       return Futures.immediateFuture(null);
     }
 
-    // Otherwise, queue it up for later.
+    // Otherwise, queue it up for later, behind everything of the same or a higher priority.
     SettableFuture<Void> future = SettableFuture.create();
-    pending.add(new AbstractMap.SimpleEntry<>(permits, future));
+    pending.add(new PendingAcquisition(permits, priority, nextSequence++, future));
     return future;
   }
 
@@ -93,17 +104,20 @@ public class ListeningSemaphore {
     Preconditions.checkState(size >= 0);
 
     // Accept any pending requests that can fit.
-    Iterator<Map.Entry<Integer, SettableFuture<Void>>> itr = pending.iterator();
-    while (size < maxSize && itr.hasNext()) {
-      Map.Entry<Integer, SettableFuture<Void>> entry = itr.next();
+    List<PendingAcquisition> skipped = new ArrayList<>();
+    while (size < maxSize && !pending.isEmpty()) {
+      PendingAcquisition entry = pending.peek();
       if (canFit(entry.getKey())) {
-        itr.remove();
+        pending.poll();
         size += entry.getKey();
         scheduled.add(entry);
       } else if (fairness == Fairness.FAIR) {
         break;
+      } else {
+        skipped.add(pending.poll());
       }
     }
+    pending.addAll(skipped);
 
     return scheduled.build();
   }
@@ -138,6 +152,36 @@ public class ListeningSemaphore {
     return pending.size();
   }
 
+  @SuppressWarnings("serial")
+  private static class PendingAcquisition
+      extends AbstractMap.SimpleImmutableEntry<Integer, SettableFuture<Void>> {
+
+    // Highest priority first, then in the order they were made.
+    private static final Comparator<PendingAcquisition> ORDER =
+        new Comparator<PendingAcquisition>() {
+          @Override
+          public int compare(PendingAcquisition a, PendingAcquisition b) {
+            if (a.priority != b.priority) {
+              return a.priority > b.priority ? -1 : 1;
+            }
+            return Long.compare(a.sequence, b.sequence);
+          }
+        };
+
+    private final long priority;
+    private final long sequence;
+
+    public PendingAcquisition(
+        int permits,
+        long priority,
+        long sequence,
+        SettableFuture<Void> future) {
+      super(permits, future);
+      this.priority = priority;
+      this.sequence = sequence;
+    }
+  }
+
   /**
    * How to handle permit counting passing the max permit limit.
    */
@@ -54,10 +54,11 @@ public class WeightedListeningExecutorService extends AbstractListeningExecutorS
 
   private <T> ListenableFuture<T> withSemaphore(
       final int weight,
+      long priority,
       final Callable<T> callable) {
     ListenableFuture<T> future =
         Futures.transformAsync(
-            semaphore.acquire(weight),
+            semaphore.acquire(weight, priority),
             new AsyncFunction<Void, T>() {
               @Override
               public ListenableFuture<T> apply(@Nullable Void input) {
@@ -96,6 +97,7 @@ public class WeightedListeningExecutorService extends AbstractListeningExecutorS
       int weight) {
     return withSemaphore(
         weight,
+        /* priority */ 0,
         new Callable<T>() {
           @Override
           public T call() throws Exception {
@@ -112,7 +114,15 @@ public class WeightedListeningExecutorService extends AbstractListeningExecutorS
   }
 
   public <T> ListenableFuture<T> submit(Callable<T> task, int weight) {
-    return withSemaphore(weight, task);
+    return submit(task, weight, /* priority */ 0);
+  }
+
+  /**
+   * Submits a task which, if it has to wait for the semaphore, runs ahead of waiting tasks with a
+   * lower {@code priority}.
+   */
+  public <T> ListenableFuture<T> submit(Callable<T> task, int weight, long priority) {
+    return withSemaphore(weight, priority, task);
   }
 
   @Nonnull
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.hash;
+
+import com.google.common.hash.Funnel;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * {@link Hasher} backed by a single {@link MessageDigest}, which, like {@link AppendingHasher},
+ * allows {@code put*} calls after {@link #hash()}.  Rather than feeding every value to several
+ * digests up front, {@link #hash()} finishes a clone of the digest, so values are only hashed once
+ * no matter how many times {@link #hash()} is called.
+ * <p>
+ * The hashes produced are the same as those of the {@link Hasher}s created by Guava's
+ * {@link com.google.common.hash.Hashing#sha1()} and friends for the same sequence of calls.
+ */
+@NotThreadSafe
+public class CloningHasher implements Hasher {
+
+  private final MessageDigest digest;
+  private final byte[] scratch = new byte[8];
+
+  private CloningHasher(MessageDigest digest) {
+    this.digest = digest;
+  }
+
+  public static CloningHasher sha1() {
+    return create("SHA-1");
+  }
+
+  private static CloningHasher create(String algorithm) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance(algorithm);
+      // Fail here, rather than on the first call to hash(), if the digest can't be cloned.
+      digest.clone();
+      return new CloningHasher(digest);
+    } catch (NoSuchAlgorithmException | CloneNotSupportedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public Hasher putByte(byte b) {
+    digest.update(b);
+    return this;
+  }
+
+  @Override
+  public Hasher putBytes(byte[] bytes) {
+    digest.update(bytes);
+    return this;
+  }
+
+  @Override
+  public Hasher putBytes(byte[] bytes, int off, int len) {
+    digest.update(bytes, off, len);
+    return this;
+  }
+
+  // Multi-byte values are little endian, to match Guava's hashers.
+
+  @Override
+  public Hasher putShort(short s) {
+    scratch[0] = (byte) s;
+    scratch[1] = (byte) (s >>> 8);
+    digest.update(scratch, 0, 2);
+    return this;
+  }
+
+  @Override
+  public Hasher putInt(int i) {
+    for (int shift = 0, index = 0; index < 4; shift += 8, index++) {
+      scratch[index] = (byte) (i >>> shift);
+    }
+    digest.update(scratch, 0, 4);
+    return this;
+  }
+
+  @Override
+  public Hasher putLong(long l) {
+    for (int shift = 0, index = 0; index < 8; shift += 8, index++) {
+      scratch[index] = (byte) (l >>> shift);
+    }
+    digest.update(scratch, 0, 8);
+    return this;
+  }
+
+  @Override
+  public Hasher putFloat(float f) {
+    return putInt(Float.floatToRawIntBits(f));
+  }
+
+  @Override
+  public Hasher putDouble(double d) {
+    return putLong(Double.doubleToRawLongBits(d));
+  }
+
+  @Override
+  public Hasher putBoolean(boolean b) {
+    return putByte(b ? (byte) 1 : (byte) 0);
+  }
+
+  @Override
+  public Hasher putChar(char c) {
+    scratch[0] = (byte) c;
+    scratch[1] = (byte) (c >>> 8);
+    digest.update(scratch, 0, 2);
+    return this;
+  }
+
+  @Override
+  public Hasher putUnencodedChars(CharSequence charSequence) {
+    for (int i = 0; i < charSequence.length(); i++) {
+      putChar(charSequence.charAt(i));
+    }
+    return this;
+  }
+
+  @Override
+  public Hasher putString(CharSequence charSequence, Charset charset) {
+    return putBytes(charSequence.toString().getBytes(charset));
+  }
+
+  @Override
+  public <T> Hasher putObject(T instance, Funnel<? super T> funnel) {
+    funnel.funnel(instance, this);
+    return this;
+  }
+
+  @Override
+  public HashCode hash() {
+    try {
+      return HashCode.fromBytes(((MessageDigest) digest.clone()).digest());
+    } catch (CloneNotSupportedException e) {
+      // Checked when this hasher was created.
+      throw new IllegalStateException(e);
+    }
+  }
+}
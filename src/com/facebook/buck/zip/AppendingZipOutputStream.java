@@ -67,10 +67,7 @@ class AppendingZipOutputStream extends CustomZipOutputStream {
 
   @Override
   protected void actuallyPutNextEntry(ZipEntry entry) throws IOException {
-    if (throwExceptionsOnDuplicate && !seenNames.add(entry.getName())) {
-      // Same exception as ZipOutputStream.
-      throw new ZipException("duplicate entry: " + entry.getName());
-    }
+    checkNotDuplicate(entry.getName());
 
     currentEntry = new EntryAccounting(clock, entry, currentOffset);
     entries.add(currentEntry);
@@ -78,6 +75,25 @@ class AppendingZipOutputStream extends CustomZipOutputStream {
     currentOffset += currentEntry.writeLocalFileHeader(delegate);
   }
 
+  @Override
+  protected void actuallyPutRawEntry(RawZipFile source, RawZipEntry entry) throws IOException {
+    checkNotDuplicate(entry.getName());
+
+    EntryAccounting accounting = new EntryAccounting(clock, entry.toZipEntry(), currentOffset);
+    entries.add(accounting);
+
+    currentOffset += accounting.writeLocalFileHeader(delegate);
+    currentOffset += source.transferData(entry, delegate);
+    currentOffset += accounting.closeRaw(delegate);
+  }
+
+  private void checkNotDuplicate(String name) throws ZipException {
+    if (throwExceptionsOnDuplicate && !seenNames.add(name)) {
+      // Same exception as ZipOutputStream.
+      throw new ZipException("duplicate entry: " + name);
+    }
+  }
+
   @Override
   protected void actuallyCloseEntry() throws IOException {
     if (currentEntry == null) {
@@ -17,8 +17,10 @@
 package com.facebook.buck.zip;
 
 import com.google.common.base.Preconditions;
+import com.google.common.io.ByteStreams;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
@@ -56,6 +58,32 @@ public abstract class CustomZipOutputStream extends OutputStream {
    */
   protected abstract void actuallyPutNextEntry(ZipEntry entry) throws IOException;
 
+  /**
+   * Copy {@code entry} from {@code source} into this zip, closing any entry that's currently open.
+   * Where the stream allows, the entry's data is copied still compressed, along with its CRC and
+   * sizes, rather than being inflated and compressed again.
+   */
+  public final void putRawEntry(RawZipFile source, RawZipEntry entry) throws IOException {
+    Preconditions.checkState(state != State.CLOSED, "Stream has been closed.");
+
+    state = State.OPEN;
+    closeEntry();
+    actuallyPutRawEntry(source, entry);
+  }
+
+  /**
+   * Called by {@link #putRawEntry(RawZipFile, RawZipEntry)} once any open entry has been closed.
+   * By default, the entry is inflated and written through {@link #putNextEntry(ZipEntry)}; this
+   * should be overridden by subclasses that can write compressed data as-is.
+   */
+  protected void actuallyPutRawEntry(RawZipFile source, RawZipEntry entry) throws IOException {
+    putNextEntry(entry.toZipEntry());
+    try (InputStream in = source.getInputStream(entry)) {
+      ByteStreams.copy(in, this);
+    }
+    closeEntry();
+  }
+
   public final void closeEntry() throws IOException {
     Preconditions.checkState(state != State.CLOSED, "Stream has been closed");
     if (!entryOpen) {
@@ -303,6 +303,20 @@ class EntryAccounting {
     return entry.getCompressedSize() + closeBytes.length;
   }
 
+  /**
+   * Finish an entry whose already-compressed data has been written by the caller rather than
+   * through {@link #write(OutputStream, byte[], int, int)}. The entry's CRC and sizes must have
+   * been set up front.
+   *
+   * @return the number of bytes written.
+   */
+  public long closeRaw(OutputStream out) throws IOException {
+    deflater.end();
+
+    byte[] closeBytes = close();
+    out.write(closeBytes);
+    return closeBytes.length;
+  }
 
   private static enum Method {
     DEFLATE(ZipEntry.DEFLATED, 20, 8),
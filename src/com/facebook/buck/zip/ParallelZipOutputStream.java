@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import com.facebook.buck.timing.Clock;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link CustomZipOutputStream} which compresses entries on an executor, so that a zip with many
+ * entries isn't limited to a single core, and writes them out in the order they were put. The
+ * bytes written are the same as those an {@link AppendingZipOutputStream} would write.
+ * <p>
+ * The contents of each entry are held in memory until the entry is closed, and then compressed as
+ * a whole. An entry which grows larger than {@code maxBufferedEntrySize} is instead compressed as
+ * it is written, once all the entries before it have been written out. The number of entries, and
+ * the number of uncompressed bytes, waiting to be written out at any one time are bounded too.
+ */
+class ParallelZipOutputStream extends CustomZipOutputStream {
+
+  private final Clock clock;
+  private final ListeningExecutorService executor;
+  private final boolean throwExceptionsOnDuplicate;
+  private final int maxPendingEntries;
+  private final long maxPendingBytes;
+  private final int maxBufferedEntrySize;
+
+  private long currentOffset = 0;
+  private final List<EntryAccounting> entries = new ArrayList<>();
+  private final Set<String> seenNames = new HashSet<>();
+  private final Deque<PendingEntry> pendingEntries = new ArrayDeque<>();
+  private long pendingBytes = 0;
+  @Nullable private EntryAccounting currentEntry = null;
+  /** The contents of the current entry, or null if it is being written straight out. */
+  @Nullable private ByteArrayOutputStream currentBuffer = null;
+
+  public ParallelZipOutputStream(
+      Clock clock,
+      OutputStream stream,
+      boolean throwExceptionsOnDuplicate,
+      ListeningExecutorService executor,
+      int maxPendingEntries,
+      long maxPendingBytes,
+      int maxBufferedEntrySize) {
+    super(stream);
+    Preconditions.checkArgument(maxPendingEntries > 0);
+    this.clock = clock;
+    this.executor = executor;
+    this.throwExceptionsOnDuplicate = throwExceptionsOnDuplicate;
+    this.maxPendingEntries = maxPendingEntries;
+    this.maxPendingBytes = maxPendingBytes;
+    this.maxBufferedEntrySize = maxBufferedEntrySize;
+  }
+
+  @Override
+  protected void actuallyPutNextEntry(ZipEntry entry) throws IOException {
+    checkNotDuplicate(entry.getName());
+
+    // The offset is set when the entry is written out.
+    currentEntry = new EntryAccounting(clock, entry, /* currentOffset */ 0);
+    entries.add(currentEntry);
+    currentBuffer = new ByteArrayOutputStream();
+  }
+
+  @Override
+  protected void actuallyWrite(byte[] b, int off, int len) throws IOException {
+    Preconditions.checkNotNull(currentEntry);
+    if (currentBuffer == null) {
+      currentOffset += currentEntry.write(delegate, b, off, len);
+      return;
+    }
+
+    currentBuffer.write(b, off, len);
+    if (currentBuffer.size() > maxBufferedEntrySize) {
+      // Too big to hold on to: write out everything before it, and then stream it.
+      writePendingEntries();
+      currentEntry.setOffset(currentOffset);
+      currentOffset += currentEntry.writeLocalFileHeader(delegate);
+      byte[] buffered = currentBuffer.toByteArray();
+      currentBuffer = null;
+      currentOffset += currentEntry.write(delegate, buffered, 0, buffered.length);
+    }
+  }
+
+  @Override
+  protected void actuallyCloseEntry() throws IOException {
+    if (currentEntry == null) {
+      return; // no-op
+    }
+
+    if (currentBuffer == null) {
+      currentOffset += currentEntry.close(delegate);
+    } else {
+      final EntryAccounting entry = currentEntry;
+      final byte[] contents = currentBuffer.toByteArray();
+      // Directories and other empty entries aren't worth handing off.
+      ListenableFuture<byte[]> body;
+      if (contents.length == 0) {
+        body = Futures.immediateFuture(compress(entry, contents));
+      } else {
+        body = executor.submit(
+            new Callable<byte[]>() {
+              @Override
+              public byte[] call() throws IOException {
+                return compress(entry, contents);
+              }
+            });
+      }
+      addPendingEntry(new PendingEntry(entry, contents.length, body));
+    }
+
+    currentEntry = null;
+    currentBuffer = null;
+  }
+
+  @Override
+  protected void actuallyPutRawEntry(RawZipFile source, RawZipEntry entry) throws IOException {
+    checkNotDuplicate(entry.getName());
+
+    EntryAccounting accounting = new EntryAccounting(clock, entry.toZipEntry(), currentOffset);
+    entries.add(accounting);
+
+    // There's no compressing to be done, so only queue the entry up if others are ahead of it.
+    if (pendingEntries.isEmpty() || entry.getCompressedSize() > maxBufferedEntrySize) {
+      writePendingEntries();
+      accounting.setOffset(currentOffset);
+      currentOffset += accounting.writeLocalFileHeader(delegate);
+      currentOffset += source.transferData(entry, delegate);
+      currentOffset += accounting.closeRaw(delegate);
+      return;
+    }
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    source.transferData(entry, body);
+    accounting.closeRaw(body);
+    addPendingEntry(
+        new PendingEntry(
+            accounting,
+            entry.getCompressedSize(),
+            Futures.immediateFuture(body.toByteArray())));
+  }
+
+  private void checkNotDuplicate(String name) throws ZipException {
+    if (throwExceptionsOnDuplicate && !seenNames.add(name)) {
+      // Same exception as ZipOutputStream.
+      throw new ZipException("duplicate entry: " + name);
+    }
+  }
+
+  private void addPendingEntry(PendingEntry pending) throws IOException {
+    pendingEntries.add(pending);
+    pendingBytes += pending.size;
+
+    while (pendingEntries.size() > maxPendingEntries || pendingBytes > maxPendingBytes) {
+      writeNextPendingEntry();
+    }
+    // Get the entries which are ready out of the way.
+    while (!pendingEntries.isEmpty() && pendingEntries.peek().body.isDone()) {
+      writeNextPendingEntry();
+    }
+  }
+
+  @Override
+  protected void actuallyClose() throws IOException {
+    closeEntry();
+    writePendingEntries();
+
+    new CentralDirectory().writeCentralDirectory(delegate, currentOffset, entries);
+
+    delegate.close();
+  }
+
+  private void writePendingEntries() throws IOException {
+    while (!pendingEntries.isEmpty()) {
+      writeNextPendingEntry();
+    }
+  }
+
+  private void writeNextPendingEntry() throws IOException {
+    PendingEntry pending = pendingEntries.remove();
+    pendingBytes -= pending.size;
+
+    byte[] body;
+    try {
+      body = pending.body.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing " + pending.entry.getName());
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+
+    pending.entry.setOffset(currentOffset);
+    currentOffset += pending.entry.writeLocalFileHeader(delegate);
+    delegate.write(body);
+    currentOffset += body.length;
+  }
+
+  /**
+   * @return the compressed {@code contents} of {@code entry}, followed by its data descriptor, if
+   *     it has one.
+   */
+  private static byte[] compress(EntryAccounting entry, byte[] contents) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    entry.write(out, contents, 0, contents.length);
+    entry.close(out);
+    return out.toByteArray();
+  }
+
+  /**
+   * An entry which has been closed, but not yet written out.
+   */
+  private static class PendingEntry {
+    private final EntryAccounting entry;
+    private final long size;
+    private final ListenableFuture<byte[]> body;
+
+    public PendingEntry(EntryAccounting entry, long size, ListenableFuture<byte[]> body) {
+      this.entry = entry;
+      this.size = size;
+      this.body = body;
+    }
+  }
+}
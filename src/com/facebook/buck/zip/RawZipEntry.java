@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+
+/**
+ * An entry in a {@link RawZipFile}, as described by the archive's central directory. The entry's
+ * data is still compressed, so it can be copied into a {@link CustomZipOutputStream} without being
+ * inflated and deflated again.
+ */
+public class RawZipEntry {
+
+  private final String name;
+  private final int method;
+  private final long dosTime;
+  private final long crc;
+  private final long compressedSize;
+  private final long size;
+  private final long externalAttributes;
+  private final long localHeaderOffset;
+
+  RawZipEntry(
+      String name,
+      int method,
+      long dosTime,
+      long crc,
+      long compressedSize,
+      long size,
+      long externalAttributes,
+      long localHeaderOffset) {
+    this.name = name;
+    this.method = method;
+    this.dosTime = dosTime;
+    this.crc = crc;
+    this.compressedSize = compressedSize;
+    this.size = size;
+    this.externalAttributes = externalAttributes;
+    this.localHeaderOffset = localHeaderOffset;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isDirectory() {
+    return name.endsWith("/");
+  }
+
+  /**
+   * @return either {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+   */
+  public int getMethod() {
+    return method;
+  }
+
+  public long getCrc() {
+    return crc;
+  }
+
+  public long getCompressedSize() {
+    return compressedSize;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getExternalAttributes() {
+    return externalAttributes;
+  }
+
+  long getLocalHeaderOffset() {
+    return localHeaderOffset;
+  }
+
+  /**
+   * @return the modification time of the entry, in the same form as {@link ZipEntry#getTime()}.
+   */
+  public long getTime() {
+    // Zip timestamps are in local time, just as EntryAccounting writes them.
+    Calendar calendar = Calendar.getInstance(Locale.US);
+    calendar.clear();
+    calendar.set(
+        (int) (((dosTime >> 25) & 0x7f) + 1980),
+        (int) (((dosTime >> 21) & 0x0f) - 1),
+        (int) ((dosTime >> 16) & 0x1f),
+        (int) ((dosTime >> 11) & 0x1f),
+        (int) ((dosTime >> 5) & 0x3f),
+        (int) ((dosTime << 1) & 0x3e));
+    return calendar.getTimeInMillis();
+  }
+
+  /**
+   * @return a {@link CustomZipEntry} describing this entry, with its CRC and sizes already filled
+   *     in, suitable for writing this entry's data as-is.
+   */
+  public CustomZipEntry toZipEntry() {
+    CustomZipEntry entry = new CustomZipEntry(name);
+    entry.setMethod(method);
+    entry.setTime(getTime());
+    entry.setCrc(crc);
+    entry.setCompressedSize(compressedSize);
+    entry.setSize(size);
+    entry.setExternalAttributes(externalAttributes);
+    return entry;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import javax.annotation.Nullable;
+
+/**
+ * A zip file read straight from its central directory, giving access to each entry's compressed
+ * data. This allows entries to be copied from one archive to another without the cost of
+ * inflating and deflating them again: see {@link CustomZipOutputStream#putRawEntry}.
+ * <p>
+ * Only the subset of the format that buck itself writes and reads is supported: single-disk
+ * archives, zip64 included, with no encryption and only {@link ZipEntry#STORED} and
+ * {@link ZipEntry#DEFLATED} entries. Instances are safe to read from several threads at once.
+ */
+public class RawZipFile implements Closeable {
+
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+  private static final int ENCRYPTED_FLAG = 1;
+
+  // The zip64 end of central directory record, and the locator which precedes the end of central
+  // directory record and points at it.
+  private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+  private static final int ZIP64_END_SIZE = 56;
+  private static final int ZIP64_END_TOTAL_OFFSET = 32;
+  private static final int ZIP64_END_SIZE_OFFSET = 40;
+  private static final int ZIP64_END_OFFSET_OFFSET = 48;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int ZIP64_LOCATOR_SIZE = 20;
+  private static final int ZIP64_LOCATOR_OFFSET_OFFSET = 8;
+  // The extra field holding whichever of an entry's sizes and offset don't fit in 32 bits.
+  private static final int ZIP64_EXTRA_ID = 0x0001;
+  private static final long ZIP64_MAGIC_VALUE = 0xffffffffL;
+
+  private final Path path;
+  private final FileChannel channel;
+  private final ImmutableList<RawZipEntry> entries;
+
+  private RawZipFile(Path path, FileChannel channel, ImmutableList<RawZipEntry> entries) {
+    this.path = path;
+    this.channel = channel;
+    this.entries = entries;
+  }
+
+  public static RawZipFile open(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      return new RawZipFile(path, channel, readCentralDirectory(path, channel));
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * @return the entries of the archive, in central directory order.
+   */
+  public ImmutableList<RawZipEntry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * @return the uncompressed contents of {@code entry}.
+   */
+  public InputStream getInputStream(RawZipEntry entry) throws IOException {
+    if (entry.getCompressedSize() >= Integer.MAX_VALUE) {
+      throw new ZipException(
+          String.format("%s in %s is too large to read into memory", entry.getName(), path));
+    }
+    // Inflating with "nowrap" may need one byte past the end of the data, so leave room for it.
+    byte[] data = new byte[(int) entry.getCompressedSize() + 1];
+    readFully(ByteBuffer.wrap(data, 0, data.length - 1), getDataOffset(entry));
+    InputStream raw = new ByteArrayInputStream(data, 0, data.length - 1);
+    if (entry.getMethod() == ZipEntry.STORED) {
+      return raw;
+    }
+
+    final Inflater inflater = new Inflater(/* nowrap */ true);
+    return new InflaterInputStream(new ByteArrayInputStream(data), inflater) {
+      @Override
+      public void close() throws IOException {
+        super.close();
+        inflater.end();
+      }
+    };
+  }
+
+  /**
+   * Write the compressed data of {@code entry} to {@code out}, transferring it directly from the
+   * file where the platform allows.
+   *
+   * @return the number of bytes written.
+   */
+  long transferData(RawZipEntry entry, OutputStream out) throws IOException {
+    WritableByteChannel target = Channels.newChannel(out);
+    long position = getDataOffset(entry);
+    long remaining = entry.getCompressedSize();
+    while (remaining > 0) {
+      long transferred = channel.transferTo(position, remaining, target);
+      if (transferred <= 0) {
+        throw new EOFException(
+            String.format("Unexpected end of %s while reading %s", path, entry.getName()));
+      }
+      position += transferred;
+      remaining -= transferred;
+    }
+    return entry.getCompressedSize();
+  }
+
+  private long getDataOffset(RawZipEntry entry) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(ZipEntry.LOCHDR).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(header, entry.getLocalHeaderOffset());
+    if (header.getInt(0) != ZipEntry.LOCSIG) {
+      throw new ZipException(
+          String.format("Bad local header for %s in %s", entry.getName(), path));
+    }
+    return entry.getLocalHeaderOffset() +
+        ZipEntry.LOCHDR +
+        (header.getShort(ZipEntry.LOCNAM) & 0xffff) +
+        (header.getShort(ZipEntry.LOCEXT) & 0xffff);
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    readFully(path, channel, buffer, position);
+  }
+
+  private static void readFully(
+      Path path,
+      FileChannel channel,
+      ByteBuffer buffer,
+      long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new EOFException("Unexpected end of " + path);
+      }
+      position += read;
+    }
+  }
+
+  private static ImmutableList<RawZipEntry> readCentralDirectory(
+      Path path,
+      FileChannel channel) throws IOException {
+    long fileSize = channel.size();
+    if (fileSize < END_OF_CENTRAL_DIRECTORY_SIZE) {
+      throw new ZipException("Not a zip file: " + path);
+    }
+
+    // The end of central directory record is followed only by the archive comment, so search
+    // backwards for it through the last 64k of the file.
+    int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+    ByteBuffer tail = ByteBuffer.allocate(tailSize).order(ByteOrder.LITTLE_ENDIAN);
+    readFully(path, channel, tail, fileSize - tailSize);
+    int end = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE;
+    while (end >= 0 && tail.getInt(end) != ZipEntry.ENDSIG) {
+      end--;
+    }
+    if (end < 0) {
+      throw new ZipException("Unable to find the central directory of " + path);
+    }
+
+    long entryCount = tail.getShort(end + ZipEntry.ENDTOT) & 0xffff;
+    long directorySize = tail.getInt(end + ZipEntry.ENDSIZ) & 0xffffffffL;
+    long directoryOffset = tail.getInt(end + ZipEntry.ENDOFF) & 0xffffffffL;
+
+    // Archives with too many entries, or too large to describe in the end of central directory
+    // record, have a zip64 one as well.
+    int locator = end - ZIP64_LOCATOR_SIZE;
+    if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+      ByteBuffer zip64End = ByteBuffer.allocate(ZIP64_END_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(path, channel, zip64End, tail.getLong(locator + ZIP64_LOCATOR_OFFSET_OFFSET));
+      if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+        throw new ZipException("Bad zip64 end of central directory record in " + path);
+      }
+      entryCount = zip64End.getLong(ZIP64_END_TOTAL_OFFSET);
+      directorySize = zip64End.getLong(ZIP64_END_SIZE_OFFSET);
+      directoryOffset = zip64End.getLong(ZIP64_END_OFFSET_OFFSET);
+    }
+    if (directorySize < 0 || directorySize > Integer.MAX_VALUE ||
+        directoryOffset < 0 || directoryOffset + directorySize > fileSize) {
+      throw new ZipException("Bad central directory size or offset in " + path);
+    }
+
+    ByteBuffer directory = ByteBuffer.allocate((int) directorySize)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    readFully(path, channel, directory, directoryOffset);
+    directory.flip();
+
+    ImmutableList.Builder<RawZipEntry> entries = ImmutableList.builder();
+    for (long i = 0; i < entryCount; i++) {
+      int header = directory.position();
+      if (directory.remaining() < ZipEntry.CENHDR || directory.getInt(header) != ZipEntry.CENSIG) {
+        throw new ZipException("Bad central directory header in " + path);
+      }
+
+      int flags = directory.getShort(header + ZipEntry.CENFLG) & 0xffff;
+      int method = directory.getShort(header + ZipEntry.CENHOW) & 0xffff;
+      int nameLength = directory.getShort(header + ZipEntry.CENNAM) & 0xffff;
+      int extraLength = directory.getShort(header + ZipEntry.CENEXT) & 0xffff;
+      int commentLength = directory.getShort(header + ZipEntry.CENCOM) & 0xffff;
+
+      byte[] nameBytes = new byte[nameLength];
+      directory.position(header + ZipEntry.CENHDR);
+      directory.get(nameBytes);
+      // Like java.util.zip.ZipFile, treat names as UTF-8 whether or not the flag says so.
+      String name = new String(nameBytes, Charsets.UTF_8);
+
+      if ((flags & ENCRYPTED_FLAG) != 0) {
+        throw new ZipException(String.format("%s in %s is encrypted", name, path));
+      }
+      if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+        throw new ZipException(
+            String.format("%s in %s uses unsupported compression method %d", name, path, method));
+      }
+
+      long size = directory.getInt(header + ZipEntry.CENLEN) & 0xffffffffL;
+      long compressedSize = directory.getInt(header + ZipEntry.CENSIZ) & 0xffffffffL;
+      long localHeaderOffset = directory.getInt(header + ZipEntry.CENOFF) & 0xffffffffL;
+      if (size == ZIP64_MAGIC_VALUE ||
+          compressedSize == ZIP64_MAGIC_VALUE ||
+          localHeaderOffset == ZIP64_MAGIC_VALUE) {
+        ByteBuffer zip64Extra =
+            findExtraField(directory, header + ZipEntry.CENHDR + nameLength, extraLength);
+        if (zip64Extra == null) {
+          throw new ZipException(
+              String.format("Missing zip64 extra field for %s in %s", name, path));
+        }
+        // Only the values which didn't fit are in the extra field, in this order.
+        try {
+          if (size == ZIP64_MAGIC_VALUE) {
+            size = zip64Extra.getLong();
+          }
+          if (compressedSize == ZIP64_MAGIC_VALUE) {
+            compressedSize = zip64Extra.getLong();
+          }
+          if (localHeaderOffset == ZIP64_MAGIC_VALUE) {
+            localHeaderOffset = zip64Extra.getLong();
+          }
+        } catch (BufferUnderflowException e) {
+          throw new ZipException(
+              String.format("Truncated zip64 extra field for %s in %s", name, path));
+        }
+      }
+
+      entries.add(
+          new RawZipEntry(
+              name,
+              method,
+              directory.getInt(header + ZipEntry.CENTIM) & 0xffffffffL,
+              directory.getInt(header + ZipEntry.CENCRC) & 0xffffffffL,
+              compressedSize,
+              size,
+              directory.getInt(header + ZipEntry.CENATX) & 0xffffffffL,
+              localHeaderOffset));
+
+      directory.position(header + ZipEntry.CENHDR + nameLength + extraLength + commentLength);
+    }
+    return entries.build();
+  }
+
+  /**
+   * @return the data of the zip64 extra field among the {@code length} bytes of extra fields at
+   *     {@code offset} in {@code directory}, or null if there isn't one.
+   */
+  @Nullable
+  private static ByteBuffer findExtraField(ByteBuffer directory, int offset, int length) {
+    int end = offset + length;
+    while (offset + 4 <= end) {
+      int id = directory.getShort(offset) & 0xffff;
+      int size = directory.getShort(offset + 2) & 0xffff;
+      offset += 4;
+      if (offset + size > end) {
+        return null;
+      }
+      if (id == ZIP64_EXTRA_ID) {
+        ByteBuffer data = directory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        data.limit(offset + size).position(offset);
+        return data.slice().order(ByteOrder.LITTLE_ENDIAN);
+      }
+      offset += size;
+    }
+    return null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
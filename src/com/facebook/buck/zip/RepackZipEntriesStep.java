@@ -23,15 +23,12 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 /**
  * A command that creates a copy of a ZIP archive, making sure that certain user-specified entries
@@ -92,33 +89,38 @@ public class RepackZipEntriesStep implements Step {
     Path inputFile = filesystem.getPathForRelativePath(inputPath);
     Path outputFile = filesystem.getPathForRelativePath(outputPath);
     try (
-        ZipInputStream in =
-            new ZipInputStream(new BufferedInputStream(Files.newInputStream(inputFile)));
+        RawZipFile in = RawZipFile.open(inputFile);
         CustomZipOutputStream out = ZipOutputStreams.newOutputStream(outputFile)) {
-      for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
-        CustomZipEntry customEntry = new CustomZipEntry(entry);
-        if (entries.contains(customEntry.getName())) {
-          customEntry.setCompressionLevel(compressionLevel.getValue());
+      for (RawZipEntry entry : in.getEntries()) {
+        if (!entries.contains(entry.getName())) {
+          // Nothing about this entry changes, so copy it across without recompressing it.
+          out.putRawEntry(in, entry);
+          continue;
         }
 
-        InputStream toUse;
-        // If we're using STORED files, we must pre-calculate the CRC.
-        if (customEntry.getMethod() == ZipEntry.STORED) {
-          try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-            ByteStreams.copy(in, bos);
-            byte[] bytes = bos.toByteArray();
-            customEntry.setCrc(Hashing.crc32().hashBytes(bytes).padToLong());
-            customEntry.setSize(bytes.length);
-            customEntry.setCompressedSize(bytes.length);
-            toUse = new ByteArrayInputStream(bytes);
+        CustomZipEntry customEntry = entry.toZipEntry();
+        customEntry.setCompressionLevel(compressionLevel.getValue());
+
+        try (InputStream entryStream = in.getInputStream(entry)) {
+          InputStream toUse;
+          // If we're using STORED files, we must pre-calculate the CRC.
+          if (customEntry.getMethod() == ZipEntry.STORED) {
+            try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+              ByteStreams.copy(entryStream, bos);
+              byte[] bytes = bos.toByteArray();
+              customEntry.setCrc(Hashing.crc32().hashBytes(bytes).padToLong());
+              customEntry.setSize(bytes.length);
+              customEntry.setCompressedSize(bytes.length);
+              toUse = new ByteArrayInputStream(bytes);
+            }
+          } else {
+            toUse = entryStream;
           }
-        } else {
-          toUse = in;
-        }
 
-        out.putNextEntry(customEntry);
-        ByteStreams.copy(toUse, out);
-        out.closeEntry();
+          out.putNextEntry(customEntry);
+          ByteStreams.copy(toUse, out);
+          out.closeEntry();
+        }
       }
 
       return 0;
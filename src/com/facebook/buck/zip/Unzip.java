@@ -20,9 +20,11 @@ import com.facebook.buck.io.MoreFiles;
 import com.facebook.buck.io.MorePosixFilePermissions;
 import com.facebook.buck.io.ProjectFilesystem;
 import com.google.common.base.Function;
+import com.google.common.base.Throwables;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
@@ -33,8 +35,15 @@ import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermission;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Unzip {
 
@@ -46,6 +55,16 @@ public class Unzip {
     OVERWRITE_AND_CLEAN_DIRECTORIES,
   }
 
+  private static class FileEntry {
+    private final ZipArchiveEntry entry;
+    private final Path target;
+
+    public FileEntry(ZipArchiveEntry entry, Path target) {
+      this.entry = entry;
+      this.target = target;
+    }
+  }
+
   /**
    * Unzips a file to a destination and returns the paths of the written files.
    */
@@ -86,93 +105,233 @@ public class Unzip {
           filesystem.createParentDirs(target);
 
           filesWritten.add(target);
-          // Write file
-          try (OutputStream out = filesystem.newFileOutputStream(target);
-               InputStream is = zip.getInputStream(entry)) {
-            ByteStreams.copy(is, out);
-          }
+          writeFile(zip, entry, filesystem, target);
+        }
+      }
+    }
+    return filesWritten.build();
+  }
+
+  /**
+   * Unzips a file into the root of {@code filesystem}, writing the files out in parallel, and
+   * returns the paths of the written files.
+   * <p>
+   * Everything that has to happen in order (cleaning up existing files and creating directories)
+   * is done up front on the calling thread.  The file entries are then handed out one at a time to
+   * the calling thread and up to {@code parallelism - 1} helpers submitted to {@code executor},
+   * each of which reads the archive through its own handle.  The calling thread only ever waits
+   * for entries that are already being written, so it's safe to call this from a task running on
+   * {@code executor} itself.
+   * <p>
+   * Archives with duplicate entries, or with directory entries that come after entries inside
+   * them, are extracted serially, since the result depends on the order of the entries.
+   */
+  public static ImmutableList<Path> extractZipFile(
+      final Path zipFile,
+      final ProjectFilesystem filesystem,
+      ExistingFileMode existingFileMode,
+      ListeningExecutorService executor,
+      int parallelism) throws IOException, InterruptedException {
+    Path relativePath = filesystem.getRootPath().getFileSystem().getPath("");
+    if (parallelism <= 1) {
+      return extractZipFile(zipFile, filesystem, relativePath, existingFileMode);
+    }
 
-          // TODO(shs96c): Implement what the comment below says we should do.
-          //
-          // Sets the file permissions of the output file given the information in {@code entry}'s
-          // extra data field. According to the docs at
-          // http://www.opensource.apple.com/source/zip/zip-6/unzip/unzip/proginfo/extra.fld there
-          // are two extensions that might support file permissions: Acorn and ASi UNIX. We shall
-          // assume that inputs are not from an Acorn SparkFS. The relevant section from the docs:
-          //
-          // <pre>
-          //    The following is the layout of the ASi extra block for Unix.  The
-          //    local-header and central-header versions are identical.
-          //    (Last Revision 19960916)
-          //
-          //    Value         Size        Description
-          //    -----         ----        -----------
-          //   (Unix3) 0x756e        Short       tag for this extra block type ("nu")
-          //   TSize         Short       total data size for this block
-          //   CRC           Long        CRC-32 of the remaining data
-          //   Mode          Short       file permissions
-          //   SizDev        Long        symlink'd size OR major/minor dev num
-          //   UID           Short       user ID
-          //   GID           Short       group ID
-          //   (var.)        variable    symbolic link filename
-          //
-          //   Mode is the standard Unix st_mode field from struct stat, containing
-          //   user/group/other permissions, setuid/setgid and symlink info, etc.
-          // </pre>
-          //
-          // From the stat man page, we see that the following mask values are defined for the file
-          // permissions component of the st_mode field:
-          //
-          // <pre>
-          //   S_ISUID   0004000   set-user-ID bit
-          //   S_ISGID   0002000   set-group-ID bit (see below)
-          //   S_ISVTX   0001000   sticky bit (see below)
-          //
-          //   S_IRWXU     00700   mask for file owner permissions
-          //
-          //   S_IRUSR     00400   owner has read permission
-          //   S_IWUSR     00200   owner has write permission
-          //   S_IXUSR     00100   owner has execute permission
-          //
-          //   S_IRWXG     00070   mask for group permissions
-          //   S_IRGRP     00040   group has read permission
-          //   S_IWGRP     00020   group has write permission
-          //   S_IXGRP     00010   group has execute permission
-          //
-          //   S_IRWXO     00007   mask for permissions for others
-          //   (not in group)
-          //   S_IROTH     00004   others have read permission
-          //   S_IWOTH     00002   others have write permission
-          //   S_IXOTH     00001   others have execute permission
-          // </pre>
-          //
-          // For the sake of our own sanity, we're going to assume that no-one is using symlinks,
-          // but we'll check and throw if they are.
-          //
-          // Before we do anything, we should check the header ID. Pfft!
-          //
-          // Having jumped through all these hoops, it turns out that InfoZIP's "unzip" store the
-          // values in the external file attributes of a zip entry (found in the zip's central
-          // directory) assuming that the OS creating the zip was one of an enormous list that
-          // includes UNIX but not Windows, it first searches for the extra fields, and if not found
-          // falls through to a code path that supports MS-DOS and which stores the UNIX file
-          // attributes in the upper 16 bits of the external attributes field.
-          //
-          // We'll support neither approach fully, but we encode whether this file was executable
-          // via storing 0100 in the fields that are typically used by zip implementations to store
-          // POSIX permissions. If we find it was executable, use the platform independent java
-          // interface to make this unpacked file executable.
-
-          Set<PosixFilePermission> permissions =
-              MorePosixFilePermissions.fromMode(entry.getExternalAttributes() >> 16);
-          if (permissions.contains(PosixFilePermission.OWNER_EXECUTE)) {
-            MoreFiles.makeExecutable(filesystem.resolve(target));
+    try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+      List<ZipArchiveEntry> entries = Collections.list(zip.getEntries());
+      if (!canExtractOutOfOrder(entries)) {
+        return extractZipFile(zipFile, filesystem, relativePath, existingFileMode);
+      }
+
+      ImmutableList.Builder<Path> filesWritten = ImmutableList.builder();
+      Set<Path> directories = new HashSet<>();
+      final Queue<FileEntry> files = new ConcurrentLinkedQueue<>();
+      for (ZipArchiveEntry entry : entries) {
+        Path target = relativePath.resolve(entry.getName());
+        if (existingFileMode == ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES) {
+          filesystem.deleteRecursivelyIfExists(target);
+        }
+        if (entry.isDirectory()) {
+          if (directories.add(target)) {
+            filesystem.mkdirs(target);
           }
+        } else {
+          Path parent = target.getParent();
+          if (parent != null && directories.add(parent)) {
+            filesystem.mkdirs(parent);
+          }
+          filesWritten.add(target);
+          files.add(new FileEntry(entry, target));
+        }
+      }
+
+      final CountDownLatch remaining = new CountDownLatch(files.size());
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      int helpers = Math.min(parallelism - 1, files.size() - 1);
+      for (int i = 0; i < helpers; i++) {
+        executor.submit(
+            new Runnable() {
+              @Override
+              public void run() {
+                if (files.isEmpty()) {
+                  return;
+                }
+                try (ZipFile helperZip = new ZipFile(zipFile.toFile())) {
+                  writeFiles(helperZip, files, filesystem, remaining, failure);
+                } catch (IOException e) {
+                  // The entries we didn't get to will be written by someone else.
+                  failure.compareAndSet(null, e);
+                }
+              }
+            });
+      }
+      writeFiles(zip, files, filesystem, remaining, failure);
+      remaining.await();
+
+      Throwable thrown = failure.get();
+      if (thrown != null) {
+        Throwables.propagateIfInstanceOf(thrown, IOException.class);
+        throw Throwables.propagate(thrown);
+      }
+      return filesWritten.build();
+    }
+  }
 
+  private static void writeFiles(
+      ZipFile zip,
+      Queue<FileEntry> files,
+      ProjectFilesystem filesystem,
+      CountDownLatch remaining,
+      AtomicReference<Throwable> failure) {
+    FileEntry file;
+    while ((file = files.poll()) != null) {
+      try {
+        if (failure.get() == null) {
+          writeFile(zip, file.entry, filesystem, file.target);
         }
+      } catch (IOException | RuntimeException e) {
+        failure.compareAndSet(null, e);
+      } finally {
+        remaining.countDown();
       }
     }
-    return filesWritten.build();
+  }
+
+  /**
+   * @return whether the result of extracting {@code entries} doesn't depend on the order in which
+   *     they are extracted.
+   */
+  private static boolean canExtractOutOfOrder(List<ZipArchiveEntry> entries) {
+    Set<String> names = new HashSet<>();
+    Set<String> directoriesWithEntries = new HashSet<>();
+    for (ZipArchiveEntry entry : entries) {
+      String name = trimTrailingSlash(entry.getName());
+      if (!names.add(name)) {
+        return false;
+      }
+      if (entry.isDirectory() && directoriesWithEntries.contains(name)) {
+        return false;
+      }
+      for (int slash = name.lastIndexOf('/');
+           slash > 0;
+           slash = name.lastIndexOf('/', slash - 1)) {
+        directoriesWithEntries.add(name.substring(0, slash));
+      }
+    }
+    return true;
+  }
+
+  private static String trimTrailingSlash(String name) {
+    return name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+  }
+
+  private static void writeFile(
+      ZipFile zip,
+      ZipArchiveEntry entry,
+      ProjectFilesystem filesystem,
+      Path target) throws IOException {
+    // Write file
+    try (OutputStream out = filesystem.newFileOutputStream(target);
+         InputStream is = zip.getInputStream(entry)) {
+      ByteStreams.copy(is, out);
+    }
+
+    // TODO(shs96c): Implement what the comment below says we should do.
+    //
+    // Sets the file permissions of the output file given the information in {@code entry}'s
+    // extra data field. According to the docs at
+    // http://www.opensource.apple.com/source/zip/zip-6/unzip/unzip/proginfo/extra.fld there
+    // are two extensions that might support file permissions: Acorn and ASi UNIX. We shall
+    // assume that inputs are not from an Acorn SparkFS. The relevant section from the docs:
+    //
+    // <pre>
+    //    The following is the layout of the ASi extra block for Unix.  The
+    //    local-header and central-header versions are identical.
+    //    (Last Revision 19960916)
+    //
+    //    Value         Size        Description
+    //    -----         ----        -----------
+    //   (Unix3) 0x756e        Short       tag for this extra block type ("nu")
+    //   TSize         Short       total data size for this block
+    //   CRC           Long        CRC-32 of the remaining data
+    //   Mode          Short       file permissions
+    //   SizDev        Long        symlink'd size OR major/minor dev num
+    //   UID           Short       user ID
+    //   GID           Short       group ID
+    //   (var.)        variable    symbolic link filename
+    //
+    //   Mode is the standard Unix st_mode field from struct stat, containing
+    //   user/group/other permissions, setuid/setgid and symlink info, etc.
+    // </pre>
+    //
+    // From the stat man page, we see that the following mask values are defined for the file
+    // permissions component of the st_mode field:
+    //
+    // <pre>
+    //   S_ISUID   0004000   set-user-ID bit
+    //   S_ISGID   0002000   set-group-ID bit (see below)
+    //   S_ISVTX   0001000   sticky bit (see below)
+    //
+    //   S_IRWXU     00700   mask for file owner permissions
+    //
+    //   S_IRUSR     00400   owner has read permission
+    //   S_IWUSR     00200   owner has write permission
+    //   S_IXUSR     00100   owner has execute permission
+    //
+    //   S_IRWXG     00070   mask for group permissions
+    //   S_IRGRP     00040   group has read permission
+    //   S_IWGRP     00020   group has write permission
+    //   S_IXGRP     00010   group has execute permission
+    //
+    //   S_IRWXO     00007   mask for permissions for others
+    //   (not in group)
+    //   S_IROTH     00004   others have read permission
+    //   S_IWOTH     00002   others have write permission
+    //   S_IXOTH     00001   others have execute permission
+    // </pre>
+    //
+    // For the sake of our own sanity, we're going to assume that no-one is using symlinks,
+    // but we'll check and throw if they are.
+    //
+    // Before we do anything, we should check the header ID. Pfft!
+    //
+    // Having jumped through all these hoops, it turns out that InfoZIP's "unzip" store the
+    // values in the external file attributes of a zip entry (found in the zip's central
+    // directory) assuming that the OS creating the zip was one of an enormous list that
+    // includes UNIX but not Windows, it first searches for the extra fields, and if not found
+    // falls through to a code path that supports MS-DOS and which stores the UNIX file
+    // attributes in the upper 16 bits of the external attributes field.
+    //
+    // We'll support neither approach fully, but we encode whether this file was executable
+    // via storing 0100 in the fields that are typically used by zip implementations to store
+    // POSIX permissions. If we find it was executable, use the platform independent java
+    // interface to make this unpacked file executable.
+
+    Set<PosixFilePermission> permissions =
+        MorePosixFilePermissions.fromMode(entry.getExternalAttributes() >> 16);
+    if (permissions.contains(PosixFilePermission.OWNER_EXECUTE)) {
+      MoreFiles.makeExecutable(filesystem.resolve(target));
+    }
   }
 
   public static ImmutableList<Path> extractZipFile(
@@ -19,6 +19,7 @@ package com.facebook.buck.zip;
 import com.facebook.buck.timing.Clock;
 import com.facebook.buck.timing.DefaultClock;
 import com.facebook.buck.util.HumanReadableException;
+import com.google.common.util.concurrent.ListeningExecutorService;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
@@ -28,6 +29,14 @@ import java.nio.file.Path;
 
 public class ZipOutputStreams {
 
+  /**
+   * The most entries a parallel stream has waiting to be compressed or written out at once, which
+   * is also the most threads it keeps busy.
+   */
+  private static final int MAX_PENDING_ENTRIES = Runtime.getRuntime().availableProcessors();
+  private static final long MAX_PENDING_BYTES = 64 * 1024 * 1024;
+  private static final int MAX_BUFFERED_ENTRY_SIZE = 8 * 1024 * 1024;
+
   private ZipOutputStreams() {
     // factory class
   }
@@ -97,6 +106,60 @@ public class ZipOutputStreams {
     }
   }
 
+  /**
+   * Create a new {@link CustomZipOutputStream} that outputs to the given {@code zipFile}, and
+   * compresses entries on {@code executor}. See
+   * {@link #newParallelOutputStream(OutputStream, HandleDuplicates, ListeningExecutorService)}.
+   *
+   * @param zipFile The file to write to.
+   * @param mode How to handle duplicate entries.
+   * @param executor Where to compress entries.
+   */
+  public static CustomZipOutputStream newParallelOutputStream(
+      Path zipFile,
+      HandleDuplicates mode,
+      ListeningExecutorService executor) throws IOException {
+    return newParallelOutputStream(
+        new BufferedOutputStream(Files.newOutputStream(zipFile)),
+        mode,
+        executor);
+  }
+
+  /**
+   * Create a new {@link CustomZipOutputStream} that compresses entries on {@code executor}, rather
+   * than on the thread writing them, but otherwise behaves like, and writes exactly the same bytes
+   * as, the stream returned by {@link #newOutputStream(OutputStream, HandleDuplicates)}. Entries
+   * can't be overwritten once they've been handed off, so in
+   * {@link HandleDuplicates#OVERWRITE_EXISTING} mode entries are compressed on the writing thread.
+   *
+   * @param out The output stream to write to.
+   * @param mode How to handle duplicate entries.
+   * @param executor Where to compress entries.
+   */
+  public static CustomZipOutputStream newParallelOutputStream(
+      OutputStream out,
+      HandleDuplicates mode,
+      ListeningExecutorService executor) {
+    Clock clock = new DefaultClock();
+    switch (mode) {
+      case APPEND_TO_ZIP:
+      case THROW_EXCEPTION:
+        return new ParallelZipOutputStream(
+            clock,
+            out,
+            mode == HandleDuplicates.THROW_EXCEPTION,
+            executor,
+            MAX_PENDING_ENTRIES,
+            MAX_PENDING_BYTES,
+            MAX_BUFFERED_ENTRY_SIZE);
+      case OVERWRITE_EXISTING:
+        return new OverwritingZipOutputStream(clock, out);
+      default:
+        throw new HumanReadableException(
+            "Unable to determine which zip output mode to use: %s", mode);
+    }
+  }
+
   public enum HandleDuplicates {
     /** Duplicate entries are simply appended to the zip. */
     APPEND_TO_ZIP,
@@ -16,7 +16,7 @@
 
 package com.facebook.buck.zip;
 
-import static com.facebook.buck.zip.ZipOutputStreams.HandleDuplicates.OVERWRITE_EXISTING;
+import static com.facebook.buck.zip.ZipOutputStreams.HandleDuplicates.APPEND_TO_ZIP;
 
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.io.MorePaths;
@@ -174,7 +174,11 @@ public class ZipStep implements Step {
       BufferedOutputStream baseOut =
           new BufferedOutputStream(filesystem.newFileOutputStream(pathToZipFile));
       CustomZipOutputStream out =
-          ZipOutputStreams.newOutputStream(baseOut, OVERWRITE_EXISTING)) {
+          ZipOutputStreams.newParallelOutputStream(
+              baseOut,
+              // Entry names are unique, so this writes the same zip as overwriting would.
+              APPEND_TO_ZIP,
+              context.getExecutorService(ExecutionContext.ExecutorPool.CPU))) {
 
       filesystem.walkRelativeFileTree(baseDir, pathFileVisitor);
 
@@ -172,6 +172,16 @@ public class ArtifactCacheBuckConfigTest {
     assertThat(dirCacheConfig.getMaxSizeBytes(), Matchers.equalTo(Optional.of(1022L)));
   }
 
+  @Test
+  public void testDirCacheLayout() throws IOException {
+    assertThat(
+        createFromText("[cache]", "dir = cache_dir").getDirCache().getLayout(),
+        Matchers.is(ArtifactCacheBuckConfig.DirCacheLayout.RULE_KEY));
+    assertThat(
+        createFromText("[cache]", "dir_layout = content_addressed").getDirCache().getLayout(),
+        Matchers.is(ArtifactCacheBuckConfig.DirCacheLayout.CONTENT_ADDRESSED));
+  }
+
   @Test(expected = HumanReadableException.class)
   public void testMalformedHttpUrl() throws IOException {
     ArtifactCacheBuckConfig config = createFromText(
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.BorrowablePath;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Bytes;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class ContentAddressedArtifactCacheTest {
+  @Rule
+  public TemporaryPaths tmpDir = new TemporaryPaths();
+
+  private static final RuleKey RULE_KEY_A = new RuleKey("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+  private static final RuleKey RULE_KEY_B = new RuleKey("bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb");
+  private static final RuleKey RULE_KEY_C = new RuleKey("cccccccccccccccccccccccccccccccccccccccc");
+
+  private ProjectFilesystem filesystem;
+  private ContentAddressedArtifactCache cache;
+
+  @Before
+  public void setUp() throws IOException {
+    filesystem = new ProjectFilesystem(tmpDir.newFolder());
+  }
+
+  @After
+  public void tearDown() {
+    if (cache != null) {
+      cache.close();
+    }
+  }
+
+  private ContentAddressedArtifactCache newCache(Optional<Long> maxCacheSizeBytes)
+      throws IOException {
+    return new ContentAddressedArtifactCache(
+        "dir",
+        filesystem,
+        Paths.get("cache"),
+        /* doStore */ true,
+        maxCacheSizeBytes,
+        /* blobSizeBytes */ 4);
+  }
+
+  private Path writeArtifact(String name, String contents) throws IOException {
+    Path path = tmpDir.getRoot().resolve(name);
+    Files.write(path, contents.getBytes(UTF_8));
+    return path;
+  }
+
+  private String fetch(RuleKey ruleKey) throws IOException {
+    Path output = tmpDir.getRoot().resolve("output");
+    CacheResult result = cache.fetch(ruleKey, LazyPath.ofInstance(output));
+    if (!result.getType().isSuccess()) {
+      return null;
+    }
+    return new String(Files.readAllBytes(output), UTF_8);
+  }
+
+  @Test
+  public void testFetchMiss() throws IOException {
+    cache = newCache(Optional.<Long>absent());
+    assertEquals(
+        CacheResultType.MISS,
+        cache.fetch(RULE_KEY_A, LazyPath.ofInstance(tmpDir.getRoot().resolve("x"))).getType());
+  }
+
+  @Test
+  public void testStoreAndFetchWithMetadata() throws IOException {
+    cache = newCache(Optional.<Long>absent());
+    ImmutableMap<String, String> metadata = ImmutableMap.of("some", "metadata");
+    cache.store(
+        ImmutableSet.of(RULE_KEY_A),
+        metadata,
+        BorrowablePath.notBorrowablePath(writeArtifact("x", "0123456789")));
+
+    Path output = tmpDir.getRoot().resolve("output");
+    CacheResult result = cache.fetch(RULE_KEY_A, LazyPath.ofInstance(output));
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals(metadata, result.getMetadata());
+    assertEquals(Optional.of(10L), result.artifactSizeBytes());
+    assertEquals("0123456789", new String(Files.readAllBytes(output), UTF_8));
+  }
+
+  @Test
+  public void testEmptyArtifact() throws IOException {
+    cache = newCache(Optional.<Long>absent());
+    cache.store(
+        ImmutableSet.of(RULE_KEY_A),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("x", "")));
+    assertEquals("", fetch(RULE_KEY_A));
+  }
+
+  @Test
+  public void testIdenticalContentsAreStoredOnce() throws IOException {
+    cache = newCache(Optional.<Long>absent());
+    cache.store(
+        ImmutableSet.of(RULE_KEY_A),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("x", "aaaabbbbcc")));
+    cache.store(
+        ImmutableSet.of(RULE_KEY_B),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("y", "aaaabbbbcc")));
+    cache.store(
+        ImmutableSet.of(RULE_KEY_C),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("z", "aaaaaaaadd")));
+
+    // "aaaa", "bbbb", "cc" and "dd".
+    assertEquals(4, cache.getBlobCount());
+    assertEquals(12L, cache.getTotalBlobBytes());
+    assertEquals("aaaabbbbcc", fetch(RULE_KEY_A));
+    assertEquals("aaaabbbbcc", fetch(RULE_KEY_B));
+    assertEquals("aaaaaaaadd", fetch(RULE_KEY_C));
+  }
+
+  @Test
+  public void testIndexSurvivesReopening() throws IOException {
+    cache = newCache(Optional.<Long>absent());
+    cache.store(
+        ImmutableSet.of(RULE_KEY_A, RULE_KEY_B),
+        ImmutableMap.of("key", "value"),
+        BorrowablePath.notBorrowablePath(writeArtifact("x", "0123456789")));
+    cache.close();
+
+    cache = newCache(Optional.<Long>absent());
+    assertEquals("0123456789", fetch(RULE_KEY_A));
+    assertEquals("0123456789", fetch(RULE_KEY_B));
+    assertEquals(3, cache.getBlobCount());
+  }
+
+  @Test
+  public void testTruncatedIndexIsRecovered() throws IOException {
+    cache = newCache(Optional.<Long>absent());
+    cache.store(
+        ImmutableSet.of(RULE_KEY_A),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("x", "0123")));
+    cache.store(
+        ImmutableSet.of(RULE_KEY_B),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("y", "4567")));
+    cache.close();
+
+    // Chop off the end of the last record, as if we crashed while appending it.
+    Path index = filesystem.resolve(cache.getPathToIndex());
+    byte[] contents = Files.readAllBytes(index);
+    Files.write(index, Arrays.copyOf(contents, contents.length - 3));
+
+    cache = newCache(Optional.<Long>absent());
+    assertEquals("0123", fetch(RULE_KEY_A));
+    assertEquals(null, fetch(RULE_KEY_B));
+  }
+
+  @Test
+  public void testMissingBlobIsAMiss() throws IOException {
+    cache = newCache(Optional.<Long>absent());
+    cache.store(
+        ImmutableSet.of(RULE_KEY_A),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("x", "0123")));
+    filesystem.deleteFileAtPath(
+        cache.getPathForBlob(Hashing.sha1().hashString("0123", UTF_8)));
+
+    assertEquals(null, fetch(RULE_KEY_A));
+    assertEquals(0, cache.getBlobCount());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedEntries() throws IOException {
+    cache = newCache(Optional.of(12L));
+    cache.store(
+        ImmutableSet.of(RULE_KEY_A),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("x", "aaaaAAAA")));
+    cache.store(
+        ImmutableSet.of(RULE_KEY_B),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("y", "bbbb")));
+    // Touch A so that B becomes the least recently used entry.
+    assertEquals("aaaaAAAA", fetch(RULE_KEY_A));
+    cache.store(
+        ImmutableSet.of(RULE_KEY_C),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("z", "cccc")));
+
+    // Storing C takes us to 16 bytes, so we trim back down to 8.
+    assertEquals(null, fetch(RULE_KEY_B));
+    assertEquals(null, fetch(RULE_KEY_A));
+    assertEquals("cccc", fetch(RULE_KEY_C));
+    assertEquals(4L, cache.getTotalBlobBytes());
+    assertFalse(
+        filesystem.exists(cache.getPathForBlob(Hashing.sha1().hashString("bbbb", UTF_8))));
+    assertTrue(
+        filesystem.exists(cache.getPathForBlob(Hashing.sha1().hashString("cccc", UTF_8))));
+  }
+
+  @Test
+  public void testSharedBlobsSurviveEviction() throws IOException {
+    cache = newCache(Optional.of(9L));
+    cache.store(
+        ImmutableSet.of(RULE_KEY_A),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("x", "ccccaaaa")));
+    cache.store(
+        ImmutableSet.of(RULE_KEY_B),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("y", "ccccbb")));
+
+    // Evicting A is enough to trim back down to 6 bytes, and must not delete the shared blob.
+    assertEquals(null, fetch(RULE_KEY_A));
+    assertEquals("ccccbb", fetch(RULE_KEY_B));
+    assertEquals(6L, cache.getTotalBlobBytes());
+  }
+
+  @Test
+  public void testOverwrittenBlobsAreDeleted() throws IOException {
+    cache = newCache(Optional.<Long>absent());
+    cache.store(
+        ImmutableSet.of(RULE_KEY_A),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("x", "aaaa")));
+    cache.store(
+        ImmutableSet.of(RULE_KEY_A),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("y", "bbbb")));
+
+    assertEquals("bbbb", fetch(RULE_KEY_A));
+    assertEquals(1, cache.getBlobCount());
+    assertFalse(
+        filesystem.exists(cache.getPathForBlob(Hashing.sha1().hashString("aaaa", UTF_8))));
+  }
+
+  @Test
+  public void testBlobsOfInterruptedStoresAreDeleted() throws IOException {
+    cache = newCache(Optional.<Long>absent());
+    cache.store(
+        ImmutableSet.of(RULE_KEY_A),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("x", "aaaa")));
+    cache.close();
+
+    // Journal a blob and write it, as if we died before journaling the manifest referencing it.
+    HashCode orphanHash = Hashing.sha1().hashString("oooo", UTF_8);
+    Path orphan = cache.getPathForBlob(orphanHash);
+    filesystem.mkdirs(orphan.getParent());
+    filesystem.writeContentsToPath("oooo", orphan);
+    byte[] record = Bytes.concat(
+        new byte[] {ContentAddressedArtifactCache.RECORD_BLOB, 20},
+        orphanHash.asBytes());
+    Files.write(
+        filesystem.resolve(cache.getPathToIndex()),
+        record,
+        StandardOpenOption.APPEND);
+
+    cache = newCache(Optional.<Long>absent());
+    cache.close();
+    assertFalse(filesystem.exists(orphan));
+
+    cache = newCache(Optional.<Long>absent());
+    assertEquals("aaaa", fetch(RULE_KEY_A));
+  }
+
+  @Test
+  public void testStoresFromOtherInstancesAreKept() throws IOException {
+    cache = newCache(Optional.<Long>absent());
+    ContentAddressedArtifactCache other = newCache(Optional.<Long>absent());
+    cache.store(
+        ImmutableSet.of(RULE_KEY_A),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("x", "aaaa")));
+    other.store(
+        ImmutableSet.of(RULE_KEY_B),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("y", "bbbb")));
+    assertEquals("aaaa", fetch(RULE_KEY_A));
+    other.close();
+    cache.close();
+
+    cache = newCache(Optional.<Long>absent());
+    assertEquals("aaaa", fetch(RULE_KEY_A));
+    assertEquals("bbbb", fetch(RULE_KEY_B));
+  }
+
+  @Test
+  public void testFetchHitsAreAppendedToTheIndex() throws IOException {
+    cache = newCache(Optional.<Long>absent());
+    cache.store(
+        ImmutableSet.of(RULE_KEY_A, RULE_KEY_B, RULE_KEY_C),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(writeArtifact("x", "aaaa")));
+    cache.close();
+    byte[] before = Files.readAllBytes(filesystem.resolve(cache.getPathToIndex()));
+
+    cache = newCache(Optional.<Long>absent());
+    assertEquals("aaaa", fetch(RULE_KEY_A));
+    cache.close();
+    byte[] after = Files.readAllBytes(filesystem.resolve(cache.getPathToIndex()));
+
+    assertTrue(after.length > before.length);
+    assertArrayEquals(before, Arrays.copyOf(after, before.length));
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class DirArtifactCacheIndexTest {
+  @Rule
+  public TemporaryPaths tmpDir = new TemporaryPaths();
+
+  private static final RuleKey RULE_KEY_A = new RuleKey("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+  private static final RuleKey RULE_KEY_B = new RuleKey("bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb");
+  private static final ImmutableMap<String, String> METADATA_A = ImmutableMap.of("key", "a");
+  private static final ImmutableMap<String, String> METADATA_B = ImmutableMap.of("key", "b");
+
+  private Path indexDir;
+  private DirArtifactCacheIndex index;
+
+  @Before
+  public void setUp() throws IOException {
+    indexDir = tmpDir.getRoot().resolve("index");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (index != null) {
+      index.close();
+    }
+  }
+
+  private void reopen() throws IOException {
+    index.close();
+    index = DirArtifactCacheIndex.open(indexDir);
+  }
+
+  @Test
+  public void testPutAndGet() throws IOException {
+    index = DirArtifactCacheIndex.open(indexDir);
+    assertTrue(index.wasCreated());
+    assertEquals(Optional.absent(), index.get(RULE_KEY_A));
+
+    index.put(RULE_KEY_A, METADATA_A);
+    index.put(RULE_KEY_B, METADATA_B);
+    assertEquals(Optional.of(METADATA_A), index.get(RULE_KEY_A));
+    assertEquals(Optional.of(METADATA_B), index.get(RULE_KEY_B));
+
+    index.put(RULE_KEY_A, METADATA_B);
+    assertEquals(Optional.of(METADATA_B), index.get(RULE_KEY_A));
+    assertEquals(2, index.size());
+  }
+
+  @Test
+  public void testRemove() throws IOException {
+    index = DirArtifactCacheIndex.open(indexDir);
+    index.put(RULE_KEY_A, METADATA_A);
+    index.put(RULE_KEY_B, METADATA_B);
+    index.remove(RULE_KEY_A);
+    index.remove(RULE_KEY_A);
+
+    assertEquals(Optional.absent(), index.get(RULE_KEY_A));
+    assertEquals(Optional.of(METADATA_B), index.get(RULE_KEY_B));
+    assertEquals(1, index.size());
+
+    reopen();
+    assertEquals(Optional.absent(), index.get(RULE_KEY_A));
+    assertEquals(Optional.of(METADATA_B), index.get(RULE_KEY_B));
+  }
+
+  @Test
+  public void testEntriesSurviveReopening() throws IOException {
+    index = DirArtifactCacheIndex.open(indexDir);
+    index.put(RULE_KEY_A, METADATA_A);
+    reopen();
+
+    assertFalse(index.wasCreated());
+    assertEquals(Optional.of(METADATA_A), index.get(RULE_KEY_A));
+  }
+
+  @Test
+  public void testCannotBeOpenedTwice() throws IOException {
+    index = DirArtifactCacheIndex.open(indexDir);
+    try {
+      DirArtifactCacheIndex.open(indexDir).close();
+      throw new AssertionError("Expected the second open to fail");
+    } catch (IOException e) {
+      assertThat(e.getMessage(), Matchers.containsString("in use"));
+    }
+  }
+
+  @Test
+  public void testTornRecordIsDropped() throws IOException {
+    index = DirArtifactCacheIndex.open(indexDir);
+    index.put(RULE_KEY_A, METADATA_A);
+    long lengthWithA = index.getLogLength();
+    index.put(RULE_KEY_B, METADATA_B);
+    index.close();
+    index = null;
+
+    // Chop off the end of the last record, as if we crashed while appending it, and throw away
+    // the table so that the log has to be replayed.
+    Path log = indexDir.resolve("log");
+    try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+      channel.truncate(channel.size() - 3);
+    }
+    Files.delete(indexDir.resolve("table"));
+
+    index = DirArtifactCacheIndex.open(indexDir);
+    assertEquals(Optional.of(METADATA_A), index.get(RULE_KEY_A));
+    assertEquals(Optional.absent(), index.get(RULE_KEY_B));
+    assertEquals(lengthWithA, index.getLogLength());
+
+    // The log can be appended to again once the torn record is gone.
+    index.put(RULE_KEY_B, METADATA_B);
+    reopen();
+    assertEquals(Optional.of(METADATA_B), index.get(RULE_KEY_B));
+  }
+
+  @Test
+  public void testCorruptRecordIsDropped() throws IOException {
+    index = DirArtifactCacheIndex.open(indexDir);
+    index.put(RULE_KEY_A, METADATA_A);
+    long lengthWithA = index.getLogLength();
+    index.put(RULE_KEY_B, METADATA_B);
+    index.close();
+    index = null;
+
+    Path log = indexDir.resolve("log");
+    byte[] contents = Files.readAllBytes(log);
+    contents[contents.length - 1] ^= 0xff;
+    Files.write(log, contents);
+    Files.delete(indexDir.resolve("table"));
+
+    index = DirArtifactCacheIndex.open(indexDir);
+    assertEquals(Optional.of(METADATA_A), index.get(RULE_KEY_A));
+    assertEquals(Optional.absent(), index.get(RULE_KEY_B));
+    assertEquals(lengthWithA, index.getLogLength());
+  }
+
+  @Test
+  public void testGrowsPastInitialCapacity() throws IOException {
+    index = DirArtifactCacheIndex.open(indexDir);
+    int count = DirArtifactCacheIndex.INITIAL_CAPACITY * 2;
+    for (int i = 0; i < count; i++) {
+      index.put(ruleKey(i), ImmutableMap.of("i", Integer.toString(i)));
+    }
+    assertThat(index.getCapacity(), Matchers.greaterThan(DirArtifactCacheIndex.INITIAL_CAPACITY));
+
+    reopen();
+    assertEquals(count, index.size());
+    for (int i = 0; i < count; i++) {
+      assertEquals(
+          Optional.of(ImmutableMap.of("i", Integer.toString(i))),
+          index.get(ruleKey(i)));
+    }
+  }
+
+  @Test
+  public void testCompactionDropsDeadRecords() throws IOException {
+    index = DirArtifactCacheIndex.open(indexDir);
+    for (int i = 0; i < 10; i++) {
+      index.put(RULE_KEY_A, ImmutableMap.of("i", Integer.toString(i)));
+    }
+    index.put(RULE_KEY_B, METADATA_B);
+    index.remove(RULE_KEY_B);
+    long lengthBefore = index.getLogLength();
+
+    index.compact();
+    assertThat(index.getLogLength(), Matchers.lessThan(lengthBefore));
+    assertEquals(Optional.of(ImmutableMap.of("i", "9")), index.get(RULE_KEY_A));
+    assertEquals(Optional.absent(), index.get(RULE_KEY_B));
+
+    reopen();
+    assertEquals(Optional.of(ImmutableMap.of("i", "9")), index.get(RULE_KEY_A));
+    assertEquals(1, index.size());
+  }
+
+  private static RuleKey ruleKey(int i) {
+    return new RuleKey(Hashing.sha1().hashInt(i).toString());
+  }
+}
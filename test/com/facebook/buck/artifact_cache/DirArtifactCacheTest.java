@@ -20,6 +20,7 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
 import com.facebook.buck.io.BorrowablePath;
@@ -691,6 +692,144 @@ public class DirArtifactCacheTest {
     cache.close();
   }
 
+  @Test
+  public void testIndexIsBuiltFromExistingEntriesAndKeptUpToDate() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmpDir.getRoot());
+    Path cacheDir = Paths.get("cache");
+    RuleKey ruleKeyA = new RuleKey("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+    RuleKey ruleKeyB = new RuleKey("bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb");
+    ImmutableMap<String, String> metadata = ImmutableMap.of("some", "metadata");
+    Path data = Paths.get("data");
+    filesystem.writeContentsToPath("data", data);
+
+    // Store an entry before the index exists.
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        filesystem,
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+    dirArtifactCache.store(
+        ImmutableSet.of(ruleKeyA),
+        metadata,
+        BorrowablePath.notBorrowablePath(data));
+    dirArtifactCache.close();
+
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        filesystem,
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent(),
+        /* useIndex */ true);
+    assertTrue(filesystem.isDirectory(dirArtifactCache.getPathToIndexFolder()));
+    dirArtifactCache.store(
+        ImmutableSet.of(ruleKeyB),
+        metadata,
+        BorrowablePath.notBorrowablePath(data));
+
+    CacheResult result = dirArtifactCache.fetch(ruleKeyA, LazyPath.ofInstance(Paths.get("out")));
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals(metadata, result.getMetadata());
+    result = dirArtifactCache.fetch(ruleKeyB, LazyPath.ofInstance(Paths.get("out")));
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals(metadata, result.getMetadata());
+
+    // Metadata is served from the index without reading the metadata file.
+    filesystem.writeContentsToPath(
+        "",
+        dirArtifactCache.getPathForRuleKey(ruleKeyA, Optional.of(".metadata")));
+    assertEquals(
+        metadata,
+        dirArtifactCache.fetch(ruleKeyA, LazyPath.ofInstance(Paths.get("out"))).getMetadata());
+
+    // The index files are not counted as cache entries.
+    assertThat(
+        ImmutableList.copyOf(dirArtifactCache.getAllFilesInCache()),
+        Matchers.hasSize(4));
+  }
+
+  @Test
+  public void testEntriesStoredByOtherProcessesAreFoundInTheIndexLog() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmpDir.getRoot());
+    Path cacheDir = Paths.get("cache");
+    RuleKey ruleKeyA = new RuleKey("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+    RuleKey ruleKeyB = new RuleKey("bbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbbb");
+    ImmutableMap<String, String> metadata = ImmutableMap.of("some", "metadata");
+    Path data = Paths.get("data");
+    filesystem.writeContentsToPath("data", data);
+
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        filesystem,
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent(),
+        /* useIndex */ true);
+
+    // Another writer can't open the index while we have it, so it appends to the index's log.
+    DirArtifactCache otherWriter = new DirArtifactCache(
+        "dir",
+        filesystem,
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent(),
+        /* useIndex */ true);
+    otherWriter.store(
+        ImmutableSet.of(ruleKeyA, ruleKeyB),
+        metadata,
+        BorrowablePath.notBorrowablePath(data));
+    otherWriter.close();
+
+    // The metadata comes from the index rather than the metadata files.
+    filesystem.writeContentsToPath(
+        "",
+        dirArtifactCache.getPathForRuleKey(ruleKeyA, Optional.of(".metadata")));
+    CacheResult result = dirArtifactCache.fetch(ruleKeyA, LazyPath.ofInstance(Paths.get("out")));
+    assertEquals(CacheResultType.HIT, result.getType());
+    assertEquals(metadata, result.getMetadata());
+    assertEquals(
+        CacheResultType.HIT,
+        dirArtifactCache.multiContains(ImmutableSet.of(ruleKeyB)).get(ruleKeyB).getType());
+  }
+
+  @Test
+  public void testIndexMissesDoNotReadMetadataFiles() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmpDir.getRoot());
+    Path cacheDir = Paths.get("cache");
+    RuleKey ruleKey = new RuleKey("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+    Path data = Paths.get("data");
+    filesystem.writeContentsToPath("data", data);
+
+    dirArtifactCache = new DirArtifactCache(
+        "dir",
+        filesystem,
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent(),
+        /* useIndex */ true);
+
+    // A writer which doesn't use the index at all stores an entry behind its back.
+    DirArtifactCache otherWriter = new DirArtifactCache(
+        "dir",
+        filesystem,
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+    otherWriter.store(
+        ImmutableSet.of(ruleKey),
+        ImmutableMap.<String, String>of(),
+        BorrowablePath.notBorrowablePath(data));
+    otherWriter.close();
+
+    assertEquals(
+        CacheResultType.MISS,
+        dirArtifactCache.fetch(ruleKey, LazyPath.ofInstance(Paths.get("out"))).getType());
+    assertEquals(
+        CacheResultType.MISS,
+        dirArtifactCache.multiContains(ImmutableSet.of(ruleKey)).get(ruleKey).getType());
+  }
+
   @Test
   public void testFolderLevelsForRuleKeys() throws IOException {
     DirArtifactCache cache = new DirArtifactCache(
@@ -20,6 +20,8 @@ import static org.junit.Assert.assertThat;
 
 import com.facebook.buck.rules.RuleKey;
 import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
@@ -251,4 +253,83 @@ public class HttpArtifactCacheBinaryProtocolTest {
     byte[] expectedBytes = BaseEncoding.base64().decode(base64EncodedData);
     assertThat(byteArrayOutputStream.toByteArray(), Matchers.equalTo(expectedBytes));
   }
+
+  @Test
+  public void testMultiKeyRequest() throws IOException {
+    ImmutableSet<RuleKey> ruleKeys = ImmutableSet.of(
+        new RuleKey("90000000000000000000008000000005"),
+        new RuleKey("00000000000000000000000000000000"));
+    byte[] request = HttpArtifactCacheBinaryProtocol.createMultiKeyRequest(ruleKeys);
+    assertThat(
+        HttpArtifactCacheBinaryProtocol.readMultiKeyRequest(
+            new DataInputStream(new ByteArrayInputStream(request))),
+        Matchers.contains(ruleKeys.toArray()));
+  }
+
+  @Test
+  public void testMultiFetchResponse() throws IOException {
+    RuleKey ruleKey = new RuleKey("00000000000000000000000000000000");
+    RuleKey ruleKey2 = new RuleKey("90000000000000000000008000000005");
+    ImmutableMap<String, String> metadata = ImmutableMap.of("metaKey", "metaValue");
+
+    HttpArtifactCacheBinaryProtocol.MultiFetchResponse multiFetchResponse =
+        new HttpArtifactCacheBinaryProtocol.MultiFetchResponse(
+            ImmutableList.of(
+                Optional.of(
+                    new HttpArtifactCacheBinaryProtocol.FetchResponse(
+                        ImmutableSet.of(ruleKey),
+                        metadata,
+                        ByteSource.wrap("data".getBytes(Charsets.UTF_8)))),
+                Optional.<HttpArtifactCacheBinaryProtocol.FetchResponse>absent(),
+                Optional.of(
+                    new HttpArtifactCacheBinaryProtocol.FetchResponse(
+                        ImmutableSet.of(ruleKey2),
+                        ImmutableMap.<String, String>of(),
+                        ByteSource.wrap("other data".getBytes(Charsets.UTF_8))))));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    multiFetchResponse.write(out);
+    assertThat(multiFetchResponse.getContentLength(), Matchers.is((long) out.size()));
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+    HttpArtifactCacheBinaryProtocol.readMultiKeyResponseHeader(in, 3);
+
+    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+    FetchResponseReadResult readResult;
+    try (DataInputStream entry =
+             HttpArtifactCacheBinaryProtocol.readMultiFetchResponseEntry(in).get()) {
+      readResult = HttpArtifactCacheBinaryProtocol.readFetchResponse(entry, payload);
+    }
+    assertThat(readResult.getRuleKeys(), Matchers.contains(ruleKey));
+    assertThat(readResult.getMetadata(), Matchers.equalTo(metadata));
+    assertThat(readResult.getActualHashCode(), Matchers.equalTo(readResult.getExpectedHashCode()));
+    assertThat(payload.toByteArray(), Matchers.equalTo("data".getBytes(Charsets.UTF_8)));
+
+    assertThat(
+        HttpArtifactCacheBinaryProtocol.readMultiFetchResponseEntry(in).isPresent(),
+        Matchers.is(false));
+
+    // Closing an entry without reading it skips to the next one.
+    HttpArtifactCacheBinaryProtocol.readMultiFetchResponseEntry(in).get().close();
+    assertThat(in.read(), Matchers.is(-1));
+  }
+
+  @Test
+  public void testMultiKeyResponseWithWrongNumberOfEntries() throws IOException {
+    byte[] response = HttpArtifactCacheBinaryProtocol.createMultiContainsResponse(
+        ImmutableList.of(true, false));
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(response));
+
+    thrown.expect(IOException.class);
+    HttpArtifactCacheBinaryProtocol.readMultiKeyResponseHeader(in, 3);
+  }
+
+  @Test
+  public void testMultiContainsResponse() throws IOException {
+    byte[] response = HttpArtifactCacheBinaryProtocol.createMultiContainsResponse(
+        ImmutableList.of(true, false));
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(response));
+    HttpArtifactCacheBinaryProtocol.readMultiKeyResponseHeader(in, 2);
+    assertThat(HttpArtifactCacheBinaryProtocol.readMultiKeyResponseEntry(in), Matchers.is(true));
+    assertThat(HttpArtifactCacheBinaryProtocol.readMultiKeyResponseEntry(in), Matchers.is(false));
+  }
 }
@@ -35,6 +35,7 @@ import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.timing.IncrementingFakeClock;
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
@@ -689,6 +690,147 @@ public class HttpArtifactCacheTest {
     cache.close();
   }
 
+  @Test
+  public void testMultiFetchMakesOneRequest() throws Exception {
+    final RuleKey hitRuleKey = new RuleKey("00000000000000000000000000000000");
+    final RuleKey missRuleKey = new RuleKey("11111111111111111111111111111111");
+    final String data = "data";
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    final List<String> requestedPaths = Lists.newArrayList();
+    final List<ImmutableSet<RuleKey>> requestedKeys = Lists.newArrayList();
+    HttpArtifactCache cache =
+        new HttpArtifactCache(
+            "http",
+            fetchService,
+            storeService,
+            /* doStore */ true,
+            filesystem,
+            BUCK_EVENT_BUS,
+            DIRECT_EXECUTOR_SERVICE,
+            ERROR_TEXT_TEMPLATE,
+            Optional.<Long>absent()) {
+          @Override
+          protected HttpResponse fetchCall(String path, Request.Builder requestBuilder)
+              throws IOException {
+            Request request = requestBuilder.url(SERVER + path).build();
+            requestedPaths.add(path);
+            Buffer requestBody = new Buffer();
+            request.body().writeTo(requestBody);
+            requestedKeys.add(
+                HttpArtifactCacheBinaryProtocol.readMultiKeyRequest(
+                    new DataInputStream(requestBody.inputStream())));
+
+            HttpArtifactCacheBinaryProtocol.MultiFetchResponse multiFetchResponse =
+                new HttpArtifactCacheBinaryProtocol.MultiFetchResponse(
+                    ImmutableList.of(
+                        Optional.of(
+                            new HttpArtifactCacheBinaryProtocol.FetchResponse(
+                                ImmutableSet.of(hitRuleKey),
+                                ImmutableMap.of("key", "value"),
+                                ByteSource.wrap(data.getBytes(Charsets.UTF_8)))),
+                        Optional.<HttpArtifactCacheBinaryProtocol.FetchResponse>absent()));
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            multiFetchResponse.write(body);
+            Response response = new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(HttpURLConnection.HTTP_OK)
+                .body(ResponseBody.create(OCTET_STREAM, body.toByteArray()))
+                .build();
+            return new OkHttpResponseWrapper(response);
+          }
+        };
+
+    Path hitOutput = Paths.get("output/hit");
+    Path missOutput = Paths.get("output/miss");
+    ImmutableMap<RuleKey, CacheResult> results =
+        cache.multiFetch(
+            ImmutableMap.of(
+                hitRuleKey, LazyPath.ofInstance(hitOutput),
+                missRuleKey, LazyPath.ofInstance(missOutput)));
+
+    assertEquals(ImmutableList.of("/artifacts/multifetch"), requestedPaths);
+    assertEquals(ImmutableList.of(ImmutableSet.of(hitRuleKey, missRuleKey)), requestedKeys);
+    assertEquals(CacheResultType.HIT, results.get(hitRuleKey).getType());
+    assertEquals(ImmutableMap.of("key", "value"), results.get(hitRuleKey).getMetadata());
+    assertEquals(Optional.of(data), filesystem.readFileIfItExists(hitOutput));
+    assertEquals(CacheResultType.MISS, results.get(missRuleKey).getType());
+    assertEquals(Optional.<String>absent(), filesystem.readFileIfItExists(missOutput));
+    cache.close();
+  }
+
+  @Test
+  public void testMultiFetchFallsBackToSeparateFetchesIfUnsupported() throws Exception {
+    final List<String> requestedPaths = Lists.newArrayList();
+    final List<BuckEvent> events = Lists.newArrayList();
+    HttpArtifactCache cache =
+        new HttpArtifactCache(
+            "http",
+            fetchService,
+            storeService,
+            /* doStore */ true,
+            new FakeProjectFilesystem(),
+            new BuckEventBus(new IncrementingFakeClock(), new BuildId()) {
+              @Override
+              public void post(BuckEvent event) {
+                events.add(event);
+              }
+            },
+            DIRECT_EXECUTOR_SERVICE,
+            ERROR_TEXT_TEMPLATE,
+            Optional.<Long>absent()) {
+          @Override
+          protected HttpResponse fetchCall(String path, Request.Builder requestBuilder)
+              throws IOException {
+            requestedPaths.add(path);
+            Response response =
+                new Response.Builder()
+                    .code(HttpURLConnection.HTTP_NOT_FOUND)
+                    .body(createDummyBody())
+                    .protocol(Protocol.HTTP_1_1)
+                    .request(requestBuilder.url(SERVER + path).build())
+                    .build();
+            return new OkHttpResponseWrapper(response);
+          }
+        };
+
+    RuleKey ruleKeyA = new RuleKey("00000000000000000000000000000000");
+    RuleKey ruleKeyB = new RuleKey("11111111111111111111111111111111");
+    ImmutableMap<RuleKey, LazyPath> outputs = ImmutableMap.of(
+        ruleKeyA, LazyPath.ofInstance(Paths.get("output/a")),
+        ruleKeyB, LazyPath.ofInstance(Paths.get("output/b")));
+    ImmutableMap<RuleKey, CacheResult> results = cache.multiFetch(outputs);
+    assertEquals(CacheResultType.MISS, results.get(ruleKeyA).getType());
+    assertEquals(CacheResultType.MISS, results.get(ruleKeyB).getType());
+    assertEquals(
+        ImmutableList.of(
+            "/artifacts/multifetch",
+            "/artifacts/key/" + ruleKeyA,
+            "/artifacts/key/" + ruleKeyB),
+        requestedPaths);
+
+    // Only the separate fetches are reported, each with a started and a finished event.
+    int started = 0;
+    int finished = 0;
+    for (BuckEvent event : events) {
+      if (event instanceof HttpArtifactCacheEvent.Started) {
+        started++;
+      } else if (event instanceof HttpArtifactCacheEvent.Finished) {
+        finished++;
+      }
+    }
+    assertEquals(2, started);
+    assertEquals(2, finished);
+
+    // Having found out the server can't handle it, we don't try again.
+    requestedPaths.clear();
+    cache.multiFetch(outputs);
+    assertEquals(
+        ImmutableList.of("/artifacts/key/" + ruleKeyA, "/artifacts/key/" + ruleKeyB),
+        requestedPaths);
+    cache.close();
+  }
+
   private static ResponseBody createDummyBody() {
     return ResponseBody.create(MediaType.parse("text/plain"), "SUCCESS");
   }
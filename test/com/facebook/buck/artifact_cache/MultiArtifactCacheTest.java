@@ -34,6 +34,8 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 public class MultiArtifactCacheTest {
 
@@ -148,4 +150,44 @@ public class MultiArtifactCacheTest {
     multiArtifactCache.close();
   }
 
+  @Test
+  public void multiFetchOnlyAsksLaterCachesForMisses() throws Exception {
+    final List<ImmutableSet<RuleKey>> requests = new ArrayList<>();
+    InMemoryArtifactCache cache1 = new InMemoryArtifactCache();
+    InMemoryArtifactCache cache2 = new InMemoryArtifactCache() {
+      @Override
+      public ImmutableMap<RuleKey, CacheResult> multiFetch(
+          ImmutableMap<RuleKey, LazyPath> outputs) {
+        requests.add(outputs.keySet());
+        return super.multiFetch(outputs);
+      }
+    };
+    MultiArtifactCache multiArtifactCache =
+        new MultiArtifactCache(ImmutableList.<ArtifactCache>of(
+            cache1,
+            cache2));
+
+    RuleKey ruleKey1 = new RuleKey("aaaa");
+    RuleKey ruleKey2 = new RuleKey("bbbb");
+    RuleKey ruleKey3 = new RuleKey("cccc");
+    ImmutableMap<String, String> metadata = ImmutableMap.of("hello", "world");
+    cache1.store(ImmutableSet.of(ruleKey1), metadata, new byte[0]);
+    cache2.store(ImmutableSet.of(ruleKey2), metadata, new byte[0]);
+
+    ImmutableMap<RuleKey, CacheResult> results = multiArtifactCache.multiFetch(
+        ImmutableMap.of(
+            ruleKey1, LazyPath.ofInstance(tmp.newFile()),
+            ruleKey2, LazyPath.ofInstance(tmp.newFile()),
+            ruleKey3, LazyPath.ofInstance(tmp.newFile())));
+
+    assertThat(results.get(ruleKey1).getType(), Matchers.equalTo(CacheResultType.HIT));
+    assertThat(results.get(ruleKey2).getType(), Matchers.equalTo(CacheResultType.HIT));
+    assertThat(results.get(ruleKey3).getType(), Matchers.equalTo(CacheResultType.MISS));
+    assertThat(requests, Matchers.hasSize(1));
+    assertEquals(ImmutableSet.of(ruleKey2, ruleKey3), ImmutableSet.copyOf(requests.get(0)));
+    assertThat(cache1.hasArtifact(ruleKey2), Matchers.is(true));
+
+    multiArtifactCache.close();
+  }
+
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.bser;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import com.google.caliper.api.Macrobenchmark;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares decoding a buck.py response for a large build file with {@link BserDeserializer}
+ * against decoding it with {@link StreamingBserDeserializer}.
+ */
+public class BserDeserializerBenchmark {
+  @Param({"100", "1000", "10000"})
+  private int ruleCount = 100;
+
+  private byte[] response;
+  private BserDeserializer deserializer;
+  private StreamingBserDeserializer streamingDeserializer;
+
+  @Before
+  public void setUpTest() throws IOException {
+    ruleCount = 100;
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() throws IOException {
+    ImmutableList.Builder<Object> rules = ImmutableList.builder();
+    for (int i = 0; i < ruleCount; i++) {
+      // Rules look like the ones buck.py emits: every optional argument is present, mostly unset,
+      // and deps point at a small set of shared targets.
+      Map<String, Object> rule = new HashMap<>();
+      rule.put("buck.type", "java_library");
+      rule.put("buck.base_path", "java/com/example/pkg" + (i % 50));
+      rule.put("name", "lib" + i);
+      rule.put("srcs", ImmutableList.of("Lib" + i + ".java", "LibHelper" + i + ".java"));
+      rule.put(
+          "deps",
+          ImmutableList.of(
+              "//third-party/java/guava:guava",
+              "//third-party/java/jsr:jsr305",
+              "//java/com/example/pkg" + ((i + 1) % 50) + ":lib" + ((i + 1) % ruleCount)));
+      rule.put("exported_deps", ImmutableList.of());
+      rule.put("visibility", ImmutableList.of("PUBLIC"));
+      for (String unset : ImmutableList.of(
+          "resources", "resources_root", "source", "target", "proguard_config", "javac",
+          "extra_arguments", "annotation_processors", "manifest_file", "maven_coords")) {
+        rule.put(unset, null);
+      }
+      rules.add(rule);
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new BserSerializer().serializeToStream(
+        ImmutableMap.of("values", rules.build(), "diagnostics", ImmutableList.of()),
+        output);
+    response = output.toByteArray();
+
+    deserializer = new BserDeserializer(BserDeserializer.KeyOrdering.SORTED);
+    streamingDeserializer = new StreamingBserDeserializer(BserDeserializer.KeyOrdering.SORTED);
+  }
+
+  @Test
+  public void deserializersAgree() throws IOException {
+    assertEquals(deserialize(), deserializeStreaming());
+  }
+
+  @Macrobenchmark
+  public Object deserialize() throws IOException {
+    return deserializer.deserializeBserValue(new ByteArrayInputStream(response));
+  }
+
+  @Macrobenchmark
+  public Object deserializeStreaming() throws IOException {
+    return streamingDeserializer.deserializeBserValue(new ByteArrayInputStream(response));
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.bser;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+
+import org.hamcrest.Matchers;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@SuppressWarnings("unchecked")
+public class StreamingBserDeserializerTest {
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private static byte[] serialize(Object value) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new BserSerializer().serializeToStream(value, output);
+    return output.toByteArray();
+  }
+
+  /**
+   * Returns at most one byte from each read, like a pipe that the other end writes to slowly.
+   */
+  private static InputStream oneByteAtATime(byte[] bytes) {
+    return new FilterInputStream(new ByteArrayInputStream(bytes)) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, 1));
+      }
+    };
+  }
+
+  private static Object createRule(int index) {
+    Map<String, Object> rule = new HashMap<>();
+    rule.put("buck.type", "java_library");
+    rule.put("buck.base_path", "java/com/example");
+    rule.put("name", "lib" + index);
+    rule.put("srcs", ImmutableList.of("Foo" + index + ".java", "Baré" + index + ".java"));
+    rule.put("deps", ImmutableList.of("//third-party:guava", "//third-party:jsr305"));
+    rule.put("resources", null);
+    rule.put("exported_deps", Arrays.asList("//a:b", null));
+    rule.put("source", 7L);
+    rule.put("big", 1L << 40);
+    rule.put("ratio", 0.5);
+    rule.put("provided", true);
+    rule.put("description", Strings.repeat("long text ", 100));
+    return rule;
+  }
+
+  @Test
+  public void decodesTheSameValuesAsBserDeserializer() throws IOException {
+    ImmutableList.Builder<Object> rules = ImmutableList.builder();
+    for (int i = 0; i < 100; i++) {
+      rules.add(createRule(i));
+    }
+    byte[] bytes = serialize(ImmutableMap.of("values", rules.build()));
+
+    Object expected = new BserDeserializer(BserDeserializer.KeyOrdering.SORTED)
+        .deserializeBserValue(new ByteArrayInputStream(bytes));
+    Object actual = new StreamingBserDeserializer(BserDeserializer.KeyOrdering.SORTED)
+        .deserializeBserValue(oneByteAtATime(bytes));
+    assertThat(actual, equalTo(expected));
+  }
+
+  @Test
+  public void sortsKeysWhenAskedTo() throws IOException {
+    byte[] bytes = BaseEncoding.base16().decode(
+        "0001031B010303020303666F6F0323020303626172034202030362617A03F0");
+
+    Map<String, Object> sorted = (Map<String, Object>)
+        new StreamingBserDeserializer(BserDeserializer.KeyOrdering.SORTED)
+            .deserializeBserValue(new ByteArrayInputStream(bytes));
+    assertThat(sorted.keySet(), contains("bar", "baz", "foo"));
+    assertThat(sorted.get("bar"), Matchers.<Object>equalTo((byte) 0x42));
+
+    Map<String, Object> unsorted = (Map<String, Object>)
+        new StreamingBserDeserializer(BserDeserializer.KeyOrdering.UNSORTED)
+            .deserializeBserValue(new ByteArrayInputStream(bytes));
+    assertThat(
+        unsorted.entrySet(),
+        Matchers.<Map.Entry<String, Object>>contains(
+            new SimpleImmutableEntry<String, Object>("foo", (byte) 0x23),
+            new SimpleImmutableEntry<String, Object>("bar", (byte) 0x42),
+            new SimpleImmutableEntry<String, Object>("baz", (byte) 0xF0)));
+  }
+
+  @Test
+  public void mapsKeepNullValues() throws IOException {
+    Map<String, Object> input = new HashMap<>();
+    input.put("present", null);
+    Map<String, Object> decoded = (Map<String, Object>)
+        new StreamingBserDeserializer(BserDeserializer.KeyOrdering.SORTED)
+            .deserializeBserValue(new ByteArrayInputStream(serialize(input)));
+    assertThat(decoded.containsKey("present"), is(true));
+    assertThat(decoded.containsKey("absent"), is(false));
+    assertThat(decoded.get("present"), nullValue());
+    assertThat(decoded, equalTo(input));
+  }
+
+  @Test
+  public void decodesTemplates() throws IOException {
+    byte[] bytes = BaseEncoding.base16().decode(
+        "000103280B0003020203046E616D6502030361676503030203046672656403140203" +
+        "0470657465031E0C0319");
+    List<Map<String, Object>> decoded = (List<Map<String, Object>>)
+        new StreamingBserDeserializer(BserDeserializer.KeyOrdering.SORTED)
+            .deserializeBserValue(new ByteArrayInputStream(bytes));
+    assertThat(
+        decoded,
+        Matchers.<Map<String, Object>>contains(
+            ImmutableMap.<String, Object>of("name", "fred", "age", (byte) 20),
+            ImmutableMap.<String, Object>of("name", "pete", "age", (byte) 30),
+            ImmutableMap.<String, Object>of("age", (byte) 25)));
+  }
+
+  @Test
+  public void readsOnlyTheCurrentMessage() throws IOException {
+    byte[] first = serialize(ImmutableList.of("first", createRule(0)));
+    byte[] second = serialize("second");
+    byte[] both = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, both, first.length, second.length);
+
+    InputStream input = new ByteArrayInputStream(both);
+    StreamingBserDeserializer deserializer =
+        new StreamingBserDeserializer(BserDeserializer.KeyOrdering.SORTED);
+    List<Object> firstValue = (List<Object>) deserializer.deserializeBserValue(input);
+    assertThat(firstValue.get(0), Matchers.<Object>equalTo("first"));
+    assertThat(input.available(), equalTo(second.length));
+    assertThat(deserializer.deserializeBserValue(input), Matchers.<Object>equalTo("second"));
+  }
+
+  @Test
+  public void repeatedStringsAreTheSameInstance() throws IOException {
+    StreamingBserDeserializer deserializer =
+        new StreamingBserDeserializer(BserDeserializer.KeyOrdering.SORTED);
+    List<Object> decoded = (List<Object>) deserializer.deserializeBserValue(
+        new ByteArrayInputStream(
+            serialize(ImmutableList.of(new String("//a:b"), new String("//a:b")))));
+    assertThat(decoded.get(0), is(sameInstance(decoded.get(1))));
+
+    // And across messages, and deserializers.
+    Object again = new StreamingBserDeserializer(BserDeserializer.KeyOrdering.SORTED)
+        .deserializeBserValue(new ByteArrayInputStream(serialize(new String("//a:b"))));
+    assertThat(again, is(sameInstance(decoded.get(0))));
+  }
+
+  @Test
+  public void truncatedMessageThrows() throws IOException {
+    byte[] bytes = serialize(createRule(0));
+    thrown.expect(BserDeserializer.BserEofException.class);
+    new StreamingBserDeserializer(BserDeserializer.KeyOrdering.SORTED)
+        .deserializeBserValue(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 10)));
+  }
+}
@@ -16,9 +16,14 @@
 
 package com.facebook.buck.cli;
 
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.android.FakeAndroidDirectoryResolver;
 import com.facebook.buck.artifact_cache.NoopArtifactCache;
@@ -31,6 +36,8 @@ import com.facebook.buck.query.QueryBuildTarget;
 import com.facebook.buck.query.QueryException;
 import com.facebook.buck.query.QueryTarget;
 import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.rules.TargetNode;
 import com.facebook.buck.rules.TestCellBuilder;
 import com.facebook.buck.testutil.TestConsole;
 import com.facebook.buck.testutil.integration.ProjectWorkspace;
@@ -52,6 +59,7 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Set;
 import java.util.concurrent.Executors;
 
 public class BuckQueryEnvironmentTest {
@@ -59,6 +67,7 @@ public class BuckQueryEnvironmentTest {
   @Rule
   public TemporaryPaths tmp = new TemporaryPaths();
 
+  private CommandRunnerParams params;
   private BuckQueryEnvironment buckQueryEnvironment;
   private Path cellRoot;
   private ListeningExecutorService executor;
@@ -79,7 +88,7 @@ public class BuckQueryEnvironmentTest {
         .build();
 
     TestConsole console = new TestConsole();
-    CommandRunnerParams params = CommandRunnerParamsForTesting.createCommandRunnerParamsForTesting(
+    params = CommandRunnerParamsForTesting.createCommandRunnerParamsForTesting(
         console,
         cell,
         new FakeAndroidDirectoryResolver(),
@@ -134,4 +143,43 @@ public class BuckQueryEnvironmentTest {
         buckQueryEnvironment.getTargetsMatchingPattern("//example:", executor),
         is(equalTo(expectedTargets)));
   }
+
+  @Test
+  public void testGraphGrowsWithTheTargetsTheQueryReaches()
+      throws QueryException, InterruptedException {
+    buckQueryEnvironment.evaluateQuery("deps(//example:four)", executor);
+    TargetGraph graph = buckQueryEnvironment.getTargetGraph();
+    assertThat(graph.getNodes(), hasSize(2));
+    TargetNode<?> six = graph.get(BuildTarget.builder(cellRoot, "//example", "six").build());
+
+    buckQueryEnvironment.evaluateQuery("deps(//example:one)", executor);
+    graph = buckQueryEnvironment.getTargetGraph();
+    assertThat(graph.getNodes(), hasSize(6));
+    // The nodes the query had already reached are kept, rather than looked up again.
+    assertSame(six, graph.get(BuildTarget.builder(cellRoot, "//example", "six").build()));
+    assertTrue(
+        graph.getOutgoingNodesFor(
+            graph.get(BuildTarget.builder(cellRoot, "//example", "three").build()))
+            .contains(six));
+  }
+
+  @Test
+  public void testFunctionResultsAreReusedByLaterQueries()
+      throws QueryException, InterruptedException {
+    Set<QueryTarget> deps = buckQueryEnvironment.evaluateQuery("deps(//example:two)", executor);
+    assertThat(
+        deps,
+        contains(
+            createQueryBuildTarget("//example", "two"),
+            createQueryBuildTarget("//example", "four"),
+            createQueryBuildTarget("//example", "six")));
+
+    // A later query with the same params is answered without building a graph.
+    BuckQueryEnvironment laterEnvironment =
+        new BuckQueryEnvironment(params, /* enableProfiling */ false);
+    assertThat(
+        laterEnvironment.evaluateQuery("kind('apple_library', deps(//example:two))", executor),
+        is(equalTo(deps)));
+    assertThat(laterEnvironment.getTargetGraph().getNodes(), is(empty()));
+  }
 }
@@ -148,7 +148,8 @@ public class CleanCommandTest extends EasyMockSupport {
         new NullFileHashCache(),
         new HashMap<ExecutionContext.ExecutorPool, ListeningExecutorService>(),
         CommandRunnerParamsForTesting.BUILD_ENVIRONMENT_DESCRIPTION,
-        new ActionGraphCache());
+        new ActionGraphCache(),
+        new QueryResultCache());
   }
 
 }
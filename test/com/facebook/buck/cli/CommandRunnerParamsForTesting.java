@@ -109,7 +109,8 @@ public class CommandRunnerParamsForTesting {
         new NullFileHashCache(),
         new HashMap<ExecutionContext.ExecutorPool, ListeningExecutorService>(),
         BUILD_ENVIRONMENT_DESCRIPTION,
-        new ActionGraphCache());
+        new ActionGraphCache(),
+        new QueryResultCache());
   }
 
   public static Builder builder() {
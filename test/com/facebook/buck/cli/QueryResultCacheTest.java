@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.query.QueryBuildTarget;
+import com.facebook.buck.query.QueryTarget;
+import com.facebook.buck.testutil.WatchEventsForTests;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+
+public class QueryResultCacheTest {
+
+  private static final ImmutableSet<QueryTarget> RESULT = ImmutableSet.<QueryTarget>of(
+      QueryBuildTarget.of(BuildTargetFactory.newInstance("//foo:bar")),
+      QueryBuildTarget.of(BuildTargetFactory.newInstance("//foo:baz")));
+
+  @Test
+  public void resultsAreKeptUntilAWatchEvent() {
+    QueryResultCache cache = new QueryResultCache();
+    assertThat(
+        cache.get("deps(//foo:bar)"),
+        is(equalTo(Optional.<ImmutableSet<QueryTarget>>absent())));
+
+    cache.put("deps(//foo:bar)", RESULT);
+    assertThat(cache.get("deps(//foo:bar)"), is(equalTo(Optional.of(RESULT))));
+    assertThat(cache.get("deps(//foo:baz)").isPresent(), is(false));
+
+    cache.invalidateBasedOn(
+        WatchEventsForTests.createPathEvent(
+            Paths.get("foo/BUCK"),
+            StandardWatchEventKinds.ENTRY_MODIFY));
+    assertThat(cache.get("deps(//foo:bar)").isPresent(), is(false));
+
+    int hits = 0;
+    int misses = 0;
+    for (Counter counter : cache.getCounters()) {
+      long count = ((IntegerCounter) counter).get();
+      if (counter.getName().equals("cache_hit")) {
+        hits += count;
+      } else {
+        misses += count;
+      }
+    }
+    assertThat(hits, is(1));
+    assertThat(misses, is(3));
+  }
+
+  @Test
+  public void resultsAreEvictedWhenTheyHaveTooManyTargets() {
+    QueryResultCache cache = new QueryResultCache(/* maxCachedTargets */ 4);
+    cache.put("deps(//foo:bar)", RESULT);
+    cache.put("deps(//foo:baz)", RESULT);
+    assertThat(cache.get("deps(//foo:bar)").isPresent(), is(false));
+    assertThat(cache.get("deps(//foo:baz)").isPresent(), is(true));
+  }
+}
@@ -133,6 +133,7 @@ public class ReplCommandIntegrationTest {
         new NullFileHashCache(),
         new HashMap<ExecutionContext.ExecutorPool, ListeningExecutorService>(),
         CommandRunnerParamsForTesting.BUILD_ENVIRONMENT_DESCRIPTION,
-        new ActionGraphCache());
+        new ActionGraphCache(),
+        new QueryResultCache());
   }
 }
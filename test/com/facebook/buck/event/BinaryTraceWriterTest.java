@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.util.ObjectMappers;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+public class BinaryTraceWriterTest {
+
+  private static final ImmutableList<ChromeTraceEvent> EVENTS = ImmutableList.of(
+      new ChromeTraceEvent(
+          "buck",
+          "build",
+          ChromeTraceEvent.Phase.BEGIN,
+          0,
+          1,
+          1000000,
+          ImmutableMap.of("command_args", "build //foo:bar")),
+      // Events aren't always written in the order of their timestamps.
+      new ChromeTraceEvent(
+          "buck",
+          "javac",
+          ChromeTraceEvent.Phase.BEGIN,
+          0,
+          12,
+          999990,
+          ImmutableMap.<String, String>of()),
+      new ChromeTraceEvent(
+          "buck",
+          "javac",
+          ChromeTraceEvent.Phase.END,
+          0,
+          12,
+          1500000,
+          ImmutableMap.of("success", "true", "rule_key", "été")),
+      new ChromeTraceEvent(
+          "buck",
+          "build",
+          ChromeTraceEvent.Phase.END,
+          0,
+          1,
+          Long.MAX_VALUE,
+          ImmutableMap.of("success", "true")));
+
+  @Test
+  public void eventsAreReadBackAsTheyWereWritten() throws IOException {
+    List<ChromeTraceEvent> events = readAll(write(EVENTS));
+    assertEquals(EVENTS.size(), events.size());
+    for (int i = 0; i < EVENTS.size(); i++) {
+      assertEvent(EVENTS.get(i), events.get(i));
+    }
+  }
+
+  @Test
+  public void binaryTraceIsSmallerThanJson() throws IOException {
+    ObjectMapper mapper = ObjectMappers.newDefaultInstance();
+    ImmutableList.Builder<ChromeTraceEvent> events = ImmutableList.builder();
+    for (int i = 0; i < 100; i++) {
+      events.addAll(EVENTS);
+    }
+    byte[] json = mapper.writeValueAsBytes(events.build());
+    assertThat(write(events.build()).length * 5, Matchers.lessThan(json.length));
+  }
+
+  @Test
+  public void partiallyWrittenTraceIsReadUpToTheLastCompleteEvent() throws IOException {
+    byte[] oneEvent = write(EVENTS.subList(0, 1));
+    byte[] bothEvents = write(EVENTS.subList(0, 2));
+    for (int length = oneEvent.length; length < bothEvents.length; length++) {
+      List<ChromeTraceEvent> events = readAll(Arrays.copyOf(bothEvents, length));
+      assertEquals(1, events.size());
+      assertEvent(EVENTS.get(0), events.get(0));
+    }
+  }
+
+  @Test
+  public void jsonTraceIsNotBinary() throws IOException {
+    InputStream json = new ByteArrayInputStream("[{\"cat\":\"buck\"}]".getBytes(Charsets.UTF_8));
+    assertFalse(BinaryTraceReader.isBinaryTrace(json));
+    assertEquals('[', json.read());
+
+    InputStream binary = new ByteArrayInputStream(write(EVENTS));
+    assertTrue(BinaryTraceReader.isBinaryTrace(binary));
+    assertEquals('B', binary.read());
+  }
+
+  @Test
+  public void convertedTraceMatchesJsonTrace() throws IOException {
+    ObjectMapper mapper = ObjectMappers.newDefaultInstance();
+    StringWriter converted = new StringWriter();
+    try (JsonGenerator generator = mapper.getFactory().createGenerator(converted)) {
+      BinaryTraceConverter.convertToJson(new ByteArrayInputStream(write(EVENTS)), generator);
+    }
+    assertEquals(mapper.writeValueAsString(EVENTS), converted.toString());
+  }
+
+  private static byte[] write(List<ChromeTraceEvent> events) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (BinaryTraceWriter writer = new BinaryTraceWriter(output)) {
+      for (ChromeTraceEvent event : events) {
+        writer.writeEvent(event);
+      }
+    }
+    return output.toByteArray();
+  }
+
+  private static List<ChromeTraceEvent> readAll(byte[] trace) throws IOException {
+    ImmutableList.Builder<ChromeTraceEvent> events = ImmutableList.builder();
+    try (BinaryTraceReader reader = new BinaryTraceReader(new ByteArrayInputStream(trace))) {
+      Optional<ChromeTraceEvent> event;
+      while ((event = reader.readEvent()).isPresent()) {
+        events.add(event.get());
+      }
+    }
+    return events.build();
+  }
+
+  private static void assertEvent(ChromeTraceEvent expected, ChromeTraceEvent actual) {
+    assertEquals(expected.getCategory(), actual.getCategory());
+    assertEquals(expected.getName(), actual.getName());
+    assertEquals(expected.getPhase(), actual.getPhase());
+    assertEquals(expected.getProcessId(), actual.getProcessId());
+    assertEquals(expected.getThreadId(), actual.getThreadId());
+    assertEquals(expected.getMicroTime(), actual.getMicroTime());
+    assertEquals(expected.getArgs(), actual.getArgs());
+  }
+}
@@ -66,8 +66,17 @@ public class BuckEventBusFactory {
     return buckEventBus;
   }
 
-  public static EventBus getEventBusFor(BuckEventBus buckEventBus) {
-    return buckEventBus.getEventBus();
+  /**
+   * @return an {@link EventBus} which delivers the events posted to it to the listeners of
+   *     {@code buckEventBus} as they are, without configuring them first.
+   */
+  public static EventBus getEventBusFor(final BuckEventBus buckEventBus) {
+    return new EventBus() {
+      @Override
+      public void post(Object event) {
+        buckEventBus.postWithoutConfiguring((BuckEvent) event);
+      }
+    };
   }
 
   /**
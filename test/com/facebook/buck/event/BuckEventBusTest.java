@@ -16,20 +16,27 @@
 
 package com.facebook.buck.event;
 
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.facebook.buck.timing.DefaultClock;
 import com.facebook.buck.timing.SettableFakeClock;
 import com.facebook.buck.util.concurrent.MoreExecutors;
+import com.google.common.collect.Iterables;
 import com.google.common.eventbus.Subscribe;
 
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class BuckEventBusTest {
@@ -124,6 +131,103 @@ public class BuckEventBusTest {
     assertEquals(event.getNanoTime(), 64738);
   }
 
+  @Test
+  public void slowListenerDoesNotHoldUpOthers() throws Exception {
+    BuckEventBus eb = new BuckEventBus(
+        new DefaultClock(),
+        Executors.newCachedThreadPool(),
+        BuckEventBusFactory.BUILD_ID_FOR_TEST,
+        timeoutMillis);
+    CountDownLatch release = new CountDownLatch(1);
+    BlockingSubscriber slow = new BlockingSubscriber(release);
+    BlockingSubscriber fast = new BlockingSubscriber(new CountDownLatch(0));
+    eb.register(slow);
+    eb.register(fast);
+
+    TestEvent first = new TestEvent();
+    TestEvent second = new TestEvent();
+    eb.post(first);
+    eb.post(second);
+    assertTrue(fast.awaitEvents(2));
+    assertThat(fast.events, contains(first, second));
+
+    release.countDown();
+    eb.close();
+    assertThat(slow.events, contains(first, second));
+  }
+
+  @Test
+  public void fullQueueDropsEventsForDroppingListeners() throws Exception {
+    BuckEventBus eb = new BuckEventBus(
+        new DefaultClock(),
+        Executors.newCachedThreadPool(),
+        BuckEventBusFactory.BUILD_ID_FOR_TEST,
+        timeoutMillis,
+        /* listenerQueueCapacity */ 1);
+    CountDownLatch release = new CountDownLatch(1);
+    BlockingSubscriber slow = new BlockingSubscriber(release);
+    eb.register(slow, BuckEventBus.OverflowPolicy.DROP);
+
+    TestEvent first = new TestEvent();
+    TestEvent second = new TestEvent();
+    eb.post(first);
+    // Once the first event is being handled, there is room for one more.
+    assertTrue(slow.started.await(timeoutMillis, TimeUnit.MILLISECONDS));
+    eb.post(second);
+    eb.post(new TestEvent());
+
+    BuckEventBus.ListenerQueueStats stats =
+        Iterables.getOnlyElement(eb.flushListenerQueueStats());
+    assertEquals(1, stats.getMaxDepth());
+    assertEquals(1, stats.getDroppedEvents());
+    assertEquals(0, stats.getBlockedPosts());
+
+    release.countDown();
+    eb.close();
+    assertThat(slow.events, contains(first, second));
+  }
+
+  @Test
+  public void eventsPostedByListenersAreDeliveredAfterTheEventTheyHandle() throws IOException {
+    final BuckEventBus eb = BuckEventBusFactory.newInstance();
+    final TestEvent response = new TestEvent();
+    final List<BuckEvent> seen = new CopyOnWriteArrayList<>();
+    eb.register(
+        new Object() {
+          @Subscribe
+          public void respond(TestEvent event) {
+            if (event != response) {
+              eb.post(response);
+            }
+          }
+        });
+    eb.register(
+        new Object() {
+          @Subscribe
+          public void record(TestEvent event) {
+            seen.add(event);
+          }
+        });
+
+    TestEvent event = new TestEvent();
+    eb.post(event);
+    eb.close();
+    assertThat(seen, contains((BuckEvent) event, response));
+  }
+
+  @Test
+  public void unregisteredListenersGetNoMoreEvents() throws IOException {
+    BuckEventBus eb = BuckEventBusFactory.newInstance();
+    BlockingSubscriber subscriber = new BlockingSubscriber(new CountDownLatch(0));
+    eb.register(subscriber);
+    TestEvent first = new TestEvent();
+    eb.post(first);
+    eb.unregister(subscriber);
+    eb.post(new TestEvent());
+    eb.close();
+    assertThat(subscriber.events, contains(first));
+  }
+
   private static class SleepEvent extends AbstractBuckEvent {
     public final long milliseconds;
 
@@ -150,6 +254,34 @@ public class BuckEventBusTest {
     }
   }
 
+  private static class BlockingSubscriber {
+    private final CountDownLatch release;
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final List<TestEvent> events = new CopyOnWriteArrayList<>();
+
+    private BlockingSubscriber(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Subscribe
+    public void handle(TestEvent event) throws InterruptedException {
+      started.countDown();
+      release.await();
+      synchronized (this) {
+        events.add(event);
+        notifyAll();
+      }
+    }
+
+    private synchronized boolean awaitEvents(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      while (events.size() < count && System.currentTimeMillis() < deadline) {
+        wait(timeoutMillis);
+      }
+      return events.size() >= count;
+    }
+  }
+
   private static class TestEvent extends AbstractBuckEvent {
 
     public TestEvent() {
@@ -32,6 +32,7 @@ import com.facebook.buck.artifact_cache.HttpArtifactCacheEvent;
 import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
 import com.facebook.buck.cli.CommandEvent;
 import com.facebook.buck.event.ArtifactCompressionEvent;
+import com.facebook.buck.event.BinaryTraceReader;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.BuckEventBusFactory;
 import com.facebook.buck.event.ChromeTraceEvent;
@@ -150,6 +151,47 @@ public class ChromeTraceBuildListenerTest {
         ImmutableSortedSet.copyOf(files));
   }
 
+  @Test
+  public void testDeleteFilesCountsTracesOfBothFormats() throws IOException {
+    ProjectFilesystem projectFilesystem = new ProjectFilesystem(tmpDir.getRoot().toPath());
+    BuildId buildId = new BuildId("BUILD_ID");
+
+    projectFilesystem.mkdirs(BuckConstant.getBuckTraceDir());
+    for (int i = 0; i < 10; ++i) {
+      File oldResult = new File(tmpDir.getRoot(),
+          String.format(
+              "%s/build.100%d.%s",
+              BuckConstant.getBuckTraceDir(),
+              i,
+              i % 2 == 0 ? "trace" : "btrace"));
+      oldResult.createNewFile();
+      oldResult.setLastModified(TimeUnit.SECONDS.toMillis(i));
+    }
+
+    ChromeTraceBuildListener listener = new ChromeTraceBuildListener(
+        projectFilesystem,
+        buildId,
+        new FakeClock(1409702151000000000L),
+        ObjectMappers.newDefaultInstance(),
+        Locale.US,
+        TimeZone.getTimeZone("America/Los_Angeles"),
+        /* tracesToKeep */ 3,
+        /* compressTraces */ false,
+        /* binaryTraces */ true);
+
+    projectFilesystem.deleteFileAtPath(listener.getTracePath());
+
+    listener.deleteOldTraces();
+
+    ImmutableSortedSet.Builder<String> files = ImmutableSortedSet.naturalOrder();
+    for (File file : projectFilesystem.listFiles(BuckConstant.getBuckTraceDir())) {
+      files.add(file.getName());
+    }
+    assertEquals(
+        ImmutableSortedSet.of("build.1009.btrace", "build.1008.trace", "build.1007.btrace"),
+        files.build());
+  }
+
   @Test
   public void testBuildJson() throws IOException {
     ProjectFilesystem projectFilesystem = new ProjectFilesystem(tmpDir.getRoot().toPath());
@@ -571,4 +613,33 @@ public class ChromeTraceBuildListenerTest {
     List<?> elements = new Gson().fromJson(reader, List.class);
     assertThat(elements, notNullValue());
   }
+
+  @Test
+  public void canWriteBinaryTraces() throws IOException {
+    ProjectFilesystem projectFilesystem = new ProjectFilesystem(tmpDir.getRoot().toPath());
+    BuildId buildId = new BuildId("BUILD_ID");
+
+    ChromeTraceBuildListener listener = new ChromeTraceBuildListener(
+        projectFilesystem,
+        buildId,
+        new FakeClock(1409702151000000000L),
+        ObjectMappers.newDefaultInstance(),
+        Locale.US,
+        TimeZone.getTimeZone("America/Los_Angeles"),
+        /* tracesToKeep */ 1,
+        /* compressTraces */ true,
+        /* binaryTraces */ true);
+    listener.outputTrace(buildId);
+
+    Path tracePath = Paths.get("buck-out/log/traces/build.2014-09-02.16-55-51.BUILD_ID.btrace");
+
+    assertTrue(projectFilesystem.exists(tracePath));
+
+    try (BinaryTraceReader reader =
+             new BinaryTraceReader(projectFilesystem.newFileInputStream(tracePath))) {
+      Optional<ChromeTraceEvent> event = reader.readEvent();
+      assertTrue(event.isPresent());
+      assertEquals("process_name", event.get().getName());
+    }
+  }
 }
@@ -62,6 +62,7 @@ import java.io.InputStream;
 import java.io.StringReader;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Map;
 
 public class ServedCacheIntegrationTest {
   @Rule
@@ -160,6 +161,45 @@ public class ServedCacheIntegrationTest {
         Matchers.equalTo(A_FILE_DATA));
   }
 
+  @Test
+  public void testMultiFetchFromServedDircache() throws Exception {
+    webServer = new WebServer(
+        /* port */ 0,
+        projectFilesystem,
+        "/static/",
+        MAPPER);
+    webServer.updateAndStartIfNeeded(Optional.of(dirCache));
+
+    ArtifactCache serverBackedCache = ArtifactCaches.newInstance(
+        createMockLocalHttpCacheConfig(webServer.getPort().get()),
+        buckEventBus,
+        projectFilesystem,
+        Optional.<String>absent(),
+        DIRECT_EXECUTOR_SERVICE);
+
+    RuleKey missingRuleKey = new RuleKey("1234");
+    Path fetchedContents = tmpDir.newFile();
+    ImmutableMap<RuleKey, CacheResult> results = serverBackedCache.multiFetch(
+        ImmutableMap.of(
+            A_FILE_RULE_KEY, LazyPath.ofInstance(fetchedContents),
+            missingRuleKey, LazyPath.ofInstance(tmpDir.newFile())));
+    assertThat(results.get(A_FILE_RULE_KEY).getType(), Matchers.equalTo(CacheResultType.HIT));
+    assertThat(results.get(A_FILE_RULE_KEY).getMetadata(), Matchers.equalTo(A_FILE_METADATA));
+    assertThat(results.get(missingRuleKey).getType(), Matchers.equalTo(CacheResultType.MISS));
+    assertThat(
+        projectFilesystem.readFileIfItExists(fetchedContents).get(),
+        Matchers.equalTo(A_FILE_DATA));
+
+    ImmutableMap<RuleKey, CacheResult> containsResults = serverBackedCache.multiContains(
+        ImmutableSet.of(A_FILE_RULE_KEY, missingRuleKey));
+    assertThat(
+        containsResults.get(A_FILE_RULE_KEY).getType(),
+        Matchers.equalTo(CacheResultType.HIT));
+    assertThat(
+        containsResults.get(missingRuleKey).getType(),
+        Matchers.equalTo(CacheResultType.MISS));
+  }
+
   private static class ThrowAfterXBytesStream extends FilterInputStream {
     private final long bytesToThrowAfter;
     private long bytesRead = 0L;
@@ -343,6 +383,29 @@ public class ServedCacheIntegrationTest {
         return CacheResult.miss();
       }
 
+      @Override
+      public ImmutableMap<RuleKey, CacheResult> multiFetch(
+          ImmutableMap<RuleKey, LazyPath> outputs) {
+        ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+        for (Map.Entry<RuleKey, LazyPath> entry : outputs.entrySet()) {
+          results.put(entry.getKey(), fetch(entry.getKey(), entry.getValue()));
+        }
+        return results.build();
+      }
+
+      @Override
+      public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys) {
+        ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+        for (RuleKey ruleKey : ruleKeys) {
+          results.put(
+              ruleKey,
+              ruleKey.equals(bFileRuleKey) ?
+                  CacheResult.hit("secondCache") :
+                  CacheResult.miss());
+        }
+        return results.build();
+      }
+
       @Override
       public ListenableFuture<Void> store(
           ImmutableSet<RuleKey> ruleKeys,
@@ -21,13 +21,18 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import com.facebook.buck.event.BinaryTraceWriter;
+import com.facebook.buck.event.ChromeTraceEvent;
+import com.facebook.buck.util.ObjectMappers;
 import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
 
 import org.easymock.EasyMockSupport;
 import org.eclipse.jetty.server.Request;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
@@ -78,7 +83,8 @@ public class TraceDataHandlerTest extends EasyMockSupport {
         new ByteArrayInputStream("{\"foo\":\"bar\"}".getBytes(Charsets.UTF_8))
     );
     expect(tracesHelper.getInputsForTraces("abcdef")).andReturn(traces);
-    TraceDataHandler traceDataHandler = new TraceDataHandler(tracesHelper);
+    TraceDataHandler traceDataHandler =
+        new TraceDataHandler(tracesHelper, ObjectMappers.newDefaultInstance());
 
     replayAll();
     traceDataHandler.handle("/trace/abcdef",
@@ -90,6 +96,55 @@ public class TraceDataHandlerTest extends EasyMockSupport {
     assertEquals("[{\"foo\":\"bar\"}]", stringWriter.toString());
   }
 
+  @Test
+  public void testHandleGetConvertsBinaryTrace() throws IOException, ServletException {
+    Request baseRequest = createMock(Request.class);
+    expect(baseRequest.getMethod()).andReturn("GET");
+    expect(baseRequest.getPathInfo()).andReturn("/abcdef");
+    expect(baseRequest.getParameter("callback")).andReturn(null);
+    baseRequest.setHandled(true);
+    HttpServletRequest request = createMock(HttpServletRequest.class);
+
+    HttpServletResponse response = createMock(HttpServletResponse.class);
+    response.setStatus(200);
+    response.setContentType("application/javascript; charset=utf-8");
+    StringWriter stringWriter = new StringWriter();
+    PrintWriter printWriter = new PrintWriter(stringWriter);
+    expect(response.getWriter()).andReturn(printWriter);
+    response.flushBuffer();
+
+    ByteArrayOutputStream binaryTrace = new ByteArrayOutputStream();
+    try (BinaryTraceWriter writer = new BinaryTraceWriter(binaryTrace)) {
+      writer.writeEvent(
+          new ChromeTraceEvent(
+              "buck",
+              "build",
+              ChromeTraceEvent.Phase.BEGIN,
+              1,
+              2,
+              3,
+              ImmutableMap.of("foo", "bar")));
+    }
+    TracesHelper tracesHelper = createMock(TracesHelper.class);
+    Iterable<InputStream> traces = Arrays.<InputStream>asList(
+        new ByteArrayInputStream(binaryTrace.toByteArray()));
+    expect(tracesHelper.getInputsForTraces("abcdef")).andReturn(traces);
+    TraceDataHandler traceDataHandler =
+        new TraceDataHandler(tracesHelper, ObjectMappers.newDefaultInstance());
+
+    replayAll();
+    traceDataHandler.handle("/trace/abcdef",
+        baseRequest,
+        request,
+        response);
+    verifyAll();
+
+    assertEquals(
+        "[[{\"cat\":\"buck\",\"name\":\"build\",\"ph\":\"B\",\"pid\":1,\"tid\":2," +
+            "\"ts\":3,\"args\":{\"foo\":\"bar\"}}]]",
+        stringWriter.toString());
+  }
+
   @Test
   public void testHandleGetWithMultipleTrace() throws IOException, ServletException {
     Request baseRequest = createMock(Request.class);
@@ -113,7 +168,8 @@ public class TraceDataHandlerTest extends EasyMockSupport {
         new ByteArrayInputStream("{\"baz\":\"blech\"}".getBytes(Charsets.UTF_8)));
     expect(tracesHelper.getInputsForTraces("abcdef")).andReturn(traces);
 
-    TraceDataHandler traceDataHandler = new TraceDataHandler(tracesHelper);
+    TraceDataHandler traceDataHandler =
+        new TraceDataHandler(tracesHelper, ObjectMappers.newDefaultInstance());
 
     replayAll();
     traceDataHandler.handle("/trace/abcdef",
@@ -149,7 +205,8 @@ public class TraceDataHandlerTest extends EasyMockSupport {
         new ByteArrayInputStream("{\"foo\":\"bar\"}".getBytes(Charsets.UTF_8))
     );
     expect(tracesHelper.getInputsForTraces("abcdef")).andReturn(traces);
-    TraceDataHandler traceDataHandler = new TraceDataHandler(tracesHelper);
+    TraceDataHandler traceDataHandler =
+        new TraceDataHandler(tracesHelper, ObjectMappers.newDefaultInstance());
 
     replayAll();
     traceDataHandler.handle("/trace/abcdef?callback=my.callback",
@@ -184,7 +241,8 @@ public class TraceDataHandlerTest extends EasyMockSupport {
         new ByteArrayInputStream("{\"baz\":\"blech\"}".getBytes(Charsets.UTF_8)));
     expect(tracesHelper.getInputsForTraces("abcdef")).andReturn(traces);
 
-    TraceDataHandler traceDataHandler = new TraceDataHandler(tracesHelper);
+    TraceDataHandler traceDataHandler =
+        new TraceDataHandler(tracesHelper, ObjectMappers.newDefaultInstance());
 
     replayAll();
     traceDataHandler.handle("/trace/abcdef?callback=my.callback",
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.jvm.java;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ClasspathArchiveCacheTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  @Test
+  public void archivesAreSharedBetweenCompilations() throws IOException {
+    Path jar = writeJar("dep.jar", "com/example/A.class", "com/example/sub/B.class", "C.class");
+    ClasspathArchiveCache cache = new ClasspathArchiveCache(10);
+
+    ClasspathArchiveCache.Archive first = cache.acquire(jar);
+    ClasspathArchiveCache.Archive second = cache.acquire(jar);
+    assertSame(first, second);
+    assertEquals(1, cache.getOpenArchiveCount());
+
+    assertEquals(
+        ImmutableList.of("com.example.A"),
+        getBinaryNames(first.listClassFiles("com.example", /* recurse */ false)));
+    assertEquals(
+        ImmutableList.of("com.example.A", "com.example.sub.B"),
+        getBinaryNames(first.listClassFiles("com.example", /* recurse */ true)));
+    assertEquals(
+        ImmutableList.of("C"),
+        getBinaryNames(first.listClassFiles("", /* recurse */ false)));
+
+    cache.release(first);
+    cache.release(second);
+    assertEquals(1, cache.getOpenArchiveCount());
+  }
+
+  @Test
+  public void classFilesCanBeRead() throws IOException {
+    Path jar = writeJar("dep.jar", "com/example/A.class");
+    ClasspathArchiveCache cache = new ClasspathArchiveCache(10);
+
+    ClasspathArchiveCache.Archive archive = cache.acquire(jar);
+    ClasspathArchiveCache.ArchiveFileObject classFile = archive.getClassFile("com.example.A");
+    assertEquals("jar:" + jar.toUri() + "!/com/example/A.class", classFile.toUri().toString());
+    assertEquals("com.example.A", classFile.getBinaryName());
+    try (InputStream in = classFile.openInputStream()) {
+      assertArrayEquals(
+          "com/example/A.class".getBytes(Charsets.UTF_8),
+          ByteStreams.toByteArray(in));
+    }
+    assertNull(archive.getClassFile("com.example.Missing"));
+    cache.release(archive);
+  }
+
+  @Test
+  public void changedJarsAreReopened() throws IOException {
+    Path jar = writeJar("dep.jar", "com/example/A.class");
+    ClasspathArchiveCache cache = new ClasspathArchiveCache(10);
+
+    ClasspathArchiveCache.Archive first = cache.acquire(jar);
+    writeJar("dep.jar", "com/example/A.class", "com/example/B.class");
+    Files.setLastModifiedTime(jar, FileTime.fromMillis(0));
+    ClasspathArchiveCache.Archive second = cache.acquire(jar);
+    assertNotSame(first, second);
+    assertEquals(1, cache.getOpenArchiveCount());
+    assertEquals(2, second.listClassFiles("com.example", /* recurse */ false).size());
+
+    cache.release(first);
+    cache.release(second);
+    assertSame(second, cache.acquire(jar));
+  }
+
+  @Test
+  public void idleArchivesAreBounded() throws IOException {
+    ClasspathArchiveCache cache = new ClasspathArchiveCache(1);
+
+    ClasspathArchiveCache.Archive first = cache.acquire(writeJar("first.jar", "A.class"));
+    ClasspathArchiveCache.Archive second = cache.acquire(writeJar("second.jar", "B.class"));
+    assertEquals(2, cache.getOpenArchiveCount());
+
+    cache.release(first);
+    cache.release(second);
+    assertEquals(1, cache.getOpenArchiveCount());
+  }
+
+  @Test
+  public void idleArchivesAreClosedAtTheEndOfABuild() throws IOException {
+    ClasspathArchiveCache cache = new ClasspathArchiveCache(10);
+
+    ClasspathArchiveCache.Archive idle = cache.acquire(writeJar("idle.jar", "A.class"));
+    ClasspathArchiveCache.Archive inUse = cache.acquire(writeJar("in-use.jar", "B.class"));
+    cache.release(idle);
+    cache.closeIdleArchives();
+    assertEquals(1, cache.getOpenArchiveCount());
+    assertSame(inUse, cache.acquire(tmp.getRoot().resolve("in-use.jar")));
+
+    ClasspathArchiveCache.Archive reopened = cache.acquire(tmp.getRoot().resolve("idle.jar"));
+    assertNotSame(idle, reopened);
+    cache.release(reopened);
+    cache.release(inUse);
+    cache.release(inUse);
+  }
+
+  @Test
+  public void missingJarsAreIgnored() throws IOException {
+    ClasspathArchiveCache cache = new ClasspathArchiveCache(1);
+    assertNull(cache.acquire(tmp.getRoot().resolve("missing.jar")));
+    assertEquals(0, cache.getOpenArchiveCount());
+  }
+
+  private Path writeJar(String name, String... entries) throws IOException {
+    Path jar = tmp.getRoot().resolve(name);
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar))) {
+      for (String entry : entries) {
+        out.putNextEntry(new ZipEntry(entry));
+        out.write(entry.getBytes(Charsets.UTF_8));
+        out.closeEntry();
+      }
+    }
+    return jar;
+  }
+
+  private static ImmutableList<String> getBinaryNames(
+      Iterable<ClasspathArchiveCache.ArchiveFileObject> classFiles) {
+    ImmutableList.Builder<String> names = ImmutableList.builder();
+    for (ClasspathArchiveCache.ArchiveFileObject classFile : classFiles) {
+      names.add(classFile.getBinaryName());
+    }
+    return names.build();
+  }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.jvm.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+public class JavacServiceTest {
+
+  private static final long MB = 1024 * 1024;
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private JavaCompiler compiler;
+  private Path jar;
+
+  @Before
+  public void setUp() throws IOException {
+    compiler = ToolProvider.getSystemJavaCompiler();
+    jar = tmp.getRoot().resolve("dep.jar");
+    Files.write(jar, "not really a jar".getBytes(Charsets.UTF_8));
+  }
+
+  @Test
+  public void fileManagersAreReusedByLaterCompilations() throws IOException {
+    JavacService service = new JavacService(100 * MB, 2);
+
+    StandardJavaFileManager first = leaseAndRelease(service, optionsWithClasspath(jar));
+    assertEquals(1, service.getIdleFileManagerCount());
+
+    StandardJavaFileManager second = leaseAndRelease(service, optionsWithClasspath(jar));
+    assertSame(first, second);
+  }
+
+  @Test
+  public void fileManagersAreNotReusedOnceAClasspathJarChanges() throws IOException {
+    JavacService service = new JavacService(100 * MB, 2);
+
+    StandardJavaFileManager first = leaseAndRelease(service, optionsWithClasspath(jar));
+    Files.write(jar, "a different jar".getBytes(Charsets.UTF_8));
+    Files.setLastModifiedTime(jar, FileTime.fromMillis(0));
+
+    StandardJavaFileManager second = leaseAndRelease(service, optionsWithClasspath(jar));
+    assertNotSame(first, second);
+    assertEquals(1, service.getIdleFileManagerCount());
+  }
+
+  @Test
+  public void fileManagersAreOnlySharedBetweenCompilationsWithTheSameBootclasspath()
+      throws IOException {
+    JavacService service = new JavacService(100 * MB, 2);
+
+    StandardJavaFileManager first = leaseAndRelease(
+        service,
+        ImmutableList.of("-bootclasspath", "android.jar", "-classpath", jar.toString()));
+    StandardJavaFileManager second = leaseAndRelease(service, optionsWithClasspath(jar));
+    assertNotSame(first, second);
+    assertEquals(2, service.getIdleFileManagerCount());
+  }
+
+  @Test
+  public void discardedFileManagersAreNotReused() throws IOException {
+    JavacService service = new JavacService(100 * MB, 2);
+
+    try (JavacService.FileManagerLease lease =
+             service.leaseFileManager(compiler, optionsWithClasspath(jar))) {
+      lease.discard();
+    }
+    assertEquals(0, service.getIdleFileManagerCount());
+  }
+
+  @Test
+  public void idleFileManagersAreNotReusedByLaterBuilds() throws IOException {
+    JavacService service = new JavacService(100 * MB, 2);
+
+    StandardJavaFileManager first = leaseAndRelease(service, optionsWithClasspath(jar));
+    service.closeIdleClasspathJars();
+    assertEquals(0, service.getIdleFileManagerCount());
+
+    StandardJavaFileManager second = leaseAndRelease(service, optionsWithClasspath(jar));
+    assertNotSame(first, second);
+  }
+
+  @Test
+  public void idleFileManagersAreBounded() throws IOException {
+    JavacService service = new JavacService(100 * MB, 1);
+
+    try (JavacService.FileManagerLease first =
+             service.leaseFileManager(compiler, optionsWithClasspath(jar));
+         JavacService.FileManagerLease second =
+             service.leaseFileManager(compiler, optionsWithClasspath(jar))) {
+      assertNotSame(first.getFileManager(), second.getFileManager());
+    }
+    assertEquals(1, service.getIdleFileManagerCount());
+  }
+
+  @Test
+  public void memoryIsReturnedWhenACompilationFinishes() throws InterruptedException {
+    JavacService service = new JavacService(100 * MB, 1);
+
+    try (JavacService.MemoryPermit permit = service.acquireMemory(30 * MB)) {
+      assertEquals(70, service.getAvailableMemoryPermits());
+    }
+    assertEquals(100, service.getAvailableMemoryPermits());
+  }
+
+  @Test
+  public void compilationsLargerThanTheBudgetTakeAllOfIt() throws InterruptedException {
+    JavacService service = new JavacService(100 * MB, 1);
+
+    try (JavacService.MemoryPermit permit = service.acquireMemory(1000 * MB)) {
+      assertEquals(0, service.getAvailableMemoryPermits());
+    }
+    assertEquals(100, service.getAvailableMemoryPermits());
+  }
+
+  private StandardJavaFileManager leaseAndRelease(
+      JavacService service,
+      ImmutableList<String> options) {
+    try (JavacService.FileManagerLease lease = service.leaseFileManager(compiler, options)) {
+      return lease.getFileManager();
+    }
+  }
+
+  private static ImmutableList<String> optionsWithClasspath(Path jar) {
+    return ImmutableList.of("-source", "7", "-classpath", jar.toString(), "-d", "out");
+  }
+}
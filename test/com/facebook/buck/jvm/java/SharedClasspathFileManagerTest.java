@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.jvm.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+public class SharedClasspathFileManagerTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private JavaCompiler compiler;
+  private Path classesDir;
+  private Path jar;
+
+  @Before
+  public void buildDependencies() throws IOException {
+    compiler = ToolProvider.getSystemJavaCompiler();
+
+    // One dependency in a jar, and one in a directory of classes.
+    classesDir = tmp.newFolder("classes");
+    Path jarClassesDir = tmp.newFolder("jar-classes");
+    compile(
+        ImmutableList.of("-d", jarClassesDir.toString()),
+        writeSource("dep/FromJar.java", "package dep; public class FromJar {}"));
+    compile(
+        ImmutableList.of("-d", classesDir.toString()),
+        writeSource("dep/FromDirectory.java", "package dep; public class FromDirectory {}"));
+
+    jar = tmp.getRoot().resolve("dep.jar");
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar))) {
+      out.putNextEntry(new ZipEntry("dep/FromJar.class"));
+      Files.copy(jarClassesDir.resolve("dep/FromJar.class"), out);
+      out.closeEntry();
+    }
+  }
+
+  @Test
+  public void compilesAgainstJarsFromTheCacheAndDirectoriesFromDisk() throws IOException {
+    ClasspathArchiveCache cache = new ClasspathArchiveCache(10);
+    Path source = writeSource(
+        "app/App.java",
+        "package app; public class App { dep.FromJar a; dep.FromDirectory b; }");
+    String classpath = jar + File.pathSeparator + classesDir;
+
+    for (int i = 0; i < 2; i++) {
+      Path output = tmp.newFolder("out" + i);
+      try (StandardJavaFileManager fileManager =
+               compiler.getStandardFileManager(null, null, null);
+           SharedClasspathFileManager sharedFileManager =
+               new SharedClasspathFileManager(fileManager, cache)) {
+        assertTrue(
+            compiler.getTask(
+                null,
+                sharedFileManager,
+                null,
+                ImmutableList.of(
+                    "-classpath", classpath,
+                    "-sourcepath", "",
+                    "-d", output.toString()),
+                null,
+                sharedFileManager.getJavaFileObjects(source.toFile())).call());
+      }
+      assertTrue(Files.exists(output.resolve("app/App.class")));
+      assertEquals(1, cache.getOpenArchiveCount());
+    }
+  }
+
+  private Path writeSource(String name, String contents) throws IOException {
+    Path source = tmp.getRoot().resolve("src").resolve(name);
+    Files.createDirectories(source.getParent());
+    Files.write(source, contents.getBytes(Charsets.UTF_8));
+    return source;
+  }
+
+  private void compile(ImmutableList<String> options, Path source) throws IOException {
+    try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null)) {
+      assertTrue(
+          compiler.getTask(
+              null,
+              fileManager,
+              null,
+              options,
+              null,
+              fileManager.getJavaFileObjects(source.toFile())).call());
+    }
+  }
+}
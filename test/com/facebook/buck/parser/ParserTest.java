@@ -25,6 +25,8 @@ import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assume.assumeTrue;
 
@@ -1419,6 +1421,62 @@ public class ParserTest {
         buildTargets);
   }
 
+  @Test
+  public void incrementalTargetGraphPicksUpChangedBuildFiles() throws Exception {
+    tempDir.newFolder("foo");
+    tempDir.newFolder("bar");
+
+    Files.write(
+        tempDir.newFile("foo/BUCK"),
+        "java_library(name = 'foo', visibility=['PUBLIC'])\n".getBytes(UTF_8));
+    Path testBarBuckFile = tempDir.newFile("bar/BUCK");
+    Files.write(
+        testBarBuckFile,
+        ("java_library(name = 'bar',\n" +
+            "  deps = ['//foo:foo'])\n" +
+            "java_library(name = 'other',\n" +
+            "  deps = ['//foo:foo'])\n").getBytes(UTF_8));
+
+    Cell incrementalCell = new TestCellBuilder()
+        .setFilesystem(filesystem)
+        .setBuckConfig(
+            FakeBuckConfig.builder()
+                .setFilesystem(filesystem)
+                .setSections("[project]", "incremental_target_graph = true")
+                .build())
+        .build();
+    DefaultTypeCoercerFactory typeCoercerFactory = new DefaultTypeCoercerFactory(
+        ObjectMappers.newDefaultInstance());
+    parser = new Parser(
+        new ParserConfig(incrementalCell.getBuckConfig()),
+        typeCoercerFactory,
+        new ConstructorArgMarshaller(typeCoercerFactory));
+
+    BuildTarget fooTarget = BuildTarget.builder(cellRoot, "//foo", "foo").build();
+    BuildTarget barTarget = BuildTarget.builder(cellRoot, "//bar", "bar").build();
+    TargetGraph original = parser.buildTargetGraph(
+        eventBus,
+        incrementalCell,
+        false,
+        executorService,
+        ImmutableList.of(barTarget));
+
+    Files.write(testBarBuckFile, "java_library(name = 'bar')\n".getBytes(UTF_8));
+    parser.onFileSystemChange(
+        createPathEvent(Paths.get("bar").resolve("BUCK"), StandardWatchEventKinds.ENTRY_MODIFY));
+
+    TargetGraph updated = parser.buildTargetGraph(
+        eventBus,
+        incrementalCell,
+        false,
+        executorService,
+        ImmutableList.of(barTarget, fooTarget));
+
+    assertEquals(ImmutableSet.of(), updated.getOutgoingNodesFor(updated.get(barTarget)));
+    assertNotSame(original.get(barTarget), updated.get(barTarget));
+    assertSame(original.get(fooTarget), updated.get(fooTarget));
+  }
+
   @Test
   public void targetWithSourceFileChangesHash() throws Exception {
     tempDir.newFolder("foo");
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.cli.FakeBuckConfig;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.TestCellBuilder;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.facebook.buck.util.cache.NullFileHashCache;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Map;
+
+public class PersistentRawNodeStoreTest {
+
+  // Numbers are boxed as the smallest type that holds them, as when decoded from buck.py's output.
+  private static final ImmutableList<Map<String, Object>> RAW_NODES =
+      ImmutableList.<Map<String, Object>>of(
+          ImmutableMap.<String, Object>of(
+              "name", "lib",
+              "buck.type", "java_library",
+              "srcs", ImmutableList.of("A.java", "B.java"),
+              "exported", true),
+          ImmutableMap.<String, Object>of(
+              "name", "other",
+              "buck.type", "genrule",
+              "count", (byte) 3));
+
+  private static final ImmutableMap<String, ImmutableMap<String, Optional<String>>> CONFIGS =
+      ImmutableMap.of(
+          "section",
+          ImmutableMap.of("present", Optional.of("value"), "missing", Optional.<String>absent()));
+
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private Cell cell;
+  private Path storePath;
+  private Path buildFile;
+  private Path include;
+  private ImmutableSet<Path> globbedDirectories;
+
+  @Before
+  public void setUp() throws Exception {
+    filesystem = new ProjectFilesystem(tmp.getRoot());
+    cell = newCell("value");
+    storePath = tmp.getRoot().resolve("buck-out/parse_cache");
+    buildFile = writeOldFile("pkg/BUCK", "java_library(name = 'lib')");
+    include = writeOldFile("DEFS", "def foo(): pass");
+    writeOldFile("pkg/A.java", "class A {}");
+    writeOldFile("pkg/sub/B.java", "class B {}");
+    setOld(tmp.getRoot().resolve("pkg/sub"));
+    setOld(tmp.getRoot().resolve("pkg"));
+    globbedDirectories =
+        ImmutableSet.of(tmp.getRoot().resolve("pkg"), tmp.getRoot().resolve("pkg/sub"));
+  }
+
+  @Test
+  public void rawNodesSurviveReopeningTheStore() {
+    PersistentRawNodeStore store = newStore();
+    store.put(
+        cell,
+        buildFile,
+        RAW_NODES,
+        ImmutableSet.of(buildFile, include),
+        globbedDirectories,
+        CONFIGS);
+    assertEquals(Optional.of(RAW_NODES), store.get(cell, buildFile));
+    store.close();
+
+    assertEquals(Optional.of(RAW_NODES), newStore().get(cell, buildFile));
+  }
+
+  @Test
+  public void changingAnIncludedFileInvalidates() throws IOException {
+    recordAndReopen();
+    Files.write(include, "def foo(): return 1".getBytes());
+    assertEquals(Optional.absent(), newStore().get(cell, buildFile));
+  }
+
+  @Test
+  public void addingAFileToAGlobbedDirectoryInvalidates() throws IOException {
+    recordAndReopen();
+    Files.write(tmp.getRoot().resolve("pkg/sub/C.java"), "class C {}".getBytes());
+    assertEquals(Optional.absent(), newStore().get(cell, buildFile));
+  }
+
+  @Test
+  public void directoriesWhichGlobsDidNotLookAtAreNotWatched() throws IOException {
+    writeOldFile("pkg/res/strings.xml", "");
+    setOld(tmp.getRoot().resolve("pkg/res"));
+    setOld(tmp.getRoot().resolve("pkg"));
+    recordAndReopen();
+    Files.write(tmp.getRoot().resolve("pkg/res/colors.xml"), "".getBytes());
+    assertEquals(Optional.of(RAW_NODES), newStore().get(cell, buildFile));
+  }
+
+  @Test
+  public void filesInNestedPackagesAreNotWatched() throws IOException {
+    writeOldFile("pkg/nested/BUCK", "");
+    setOld(tmp.getRoot().resolve("pkg/nested"));
+    setOld(tmp.getRoot().resolve("pkg"));
+    globbedDirectories = ImmutableSet.<Path>builder()
+        .addAll(globbedDirectories)
+        .add(tmp.getRoot().resolve("pkg/nested"))
+        .build();
+    recordAndReopen();
+    Files.write(tmp.getRoot().resolve("pkg/nested/D.java"), "class D {}".getBytes());
+    assertEquals(Optional.of(RAW_NODES), newStore().get(cell, buildFile));
+  }
+
+  @Test
+  public void changingAConfigValueReadByTheBuildFileInvalidates() throws Exception {
+    recordAndReopen();
+    assertEquals(Optional.absent(), newStore().get(newCell("other"), buildFile));
+  }
+
+  @Test
+  public void invalidatedBuildFilesAreNotWrittenOut() {
+    PersistentRawNodeStore store = newStore();
+    store.put(cell, buildFile, RAW_NODES, ImmutableSet.of(buildFile), globbedDirectories, CONFIGS);
+    store.invalidate(buildFile);
+    store.close();
+    assertEquals(Optional.absent(), newStore().get(cell, buildFile));
+  }
+
+  @Test
+  public void recentlyModifiedBuildFilesAreNotRecorded() throws IOException {
+    Files.write(buildFile, "java_library(name = 'new')".getBytes());
+    PersistentRawNodeStore store = newStore();
+    store.put(cell, buildFile, RAW_NODES, ImmutableSet.of(buildFile), globbedDirectories, CONFIGS);
+    assertEquals(Optional.absent(), store.get(cell, buildFile));
+    store.close();
+    assertFalse(Files.exists(storePath));
+  }
+
+  @Test
+  public void changedRecordsAreAppended() throws IOException {
+    recordAndReopen();
+    byte[] before = Files.readAllBytes(storePath);
+
+    Path otherBuildFile = writeOldFile("other/BUCK", "java_library(name = 'lib')");
+    PersistentRawNodeStore store = newStore();
+    store.put(
+        cell,
+        otherBuildFile,
+        RAW_NODES,
+        ImmutableSet.of(otherBuildFile),
+        ImmutableSet.<Path>of(),
+        CONFIGS);
+    store.close();
+
+    byte[] after = Files.readAllBytes(storePath);
+    assertTrue(after.length > before.length);
+    assertArrayEquals(before, Arrays.copyOf(after, before.length));
+    store = newStore();
+    assertEquals(Optional.of(RAW_NODES), store.get(cell, buildFile));
+    assertEquals(Optional.of(RAW_NODES), store.get(cell, otherBuildFile));
+  }
+
+  @Test
+  public void mostlySupersededStoreIsRewritten() throws IOException {
+    Path otherBuildFile = writeOldFile("other/BUCK", "java_library(name = 'lib')");
+    PersistentRawNodeStore store = newStore();
+    store.put(
+        cell,
+        otherBuildFile,
+        RAW_NODES,
+        ImmutableSet.of(otherBuildFile),
+        ImmutableSet.<Path>of(),
+        CONFIGS);
+    store.put(cell, buildFile, RAW_NODES, ImmutableSet.of(buildFile), globbedDirectories, CONFIGS);
+    store.flush();
+    long compactSize = Files.size(storePath);
+
+    // The first two updates are appended, and the third takes the file past twice the number
+    // of build files it has records for.
+    for (int i = 0; i < 2; i++) {
+      store.put(
+          cell,
+          buildFile,
+          RAW_NODES,
+          ImmutableSet.of(buildFile),
+          globbedDirectories,
+          CONFIGS);
+      store.flush();
+      assertTrue(Files.size(storePath) > compactSize);
+    }
+    store.put(cell, buildFile, RAW_NODES, ImmutableSet.of(buildFile), globbedDirectories, CONFIGS);
+    store.flush();
+    assertEquals(compactSize, Files.size(storePath));
+    store.close();
+
+    store = newStore();
+    assertEquals(Optional.of(RAW_NODES), store.get(cell, buildFile));
+    assertEquals(Optional.of(RAW_NODES), store.get(cell, otherBuildFile));
+  }
+
+  @Test
+  public void droppedRecordsStayDroppedAfterAppending() throws IOException {
+    Path otherBuildFile = writeOldFile("other/BUCK", "java_library(name = 'lib')");
+    PersistentRawNodeStore store = newStore();
+    store.put(
+        cell,
+        otherBuildFile,
+        RAW_NODES,
+        ImmutableSet.of(otherBuildFile),
+        ImmutableSet.<Path>of(),
+        CONFIGS);
+    store.put(cell, buildFile, RAW_NODES, ImmutableSet.of(buildFile), globbedDirectories, CONFIGS);
+    store.close();
+
+    store = newStore();
+    store.invalidate(buildFile);
+    store.close();
+
+    store = newStore();
+    assertEquals(Optional.absent(), store.get(cell, buildFile));
+    assertEquals(Optional.of(RAW_NODES), store.get(cell, otherBuildFile));
+  }
+
+  @Test
+  public void corruptStoreIsIgnored() throws IOException {
+    Files.createDirectories(storePath.getParent());
+    Files.write(storePath, new byte[] {0x42, 0x52, 0x4e, 0x53, 0, 0, 0, 1, 0, 4, 'j', 'u'});
+    PersistentRawNodeStore store = newStore();
+    assertEquals(Optional.absent(), store.get(cell, buildFile));
+    store.put(cell, buildFile, RAW_NODES, ImmutableSet.of(buildFile), globbedDirectories, CONFIGS);
+    store.close();
+    assertTrue(newStore().get(cell, buildFile).isPresent());
+  }
+
+  private void recordAndReopen() {
+    PersistentRawNodeStore store = newStore();
+    store.put(
+        cell,
+        buildFile,
+        RAW_NODES,
+        ImmutableSet.of(buildFile, include),
+        globbedDirectories,
+        CONFIGS);
+    store.close();
+  }
+
+  private PersistentRawNodeStore newStore() {
+    return new PersistentRawNodeStore(storePath, new NullFileHashCache());
+  }
+
+  private Cell newCell(String configValue) throws Exception {
+    return new TestCellBuilder()
+        .setFilesystem(filesystem)
+        .setBuckConfig(
+            FakeBuckConfig.builder()
+                .setFilesystem(filesystem)
+                .setSections("[section]", "present = " + configValue)
+                .build())
+        .build();
+  }
+
+  private Path writeOldFile(String relativePath, String contents) throws IOException {
+    Path path = tmp.getRoot().resolve(relativePath);
+    Files.createDirectories(path.getParent());
+    Files.write(path, contents.getBytes());
+    setOld(path);
+    return path;
+  }
+
+  private static void setOld(Path path) throws IOException {
+    long old =
+        System.currentTimeMillis() - 10 * PersistentRawNodeStore.RACY_MODIFICATION_WINDOW_MILLIS;
+    Files.setLastModifiedTime(path, FileTime.fromMillis(old));
+  }
+}
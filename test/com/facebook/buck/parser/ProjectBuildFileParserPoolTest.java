@@ -19,6 +19,8 @@ package com.facebook.buck.parser;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.IntegerCounter;
 import com.facebook.buck.json.ProjectBuildFileParser;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.util.concurrent.AssertScopeExclusiveAccess;
@@ -41,6 +43,8 @@ import org.junit.Test;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
@@ -348,6 +352,126 @@ public class ProjectBuildFileParserPoolTest {
     }
   }
 
+  @Test
+  public void warmUpStartsParsersBeforeTheyAreRequested() throws Exception {
+    Cell cell = EasyMock.createMock(Cell.class);
+    final List<ProjectBuildFileParser> createdParsers = new ArrayList<>();
+    ProjectBuildFileParserPool.Counters counters = new ProjectBuildFileParserPool.Counters("test");
+
+    try (ProjectBuildFileParserPool parserPool =
+             new ProjectBuildFileParserPool(
+                 /* minParsers */ 2,
+                 /* maxParsers */ 4,
+                 new Function<Cell, ProjectBuildFileParser>() {
+                   @Override
+                   public ProjectBuildFileParser apply(Cell input) {
+                     ProjectBuildFileParser parser =
+                         EasyMock.createMock(ProjectBuildFileParser.class);
+                     try {
+                       parser.initIfNeeded();
+                       EasyMock.expectLastCall().once();
+                       EasyMock.expect(
+                           parser.getAllRulesAndMetaRules(EasyMock.anyObject(Path.class)))
+                           .andReturn(ImmutableList.<Map<String, Object>>of())
+                           .anyTimes();
+                       parser.close();
+                       EasyMock.expectLastCall().anyTimes();
+                     } catch (Exception e) {
+                       Throwables.propagate(e);
+                     }
+                     EasyMock.replay(parser);
+                     createdParsers.add(parser);
+                     return parser;
+                   }
+                 },
+                 counters)) {
+
+      parserPool.warmUp(cell, MoreExecutors.newDirectExecutorService());
+      assertThat(createdParsers, Matchers.hasSize(2));
+      for (ProjectBuildFileParser parser : createdParsers) {
+        EasyMock.verify(parser);
+      }
+
+      // The warm parsers are used instead of new ones being created.
+      Futures.allAsList(
+          scheduleWork(cell, parserPool, MoreExecutors.newDirectExecutorService(), 3)).get();
+      assertThat(createdParsers, Matchers.hasSize(2));
+      assertThat(getCounterValues(counters).get("build_files_parsed"), Matchers.is(3L));
+    }
+  }
+
+  @Test
+  public void idleParsersAreShutDownWhenTheLoadDrops() throws Exception {
+    final int parsersCount = 4;
+    Cell cell = EasyMock.createMock(Cell.class);
+    ListeningExecutorService executorService = MoreExecutors.listeningDecorator(
+        Executors.newFixedThreadPool(parsersCount));
+    final AtomicInteger closedParsers = new AtomicInteger(0);
+    ProjectBuildFileParserPool.Counters counters = new ProjectBuildFileParserPool.Counters("test");
+
+    final CountDownLatch allParsersBusy = new CountDownLatch(parsersCount);
+    try (ProjectBuildFileParserPool parserPool =
+             new ProjectBuildFileParserPool(
+                 /* minParsers */ 0,
+                 parsersCount,
+                 new Function<Cell, ProjectBuildFileParser>() {
+                   @Override
+                   public ProjectBuildFileParser apply(Cell input) {
+                     ProjectBuildFileParser parser =
+                         EasyMock.createMock(ProjectBuildFileParser.class);
+                     try {
+                       EasyMock.expect(
+                           parser.getAllRulesAndMetaRules(EasyMock.anyObject(Path.class)))
+                           .andAnswer(
+                               new IAnswer<List<Map<String, Object>>>() {
+                                 @Override
+                                 public List<Map<String, Object>> answer() throws Throwable {
+                                   allParsersBusy.countDown();
+                                   allParsersBusy.await();
+                                   return ImmutableList.of();
+                                 }
+                               })
+                           .anyTimes();
+                       parser.close();
+                       EasyMock.expectLastCall().andAnswer(
+                           new IAnswer<Void>() {
+                             @Override
+                             public Void answer() throws Throwable {
+                               closedParsers.incrementAndGet();
+                               return null;
+                             }
+                           });
+                     } catch (Exception e) {
+                       Throwables.propagate(e);
+                     }
+                     EasyMock.replay(parser);
+                     return parser;
+                   }
+                 },
+                 counters)) {
+
+      Futures.allAsList(scheduleWork(cell, parserPool, executorService, parsersCount)).get();
+
+      // As the parsers come back one at a time, the pool keeps no more idle parsers than busy
+      // ones, so the last two are shut down.
+      assertThat(closedParsers.get(), Matchers.is(2));
+      Map<String, Long> values = getCounterValues(counters);
+      assertThat(values.get("build_file_parsers_started"), Matchers.is(4L));
+      assertThat(values.get("build_file_parsers_stopped"), Matchers.is(2L));
+      assertThat(values.get("build_files_parsed"), Matchers.is(4L));
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  private static Map<String, Long> getCounterValues(ProjectBuildFileParserPool.Counters counters) {
+    Map<String, Long> values = new HashMap<>();
+    for (Counter counter : counters.getCounters()) {
+      values.put(counter.getName(), ((IntegerCounter) counter).get());
+    }
+    return values;
+  }
+
   private static ImmutableSet<ListenableFuture<?>> scheduleWork(
       Cell cell,
       ProjectBuildFileParserPool pool,
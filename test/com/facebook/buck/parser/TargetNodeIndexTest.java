@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.jvm.java.JavaLibraryBuilder;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.TargetNode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class TargetNodeIndexTest {
+
+  private static final BuildTarget LIB = BuildTargetFactory.newInstance("//foo:lib");
+  private static final BuildTarget UTIL = BuildTargetFactory.newInstance("//foo/util:util");
+  private static final BuildTarget BIN = BuildTargetFactory.newInstance("//bin:bin");
+
+  private static TargetNode<?> createNode(BuildTarget target, String src, BuildTarget... deps) {
+    JavaLibraryBuilder builder = JavaLibraryBuilder.createBuilder(target)
+        .addSrc(Paths.get(src));
+    for (BuildTarget dep : deps) {
+      builder.addDep(dep);
+    }
+    return builder.build();
+  }
+
+  private static Path resolve(TargetNode<?> node, String path) {
+    return node.getRuleFactoryParams().getProjectFilesystem().resolve(path);
+  }
+
+  @Test
+  public void ownersAreFoundByFileAndByDirectory() {
+    TargetNodeIndex index = new TargetNodeIndex();
+    TargetNode<?> lib = createNode(LIB, "foo/Lib.java", UTIL);
+    TargetNode<?> util = createNode(UTIL, "foo/util");
+    index.add(lib);
+    index.add(util);
+
+    assertThat(
+        index.getOwners(resolve(lib, "foo/Lib.java")),
+        is(equalTo(ImmutableSet.<TargetNode<?>>of(lib))));
+    assertThat(
+        index.getOwners(resolve(lib, "foo/util/Util.java")),
+        is(equalTo(ImmutableSet.<TargetNode<?>>of(util))));
+    assertThat(index.getOwners(resolve(lib, "foo/Other.java")).isEmpty(), is(true));
+
+    index.remove(lib);
+    assertThat(index.getOwners(resolve(lib, "foo/Lib.java")).isEmpty(), is(true));
+  }
+
+  @Test
+  public void reverseDepsFollowTheCurrentNodes() {
+    TargetNodeIndex index = new TargetNodeIndex();
+    TargetNode<?> lib = createNode(LIB, "foo/Lib.java", UTIL);
+    index.add(lib);
+    index.add(createNode(UTIL, "foo/util/Util.java"));
+    index.add(createNode(BIN, "bin/Main.java", LIB, UTIL));
+
+    assertThat(index.getReverseDeps(UTIL).size(), is(2));
+
+    TargetNode<?> newLib = createNode(LIB, "foo/Lib.java");
+    index.add(newLib);
+    assertThat(index.getReverseDeps(UTIL).size(), is(1));
+
+    // Removing a node which has already been replaced does nothing.
+    index.remove(lib);
+    assertThat(
+        index.getOwners(resolve(newLib, "foo/Lib.java")),
+        is(equalTo(ImmutableSet.<TargetNode<?>>of(newLib))));
+  }
+
+  @Test
+  public void transitiveClosureNeedsEveryNodeToBeChecked() {
+    TargetNodeIndex index = new TargetNodeIndex();
+    TargetNode<?> bin = createNode(BIN, "bin/Main.java", LIB);
+    TargetNode<?> lib = createNode(LIB, "foo/Lib.java", UTIL);
+    TargetNode<?> util = createNode(UTIL, "foo/util/Util.java");
+    index.add(bin);
+    index.add(lib);
+
+    assertThat(index.getTransitiveClosure(ImmutableList.of(BIN)).isPresent(), is(false));
+
+    index.add(util);
+    index.markChecked(bin, ImmutableList.<TargetNode<?>>of(lib));
+    index.markChecked(lib, ImmutableList.<TargetNode<?>>of(util));
+    assertThat(index.getTransitiveClosure(ImmutableList.of(BIN)).isPresent(), is(false));
+
+    index.markChecked(util, ImmutableList.<TargetNode<?>>of());
+    assertThat(
+        index.getTransitiveClosure(ImmutableList.of(BIN)).get(),
+        is(equalTo(ImmutableMap.<BuildTarget, TargetNode<?>>of(BIN, bin, LIB, lib, UTIL, util))));
+  }
+
+  @Test
+  public void replacingANodeUnchecksTheNodesDependingOnIt() {
+    TargetNodeIndex index = new TargetNodeIndex();
+    TargetNode<?> bin = createNode(BIN, "bin/Main.java", LIB);
+    TargetNode<?> lib = createNode(LIB, "foo/Lib.java");
+    index.add(bin);
+    index.add(lib);
+    index.markChecked(bin, ImmutableList.<TargetNode<?>>of(lib));
+    index.markChecked(lib, ImmutableList.<TargetNode<?>>of());
+    assertThat(index.getTransitiveClosure(ImmutableList.of(BIN)).isPresent(), is(true));
+
+    TargetNode<?> newLib = createNode(LIB, "foo/Lib.java");
+    index.add(newLib);
+    index.markChecked(newLib, ImmutableList.<TargetNode<?>>of());
+    assertThat(index.getTransitiveClosure(ImmutableList.of(LIB)).isPresent(), is(true));
+    assertThat(index.getTransitiveClosure(ImmutableList.of(BIN)).isPresent(), is(false));
+
+    // Edges to nodes which have since been replaced aren't marked.
+    index.markChecked(bin, ImmutableList.<TargetNode<?>>of(lib));
+    assertThat(index.getTransitiveClosure(ImmutableList.of(BIN)).isPresent(), is(false));
+  }
+}
@@ -18,6 +18,8 @@ package com.facebook.buck.rules;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
@@ -35,6 +37,8 @@ import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.facebook.buck.timing.IncrementingFakeClock;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.MoreExecutors;
 
 import org.hamcrest.Matchers;
@@ -50,10 +54,14 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
 public class ActionGraphCacheTest {
 
   private static final int CACHE_HIT_COUNTER_INDEX = 0;
   private static final int CACHE_MISS_COUNTER_INDEX = 1;
+  private static final int INCREMENTAL_UPDATE_COUNTER_INDEX = 2;
+  private static final int EVICTION_COUNTER_INDEX = 3;
   private static final boolean CHECK_GRAPHS = true;
   private static final boolean NOT_CHECK_GRAPHS = false;
 
@@ -215,9 +223,119 @@ public class ActionGraphCacheTest {
     assertEquals(((IntegerCounter) counters.get(CACHE_MISS_COUNTER_INDEX)).get(), 4);
   }
 
+  @Test
+  public void incrementalCacheReusesRulesOfUnchangedTargets() {
+    ActionGraphCache cache =
+        new ActionGraphCache(
+            MoreExecutors.newDirectExecutorService(),
+            /* incremental */ true,
+            /* maxCachedRules */ 0);
+    TargetNode<?> nodeC = createTargetNode("C");
+    ActionGraphAndResolver resultRun1 = cache.getActionGraph(
+        eventBus,
+        NOT_CHECK_GRAPHS,
+        TargetGraphFactory.newInstance(nodeA, nodeB, nodeC));
+
+    // B's build file was parsed again, so A, which depends on it, has to be recreated too.
+    TargetNode<?> newNodeB = createTargetNode("B", HashCode.fromLong(42));
+    ActionGraphAndResolver resultRun2 = cache.getActionGraph(
+        eventBus,
+        NOT_CHECK_GRAPHS,
+        TargetGraphFactory.newInstance(nodeA, newNodeB, nodeC));
+
+    assertEquals(
+        1,
+        ((IntegerCounter) cache.getCounters().get(INCREMENTAL_UPDATE_COUNTER_INDEX)).get());
+    assertSame(
+        resultRun1.getResolver().getRule(nodeC.getBuildTarget()),
+        resultRun2.getResolver().getRule(nodeC.getBuildTarget()));
+    assertNotSame(
+        resultRun1.getResolver().getRule(nodeB.getBuildTarget()),
+        resultRun2.getResolver().getRule(nodeB.getBuildTarget()));
+    assertNotSame(
+        resultRun1.getResolver().getRule(nodeA.getBuildTarget()),
+        resultRun2.getResolver().getRule(nodeA.getBuildTarget()));
+    assertSame(
+        resultRun2.getResolver().getRule(nodeB.getBuildTarget()),
+        Iterables.getOnlyElement(
+            resultRun2.getResolver().getRule(nodeA.getBuildTarget()).getDeps()));
+  }
+
+  @Test
+  public void structurallyEqualTargetGraphsHit() {
+    ActionGraphCache cache = new ActionGraphCache(MoreExecutors.newDirectExecutorService());
+
+    ActionGraphAndResolver resultRun1 = cache.getActionGraph(eventBus, CHECK_GRAPHS, targetGraph);
+    TargetNode<?> newNodeB = createTargetNode("B");
+    TargetGraph reparsedTargetGraph =
+        TargetGraphFactory.newInstance(createTargetNode("A", newNodeB), newNodeB);
+    ActionGraphAndResolver resultRun2 =
+        cache.getActionGraph(eventBus, CHECK_GRAPHS, reparsedTargetGraph);
+
+    ImmutableList<Counter> counters = cache.getCounters();
+    assertEquals(((IntegerCounter) counters.get(CACHE_HIT_COUNTER_INDEX)).get(), 1);
+    assertEquals(((IntegerCounter) counters.get(CACHE_MISS_COUNTER_INDEX)).get(), 1);
+    assertSame(resultRun1, resultRun2);
+  }
+
+  @Test
+  public void alternatingTargetGraphsHitWhenTheyFit() {
+    ActionGraphCache cache = new ActionGraphCache(
+        MoreExecutors.newDirectExecutorService(),
+        /* incremental */ false,
+        /* maxCachedRules */ 100);
+    TargetGraph subgraph = targetGraph.getSubgraph(ImmutableSet.of(nodeB));
+
+    ActionGraphAndResolver resultRun1 = cache.getActionGraph(eventBus, CHECK_GRAPHS, targetGraph);
+    ActionGraphAndResolver resultRun2 = cache.getActionGraph(eventBus, CHECK_GRAPHS, subgraph);
+    assertSame(resultRun1, cache.getActionGraph(eventBus, CHECK_GRAPHS, targetGraph));
+    assertSame(resultRun2, cache.getActionGraph(eventBus, CHECK_GRAPHS, subgraph));
+
+    ImmutableList<Counter> counters = cache.getCounters();
+    assertEquals(((IntegerCounter) counters.get(CACHE_HIT_COUNTER_INDEX)).get(), 2);
+    assertEquals(((IntegerCounter) counters.get(CACHE_MISS_COUNTER_INDEX)).get(), 2);
+    assertEquals(((IntegerCounter) counters.get(EVICTION_COUNTER_INDEX)).get(), 0);
+    assertEquals(2, cache.getCachedActionGraphCount());
+  }
+
+  @Test
+  public void leastRecentlyUsedTargetGraphsAreEvicted() {
+    // Enough for the action graph of A and B (A, A#abi, B, B#abi) but not for two of them.
+    ActionGraphCache cache = new ActionGraphCache(
+        MoreExecutors.newDirectExecutorService(),
+        /* incremental */ false,
+        /* maxCachedRules */ 4);
+    TargetNode<?> nodeC = createTargetNode("C");
+    TargetGraph otherTargetGraph = TargetGraphFactory.newInstance(nodeC);
+
+    cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, targetGraph);
+    cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, otherTargetGraph);
+    // Evicts the action graph of A and B.
+    cache.getActionGraph(
+        eventBus,
+        NOT_CHECK_GRAPHS,
+        targetGraph.getSubgraph(ImmutableSet.of(nodeB)));
+    assertEquals(2, cache.getCachedActionGraphCount());
+    cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, otherTargetGraph);
+    cache.getActionGraph(eventBus, NOT_CHECK_GRAPHS, targetGraph);
+    assertEquals(3, cache.getCachedActionGraphCount());
+
+    ImmutableList<Counter> counters = cache.getCounters();
+    assertEquals(((IntegerCounter) counters.get(CACHE_HIT_COUNTER_INDEX)).get(), 1);
+    assertEquals(((IntegerCounter) counters.get(CACHE_MISS_COUNTER_INDEX)).get(), 4);
+    assertEquals(((IntegerCounter) counters.get(EVICTION_COUNTER_INDEX)).get(), 1);
+  }
+
   private TargetNode<?> createTargetNode(String name, TargetNode<?>... deps) {
+    return createTargetNode(name, null, deps);
+  }
+
+  private TargetNode<?> createTargetNode(
+      String name,
+      @Nullable HashCode hashCode,
+      TargetNode<?>... deps) {
     BuildTarget buildTarget = BuildTargetFactory.newInstance("//foo:" + name);
-    JavaLibraryBuilder targetNodeBuilder = JavaLibraryBuilder.createBuilder(buildTarget);
+    JavaLibraryBuilder targetNodeBuilder = JavaLibraryBuilder.createBuilder(buildTarget, hashCode);
     for (TargetNode<?> dep : deps) {
       targetNodeBuilder.addDep(dep.getBuildTarget());
     }
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.CacheResultType;
+import com.facebook.buck.artifact_cache.InMemoryArtifactCache;
+import com.facebook.buck.counters.Counter;
+import com.facebook.buck.counters.IntegerCounter;
+import com.facebook.buck.io.LazyPath;
+import com.facebook.buck.jvm.java.FakeJavaPackageFinder;
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.model.Pair;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class ArtifactCachePrefetcherTest {
+
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final RuleKey RULE_KEY_A = new RuleKey("aaaa");
+  private static final RuleKey RULE_KEY_B = new RuleKey("bbbb");
+  private static final RuleKey RULE_KEY_C = new RuleKey("cccc");
+
+  private InMemoryArtifactCache cache;
+  private BuildContext buildContext;
+  private BuildRule ruleA;
+  private Function<BuildRule, RuleKey> ruleKeys;
+
+  @Before
+  public void setUp() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot());
+    SourcePathResolver resolver = new SourcePathResolver(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+    BuildRule ruleC = new FakeBuildRule(
+        BuildTargetFactory.newInstance("//:c"),
+        filesystem, resolver);
+    BuildRule ruleB = new FakeBuildRule(
+        BuildTargetFactory.newInstance("//:b"),
+        filesystem, resolver, ruleC);
+    ruleA = new FakeBuildRule(
+        BuildTargetFactory.newInstance("//:a"),
+        filesystem, resolver, ruleB);
+    ruleKeys = Functions.forMap(
+        ImmutableMap.of(
+            ruleA, RULE_KEY_A,
+            ruleB, RULE_KEY_B,
+            ruleC, RULE_KEY_C));
+
+    cache = new InMemoryArtifactCache();
+    cache.store(ImmutableSet.of(RULE_KEY_B), ImmutableMap.<String, String>of(), bytes("b"));
+    cache.store(ImmutableSet.of(RULE_KEY_C), ImmutableMap.<String, String>of(), bytes("c"));
+    buildContext = FakeBuildContext.newBuilder()
+        .setActionGraph(new ActionGraph(ImmutableList.<BuildRule>of()))
+        .setJavaPackageFinder(new FakeJavaPackageFinder())
+        .setArtifactCache(cache)
+        .build();
+  }
+
+  @Test
+  public void prefetchedArtifactsAreHandedOverAndUnclaimedOnesAreDiscarded() throws Exception {
+    ArtifactCachePrefetcher prefetcher = new ArtifactCachePrefetcher(
+        MoreExecutors.newDirectExecutorService(),
+        /* window */ 2,
+        ruleKeys);
+    prefetcher.start(buildContext, ruleA);
+
+    Optional<Pair<CacheResult, LazyPath>> b = prefetcher.take(RULE_KEY_B);
+    assertTrue(b.isPresent());
+    assertEquals(CacheResultType.HIT, b.get().getFirst().getType());
+    assertEquals("b", new String(Files.readAllBytes(b.get().getSecond().get()), UTF_8));
+
+    Optional<Pair<CacheResult, LazyPath>> a = prefetcher.take(RULE_KEY_A);
+    assertTrue(a.isPresent());
+    assertEquals(CacheResultType.MISS, a.get().getFirst().getType());
+
+    // Nobody asks for C, e.g. because B was fetched from the cache.
+    prefetcher.release();
+    assertFalse(prefetcher.take(RULE_KEY_C).isPresent());
+
+    assertEquals(1, getCounter(prefetcher, "prefetch_hits"));
+    assertEquals(1, getCounter(prefetcher, "prefetch_misses"));
+    assertEquals(1, getCounter(prefetcher, "prefetch_wasted"));
+    assertEquals(1, getCounter(prefetcher, "prefetch_wasted_bytes"));
+  }
+
+  @Test
+  public void fetchesAreLimitedToTheWindowAndQueuedOnesCanBeClaimed() throws Exception {
+    ManualExecutorService executor = new ManualExecutorService();
+    ArtifactCachePrefetcher prefetcher = new ArtifactCachePrefetcher(
+        MoreExecutors.listeningDecorator(executor),
+        /* window */ 1,
+        ruleKeys);
+    prefetcher.start(buildContext, ruleA);
+
+    // Walking the graph queues all three rules, but only starts fetching the first.
+    executor.runNext();
+    assertEquals(1, executor.tasks.size());
+
+    // C hasn't started, so the engine will have to fetch it itself.
+    assertFalse(prefetcher.take(RULE_KEY_C).isPresent());
+
+    // Fetching A makes room for B.  C was claimed, so nothing else gets fetched after that.
+    executor.runNext();
+    assertEquals(1, executor.tasks.size());
+    executor.runNext();
+    assertEquals(0, executor.tasks.size());
+
+    Optional<Pair<CacheResult, LazyPath>> b = prefetcher.take(RULE_KEY_B);
+    assertTrue(b.isPresent());
+    assertEquals(CacheResultType.HIT, b.get().getFirst().getType());
+    prefetcher.release();
+
+    assertEquals(0, getCounter(prefetcher, "prefetch_wasted"));
+  }
+
+  @Test
+  public void rulesWhichAreAlreadyBuiltAreNotFetched() throws Exception {
+    BuildInfoRecorder recorder =
+        buildContext.createBuildInfoRecorder(ruleA.getBuildTarget(), ruleA.getProjectFilesystem())
+            .addBuildMetadata(BuildInfo.METADATA_KEY_FOR_RULE_KEY, RULE_KEY_A.toString());
+    recorder.writeMetadataToDisk(/* clearExistingMetadata */ true);
+    cache.store(ImmutableSet.of(RULE_KEY_A), ImmutableMap.<String, String>of(), bytes("a"));
+
+    ArtifactCachePrefetcher prefetcher = new ArtifactCachePrefetcher(
+        MoreExecutors.newDirectExecutorService(),
+        /* window */ 2,
+        ruleKeys);
+    prefetcher.start(buildContext, ruleA);
+
+    assertFalse(prefetcher.take(RULE_KEY_A).isPresent());
+    assertTrue(prefetcher.take(RULE_KEY_B).isPresent());
+    prefetcher.release();
+  }
+
+  private static long getCounter(ArtifactCachePrefetcher prefetcher, String name) {
+    for (Counter counter : prefetcher.getCounters()) {
+      if (counter.getName().equals(name)) {
+        return ((IntegerCounter) counter).get();
+      }
+    }
+    throw new IllegalArgumentException(name);
+  }
+
+  private static byte[] bytes(String contents) {
+    return contents.getBytes(UTF_8);
+  }
+
+  /**
+   * An executor which only runs tasks when asked to, so that tests can see what's been submitted.
+   */
+  private static class ManualExecutorService extends AbstractExecutorService {
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+    public void runNext() {
+      tasks.remove().run();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return ImmutableList.of();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return true;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.facebook.buck.util.ObjectMappers;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class BuildRuleDurationStoreTest {
+
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final BuildTarget TARGET_A = BuildTargetFactory.newInstance("//:a");
+  private static final BuildTarget TARGET_B = BuildTargetFactory.newInstance("//:b");
+  private static final BuildTarget TARGET_C = BuildTargetFactory.newInstance("//:c");
+
+  private ProjectFilesystem filesystem;
+  private ObjectMapper objectMapper;
+  private Path path;
+
+  @Before
+  public void setUp() {
+    filesystem = new ProjectFilesystem(tmp.getRoot());
+    objectMapper = ObjectMappers.newDefaultInstance();
+    path = Paths.get("buck-out/rule_durations.json");
+  }
+
+  @Test
+  public void durationsSurviveSavingAndLoading() {
+    BuildRuleDurationStore store = BuildRuleDurationStore.load(filesystem, path, objectMapper);
+    assertFalse(store.getDurationMillis(TARGET_A).isPresent());
+    store.record(TARGET_A, 100);
+    store.record(TARGET_B, 300);
+    store.save();
+
+    store = BuildRuleDurationStore.load(filesystem, path, objectMapper);
+    assertEquals(Optional.of(100L), store.getDurationMillis(TARGET_A));
+    assertEquals(Optional.of(300L), store.getDurationMillis(TARGET_B));
+  }
+
+  @Test
+  public void durationsAreAveragedWithEarlierBuilds() {
+    BuildRuleDurationStore store = BuildRuleDurationStore.load(filesystem, path, objectMapper);
+    store.record(TARGET_A, 100);
+    store.record(TARGET_A, 300);
+    assertEquals(Optional.of(200L), store.getDurationMillis(TARGET_A));
+  }
+
+  @Test
+  public void unknownRulesAreExpectedToTakeTheMeanDuration() {
+    BuildRuleDurationStore store = BuildRuleDurationStore.load(filesystem, path, objectMapper);
+    assertEquals(1, store.getExpectedDurationMillis(TARGET_C));
+    store.record(TARGET_A, 100);
+    store.record(TARGET_B, 300);
+    store.save();
+
+    store = BuildRuleDurationStore.load(filesystem, path, objectMapper);
+    assertEquals(100, store.getExpectedDurationMillis(TARGET_A));
+    assertEquals(200, store.getExpectedDurationMillis(TARGET_C));
+  }
+
+  @Test
+  public void unreadableFilesAreIgnored() throws IOException {
+    filesystem.createParentDirs(path);
+    filesystem.writeContentsToPath("{ not json", path);
+
+    BuildRuleDurationStore store = BuildRuleDurationStore.load(filesystem, path, objectMapper);
+    assertFalse(store.getDurationMillis(TARGET_A).isPresent());
+    store.record(TARGET_A, 100);
+    store.save();
+
+    assertEquals(
+        Optional.of("{\"build_targets\":{\"//:a\":{\"local\":100}}}"),
+        filesystem.readFileIfItExists(path));
+  }
+}
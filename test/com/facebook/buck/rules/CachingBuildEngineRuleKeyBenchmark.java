@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.keys.DefaultDependencyFileRuleKeyBuilderFactory;
+import com.facebook.buck.rules.keys.DefaultRuleKeyBuilderFactory;
+import com.facebook.buck.util.cache.NullFileHashCache;
+import com.facebook.buck.util.concurrent.ListeningSemaphore;
+import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import com.google.caliper.api.Macrobenchmark;
+import com.google.common.base.Functions;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Has several threads at once ask a {@link CachingBuildEngine} for the rule keys of every rule in
+ * a synthetic graph, each thread walking the rules in a different order, to measure how the rule
+ * key bookkeeping scales with the number of threads.
+ */
+public class CachingBuildEngineRuleKeyBenchmark {
+  @Param({"1", "2", "4", "8", "16"})
+  private int threadCount = 1;
+
+  @Param({"1000", "10000"})
+  private int ruleCount = 1000;
+
+  @Param({"4"})
+  private int depsPerRule = 4;
+
+  private SourcePathResolver pathResolver;
+  private List<BuildRule> rules;
+  private ListeningExecutorService requestService;
+  private ListeningExecutorService engineService;
+  private AtomicInteger keysBuilt;
+
+  @Before
+  public void setUpTest() {
+    threadCount = 4;
+    ruleCount = 500;
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() {
+    pathResolver = new SourcePathResolver(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+    rules = new ArrayList<>(ruleCount);
+    for (int i = 0; i < ruleCount; i++) {
+      ImmutableSortedSet.Builder<BuildRule> deps = ImmutableSortedSet.naturalOrder();
+      for (int j = 1; j <= depsPerRule && j <= i; j++) {
+        deps.add(rules.get(i - j * j > 0 ? i - j * j : 0));
+      }
+      rules.add(
+          new FakeBuildRule(
+              new FakeBuildRuleParamsBuilder(
+                  BuildTargetFactory.newInstance(String.format("//pkg%d:rule%d", i % 100, i)))
+                  .setDeclaredDeps(deps.build())
+                  .build(),
+              pathResolver));
+    }
+    requestService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
+    engineService =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
+    keysBuilt = new AtomicInteger();
+  }
+
+  @After
+  @AfterExperiment
+  public void tearDown() throws InterruptedException {
+    requestService.shutdownNow();
+    engineService.shutdownNow();
+    requestService.awaitTermination(1, TimeUnit.MINUTES);
+    engineService.awaitTermination(1, TimeUnit.MINUTES);
+  }
+
+  @Test
+  public void eachRuleKeyIsCalculatedOnce() throws Exception {
+    CachingBuildEngine engine = newEngine();
+    calculateAllRuleKeys(engine);
+    assertEquals(ruleCount, keysBuilt.get());
+
+    RuleKeyBuilderFactory expectedFactory =
+        new DefaultRuleKeyBuilderFactory(new NullFileHashCache(), pathResolver);
+    for (BuildRule rule : rules) {
+      assertEquals(expectedFactory.build(rule), engine.getRuleKey(rule.getBuildTarget()));
+    }
+  }
+
+  @Macrobenchmark
+  public int calculateRuleKeys() throws Exception {
+    calculateAllRuleKeys(newEngine());
+    return keysBuilt.get();
+  }
+
+  private void calculateAllRuleKeys(final CachingBuildEngine engine) throws Exception {
+    List<ListenableFuture<Void>> requests = new ArrayList<>(threadCount);
+    for (int t = 0; t < threadCount; t++) {
+      final int offset = t * ruleCount / threadCount;
+      requests.add(
+          requestService.submit(
+              new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                  List<ListenableFuture<RuleKey>> keys = new ArrayList<>(ruleCount);
+                  for (int i = 0; i < ruleCount; i++) {
+                    keys.add(
+                        engine.calculateRuleKey(
+                            rules.get((offset + i) % ruleCount),
+                            FakeBuildContext.NOOP_CONTEXT));
+                  }
+                  Futures.allAsList(keys).get();
+                  return null;
+                }
+              }));
+    }
+    Futures.allAsList(requests).get();
+  }
+
+  private CachingBuildEngine newEngine() {
+    final DefaultRuleKeyBuilderFactory delegate =
+        new DefaultRuleKeyBuilderFactory(new NullFileHashCache(), pathResolver);
+    RuleKeyBuilderFactory countingFactory = new RuleKeyBuilderFactory() {
+      @Override
+      public RuleKeyBuilder newInstance(BuildRule buildRule) {
+        return delegate.newInstance(buildRule);
+      }
+
+      @Override
+      public RuleKey build(BuildRule buildRule) {
+        keysBuilt.incrementAndGet();
+        return delegate.build(buildRule);
+      }
+    };
+    keysBuilt.set(0);
+    return new CachingBuildEngine(
+        new WeightedListeningExecutorService(
+            new ListeningSemaphore(Integer.MAX_VALUE),
+            /* defaultPermits */ 1,
+            engineService),
+        new NullFileHashCache(),
+        CachingBuildEngine.BuildMode.SHALLOW,
+        CachingBuildEngine.DependencySchedulingOrder.RANDOM,
+        CachingBuildEngine.DepFiles.DISABLED,
+        256L,
+        Optional.<Long>absent(),
+        pathResolver,
+        Functions.constant(
+            new CachingBuildEngine.RuleKeyFactories(
+                countingFactory,
+                delegate,
+                delegate,
+                new DefaultDependencyFileRuleKeyBuilderFactory(
+                    new NullFileHashCache(),
+                    pathResolver,
+                    delegate))));
+  }
+}
@@ -129,6 +129,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -450,6 +451,113 @@ public class CachingBuildEngineTest {
           filesystem.exists(Paths.get("buck-out/gen/src/com/facebook/orca/orca.jar")));
     }
 
+    @Test
+    public void depsOfACacheMissAreFetchedInOneBatch() throws Exception {
+      Step explodingStep = new AbstractExecutionStep("exploding step") {
+        @Override
+        public int execute(ExecutionContext context) {
+          throw new UnsupportedOperationException("build step should not be executed");
+        }
+      };
+      BuildRule depA = new RuleWithSteps(
+          new FakeBuildRuleParamsBuilder("//:a").setProjectFilesystem(filesystem).build(),
+          pathResolver,
+          ImmutableList.of(explodingStep),
+          /* output */ null);
+      BuildRule depB = new RuleWithSteps(
+          new FakeBuildRuleParamsBuilder("//:b").setProjectFilesystem(filesystem).build(),
+          pathResolver,
+          ImmutableList.of(explodingStep),
+          /* output */ null);
+      BuildRule rule = new RuleWithSteps(
+          new FakeBuildRuleParamsBuilder("//:rule")
+              .setProjectFilesystem(filesystem)
+              .setDeclaredDeps(ImmutableSortedSet.of(depA, depB))
+              .build(),
+          pathResolver,
+          ImmutableList.<Step>of(),
+          /* output */ null);
+      for (BuildRule dep : ImmutableList.of(depA, depB)) {
+        filesystem.writeContentsToPath(
+            MAPPER.writeValueAsString(ImmutableList.of()),
+            BuildInfo.getPathToMetadataDirectory(dep.getBuildTarget())
+                .resolve(BuildInfo.METADATA_KEY_FOR_RECORDED_PATHS));
+      }
+
+      // Everything but the top-level rule is in the cache.
+      final RuleKey ruleKey = ruleKeyBuilderFactory.build(rule);
+      final List<ImmutableSet<RuleKey>> batches = new ArrayList<>();
+      final AtomicInteger fetches = new AtomicInteger();
+      ArtifactCache artifactCache =
+          new FakeArtifactCacheThatWritesAZipFile(ImmutableMap.<Path, String>of()) {
+            @Override
+            public CacheResult fetch(RuleKey key, LazyPath file) {
+              if (key.equals(ruleKey)) {
+                return CacheResult.miss();
+              }
+              fetches.incrementAndGet();
+              return super.fetch(key, file);
+            }
+
+            @Override
+            public ImmutableMap<RuleKey, CacheResult> multiFetch(
+                ImmutableMap<RuleKey, LazyPath> outputs) {
+              batches.add(outputs.keySet());
+              return super.multiFetch(outputs);
+            }
+
+            @Override
+            public ListenableFuture<Void> store(
+                ImmutableSet<RuleKey> ruleKeys,
+                ImmutableMap<String, String> metadata,
+                BorrowablePath output) {
+              return Futures.immediateFuture(null);
+            }
+
+            @Override
+            public boolean isStoreSupported() {
+              return false;
+            }
+          };
+      BuildContext buildContext = ImmutableBuildContext.builder()
+          .setActionGraph(new ActionGraph(ImmutableList.of(rule, depA, depB)))
+          .setStepRunner(createStepRunner(null))
+          .setClock(new DefaultClock())
+          .setBuildId(new BuildId())
+          .setArtifactCache(artifactCache)
+          .setJavaPackageFinder(new FakeJavaPackageFinder())
+          .setEventBus(BuckEventBusFactory.newInstance())
+          .setObjectMapper(ObjectMappers.newDefaultInstance())
+          .build();
+
+      CachingBuildEngine cachingBuildEngine =
+          new CachingBuildEngine(
+              toWeighted(MoreExecutors.newDirectExecutorService()),
+              fileHashCache,
+              CachingBuildEngine.BuildMode.SHALLOW,
+              CachingBuildEngine.DependencySchedulingOrder.RANDOM,
+              CachingBuildEngine.DepFiles.ENABLED,
+              256L,
+              Optional.<Long>absent(),
+              ObjectMappers.newDefaultInstance(),
+              resolver);
+      BuildResult result = cachingBuildEngine.build(buildContext, rule).get();
+      assertEquals(BuildRuleSuccessType.BUILT_LOCALLY, result.getSuccess());
+      assertEquals(
+          BuildRuleSuccessType.FETCHED_FROM_CACHE,
+          cachingBuildEngine.getBuildRuleResult(depA.getBuildTarget()).getSuccess());
+      assertEquals(
+          BuildRuleSuccessType.FETCHED_FROM_CACHE,
+          cachingBuildEngine.getBuildRuleResult(depB.getBuildTarget()).getSuccess());
+      assertEquals(
+          ImmutableList.of(
+              ImmutableSet.of(
+                  ruleKeyBuilderFactory.build(depA),
+                  ruleKeyBuilderFactory.build(depB))),
+          batches);
+      assertEquals(2, fetches.get());
+    }
+
     @Test
     public void testArtifactFetchedFromCacheStillRunsPostBuildSteps()
         throws InterruptedException, ExecutionException, IOException {
@@ -3116,6 +3224,20 @@ public class CachingBuildEngineTest {
       return CacheResult.hit("dir");
     }
 
+    @Override
+    public ImmutableMap<RuleKey, CacheResult> multiFetch(ImmutableMap<RuleKey, LazyPath> outputs) {
+      ImmutableMap.Builder<RuleKey, CacheResult> results = ImmutableMap.builder();
+      for (Map.Entry<RuleKey, LazyPath> entry : outputs.entrySet()) {
+        results.put(entry.getKey(), fetch(entry.getKey(), entry.getValue()));
+      }
+      return results.build();
+    }
+
+    @Override
+    public ImmutableMap<RuleKey, CacheResult> multiContains(ImmutableSet<RuleKey> ruleKeys) {
+      throw new UnsupportedOperationException();
+    }
+
     @Override
     public ListenableFuture<Void> store(
         ImmutableSet<RuleKey> ruleKeys,
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.model.BuildTargetFactory;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CriticalPathPrioritiesTest {
+
+  private SourcePathResolver resolver;
+
+  @Before
+  public void setUp() {
+    resolver = new SourcePathResolver(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+  }
+
+  @Test
+  public void priorityIsTheLongestPathUpToARoot() {
+    // slow_leaf <- slow <- root
+    //      ^               |
+    //      +---- fast <----+
+    BuildRule slowLeaf = createRule("//:slow_leaf");
+    BuildRule fast = createRule("//:fast", slowLeaf);
+    BuildRule slow = createRule("//:slow", slowLeaf);
+    BuildRule root = createRule("//:root", fast, slow);
+
+    CriticalPathPriorities priorities = new CriticalPathPriorities(
+        durations(
+            ImmutableMap.of(
+                "//:slow_leaf", 5L,
+                "//:fast", 1L,
+                "//:slow", 10L,
+                "//:root", 2L)));
+    priorities.addRoots(ImmutableList.of(root));
+
+    assertEquals(2, priorities.getPriority(root));
+    assertEquals(3, priorities.getPriority(fast));
+    assertEquals(12, priorities.getPriority(slow));
+    assertEquals(17, priorities.getPriority(slowLeaf));
+  }
+
+  @Test
+  public void rulesKeepTheHighestPriorityAcrossRoots() {
+    BuildRule leaf = createRule("//:leaf");
+    BuildRule shortRoot = createRule("//:short", leaf);
+    BuildRule middle = createRule("//:middle", leaf);
+    BuildRule longRoot = createRule("//:long", middle);
+    BuildRule unrelated = createRule("//:unrelated");
+
+    CriticalPathPriorities priorities = new CriticalPathPriorities(
+        durations(
+            ImmutableMap.of(
+                "//:leaf", 1L,
+                "//:short", 1L,
+                "//:middle", 4L,
+                "//:long", 4L)));
+    priorities.addRoots(ImmutableList.of(longRoot));
+    priorities.addRoots(ImmutableList.of(shortRoot));
+
+    assertEquals(9, priorities.getPriority(leaf));
+    assertEquals(1, priorities.getPriority(shortRoot));
+    assertEquals(0, priorities.getPriority(unrelated));
+  }
+
+  @Test
+  public void rootsWhichAreAlreadyRankedAreNotWalkedAgain() {
+    BuildRule leaf = createRule("//:leaf");
+    BuildRule middle = createRule("//:middle", leaf);
+    BuildRule root = createRule("//:root", middle);
+
+    final AtomicInteger lookups = new AtomicInteger();
+    CriticalPathPriorities priorities = new CriticalPathPriorities(
+        new Function<BuildRule, Long>() {
+          @Override
+          public Long apply(BuildRule rule) {
+            lookups.incrementAndGet();
+            return 1L;
+          }
+        });
+    priorities.addRoots(ImmutableList.of(root));
+    assertEquals(3, lookups.get());
+
+    priorities.addRoots(ImmutableList.of(root));
+    priorities.addRoots(ImmutableList.of(middle));
+    assertEquals(3, lookups.get());
+    assertEquals(2, priorities.getPriority(middle));
+    assertEquals(3, priorities.getPriority(leaf));
+  }
+
+  private BuildRule createRule(String target, BuildRule... deps) {
+    return new FakeBuildRule(
+        BuildTargetFactory.newInstance(target),
+        resolver,
+        ImmutableSortedSet.copyOf(deps));
+  }
+
+  private static Function<BuildRule, Long> durations(final ImmutableMap<String, Long> millis) {
+    return new Function<BuildRule, Long>() {
+      @Override
+      public Long apply(BuildRule rule) {
+        return millis.get(rule.getBuildTarget().toString());
+      }
+    };
+  }
+}
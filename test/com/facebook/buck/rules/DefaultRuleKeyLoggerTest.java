@@ -203,6 +203,10 @@ public class DefaultRuleKeyLoggerTest {
         @Override
         public void set(Path path, HashCode hashCode) {
         }
+
+        @Override
+        public void prefetch(Iterable<Path> paths) {
+        }
       };
       logger = new DefaultRuleKeyLogger();
       ruleKeyBuilderFactory = new DefaultRuleKeyBuilderFactory(hashCache, pathResolver) {
@@ -856,6 +856,10 @@ public class RuleKeyTest {
           @Override
           public void set(Path path, HashCode hashCode) {
           }
+
+          @Override
+          public void prefetch(Iterable<Path> paths) {
+          }
         };
     BuildTarget buildTarget = BuildTargetFactory.newInstance("//some:example");
     BuildRule buildRule = new FakeBuildRule(buildTarget, resolver);
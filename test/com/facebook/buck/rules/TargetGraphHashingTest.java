@@ -29,19 +29,25 @@ import com.facebook.buck.model.BuildTargetFactory;
 import com.facebook.buck.testutil.FakeFileHashCache;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.testutil.TargetGraphFactory;
+import com.facebook.buck.testutil.WatchEventsForTests;
 import com.facebook.buck.util.cache.FileHashCache;
 import com.facebook.buck.util.cache.NullFileHashCache;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.junit.Test;
 
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
 import java.util.Map;
+import java.util.concurrent.Executors;
 
 public class TargetGraphHashingTest {
 
@@ -229,6 +235,158 @@ public class TargetGraphHashingTest {
         not(equalTo(resultB.get(depTarget))));
   }
 
+  @Test
+  public void structureHashIgnoresSrcContentButNotDeps() {
+    BuildTarget nodeTarget = BuildTargetFactory.newInstance("//foo:lib");
+    BuildTarget depTarget = BuildTargetFactory.newInstance("//dep:lib");
+
+    TargetGraph targetGraphA = createGraphWithANodeAndADep(
+        nodeTarget,
+        HashCode.fromLong(12345),
+        depTarget,
+        HashCode.fromLong(64738));
+    TargetGraph targetGraphACopy = createGraphWithANodeAndADep(
+        nodeTarget,
+        HashCode.fromLong(12345),
+        depTarget,
+        HashCode.fromLong(64738));
+    TargetGraph targetGraphB = createGraphWithANodeAndADep(
+        nodeTarget,
+        HashCode.fromLong(12345),
+        depTarget,
+        HashCode.fromLong(84552));
+
+    Map<BuildTarget, HashCode> resultA =
+        TargetGraphHashing.hashTargetGraphStructure(targetGraphA, targetGraphA.getNodes());
+    Map<BuildTarget, HashCode> resultACopy =
+        TargetGraphHashing.hashTargetGraphStructure(targetGraphACopy, targetGraphACopy.getNodes());
+    Map<BuildTarget, HashCode> resultB =
+        TargetGraphHashing.hashTargetGraphStructure(targetGraphB, targetGraphB.getNodes());
+
+    assertThat(resultA, equalTo(resultACopy));
+    assertThat(
+        resultA.get(nodeTarget),
+        not(equalTo(resultB.get(nodeTarget))));
+  }
+
+  @Test
+  public void parallelHashingMatchesSequentialHashing() throws Exception {
+    FakeProjectFilesystem projectFilesystem = new FakeProjectFilesystem();
+    Cell cell = new TestCellBuilder().setFilesystem(projectFilesystem).build();
+
+    // A diamond, with a chain hanging off the bottom.
+    TargetNode<?> bottom = createJavaLibraryTargetNodeWithSrcs(
+        BuildTargetFactory.newInstance("//bottom:lib"),
+        HashCode.fromLong(1),
+        ImmutableSet.of(Paths.get("bottom/Bottom.java")));
+    TargetNode<?> middle = createJavaLibraryTargetNodeWithSrcs(
+        BuildTargetFactory.newInstance("//middle:lib"),
+        HashCode.fromLong(2),
+        ImmutableSet.<Path>of(),
+        bottom);
+    TargetNode<?> left = createJavaLibraryTargetNodeWithSrcs(
+        BuildTargetFactory.newInstance("//left:lib"),
+        HashCode.fromLong(3),
+        ImmutableSet.of(Paths.get("left/Left.java")),
+        middle);
+    TargetNode<?> right = createJavaLibraryTargetNodeWithSrcs(
+        BuildTargetFactory.newInstance("//right:lib"),
+        HashCode.fromLong(4),
+        ImmutableSet.<Path>of(),
+        middle);
+    TargetNode<?> top = createJavaLibraryTargetNodeWithSrcs(
+        BuildTargetFactory.newInstance("//top:lib"),
+        HashCode.fromLong(5),
+        ImmutableSet.<Path>of(),
+        left,
+        right);
+    TargetGraph targetGraph = TargetGraphFactory.newInstance(top, left, right, middle, bottom);
+    FileHashCache fileHashCache = new FakeFileHashCache(
+        ImmutableMap.of(
+            projectFilesystem.resolve("bottom/Bottom.java"), HashCode.fromString("abcdef"),
+            projectFilesystem.resolve("left/Left.java"), HashCode.fromString("123456")));
+
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    try {
+      assertThat(
+          TargetGraphHashing.hashTargetGraph(
+              cell,
+              targetGraph,
+              fileHashCache,
+              ImmutableList.<TargetNode<?>>of(top),
+              executor,
+              Optional.of(new TargetNodeHashCache())),
+          equalTo(
+              TargetGraphHashing.hashTargetGraph(
+                  cell,
+                  targetGraph,
+                  fileHashCache,
+                  ImmutableList.<TargetNode<?>>of(top))));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void cachedNodeHashesAreInvalidatedByChangesToTheirInputs() throws Exception {
+    FakeProjectFilesystem projectFilesystem = new FakeProjectFilesystem();
+    Cell cell = new TestCellBuilder().setFilesystem(projectFilesystem).build();
+    BuildTarget nodeTarget = BuildTargetFactory.newInstance("//foo:lib");
+    TargetGraph targetGraph = createGraphWithANodeAndADep(
+        nodeTarget,
+        HashCode.fromLong(12345),
+        BuildTargetFactory.newInstance("//dep:lib"),
+        HashCode.fromLong(64738));
+    ImmutableList<TargetNode<?>> roots =
+        ImmutableList.<TargetNode<?>>of(targetGraph.get(nodeTarget));
+
+    FileHashCache baseCache = new FakeFileHashCache(
+        ImmutableMap.of(
+            projectFilesystem.resolve("foo/FooLib.java"), HashCode.fromString("abcdef"),
+            projectFilesystem.resolve("dep/DepLib.java"), HashCode.fromString("123456")));
+    FileHashCache modifiedCache = new FakeFileHashCache(
+        ImmutableMap.of(
+            projectFilesystem.resolve("foo/FooLib.java"), HashCode.fromString("abcdef"),
+            projectFilesystem.resolve("dep/DepLib.java"), HashCode.fromString("654321")));
+
+    TargetNodeHashCache nodeHashCache = new TargetNodeHashCache();
+    ListeningExecutorService executor = MoreExecutors.newDirectExecutorService();
+    Map<BuildTarget, HashCode> baseResult = TargetGraphHashing.hashTargetGraph(
+        cell,
+        targetGraph,
+        baseCache,
+        roots,
+        executor,
+        Optional.of(nodeHashCache));
+
+    // Without a watch event, the remembered hashes of the nodes' inputs are used.
+    assertThat(
+        TargetGraphHashing.hashTargetGraph(
+            cell,
+            targetGraph,
+            modifiedCache,
+            roots,
+            executor,
+            Optional.of(nodeHashCache)),
+        equalTo(baseResult));
+
+    nodeHashCache.invalidateBasedOn(
+        WatchEventsForTests.createPathEvent(
+            Paths.get("dep/DepLib.java"),
+            StandardWatchEventKinds.ENTRY_MODIFY));
+    assertThat(
+        TargetGraphHashing.hashTargetGraph(
+            cell,
+            targetGraph,
+            modifiedCache,
+            roots,
+            executor,
+            Optional.of(nodeHashCache)),
+        equalTo(
+            TargetGraphHashing.hashTargetGraph(cell, targetGraph, modifiedCache, roots)));
+  }
+
   private static TargetNode<?> createJavaLibraryTargetNodeWithSrcs(
       BuildTarget buildTarget,
       HashCode hashCode,
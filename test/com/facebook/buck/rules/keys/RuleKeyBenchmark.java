@@ -0,0 +1,184 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.AddToRuleKey;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleParams;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.FakeBuildRuleParamsBuilder;
+import com.facebook.buck.rules.PathSourcePath;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.RuleKeyAppendable;
+import com.facebook.buck.rules.RuleKeyBuilder;
+import com.facebook.buck.rules.SourcePath;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.rules.TargetGraph;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.util.cache.FileHashCache;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import com.google.caliper.api.Macrobenchmark;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the default rule keys of a synthetic graph of rules, each with a handful of deps,
+ * sources, and flags, and a toolchain shared between all of them.
+ */
+public class RuleKeyBenchmark {
+  @Param({"1000", "10000", "50000"})
+  private int ruleCount = 1000;
+
+  @Param({"10", "50"})
+  private int sourcesPerRule = 10;
+
+  @Param({"4"})
+  private int depsPerRule = 4;
+
+  private SourcePathResolver pathResolver;
+  private FileHashCache hashCache;
+  private List<BuildRule> rules;
+
+  @Before
+  public void setUpTest() {
+    ruleCount = 500;
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    pathResolver = new SourcePathResolver(
+        new BuildRuleResolver(TargetGraph.EMPTY, new DefaultTargetNodeToBuildRuleTransformer()));
+
+    Map<Path, HashCode> hashes = new HashMap<>();
+    Toolchain toolchain = new Toolchain(
+        new PathSourcePath(filesystem, Paths.get("tools/compiler")),
+        ImmutableList.of("-O2", "-g", "-Wall", "-Werror"));
+    hashes.put(filesystem.resolve("tools/compiler"), hash("tools/compiler"));
+
+    rules = new ArrayList<>(ruleCount);
+    for (int i = 0; i < ruleCount; i++) {
+      ImmutableSortedSet.Builder<BuildRule> deps = ImmutableSortedSet.naturalOrder();
+      for (int j = 1; j <= depsPerRule && j <= i; j++) {
+        deps.add(rules.get(i - j * j > 0 ? i - j * j : 0));
+      }
+      ImmutableList.Builder<SourcePath> srcs = ImmutableList.builder();
+      for (int j = 0; j < sourcesPerRule; j++) {
+        Path path = Paths.get(String.format("pkg%d/Source%d_%d.java", i % 100, i, j));
+        srcs.add(new PathSourcePath(filesystem, path));
+        hashes.put(filesystem.resolve(path), hash(path.toString()));
+      }
+      rules.add(
+          new SyntheticRule(
+              new FakeBuildRuleParamsBuilder(
+                  BuildTargetFactory.newInstance(String.format("//pkg%d:rule%d", i % 100, i)))
+                  .setDeclaredDeps(deps.build())
+                  .build(),
+              pathResolver,
+              srcs.build(),
+              ImmutableList.of("-DRULE=" + i, "-Ipkg" + (i % 100)),
+              toolchain));
+    }
+    hashCache = new FakeFileHashCache(hashes);
+  }
+
+  @Test
+  public void ruleKeysAreStableAndDistinct() {
+    ImmutableList<RuleKey> first = computeRuleKeys();
+    ImmutableList<RuleKey> second = computeRuleKeys();
+    assertEquals(first, second);
+    assertEquals(ruleCount, ImmutableSet.copyOf(first).size());
+  }
+
+  @Macrobenchmark
+  public ImmutableList<RuleKey> computeRuleKeys() {
+    DefaultRuleKeyBuilderFactory factory =
+        new DefaultRuleKeyBuilderFactory(hashCache, pathResolver);
+    ImmutableList.Builder<RuleKey> keys = ImmutableList.builder();
+    for (BuildRule rule : rules) {
+      keys.add(factory.build(rule));
+    }
+    return keys.build();
+  }
+
+  private static HashCode hash(String contents) {
+    return Hashing.sha1().hashString(contents, StandardCharsets.UTF_8);
+  }
+
+  private static class Toolchain implements RuleKeyAppendable {
+    private final SourcePath compiler;
+    private final ImmutableList<String> flags;
+
+    public Toolchain(SourcePath compiler, ImmutableList<String> flags) {
+      this.compiler = compiler;
+      this.flags = flags;
+    }
+
+    @Override
+    public RuleKeyBuilder appendToRuleKey(RuleKeyBuilder builder) {
+      return builder
+          .setReflectively("compiler", compiler)
+          .setReflectively("flags", flags);
+    }
+  }
+
+  private static class SyntheticRule extends FakeBuildRule {
+    @AddToRuleKey
+    private final ImmutableList<SourcePath> srcs;
+    @AddToRuleKey
+    private final ImmutableList<String> flags;
+    @AddToRuleKey
+    private final Toolchain toolchain;
+    @AddToRuleKey
+    private final boolean debug = true;
+
+    public SyntheticRule(
+        BuildRuleParams params,
+        SourcePathResolver resolver,
+        ImmutableList<SourcePath> srcs,
+        ImmutableList<String> flags,
+        Toolchain toolchain) {
+      super(params, resolver);
+      this.srcs = srcs;
+      this.flags = flags;
+      this.toolchain = toolchain;
+    }
+  }
+}
@@ -23,6 +23,7 @@ import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetFactory;
 import com.facebook.buck.rules.ActionGraphAndResolver;
 import com.facebook.buck.rules.ActionGraphCache;
+import com.facebook.buck.rules.CachingBuildEngine;
 import com.facebook.buck.rules.TargetGraph;
 import com.facebook.buck.rules.TargetNode;
 import com.facebook.buck.testutil.TargetGraphFactory;
@@ -82,13 +83,26 @@ public class BuildSimulatorTest {
       SimulateTimes times,
       ActionGraphAndResolver result,
       int numberThreads) {
+    return newBuildSimulator(
+        times,
+        result,
+        numberThreads,
+        CachingBuildEngine.DependencySchedulingOrder.SORTED);
+  }
+
+  private static BuildSimulator newBuildSimulator(
+      SimulateTimes times,
+      ActionGraphAndResolver result,
+      int numberThreads,
+      CachingBuildEngine.DependencySchedulingOrder schedulingOrder) {
     BuckEventBus mockBus = EasyMock.createNiceMock(BuckEventBus.class);
     return new BuildSimulator(
         mockBus,
         times,
         result.getActionGraph(),
         result.getResolver(),
-        numberThreads);
+        numberThreads,
+        schedulingOrder);
   }
 
   private static BuildSimulator newBuildSimulator(
@@ -168,6 +182,32 @@ public class BuildSimulatorTest {
         DEFAULT_MILLIS * 2);
   }
 
+  @Test
+  public void testCriticalPathIsStartedFirst() throws IOException {
+    SimulateTimes times = SimulateTimes.createEmpty(DEFAULT_MILLIS);
+    ActionGraphAndResolver result = Preconditions.checkNotNull(
+        ActionGraphCache.getFreshActionGraph(eventBus, createLongChainGraph()));
+
+    // Leaves sort ahead of the chain, so in FIFO order they're started first and the chain only
+    // starts once they're done.
+    SimulateReport fifoReport = newBuildSimulator(times, result, 2)
+        .simulateBuild(0, ImmutableList.of(ROOT_NODE));
+    Assert.assertEquals(
+        DEFAULT_MILLIS * 6,
+        fifoReport.getRunReports().get(0).getBuildDurationMillis());
+
+    SimulateReport criticalPathReport =
+        newBuildSimulator(
+            times,
+            result,
+            2,
+            CachingBuildEngine.DependencySchedulingOrder.CRITICAL_PATH)
+            .simulateBuild(0, ImmutableList.of(ROOT_NODE));
+    SingleRunReport runReport = criticalPathReport.getRunReports().get(0);
+    Assert.assertEquals(DEFAULT_MILLIS * 5, runReport.getBuildDurationMillis());
+    Assert.assertEquals("CRITICAL_PATH", runReport.getDependencySchedulingOrder());
+  }
+
   private void testTargetGraphWith(
       TargetGraph targetGraph,
       int numberThreads,
@@ -239,6 +279,33 @@ public class BuildSimulatorTest {
     return TargetGraphFactory.newInstance(root, left, right);
   }
 
+  private static TargetGraph createLongChainGraph() {
+    List<TargetNode<?>> nodes = new ArrayList<>();
+    JavaLibraryBuilder rootBuilder = JavaLibraryBuilder.createBuilder(ROOT_NODE);
+    for (int i = 0; i < 4; ++i) {
+      TargetNode<?> leaf =
+          JavaLibraryBuilder.createBuilder(
+              BuildTargetFactory.newInstance("//a/leaf_" + i + ":target"))
+              .build();
+      nodes.add(leaf);
+      rootBuilder.addDep(leaf.getBuildTarget());
+    }
+    BuildTarget previous = null;
+    for (int i = 2; i >= 0; --i) {
+      JavaLibraryBuilder chainBuilder = JavaLibraryBuilder.createBuilder(
+          BuildTargetFactory.newInstance("//z/chain_" + i + ":target"));
+      if (previous != null) {
+        chainBuilder.addDep(previous);
+      }
+      TargetNode<?> chain = chainBuilder.build();
+      nodes.add(chain);
+      previous = chain.getBuildTarget();
+    }
+    rootBuilder.addDep(Preconditions.checkNotNull(previous));
+    nodes.add(rootBuilder.build());
+    return TargetGraphFactory.newInstance(nodes);
+  }
+
   private static TargetGraph createOneNodeGraph() {
     TargetNode<?> targetNode = JavaLibraryBuilder.createBuilder(ROOT_NODE).build();
     return TargetGraphFactory.newInstance(targetNode);
@@ -115,6 +115,10 @@ public class FakeFileHashCache implements FileHashCache {
     pathsToHashes.put(path, hashCode);
   }
 
+  @Override
+  public void prefetch(Iterable<Path> paths) {
+  }
+
   public boolean contains(Path path) {
     return pathsToHashes.containsKey(path);
   }
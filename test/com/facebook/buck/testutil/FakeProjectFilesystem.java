@@ -49,6 +49,8 @@ import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.math.BigInteger;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.CopyOption;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystem;
@@ -582,6 +584,12 @@ public class FakeProjectFilesystem extends ProjectFilesystem {
     return new ByteArrayInputStream(contents);
   }
 
+  @Override
+  public ReadableByteChannel newFileReadChannel(Path pathRelativeToProjectRoot)
+      throws IOException {
+    return Channels.newChannel(newFileInputStream(pathRelativeToProjectRoot));
+  }
+
 
   private Path normalizePathToProjectRoot(Path pathRelativeToProjectRoot)
     throws NoSuchFileException {
@@ -18,6 +18,7 @@ package com.facebook.buck.util.cache;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -26,6 +27,7 @@ import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.io.HashingDeterministicJarWriter;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.google.common.base.Optional;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
@@ -37,9 +39,17 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
@@ -234,4 +244,128 @@ public class DefaultFileHashCacheTest {
 
     cache.get(ArchiveMemberPath.of(filesystem.resolve(abiJarPath), memberPath));
   }
+
+  @Test
+  public void hashesAreReadFromAndRecordedToThePersistentStore() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRootPath());
+    Path storePath = tmp.getRootPath().resolve("buck-out/file_hashes");
+    Path source = Paths.get("Source.java");
+    Path stale = Paths.get("Stale.java");
+    filesystem.writeContentsToPath("class Source {}", source);
+    filesystem.writeContentsToPath("class Stale {}", stale);
+    FileTime longAgo = FileTime.fromMillis(System.currentTimeMillis() - 60 * 1000);
+    Files.setLastModifiedTime(filesystem.resolve(source), longAgo);
+    Files.setLastModifiedTime(filesystem.resolve(stale), longAgo);
+
+    HashCode fakeHash = Hashing.sha1().hashInt(42);
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      store.put(
+          source.toString(),
+          PersistentFileHashStore.FileStamp.of(
+              filesystem.readAttributes(source, BasicFileAttributes.class)),
+          fakeHash);
+      store.put(
+          stale.toString(),
+          new PersistentFileHashStore.FileStamp(longAgo.toMillis() - 1, 0, 0),
+          fakeHash);
+    }
+
+    HashCode staleHash = Hashing.sha1().hashString("class Stale {}", StandardCharsets.UTF_8);
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      DefaultFileHashCache cache =
+          new DefaultFileHashCache(filesystem, Optional.of(store));
+      assertEquals(fakeHash, cache.get(filesystem.resolve(source)));
+      assertEquals(staleHash, cache.get(filesystem.resolve(stale)));
+    }
+
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      assertEquals(
+          Optional.of(staleHash),
+          store.get(
+              stale.toString(),
+              PersistentFileHashStore.FileStamp.of(
+                  filesystem.readAttributes(stale, BasicFileAttributes.class))));
+    }
+  }
+
+  @Test
+  public void prefetchHashesFilesInBulkAndSkipsMissingOnes() throws IOException {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    DefaultFileHashCache cache = new DefaultFileHashCache(filesystem);
+
+    List<Path> paths = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      Path path = Paths.get("src/File" + i + ".java");
+      filesystem.writeContentsToPath("class File" + i + " {}", path);
+      paths.add(filesystem.resolve(path));
+    }
+    Path missing = Paths.get("src/Missing.java");
+    paths.add(filesystem.resolve(missing));
+
+    cache.prefetch(paths);
+
+    for (int i = 0; i < 20; i++) {
+      Path path = Paths.get("src/File" + i + ".java");
+      HashCodeAndFileType cached = cache.loadingCache.getIfPresent(path);
+      assertEquals(
+          Hashing.sha1().hashString("class File" + i + " {}", StandardCharsets.UTF_8),
+          cached.getHashCode());
+    }
+    assertNull(cache.loadingCache.getIfPresent(missing));
+  }
+
+  @Test
+  public void prefetchDoesNotWaitForBusyHashingThreads() throws Exception {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    DefaultFileHashCache cache = new DefaultFileHashCache(filesystem);
+    List<Path> paths = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      Path path = Paths.get("src/File" + i + ".java");
+      filesystem.writeContentsToPath("class File" + i + " {}", path);
+      paths.add(filesystem.resolve(path));
+    }
+
+    // Tie up all of the shared hashing threads, as another cache hashing lots of files would.
+    final CountDownLatch release = new CountDownLatch(1);
+    List<Future<?>> blockers = new ArrayList<>();
+    for (int i = 0; i < DefaultFileHashCache.HASHING_THREADS; i++) {
+      blockers.add(
+          DefaultFileHashCache.HASHING_EXECUTOR.get().submit(
+              new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                  release.await();
+                  return null;
+                }
+              }));
+    }
+    try {
+      cache.prefetch(paths);
+      for (int i = 0; i < 20; i++) {
+        assertNotNull(cache.loadingCache.getIfPresent(Paths.get("src/File" + i + ".java")));
+      }
+    } finally {
+      release.countDown();
+    }
+    for (Future<?> blocker : blockers) {
+      blocker.get();
+    }
+  }
+
+  @Test
+  public void hashingADirectoryCachesTheHashesOfItsFiles() throws IOException {
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+    DefaultFileHashCache cache = new DefaultFileHashCache(filesystem);
+    filesystem.writeContentsToPath("a", Paths.get("res/a.txt"));
+    filesystem.writeContentsToPath("b", Paths.get("res/values/b.txt"));
+    filesystem.writeContentsToPath("c", Paths.get("res/values/c.txt"));
+
+    HashCode dirHash = cache.get(filesystem.resolve("res"));
+
+    assertEquals(
+        Hashing.sha1().hashString("b", StandardCharsets.UTF_8),
+        cache.loadingCache.getIfPresent(Paths.get("res/values/b.txt")).getHashCode());
+    cache.invalidateAll();
+    assertEquals(dirHash, cache.get(filesystem.resolve("res")));
+  }
 }
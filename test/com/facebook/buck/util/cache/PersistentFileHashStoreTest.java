@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Optional;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class PersistentFileHashStoreTest {
+
+  @Rule
+  public TemporaryPaths tmp = new TemporaryPaths();
+
+  private static final HashCode HASH_A = sha1("a");
+  private static final HashCode HASH_B = sha1("b");
+
+  private Path storePath;
+  private PersistentFileHashStore.FileStamp oldStamp;
+
+  @Before
+  public void setUp() {
+    storePath = tmp.getRoot().resolve("buck-out/file_hashes");
+    oldStamp = new PersistentFileHashStore.FileStamp(
+        System.currentTimeMillis() - 60 * 1000,
+        /* size */ 1,
+        /* fileKeyHash */ 42);
+  }
+
+  @Test
+  public void hashesSurviveReopeningTheStore() {
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      store.put("a.txt", oldStamp, HASH_A);
+      store.put("b.txt", oldStamp, HASH_A);
+      store.put("b.txt", oldStamp, HASH_B);
+    }
+
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      assertEquals(Optional.of(HASH_A), store.get("a.txt", oldStamp));
+      assertEquals(Optional.of(HASH_B), store.get("b.txt", oldStamp));
+      assertFalse(store.get("c.txt", oldStamp).isPresent());
+    }
+  }
+
+  @Test
+  public void hashesAreOnlyReturnedForMatchingStamps() {
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      store.put("a.txt", oldStamp, HASH_A);
+      assertFalse(
+          store.get(
+              "a.txt",
+              new PersistentFileHashStore.FileStamp(
+                  oldStamp.getModifiedTimeMillis(),
+                  oldStamp.getSize() + 1,
+                  oldStamp.getFileKeyHash())).isPresent());
+      assertFalse(
+          store.get(
+              "a.txt",
+              new PersistentFileHashStore.FileStamp(
+                  oldStamp.getModifiedTimeMillis(),
+                  oldStamp.getSize(),
+                  oldStamp.getFileKeyHash() + 1)).isPresent());
+    }
+  }
+
+  @Test
+  public void recentlyModifiedFilesAreNotRecorded() {
+    PersistentFileHashStore.FileStamp recentStamp =
+        new PersistentFileHashStore.FileStamp(System.currentTimeMillis(), 1, 42);
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      store.put("a.txt", recentStamp, HASH_A);
+      assertFalse(store.get("a.txt", recentStamp).isPresent());
+    }
+  }
+
+  @Test
+  public void tornTailIsDroppedAndOverwritten() throws IOException {
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      store.put("a.txt", oldStamp, HASH_A);
+      store.put("b.txt", oldStamp, HASH_B);
+    }
+
+    // Chop the last record in half, as if the process died while writing it.
+    byte[] contents = Files.readAllBytes(storePath);
+    Files.write(storePath, Arrays.copyOf(contents, contents.length - 10));
+
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      assertEquals(Optional.of(HASH_A), store.get("a.txt", oldStamp));
+      assertFalse(store.get("b.txt", oldStamp).isPresent());
+      store.put("c.txt", oldStamp, HASH_B);
+    }
+
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      assertEquals(Optional.of(HASH_A), store.get("a.txt", oldStamp));
+      assertEquals(Optional.of(HASH_B), store.get("c.txt", oldStamp));
+    }
+  }
+
+  @Test
+  public void garbageIsIgnored() throws IOException {
+    Files.createDirectories(storePath.getParent());
+    Files.write(
+        storePath,
+        "not a hash store".getBytes(StandardCharsets.UTF_8),
+        StandardOpenOption.CREATE);
+
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      assertFalse(store.get("a.txt", oldStamp).isPresent());
+      store.put("a.txt", oldStamp, HASH_A);
+    }
+
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      assertEquals(Optional.of(HASH_A), store.get("a.txt", oldStamp));
+    }
+  }
+
+  @Test
+  public void supersededRecordsAreCompactedAway() throws IOException {
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      store.put("a.txt", oldStamp, HASH_A);
+    }
+    long singleRecordSize = Files.size(storePath);
+
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      for (int i = 0; i < 10; i++) {
+        store.put("a.txt", oldStamp, i % 2 == 0 ? HASH_B : HASH_A);
+      }
+    }
+
+    assertEquals(singleRecordSize, Files.size(storePath));
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      assertEquals(Optional.of(HASH_A), store.get("a.txt", oldStamp));
+    }
+  }
+
+  @Test
+  public void supersededRecordsAreCompactedAwayWhileTheStoreIsOpen() throws IOException {
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      store.put("a.txt", oldStamp, HASH_A);
+      store.flush();
+      long singleRecordSize = Files.size(storePath);
+
+      for (int i = 0; i < 10; i++) {
+        store.put("a.txt", oldStamp, i % 2 == 0 ? HASH_B : HASH_A);
+        store.flush();
+      }
+      assertTrue(Files.size(storePath) < 2 * singleRecordSize);
+
+      // The store keeps appending to the compacted log.
+      store.put("b.txt", oldStamp, HASH_B);
+    }
+
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      assertEquals(Optional.of(HASH_A), store.get("a.txt", oldStamp));
+      assertEquals(Optional.of(HASH_B), store.get("b.txt", oldStamp));
+    }
+  }
+
+  @Test
+  public void supersededRecordsLeftByAKilledProcessAreCompactedOnLoad() throws IOException {
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      store.put("a.txt", oldStamp, HASH_A);
+    }
+    byte[] singleRecord = Files.readAllBytes(storePath);
+
+    // Repeat the record, as a process which never got to close the store might have.
+    int headerSize = 8;
+    for (int i = 0; i < 4; i++) {
+      Files.write(
+          storePath,
+          Arrays.copyOfRange(singleRecord, headerSize, singleRecord.length),
+          StandardOpenOption.APPEND);
+    }
+
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      assertEquals(Optional.of(HASH_A), store.get("a.txt", oldStamp));
+      assertEquals(singleRecord.length, Files.size(storePath));
+    }
+  }
+
+  @Test
+  public void aSecondStoreOnTheSameFileIsReadOnly() {
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      store.put("a.txt", oldStamp, HASH_A);
+    }
+
+    try (PersistentFileHashStore first = new PersistentFileHashStore(storePath);
+         PersistentFileHashStore second = new PersistentFileHashStore(storePath)) {
+      assertTrue(first.get("a.txt", oldStamp).isPresent());
+      assertTrue(second.get("a.txt", oldStamp).isPresent());
+      second.put("b.txt", oldStamp, HASH_B);
+    }
+
+    try (PersistentFileHashStore store = new PersistentFileHashStore(storePath)) {
+      assertFalse(store.get("b.txt", oldStamp).isPresent());
+    }
+  }
+
+  private static HashCode sha1(String contents) {
+    return Hashing.sha1().hashString(contents, StandardCharsets.UTF_8);
+  }
+}
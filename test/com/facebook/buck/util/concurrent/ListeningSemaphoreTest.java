@@ -212,6 +212,35 @@ public class ListeningSemaphoreTest {
     assertThat(semaphore.getQueueLength(), Matchers.equalTo(0));
   }
 
+  @Test
+  public void higherPriorityAcquisitionsAreUnblockedFirst() {
+    ListeningSemaphore semaphore = new ListeningSemaphore(1);
+    semaphore.acquire(1);
+
+    AtomicBoolean low = acquire(semaphore, 1, 1);
+    AtomicBoolean firstHigh = acquire(semaphore, 1, 5);
+    AtomicBoolean secondHigh = acquire(semaphore, 1, 5);
+    AtomicBoolean medium = acquire(semaphore, 1, 3);
+    assertThat(semaphore.getQueueLength(), Matchers.equalTo(4));
+
+    // Equal priorities are unblocked in the order they were acquired.
+    semaphore.release(1);
+    assertTrue(firstHigh.get());
+    assertFalse(secondHigh.get());
+
+    semaphore.release(1);
+    assertTrue(secondHigh.get());
+    assertFalse(medium.get());
+
+    semaphore.release(1);
+    assertTrue(medium.get());
+    assertFalse(low.get());
+
+    semaphore.release(1);
+    assertTrue(low.get());
+    assertThat(semaphore.getQueueLength(), Matchers.equalTo(0));
+  }
+
   @Test
   public void fuzz() {
     Random random = new Random();
@@ -253,9 +282,13 @@ public class ListeningSemaphoreTest {
   }
 
   private AtomicBoolean acquire(ListeningSemaphore semaphore, int permits) {
+    return acquire(semaphore, permits, 0);
+  }
+
+  private AtomicBoolean acquire(ListeningSemaphore semaphore, int permits, long priority) {
     final AtomicBoolean bool = new AtomicBoolean(false);
     Futures.transform(
-        semaphore.acquire(permits),
+        semaphore.acquire(permits, priority),
         new Function<Void, Object>() {
           @Override
           public Object apply(Void input) {
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.hash;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.PrimitiveSink;
+
+import org.junit.Test;
+
+public class CloningHasherTest {
+
+  @Test
+  public void hashingCanBeInterleavedWithPuts() {
+    CloningHasher cloningHasher = CloningHasher.sha1();
+    Hasher hasher1 = Hashing.sha1().newHasher();
+    Hasher hasher2 = Hashing.sha1().newHasher();
+
+    cloningHasher.putDouble(Math.E);
+    hasher1.putDouble(Math.E);
+    hasher2.putDouble(Math.E);
+    assertEquals(hasher1.hash(), cloningHasher.hash());
+
+    cloningHasher.putLong(8_000_000_000L);
+    hasher2.putLong(8_000_000_000L);
+    assertEquals(hasher2.hash(), cloningHasher.hash());
+    assertEquals(cloningHasher.hash(), cloningHasher.hash());
+  }
+
+  @Test
+  public void testAllPutMethods() {
+    Hasher ordinaryHasher = Hashing.sha1().newHasher();
+    CloningHasher cloningHasher = CloningHasher.sha1();
+
+    Iterable<Hasher> hashers = ImmutableList.of(ordinaryHasher, cloningHasher);
+    for (Hasher hasher : hashers) {
+      assertSame(hasher, hasher.putByte((byte) 42));
+      byte[] bytes = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
+      assertSame(hasher, hasher.putBytes(bytes));
+      assertSame(hasher, hasher.putBytes(bytes, 2, 7));
+      assertSame(hasher, hasher.putShort((short) -300));
+      assertSame(hasher, hasher.putInt(-65101));
+      assertSame(hasher, hasher.putLong(-8_000_000_000L));
+      assertSame(hasher, hasher.putFloat(3.14f));
+      assertSame(hasher, hasher.putDouble(Math.E));
+      assertSame(hasher, hasher.putBoolean(true));
+      assertSame(hasher, hasher.putBoolean(false));
+      assertSame(hasher, hasher.putChar('€'));
+      assertSame(hasher, hasher.putUnencodedChars("I like unit tests."));
+      assertSame(hasher, hasher.putString("abc", Charsets.US_ASCII));
+      assertSame(hasher, hasher.putObject(this.getClass(), TestFunnel.instance));
+    }
+
+    assertEquals(ordinaryHasher.hash(), cloningHasher.hash());
+  }
+
+  @SuppressWarnings("serial")
+  private static class TestFunnel implements Funnel<Class<?>> {
+
+    private static final Funnel<Class<?>> instance = new TestFunnel();
+
+    private TestFunnel() {}
+
+    @Override
+    public void funnel(Class<?> from, PrimitiveSink into) {
+      into.putUnencodedChars(from.getName());
+    }
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.timing.DefaultClock;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+public class ParallelZipOutputStreamTest {
+
+  private ListeningExecutorService executor;
+
+  @Before
+  public void setUpExecutor() {
+    executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+  }
+
+  @After
+  public void shutDownExecutor() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void writesTheSameBytesAsTheSequentialStream() throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    try (CustomZipOutputStream out =
+             new AppendingZipOutputStream(new DefaultClock(), expected, true)) {
+      writeEntries(out);
+    }
+
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    try (CustomZipOutputStream out = newStream(actual, 4, 1 << 20, 1 << 20)) {
+      writeEntries(out);
+    }
+
+    assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+  @Test
+  public void writesTheSameBytesWhenEntriesHaveToWaitOrAreTooBigToBuffer() throws IOException {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    try (CustomZipOutputStream out =
+             new AppendingZipOutputStream(new DefaultClock(), expected, true)) {
+      writeEntries(out);
+    }
+
+    // At most one entry waiting, at most 10KB of them, and anything over 50KB is streamed.
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    try (CustomZipOutputStream out = newStream(actual, 1, 10 * 1024, 50 * 1024)) {
+      writeEntries(out);
+    }
+
+    assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+  @Test
+  public void entriesCanBeReadBack() throws IOException {
+    ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    try (CustomZipOutputStream out = newStream(zip, 2, 1 << 20, 1 << 20)) {
+      writeEntries(out);
+    }
+
+    int count = 0;
+    try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()))) {
+      ZipEntry entry;
+      while ((entry = in.getNextEntry()) != null) {
+        byte[] contents = ByteStreams.toByteArray(in);
+        assertArrayEquals(entry.getName(), contentsFor(entry.getName()), contents);
+        count++;
+      }
+    }
+    assertEquals(6, count);
+  }
+
+  @Test(expected = ZipException.class)
+  public void throwsOnDuplicateEntriesWhenAsked() throws IOException {
+    try (CustomZipOutputStream out =
+             newStream(new ByteArrayOutputStream(), 2, 1 << 20, 1 << 20)) {
+      out.putNextEntry(new CustomZipEntry("a.txt"));
+      out.putNextEntry(new CustomZipEntry("a.txt"));
+    }
+  }
+
+  private CustomZipOutputStream newStream(
+      ByteArrayOutputStream out,
+      int maxPendingEntries,
+      long maxPendingBytes,
+      int maxBufferedEntrySize) {
+    return new ParallelZipOutputStream(
+        new DefaultClock(),
+        out,
+        /* throwExceptionsOnDuplicate */ true,
+        executor,
+        maxPendingEntries,
+        maxPendingBytes,
+        maxBufferedEntrySize);
+  }
+
+  private static void writeEntries(CustomZipOutputStream out) throws IOException {
+    out.putNextEntry(new CustomZipEntry("dir/"));
+    out.closeEntry();
+
+    writeEntry(out, new CustomZipEntry("dir/small.txt"));
+    writeEntry(out, new CustomZipEntry("dir/medium.class"));
+
+    CustomZipEntry best = new CustomZipEntry("dir/best.class");
+    best.setCompressionLevel(Deflater.BEST_COMPRESSION);
+    writeEntry(out, best);
+
+    byte[] storedContents = contentsFor("dir/stored.bin");
+    CustomZipEntry stored = new CustomZipEntry("dir/stored.bin");
+    stored.setCompressionLevel(Deflater.NO_COMPRESSION);
+    stored.setSize(storedContents.length);
+    stored.setCompressedSize(storedContents.length);
+    stored.setCrc(Hashing.crc32().hashBytes(storedContents).padToLong());
+    writeEntry(out, stored);
+
+    writeEntry(out, new CustomZipEntry("large.so"));
+  }
+
+  private static void writeEntry(CustomZipOutputStream out, ZipEntry entry) throws IOException {
+    byte[] contents = contentsFor(entry.getName());
+    out.putNextEntry(entry);
+    // Write in uneven chunks, as copying from a stream would.
+    for (int offset = 0; offset < contents.length; offset += 3001) {
+      out.write(contents, offset, Math.min(3001, contents.length - offset));
+    }
+    out.closeEntry();
+  }
+
+  private static byte[] contentsFor(String name) {
+    int size;
+    switch (name) {
+      case "dir/small.txt":
+        size = 8;
+        break;
+      case "dir/medium.class":
+        size = 5000;
+        break;
+      case "dir/best.class":
+        size = 20000;
+        break;
+      case "dir/stored.bin":
+        size = 3000;
+        break;
+      case "large.so":
+        size = 200000;
+        break;
+      default:
+        size = 0;
+    }
+    // Half random, half zeros, so that the contents compress a bit.
+    byte[] contents = new byte[size];
+    new Random(name.hashCode()).nextBytes(contents);
+    for (int i = 0; i < size / 2; i++) {
+      contents[i] = 0;
+    }
+    return contents;
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.testutil.integration.TemporaryPaths;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class RawZipFileTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+  private Path input;
+  private byte[] randomBytes;
+
+  @Before
+  public void buildInputZip() throws IOException {
+    input = tmp.getRoot().resolve("input.zip");
+    randomBytes = new byte[100 * 1024];
+    new Random(0).nextBytes(randomBytes);
+
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(input))) {
+      out.putNextEntry(new ZipEntry("dir/"));
+      out.closeEntry();
+
+      out.putNextEntry(new ZipEntry("dir/deflated.txt"));
+      out.write(Strings.repeat("deflate me ", 1000).getBytes(Charsets.UTF_8));
+      out.closeEntry();
+
+      ZipEntry stored = new ZipEntry("dir/stored.bin");
+      stored.setMethod(ZipEntry.STORED);
+      stored.setSize(randomBytes.length);
+      stored.setCrc(Hashing.crc32().hashBytes(randomBytes).padToLong());
+      out.putNextEntry(stored);
+      out.write(randomBytes);
+      out.closeEntry();
+    }
+  }
+
+  @Test
+  public void readsEntriesFromTheCentralDirectory() throws IOException {
+    try (RawZipFile zip = RawZipFile.open(input);
+         ZipFile expected = new ZipFile(input.toFile())) {
+      assertEquals(3, zip.getEntries().size());
+
+      Enumeration<? extends ZipEntry> expectedEntries = expected.entries();
+      for (RawZipEntry entry : zip.getEntries()) {
+        ZipEntry expectedEntry = expectedEntries.nextElement();
+        assertEquals(expectedEntry.getName(), entry.getName());
+        assertEquals(expectedEntry.getMethod(), entry.getMethod());
+        assertEquals(expectedEntry.getCrc(), entry.getCrc());
+        assertEquals(expectedEntry.getSize(), entry.getSize());
+        assertEquals(expectedEntry.getCompressedSize(), entry.getCompressedSize());
+        assertEquals(expectedEntry.isDirectory(), entry.isDirectory());
+        assertEquals(expectedEntry.getTime(), entry.getTime());
+        try (InputStream in = zip.getInputStream(entry);
+             InputStream expectedIn = expected.getInputStream(expectedEntry)) {
+          assertArrayEquals(ByteStreams.toByteArray(expectedIn), ByteStreams.toByteArray(in));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void rawEntriesAreCopiedWithoutRecompression() throws IOException {
+    Path output = tmp.getRoot().resolve("output.zip");
+    try (RawZipFile zip = RawZipFile.open(input);
+         CustomZipOutputStream out = ZipOutputStreams.newOutputStream(output)) {
+      for (RawZipEntry entry : zip.getEntries()) {
+        out.putRawEntry(zip, entry);
+      }
+    }
+
+    assertSameEntries(input, output, /* sameCompressedSize */ true);
+  }
+
+  @Test
+  public void rawEntriesAreCopiedWithoutRecompressionByTheParallelStream() throws IOException {
+    Path output = tmp.getRoot().resolve("output.zip");
+    ListeningExecutorService executor = MoreExecutors.newDirectExecutorService();
+    try (RawZipFile zip = RawZipFile.open(input);
+         CustomZipOutputStream out = ZipOutputStreams.newParallelOutputStream(
+             output,
+             ZipOutputStreams.HandleDuplicates.THROW_EXCEPTION,
+             executor)) {
+      // Put a compressed entry first, so that the raw entries are queued up behind it.
+      out.putNextEntry(new CustomZipEntry("first.txt"));
+      out.write("first".getBytes(Charsets.UTF_8));
+      for (RawZipEntry entry : zip.getEntries()) {
+        out.putRawEntry(zip, entry);
+      }
+    }
+
+    try (ZipFile actual = new ZipFile(output.toFile())) {
+      assertEquals(4, actual.size());
+    }
+    assertSameEntries(input, output, /* sameCompressedSize */ true);
+  }
+
+  @Test
+  public void entriesAreInflatedWhenTheStreamCannotCopyThemRaw() throws IOException {
+    Path output = tmp.getRoot().resolve("output.zip");
+    try (RawZipFile zip = RawZipFile.open(input);
+         CustomZipOutputStream out = ZipOutputStreams.newOutputStream(
+             output,
+             ZipOutputStreams.HandleDuplicates.OVERWRITE_EXISTING)) {
+      for (RawZipEntry entry : zip.getEntries()) {
+        out.putRawEntry(zip, entry);
+      }
+    }
+
+    assertSameEntries(input, output, /* sameCompressedSize */ false);
+  }
+
+  @Test(expected = ZipException.class)
+  public void duplicateRawEntriesAreRejected() throws IOException {
+    Path output = tmp.getRoot().resolve("output.zip");
+    try (RawZipFile zip = RawZipFile.open(input);
+         CustomZipOutputStream out = ZipOutputStreams.newOutputStream(output)) {
+      RawZipEntry entry = zip.getEntries().get(1);
+      out.putRawEntry(zip, entry);
+      out.putRawEntry(zip, entry);
+    }
+  }
+
+  @Test
+  public void readsZip64Archives() throws IOException {
+    // java.util.zip writes zip64 end of central directory records once there are this many entries.
+    int entryCount = 0x10000;
+    Path zip64 = tmp.getRoot().resolve("zip64.zip");
+    try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip64))) {
+      for (int i = 0; i < entryCount; i++) {
+        out.putNextEntry(new ZipEntry("entry" + i));
+        out.write(Integer.toString(i).getBytes(Charsets.UTF_8));
+        out.closeEntry();
+      }
+    }
+
+    try (RawZipFile zip = RawZipFile.open(zip64)) {
+      assertEquals(entryCount, zip.getEntries().size());
+      RawZipEntry last = zip.getEntries().get(entryCount - 1);
+      assertEquals("entry" + (entryCount - 1), last.getName());
+      try (InputStream in = zip.getInputStream(last)) {
+        assertEquals(
+            Integer.toString(entryCount - 1),
+            new String(ByteStreams.toByteArray(in), Charsets.UTF_8));
+      }
+    }
+  }
+
+  @Test(expected = ZipException.class)
+  public void notAZipFile() throws IOException {
+    Path notAZip = tmp.getRoot().resolve("not-a-zip.txt");
+    Files.write(notAZip, Strings.repeat("not a zip ", 10).getBytes(Charsets.UTF_8));
+    RawZipFile.open(notAZip).close();
+  }
+
+  private static void assertSameEntries(
+      Path expectedZip,
+      Path actualZip,
+      boolean sameCompressedSize) throws IOException {
+    try (ZipFile expected = new ZipFile(expectedZip.toFile());
+         ZipFile actual = new ZipFile(actualZip.toFile())) {
+      for (Enumeration<? extends ZipEntry> entries = expected.entries();
+           entries.hasMoreElements(); ) {
+        ZipEntry expectedEntry = entries.nextElement();
+        ZipEntry actualEntry = actual.getEntry(expectedEntry.getName());
+        assertEquals(expectedEntry.getMethod(), actualEntry.getMethod());
+        assertEquals(expectedEntry.getCrc(), actualEntry.getCrc());
+        assertEquals(expectedEntry.getSize(), actualEntry.getSize());
+        assertEquals(expectedEntry.getTime(), actualEntry.getTime());
+        if (sameCompressedSize) {
+          assertEquals(expectedEntry.getCompressedSize(), actualEntry.getCompressedSize());
+        }
+        try (InputStream expectedIn = expected.getInputStream(expectedEntry);
+             InputStream actualIn = actual.getInputStream(actualEntry)) {
+          assertArrayEquals(ByteStreams.toByteArray(expectedIn), ByteStreams.toByteArray(actualIn));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.io.ProjectFilesystem;
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import com.google.caliper.api.Macrobenchmark;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares extracting an artifact-sized zip serially against extracting it in parallel.
+ */
+public class UnzipBenchmark {
+  @Param({"100", "1000"})
+  private int entryCount = 100;
+
+  @Param({"4096", "262144"})
+  private int entrySize = 4096;
+
+  @Param({"2", "4", "8"})
+  private int threadCount = 2;
+
+  public DebuggableTemporaryFolder tempDir = new DebuggableTemporaryFolder();
+
+  private Path zipFile;
+  private ProjectFilesystem filesystem;
+  private ListeningExecutorService executorService;
+
+  @Before
+  public void setUpTest() throws Exception {
+    entryCount = 100;
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() throws Exception {
+    tempDir.create();
+    Path root = tempDir.getRootPath();
+    zipFile = root.resolve("artifact.zip");
+    filesystem = new ProjectFilesystem(tempDir.newFolder("out").toPath());
+
+    // Half random, half zeros, so that the entries compress about as well as class files do.
+    Random random = new Random(0);
+    byte[] contents = new byte[entrySize];
+    random.nextBytes(contents);
+    for (int i = 0; i < entrySize / 2; i++) {
+      contents[i] = 0;
+    }
+
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(zipFile.toFile())) {
+      for (int i = 0; i < entryCount; i++) {
+        zip.putArchiveEntry(
+            new ZipArchiveEntry(String.format("buck-out/gen/dir%d/file%d.class", i % 10, i)));
+        zip.write(contents);
+        zip.closeArchiveEntry();
+      }
+    }
+
+    executorService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
+  }
+
+  @After
+  @AfterExperiment
+  public void cleanup() {
+    tempDir.delete();
+    executorService.shutdown();
+  }
+
+  @Test
+  public void extractCorrectness() throws Exception {
+    ImmutableList<Path> serial = extractSerially();
+    ImmutableList<Path> parallel = extractInParallel();
+    assertEquals(entryCount, serial.size());
+    assertEquals(serial, parallel);
+  }
+
+  @Macrobenchmark
+  public ImmutableList<Path> extractSerially() throws Exception {
+    return Unzip.extractZipFile(
+        zipFile,
+        filesystem,
+        Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+  }
+
+  @Macrobenchmark
+  public ImmutableList<Path> extractInParallel() throws Exception {
+    return Unzip.extractZipFile(
+        zipFile,
+        filesystem,
+        Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES,
+        executorService,
+        threadCount);
+  }
+}
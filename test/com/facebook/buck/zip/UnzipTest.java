@@ -16,13 +16,18 @@
 
 package com.facebook.buck.zip;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.io.MorePosixFilePermissions;
+import com.facebook.buck.io.ProjectFilesystem;
 import com.facebook.buck.testutil.Zip;
 import com.facebook.buck.testutil.integration.TemporaryPaths;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
@@ -34,7 +39,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
 
 public class UnzipTest {
@@ -110,4 +117,81 @@ public class UnzipTest {
     assertTrue(Files.isExecutable(exe));
     assertEquals(ImmutableList.of(extractFolder.resolve("test.exe")), result);
   }
+
+  @Test
+  public void testParallelExtractZipFile() throws Exception {
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(zipFile.toFile())) {
+      for (int i = 0; i < 20; i++) {
+        ZipArchiveEntry entry = new ZipArchiveEntry(String.format("dir%d/file%d.bin", i % 3, i));
+        if (i % 5 == 0) {
+          entry.setUnixMode((int) MorePosixFilePermissions.toMode(
+              PosixFilePermissions.fromString("r-x------")));
+        }
+        zip.putArchiveEntry(entry);
+        zip.write(DUMMY_FILE_CONTENTS);
+        zip.closeArchiveEntry();
+      }
+      zip.putArchiveEntry(new ZipArchiveEntry("emptydir/"));
+      zip.closeArchiveEntry();
+    }
+
+    ProjectFilesystem serialFilesystem = new ProjectFilesystem(tmpFolder.newFolder());
+    ImmutableList<Path> serialResult = Unzip.extractZipFile(
+        zipFile.toAbsolutePath(),
+        serialFilesystem,
+        Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+
+    ProjectFilesystem parallelFilesystem = new ProjectFilesystem(tmpFolder.newFolder());
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(3));
+    ImmutableList<Path> parallelResult;
+    try {
+      parallelResult = Unzip.extractZipFile(
+          zipFile.toAbsolutePath(),
+          parallelFilesystem,
+          Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES,
+          executor,
+          /* parallelism */ 4);
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(serialResult, parallelResult);
+    assertTrue(parallelFilesystem.isDirectory(Paths.get("emptydir")));
+    for (Path path : parallelResult) {
+      assertArrayEquals(
+          Files.readAllBytes(serialFilesystem.resolve(path)),
+          Files.readAllBytes(parallelFilesystem.resolve(path)));
+      assertEquals(
+          Files.isExecutable(serialFilesystem.resolve(path)),
+          Files.isExecutable(parallelFilesystem.resolve(path)));
+    }
+  }
+
+  @Test
+  public void testParallelExtractZipFileCleansExistingDirectories() throws Exception {
+    try (Zip zip = new Zip(zipFile, true)) {
+      zip.addDir("dir");
+      zip.add("dir/1.bin", DUMMY_FILE_CONTENTS);
+      zip.add("dir/2.bin", DUMMY_FILE_CONTENTS);
+    }
+
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmpFolder.newFolder());
+    filesystem.mkdirs(Paths.get("dir"));
+    filesystem.writeContentsToPath("stale", Paths.get("dir/stale.bin"));
+    filesystem.writeContentsToPath("old", Paths.get("dir/1.bin"));
+
+    ImmutableList<Path> result = Unzip.extractZipFile(
+        zipFile.toAbsolutePath(),
+        filesystem,
+        Unzip.ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES,
+        MoreExecutors.newDirectExecutorService(),
+        /* parallelism */ 2);
+
+    assertEquals(ImmutableList.of(Paths.get("dir/1.bin"), Paths.get("dir/2.bin")), result);
+    assertFalse(filesystem.exists(Paths.get("dir/stale.bin")));
+    assertArrayEquals(
+        DUMMY_FILE_CONTENTS,
+        Files.readAllBytes(filesystem.resolve("dir/1.bin")));
+  }
 }
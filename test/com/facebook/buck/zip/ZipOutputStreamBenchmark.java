@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Param;
+import com.google.caliper.api.Macrobenchmark;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares writing a jar-sized zip with the entries compressed on the writing thread against
+ * writing it with the entries compressed in parallel.
+ */
+public class ZipOutputStreamBenchmark {
+  @Param({"100", "1000"})
+  private int entryCount = 100;
+
+  @Param({"4096", "262144"})
+  private int entrySize = 4096;
+
+  @Param({"2", "4", "8"})
+  private int threadCount = 2;
+
+  private byte[] contents;
+  private ListeningExecutorService executorService;
+
+  @Before
+  public void setUpTest() throws Exception {
+    entryCount = 100;
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() throws Exception {
+    // Half random, half zeros, so that the entries compress about as well as class files do.
+    Random random = new Random(0);
+    contents = new byte[entrySize];
+    random.nextBytes(contents);
+    for (int i = 0; i < entrySize / 2; i++) {
+      contents[i] = 0;
+    }
+
+    executorService = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
+  }
+
+  @After
+  @AfterExperiment
+  public void cleanup() {
+    executorService.shutdown();
+  }
+
+  @Test
+  public void writeCorrectness() throws Exception {
+    assertArrayEquals(writeSerially(), writeInParallel());
+  }
+
+  @Macrobenchmark
+  public byte[] writeSerially() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (CustomZipOutputStream zip = ZipOutputStreams.newOutputStream(
+        out,
+        ZipOutputStreams.HandleDuplicates.APPEND_TO_ZIP)) {
+      writeEntries(zip);
+    }
+    return out.toByteArray();
+  }
+
+  @Macrobenchmark
+  public byte[] writeInParallel() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (CustomZipOutputStream zip = ZipOutputStreams.newParallelOutputStream(
+        out,
+        ZipOutputStreams.HandleDuplicates.APPEND_TO_ZIP,
+        executorService)) {
+      writeEntries(zip);
+    }
+    return out.toByteArray();
+  }
+
+  private void writeEntries(CustomZipOutputStream zip) throws IOException {
+    for (int i = 0; i < entryCount; i++) {
+      zip.putNextEntry(
+          new CustomZipEntry(String.format("com/example/dir%d/File%d.class", i % 10, i)));
+      zip.write(contents);
+      zip.closeEntry();
+    }
+  }
+}